@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver.benchmarks;
+
+import com.salsaberries.narchiver.AnchorScanner;
+import com.salsaberries.narchiver.ArchiveReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that {@link AnchorScanner#scan(String)} finds the same anchors as
+ * {@link AnchorScanner#parse(String)}, which is what Jsoup finds. Pages the
+ * scanner gives up on are counted, but aren't a difference, since the trawler
+ * parses those.
+ *
+ * It goes through the edge cases below, then random fragments of markup made
+ * from a fixed seed, then a {@link Corpus}, then any archives or directories
+ * of saved pages given on the command line. The first few differences are
+ * printed, and it exits with 1 if there were any, so it can be run after
+ * changing the scanner or upgrading Jsoup:
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.salsaberries.narchiver.benchmarks.AnchorScannerCheck [dir...]
+ * </pre>
+ *
+ * @author njanetos
+ */
+public class AnchorScannerCheck {
+
+    /**
+     * Markup the scanner has to get right, or give up on.
+     */
+    private static final String[] EDGE_CASES = {
+        // Attribute values, quoted, unquoted and entity-encoded
+        "<a href=/plain>x</a>",
+        "<a href=/a?x=1&amp;y=2>x</a>",
+        "<a href=\"/a?x=1&amp;y=2\">x</a>",
+        "<a href='/a&#47;b'>x</a>",
+        "<a href=/a&#x2F;b>x</a>",
+        "<a href=\"/a&copy=1\">x</a>",
+        "<a href=\"/a&copy;\">x</a>",
+        "<a href=/a&lt>x</a>",
+        "<a href=\"/a&notit;\">x</a>",
+        "<a href=\"/q'uote\">x</a>",
+        "<a href='/dq\"x'>x</a>",
+        "<a href=\"  /lead \">x</a>",
+        "<a href=\"/multi\nline\">x</a>",
+        "<a href=/é>é</a>",
+        // Attribute syntax
+        "<a href = \"/sp\" >x</a>",
+        "<a\nhref=/nl>x</a>",
+        "<a href>x</a>",
+        "<a href=\"\">x</a>",
+        "<a>nohref</a>",
+        "<a data-href=/no href=/yes>x</a>",
+        "<a href=/x1 href=/x2>dup</a>",
+        "<a href=\"/a\"href=\"/b\">x</a>",
+        "<a HREF=/up>x</a>",
+        "<A HREF='/y?a=1&amp;b=2'>  multi \n space  </A>",
+        "<a href=/v data-x='>'>v</a>",
+        "<a href=/tab\tnext>x</a>",
+        // Slashes in tags
+        "<a href=/x/>x</a>",
+        "<a/href=/slash>x</a>",
+        "<a//href=/dbl>x</a>",
+        "<a / href=/spc>x</a>",
+        "<a href=/q / >x</a>",
+        "<a href='/v'/x=1>x</a>",
+        "<a href='/v'/>x</a>",
+        // <base> is left alone, by both
+        "<head><base href=\"http://other.onion/\"></head><body><a href=rel>x</a><a href=/abs>y</a>",
+        "<base href=/b/><a href=c>c</a>",
+        // Comments
+        "<!-- <a href=/c1>c</a> --><a href=/d>d</a>",
+        "<!--><a href=/e>e</a>",
+        "<!---><a href=/f>f</a>-->",
+        "<!----><a href=/d>d</a>",
+        "<!-- --- --><a href=/e>e</a>",
+        "<!-- a -- b --><a href=/g>g</a>",
+        "<!-- x --!><a href=/y>y</a>",
+        "<!-- x --!> --><a href=/y2>y</a>",
+        "<a href='/c'>x</a><!---->",
+        // CDATA, doctypes and other bogus comments
+        "<![CDATA[<a href=/cd>]]><a href=/e>e</a>",
+        "<![CDATA[ x > y <a href=/cd2>z</a> ]]>",
+        "<![CDATA[ <a href=/unterminated>",
+        "<![cdata[<a href=/lc>]]><a href=/m>m</a>",
+        "<a href=/in><![CDATA[x]]></a>",
+        "<svg><![CDATA[<a href=/svg>]]></svg><a href=/h>h</a>",
+        "<?php echo '<a href=/php>'; ?><a href=/i>i</a>",
+        "<!DOCTYPE html><a href=/j>j</a>",
+        "<! bogus <a href=/k>k</a>",
+        // Raw text
+        "<script>var s='<a href=/s>';</script><a href=/t>t</a>",
+        "<script>if (a<b) x('</scr'+'ipt>'); <a href=/s></script><a href=/t>t</a>",
+        "<script><!-- </script> --></script><a href=/u>u</a>",
+        "<SCRIPT>x</SCRIPT ><a href=/sc>s</a>",
+        "<style>a{}</style><a href='/q'>q</a>",
+        "<textarea><a href=/ta></textarea><a href=/v>v</a>",
+        "<title><a href=/no></title><a href=/yes>y</a>",
+        "<iframe><a href=/if></iframe><a href=/w>w</a>",
+        "<noframes><a href=/nf></noframes><a href=/o>o</a>",
+        "<noscript><a href=/ns>ns</a></noscript>",
+        "<html><head><noscript><a href=/hn>x</a></noscript></head><body><a href=/b>b</a>",
+        "<body><noscript><a href=/ns>ns</a></noscript><a href=/after>a</a>",
+        "<template><a href=/tp>t</a></template>",
+        // Link text
+        "<a href=/x>x &lt; y</a>",
+        "<a href=/x>x&nbsp;y</a>",
+        "<a href=/x>&amp;amp;</a>",
+        "<a href=/x>&#169;</a>",
+        "<a href=/x>&unknown;</a>",
+        "<a href=/x> </a>",
+        "<a href=/x>  lead and trail  </a>",
+        "<a href=/x>tab\there</a>",
+        "<a href=/x>a<br>b</a>",
+        "<a href=/x><img src=i></a>",
+        "<a href=/x><span>s</span></a>",
+        "<a href=\"/z\"><b>bold</b> &amp; x</a>",
+        "<a href=/x><b>b<i>i</b></i></a>",
+        // Broken markup
+        "<p>1 < 2 <a href=/w>w</a>",
+        "<a href=/x>x</A>",
+        "<a href=/x>x</a >",
+        "<a href=/x>x</a\n>",
+        "<a href=/open>open",
+        "<a href=/1><a href=/2>x</a>",
+        "<div><a href=/t>t</div></a>",
+        "<table><a href=/tb>tb</a><tr><td>x</td></tr></table>",
+        "<select><option><a href=/sel>s</a></select>"};
+
+    /**
+     * What the random fragments are made of.
+     */
+    private static final String[] PARTS = {"<a href=/x>", "<a href='/y?a&amp;b'>", "<a href=\"/z&copy=1\">",
+        "<A HREF=\"/q\" >", "<a/href=/s>", "<a href=/v/>", "<a href='/w'/>", "<a href=/x href=/z>", "<a>", "</a>", "</A>",
+        "text", " ", "\n", " ", "&amp;", "&nbsp;", "&lt;", "<b>", "</b>", "<B>", "</B>", "<i>", "</i>", "<em>", "</em>",
+        "<span class=\"q\">", "</span>", "<span/>", "<font color=red>", "</font>", "<br>", "<br/>", "<img src=i>",
+        "<p>", "</p>", "<P>", "<div>", "</div>", "<h1>", "</h1>", "<ul><li>", "</li></ul>", "<table>", "</table>",
+        "<tr><td>", "<form action=/f>", "</form>", "<select><option>", "</select>", "<button>", "<nobr>",
+        "<!-- c -->", "<!-->", "<!-- d --!>", "<![CDATA[<a href=/cd>]]>", "<!DOCTYPE html>", "<?x?>",
+        "<script>x<a href=/s></script>", "<textarea><a href=/ta></textarea>", "<noscript>", "</noscript>", "<body>"};
+
+    private static final int FRAGMENTS = 100000;
+    private static final int SHOWN = 5;
+
+    private int checked;
+    private int differences;
+    private int fallbacks;
+
+    /**
+     *
+     * @param args Archive directories, or directories of saved pages, to
+     * check as well.
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        AnchorScannerCheck check = new AnchorScannerCheck();
+
+        for (String html : EDGE_CASES) {
+            check.compare("edge case", html);
+        }
+
+        Random random = new Random(1);
+        for (int i = 0; i < FRAGMENTS; ++i) {
+            StringBuilder html = new StringBuilder("<html><body>");
+            for (int parts = random.nextInt(20); parts > 0; --parts) {
+                html.append(PARTS[random.nextInt(PARTS.length)]);
+            }
+            check.compare("fragment " + i, html.toString());
+        }
+
+        for (String html : new Corpus(1).pages(300)) {
+            check.compare("corpus", html);
+        }
+
+        for (String arg : args) {
+            check.compareAll(new File(arg));
+        }
+
+        System.out.println("Checked " + check.checked + " pages: " + check.differences + " differences, "
+                + check.fallbacks + " left to Jsoup.");
+        if (check.differences > 0) {
+            System.exit(1);
+        }
+    }
+
+    private void compareAll(File directory) throws IOException {
+        // An archive, if it has any pages in it
+        try (ArchiveReader reader = new ArchiveReader(directory)) {
+            if (!reader.getEntries().isEmpty()) {
+                for (ArchiveReader.Entry entry : reader.getEntries()) {
+                    compare(entry.getTagURL(), reader.read(entry).getHtml());
+                }
+                return;
+            }
+        }
+
+        // Otherwise every file under it is a page
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to read " + directory.getAbsolutePath());
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                compareAll(file);
+            } else {
+                compare(file.getPath(), new String(Files.readAllBytes(file.toPath()), Corpus.UTF_8));
+            }
+        }
+    }
+
+    private void compare(String name, String html) {
+        ++checked;
+        List<AnchorScanner.Anchor> scanned = AnchorScanner.scan(html);
+        if (scanned == null) {
+            ++fallbacks;
+            return;
+        }
+        List<AnchorScanner.Anchor> parsed = AnchorScanner.parse(html);
+
+        boolean same = scanned.size() == parsed.size();
+        for (int i = 0; same && i < scanned.size(); ++i) {
+            same = scanned.get(i).getHref().equals(parsed.get(i).getHref())
+                    && scanned.get(i).getText().equals(parsed.get(i).getText());
+        }
+        if (same) {
+            return;
+        }
+
+        if (++differences <= SHOWN) {
+            System.out.println("Difference in " + name + ": " + shorten(html));
+            for (AnchorScanner.Anchor anchor : scanned) {
+                System.out.println("  scanned " + anchor.getHref() + " '" + anchor.getText() + "'");
+            }
+            for (AnchorScanner.Anchor anchor : parsed) {
+                System.out.println("  parsed  " + anchor.getHref() + " '" + anchor.getText() + "'");
+            }
+        }
+    }
+
+    private static String shorten(String html) {
+        String shown = html.length() > 300 ? html.substring(0, 300) + "..." : html;
+        return shown.replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+
+/**
+ * Runs the benchmarks, taking the usual JMH command line options. Unless
+ * they say otherwise, results are written as JSON to
+ * {@code target/jmh-result.json}, so runs can be kept and compared.
+ *
+ * @author njanetos
+ */
+public class Benchmarks {
+
+    /**
+     * Where the results go, unless -rff says otherwise.
+     */
+    public static final String RESULTS = "target/jmh-result.json";
+
+    /**
+     *
+     * @param args JMH options, e.g. a regex picking which benchmarks to run.
+     * @throws RunnerException
+     * @throws IOException
+     */
+    public static void main(String[] args) throws RunnerException, IOException {
+        ArrayList<String> options = new ArrayList<>(Arrays.asList(args));
+        try {
+            CommandLineOptions command = new CommandLineOptions(args);
+            if (!command.getResultFormat().hasValue()) {
+                options.add("-rf");
+                options.add("json");
+            }
+            if (!command.getResult().hasValue()) {
+                options.add("-rff");
+                options.add(RESULTS);
+            }
+        } catch (CommandLineOptionException e) {
+            // Leave it to JMH to explain
+        }
+        Main.main(options.toArray(new String[options.size()]));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver.benchmarks;
+
+import com.salsaberries.narchiver.CookieJar;
+import com.salsaberries.narchiver.Header;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What the cookie jar does on every page: reading the Set-Cookie headers of
+ * the response, which mostly repeat what we already have but sometimes rotate
+ * a value, and building the Cookie header for the next request.
+ *
+ * @author njanetos
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CookieJarBenchmark {
+
+    private static final String URL = Corpus.BASE_URL + "/listing/1234";
+
+    private CookieJar jar;
+    private ArrayList<Header> repeated;
+    private int rotation;
+
+    @Setup
+    public void setUp() {
+        jar = new CookieJar(Corpus.BASE_URL);
+        repeated = new ArrayList<>();
+        repeated.add(new Header("Content-Type", "text/html; charset=utf-8"));
+        repeated.add(new Header("Set-Cookie", "sess=0123456789abcdef0123456789abcdef; Path=/; Expires=Wed, 21 Oct 2099 07:28:00 GMT; HttpOnly"));
+        repeated.add(new Header("Set-Cookie", "lang=en; Path=/"));
+        repeated.add(new Header("Set-Cookie", "currency=BTC; Path=/"));
+        repeated.add(new Header("Set-Cookie", "cart=; Path=/cart"));
+        repeated.add(new Header("Content-Encoding", "gzip"));
+        // A few more, as a site would build up over a trawl
+        ArrayList<Header> more = new ArrayList<>();
+        for (int i = 0; i < 6; ++i) {
+            more.add(new Header("Set-Cookie", "pref" + i + "=" + i + "; Path=/"));
+        }
+        jar.setCookies(more, URL);
+        jar.setCookies(repeated, URL);
+        rotation = 0;
+    }
+
+    /**
+     * A response which sets the same cookies again.
+     *
+     * @return The number of cookies held.
+     */
+    @Benchmark
+    public int setCookiesUnchanged() {
+        jar.setCookies(repeated, URL);
+        return jar.size();
+    }
+
+    /**
+     * A response which rotates a token.
+     *
+     * @return The number of cookies held.
+     */
+    @Benchmark
+    public int setCookiesRotated() {
+        ArrayList<Header> headers = new ArrayList<>(1);
+        headers.add(new Header("Set-Cookie", "token=" + (++rotation) + "; Path=/"));
+        jar.setCookies(headers, URL);
+        return jar.size();
+    }
+
+    /**
+     *
+     * @return The Cookie header for a request.
+     */
+    @Benchmark
+    public String headerValue() {
+        return jar.getHeaderValue(URL);
+    }
+}
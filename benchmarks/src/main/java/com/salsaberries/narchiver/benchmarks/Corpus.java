@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Makes up marketplace pages to benchmark with, shaped like the ones we trawl:
+ * category pages with a grid of listings, listing pages with a description
+ * and a feedback table, and vendor pages. Each has the site's navigation and
+ * inline styles around it, a script, some comments and entities, and comes to
+ * 25 to 30 kB.
+ *
+ * The same seed always makes the same pages, so runs can be compared.
+ *
+ * @author njanetos
+ */
+public class Corpus {
+
+    /**
+     * The base URL every page's absolute links start with.
+     */
+    public static final String BASE_URL = "http://market.onion";
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] CATEGORIES = {"Cannabis", "Ecstasy", "Opioids", "Stimulants", "Psychedelics",
+        "Benzos", "Dissociatives", "Prescription", "Steroids", "Tobacco", "Paraphernalia", "Digital goods",
+        "Counterfeits", "Services", "Other"};
+    private static final String[] WORDS = {"premium", "quality", "stealth", "shipping", "grade", "pure", "lab",
+        "tested", "fast", "escrow", "bulk", "sample", "domestic", "international", "tracked", "vacuum", "sealed",
+        "discount", "offer", "new", "batch", "top", "shelf", "review", "verified", "vendor", "finalize", "early"};
+    private static final String[] UNITS = {"g", "mg", "kg", "oz", "tab", "pill", "ml"};
+
+    private final Random random;
+
+    /**
+     *
+     * @param seed Which corpus to make.
+     */
+    public Corpus(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Makes a mix of pages, about a third of each kind.
+     *
+     * @param count How many pages.
+     * @return The pages' html.
+     */
+    public List<String> pages(int count) {
+        ArrayList<String> pages = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            switch (i % 3) {
+                case 0:
+                    pages.add(category());
+                    break;
+                case 1:
+                    pages.add(listing());
+                    break;
+                default:
+                    pages.add(vendor());
+            }
+        }
+        return pages;
+    }
+
+    /**
+     *
+     * @return A category page, with a grid of 50 listings.
+     */
+    public String category() {
+        int category = random.nextInt(CATEGORIES.length);
+        StringBuilder html = new StringBuilder(64 * 1024);
+        header(html, CATEGORIES[category]);
+        html.append("<h1>").append(CATEGORIES[category]).append("</h1>\n<div class=\"grid\">\n");
+        for (int i = 0; i < 50; ++i) {
+            listingCard(html);
+        }
+        html.append("</div>\n<div class=\"pagination\">");
+        for (int page = 1; page <= 20; ++page) {
+            html.append("<a href=\"/category/").append(category).append("?page=").append(page).append("\">")
+                    .append(page).append("</a> ");
+        }
+        html.append("</div>\n");
+        footer(html);
+        return html.toString();
+    }
+
+    /**
+     *
+     * @return A listing page, with its description and 30 pieces of
+     * feedback.
+     */
+    public String listing() {
+        StringBuilder html = new StringBuilder(32 * 1024);
+        String title = words(5);
+        header(html, title);
+        int vendor = random.nextInt(5000);
+        html.append("<div class=\"listing\"><h1>").append(title).append("</h1>\n")
+                .append("<img src=\"/images/listing/").append(random.nextInt(1000000)).append(".jpg\" alt=\"").append(title).append("\">\n")
+                .append("<p>Sold by <a href=\"/vendor/v").append(vendor).append("\">v").append(vendor).append("</a> (")
+                .append(random.nextInt(3000)).append(" sales, ").append(90 + random.nextInt(10)).append("% positive)</p>\n")
+                .append("<form method=\"POST\" action=\"/cart/add\"><input type=\"hidden\" name=\"id\" value=\"")
+                .append(random.nextInt(1000000)).append("\"><select name=\"qty\">");
+        for (int i = 1; i <= 10; ++i) {
+            html.append("<option value=\"").append(i).append("\">").append(i).append(" x ").append(price()).append("</option>");
+        }
+        html.append("</select><input type=\"submit\" value=\"Add to cart\"></form>\n<div class=\"description\">");
+        for (int i = 0; i < 8; ++i) {
+            html.append("<p>").append(words(40)).append(" &amp; ").append(words(20)).append(".</p>\n");
+        }
+        html.append("</div>\n<table class=\"feedback\"><tr><th>Rating</th><th>Comment</th><th>Buyer</th><th>When</th></tr>\n");
+        for (int i = 0; i < 30; ++i) {
+            html.append("<tr><td>").append(1 + random.nextInt(5)).append("/5</td><td>").append(words(12))
+                    .append("</td><td>b***").append(random.nextInt(10)).append("</td><td>")
+                    .append(1 + random.nextInt(30)).append(" days ago</td></tr>\n");
+        }
+        html.append("</table>\n<div class=\"related\">");
+        for (int i = 0; i < 12; ++i) {
+            listingCard(html);
+        }
+        html.append("</div></div>\n");
+        footer(html);
+        return html.toString();
+    }
+
+    /**
+     *
+     * @return A vendor page, with their profile and 40 listings.
+     */
+    public String vendor() {
+        StringBuilder html = new StringBuilder(48 * 1024);
+        int vendor = random.nextInt(5000);
+        header(html, "v" + vendor);
+        html.append("<div class=\"vendor\"><h1>v").append(vendor).append("</h1>\n<div class=\"profile\">");
+        for (int i = 0; i < 6; ++i) {
+            html.append("<p>").append(words(30)).append("</p>\n");
+        }
+        html.append("<pre>-----BEGIN PGP PUBLIC KEY BLOCK-----\n");
+        for (int i = 0; i < 20; ++i) {
+            for (int j = 0; j < 64; ++j) {
+                html.append((char) ('A' + random.nextInt(26)));
+            }
+            html.append('\n');
+        }
+        html.append("-----END PGP PUBLIC KEY BLOCK-----</pre></div>\n<div class=\"grid\">\n");
+        for (int i = 0; i < 40; ++i) {
+            listingCard(html);
+        }
+        html.append("</div></div>\n");
+        footer(html);
+        return html.toString();
+    }
+
+    /**
+     * Writes a corpus to a directory, one file per page, to look at or to use
+     * somewhere else.
+     *
+     * @param args The directory, how many pages (default 300) and the seed
+     * (default 1).
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: Corpus <directory> [pages] [seed]");
+            System.exit(1);
+        }
+        File directory = new File(args[0]);
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory.getAbsolutePath());
+        }
+        List<String> pages = new Corpus(seed).pages(count);
+        for (int i = 0; i < pages.size(); ++i) {
+            try (FileOutputStream out = new FileOutputStream(new File(directory, String.format("page-%05d.html", i)))) {
+                out.write(pages.get(i).getBytes(UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Gzips a page, as it would come over the wire.
+     *
+     * @param html The page.
+     * @return The page's bytes in UTF-8, gzipped.
+     * @throws IOException
+     */
+    public static byte[] gzip(String html) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(html.length() / 4);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(html.getBytes(UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    private void header(StringBuilder html, String title) {
+        html.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>").append(title)
+                .append(" | Market</title>\n<link rel=\"stylesheet\" href=\"/static/style.css\">\n");
+        // Markets tend to inline their styles, which bulks every page out
+        html.append("<style type=\"text/css\">\n");
+        for (int i = 0; i < 100; ++i) {
+            html.append(".c").append(i).append(" > div.item a:hover, .c").append(i)
+                    .append(" .title { margin: ").append(random.nextInt(20)).append("px ").append(random.nextInt(20))
+                    .append("px; color: #").append(Integer.toHexString(0x100000 + random.nextInt(0xefffff)))
+                    .append("; font-size: ").append(10 + random.nextInt(8)).append("px; }\n");
+        }
+        html.append("</style>\n")
+                .append("<script type=\"text/javascript\">var session = '").append(Long.toHexString(random.nextLong()))
+                .append("'; if (a < b && b > c) { document.write('<a href=\"/nojs\">x</a>'); }</script>\n")
+                .append("</head><body>\n<!-- navigation -->\n<div class=\"nav\"><a href=\"/\">Home</a> ")
+                .append("<a href=\"/messages\">Messages (").append(random.nextInt(10)).append(")</a> ")
+                .append("<a href=\"/orders\">Orders</a> <a href=\"/account\">Account</a> ")
+                .append("<a href=\"/logout\">Log out</a></div>\n<div class=\"sidebar\"><ul>\n");
+        for (int i = 0; i < CATEGORIES.length; ++i) {
+            html.append("<li><a href=\"").append(BASE_URL).append("/category/").append(i).append("\">")
+                    .append(CATEGORIES[i]).append("</a> <span class=\"count\">").append(random.nextInt(5000))
+                    .append("</span></li>\n");
+        }
+        html.append("</ul></div>\n<div class=\"content\">\n");
+    }
+
+    private void footer(StringBuilder html) {
+        html.append("</div>\n<!-- <a href=\"/old-footer\">old</a> -->\n<div class=\"footer\">")
+                .append("<a href=\"/faq\">FAQ</a> | <a href=\"/rules\">Rules</a> | <a href=\"/support\">Support</a> | ")
+                .append("<a href=\"http://forum.onion/\">Forum</a> | Bitcoin &#8776; $").append(200 + random.nextInt(300))
+                .append("</div>\n</body></html>\n");
+    }
+
+    private void listingCard(StringBuilder html) {
+        int listing = random.nextInt(1000000);
+        int vendor = random.nextInt(5000);
+        html.append("<div class=\"item\"><a href=\"/listing/").append(listing).append("\"><img src=\"/images/thumb/")
+                .append(listing).append(".jpg\" width=\"120\" height=\"120\"></a>\n<div class=\"title\"><a href=\"/listing/")
+                .append(listing).append("\">").append(words(4 + random.nextInt(6))).append("</a></div>\n")
+                .append("<div class=\"vendor\">by <a href=\"./vendor/v").append(vendor).append("\">v").append(vendor)
+                .append("</a></div><div class=\"price\">").append(price()).append("</div>\n")
+                .append("<div class=\"ships\">Ships from ").append(random.nextBoolean() ? "EU" : "US")
+                .append(" to Worldwide</div></div>\n");
+    }
+
+    private String price() {
+        return String.format(Locale.ROOT, "%.4f BTC / %d%s", random.nextDouble(), 1 + random.nextInt(100), UNITS[random.nextInt(UNITS.length)]);
+    }
+
+    private String words(int count) {
+        StringBuilder words = new StringBuilder(count * 8);
+        for (int i = 0; i < count; ++i) {
+            if (i > 0) {
+                words.append(' ');
+            }
+            words.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return words.toString();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver.benchmarks;
+
+import com.salsaberries.narchiver.ContentDecoder;
+import com.salsaberries.narchiver.HttpRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Undoing the content encoding of a page as it came over the wire: gzip into
+ * bytes, which is what the trawler does, gzip all the way to a String with
+ * {@link HttpRequest#decompress(byte[])}, and deflate.
+ *
+ * Each call goes through one page, the next in a corpus of 300.
+ *
+ * @author njanetos
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DecompressBenchmark {
+
+    private List<byte[]> gzipped;
+    private List<byte[]> deflated;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        gzipped = new ArrayList<>();
+        deflated = new ArrayList<>();
+        for (String page : new Corpus(1).pages(300)) {
+            gzipped.add(Corpus.gzip(page));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DeflaterOutputStream out = new DeflaterOutputStream(bytes)) {
+                out.write(page.getBytes(Corpus.UTF_8));
+            }
+            deflated.add(bytes.toByteArray());
+        }
+        next = 0;
+    }
+
+    /**
+     *
+     * @return The page, as bytes.
+     * @throws IOException
+     */
+    @Benchmark
+    public byte[] gzipToBytes() throws IOException {
+        return ContentDecoder.decode(gzipped.get(advance()), "gzip");
+    }
+
+    /**
+     *
+     * @return The page, as a String.
+     * @throws IOException
+     */
+    @Benchmark
+    public String gzipToString() throws IOException {
+        return HttpRequest.decompress(gzipped.get(advance()));
+    }
+
+    /**
+     *
+     * @return The page, as bytes.
+     * @throws IOException
+     */
+    @Benchmark
+    public byte[] deflateToBytes() throws IOException {
+        return ContentDecoder.decode(deflated.get(advance()), "deflate");
+    }
+
+    private int advance() {
+        next = (next + 1) % gzipped.size();
+        return next;
+    }
+}
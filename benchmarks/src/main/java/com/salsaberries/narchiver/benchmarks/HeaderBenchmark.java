@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver.benchmarks;
+
+import com.salsaberries.narchiver.CookieJar;
+import com.salsaberries.narchiver.Header;
+import com.salsaberries.narchiver.HeaderTemplate;
+import com.salsaberries.narchiver.HttpMessage;
+import com.salsaberries.narchiver.SiteConfig;
+import com.salsaberries.narchiver.enums.HttpType;
+import com.salsaberries.narchiver.exceptions.ConfigurationException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a page request and writing its headers out, the way the trawler
+ * and the pooled transport do: from the site's header template, plus cookies
+ * and validators. For comparison, the same headers added one by one to each
+ * request.
+ *
+ * @author njanetos
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+
+    private static final String URL = Corpus.BASE_URL + "/listing/1234";
+
+    private HeaderTemplate template;
+    private CookieJar jar;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setUp() throws ConfigurationException {
+        JSONObject site = new JSONObject();
+        site.put("LOCATION", "bench");
+        site.put("BASE_URL", Corpus.BASE_URL);
+        site.put("DEPTH", 300);
+        site.put("BEGIN", new JSONArray(Arrays.asList("/")));
+        site.put("EXCLUDE", new JSONArray(Arrays.asList("/logout")));
+        site.put("EXCLUDE_IF_EQUAL", new JSONArray());
+        site.put("STOP_AT", new JSONArray(Arrays.asList("/vendor")));
+        site.put("PASS_FILTER", "(/listing)|(/category)|(/vendor)|^/$");
+        site.put("USER-AGENT", "Mozilla/5.0 (Windows NT 6.1; rv:31.0) Gecko/20100101 Firefox/31.0");
+        site.put("ACCEPT", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        site.put("ACCEPT-LANGUAGE", "en-us,en;q=0.5");
+        site.put("ACCEPT-ENCODING", "gzip, deflate");
+        site.put("CONNECTION", "keep-alive");
+        site.put("LOGIN_URL", "/login");
+        site.put("LOGIN_SUBMIT", "/dologin");
+        site.put("USERNAME", "user");
+        site.put("PASSWORD", "password");
+        site.put("USERNAME_FIELD", "u");
+        site.put("PASSWORD_FIELD", "p");
+        site.put("MAX_LOGIN_ATTEMPTS", 3);
+        site.put("WRITE_BUFFER", 100);
+        site.put("LOWER_WAIT_TIME", 500);
+        site.put("UPPER_WAIT_TIME", 3000);
+        template = HeaderTemplate.forPages(SiteConfig.parse(site));
+
+        jar = new CookieJar(Corpus.BASE_URL);
+        ArrayList<Header> cookies = new ArrayList<>();
+        cookies.add(new Header("Set-Cookie", "sess=0123456789abcdef0123456789abcdef; Path=/; HttpOnly"));
+        cookies.add(new Header("Set-Cookie", "lang=en; Path=/"));
+        jar.setCookies(cookies, URL);
+
+        out = new ByteArrayOutputStream(4096);
+    }
+
+    /**
+     *
+     * @return How many bytes of headers were written.
+     * @throws IOException
+     */
+    @Benchmark
+    public int fromTemplate() throws IOException {
+        HttpMessage message = new HttpMessage(HttpType.GET);
+        message.setUrl(URL);
+        message.setHeaderTemplate(template);
+        message.addCookieHeaders(jar);
+        message.addValidatorHeaders("\"5d41402abc4b2a76b9719d911017c592\"", "Wed, 21 Oct 2015 07:28:00 GMT");
+        out.reset();
+        message.writeHeaders(out);
+        return out.size();
+    }
+
+    /**
+     *
+     * @return How many bytes of headers were written.
+     * @throws IOException
+     */
+    @Benchmark
+    public int oneByOne() throws IOException {
+        HttpMessage message = new HttpMessage(HttpType.GET);
+        message.setUrl(URL);
+        List<Header> headers = template.getHeaders();
+        for (int i = 0; i < headers.size(); ++i) {
+            message.addHeader(new Header(headers.get(i).getName(), headers.get(i).getValue()));
+        }
+        message.addCookieHeaders(jar);
+        message.addValidatorHeaders("\"5d41402abc4b2a76b9719d911017c592\"", "Wed, 21 Oct 2015 07:28:00 GMT");
+        out.reset();
+        message.writeHeaders(out);
+        return out.size();
+    }
+}
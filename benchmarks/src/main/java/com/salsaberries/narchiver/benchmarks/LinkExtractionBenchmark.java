@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver.benchmarks;
+
+import com.salsaberries.narchiver.AnchorScanner;
+import com.salsaberries.narchiver.SitePolicy;
+import com.salsaberries.narchiver.enums.UrlDecision;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding and sorting out the links in a page, the way the trawler's
+ * extractPages does: the anchors are found, with the streaming scanner or
+ * with Jsoup, then each href is made relative to the site and run past the
+ * site's rules. Marking links seen is left out, since it's the seen set's
+ * cost rather than the page's.
+ *
+ * Each call goes through one page, the next in a corpus of 300.
+ *
+ * @author njanetos
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LinkExtractionBenchmark {
+
+    private List<String> pages;
+    private SitePolicy policy;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        pages = new Corpus(1).pages(300);
+        policy = new SitePolicy(Arrays.asList("/logout", "/messages", "/orders", "/account", "/cart"),
+                Collections.singletonList("/"), Collections.singletonList("/vendor"),
+                Pattern.compile("(/listing)|(/category)|(/vendor)|^/$"));
+        next = 0;
+    }
+
+    /**
+     *
+     * @return How many links would be followed.
+     */
+    @Benchmark
+    public int scan() {
+        String html = page();
+        List<AnchorScanner.Anchor> anchors = AnchorScanner.scan(html);
+        if (anchors == null) {
+            // Too complex to scan, so the trawler would parse it
+            anchors = AnchorScanner.parse(html);
+        }
+        return classify(anchors);
+    }
+
+    /**
+     *
+     * @return How many links would be followed.
+     */
+    @Benchmark
+    public int parse() {
+        return classify(AnchorScanner.parse(page()));
+    }
+
+    private String page() {
+        next = (next + 1) % pages.size();
+        return pages.get(next);
+    }
+
+    private int classify(List<AnchorScanner.Anchor> anchors) {
+        int kept = 0;
+        for (AnchorScanner.Anchor anchor : anchors) {
+            String href = anchor.getHref();
+            String tagURL;
+            if (href.startsWith(Corpus.BASE_URL)) {
+                tagURL = href.substring(Corpus.BASE_URL.length());
+            } else if (href.startsWith("/")) {
+                tagURL = href;
+            } else if (href.startsWith("./")) {
+                tagURL = href.substring(1);
+            } else {
+                continue;
+            }
+            if (policy.decide(tagURL) != UrlDecision.EXCLUDE) {
+                // Only kept links have their text worked out
+                kept += anchor.getText().length() > 0 ? 1 : 0;
+            }
+        }
+        return kept;
+    }
+}
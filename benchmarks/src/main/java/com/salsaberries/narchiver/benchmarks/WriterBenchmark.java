@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver.benchmarks;
+
+import com.salsaberries.narchiver.ArchiveWriter;
+import com.salsaberries.narchiver.Page;
+import com.salsaberries.narchiver.PageLineage;
+import com.salsaberries.narchiver.Writer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Storing a batch of pages, the way the writer thread does once WRITE_BUFFER
+ * pages have built up: one file per page with
+ * {@link Writer#storePages(LinkedList, String)}, and appended to a segment
+ * with {@link ArchiveWriter}. The archive syncs each batch and the directory
+ * doesn't, and both depend on the disk under the temporary directory as much
+ * as on the code.
+ *
+ * @author njanetos
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriterBenchmark {
+
+    /**
+     * How many pages are stored at once.
+     */
+    @Param({"10", "100"})
+    public int batch;
+
+    private List<byte[]> bodies;
+    private Page root;
+    private File directory;
+    private ArchiveWriter archive;
+    private LinkedList<Page> pages;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        bodies = new ArrayList<>();
+        for (String page : new Corpus(1).pages(300)) {
+            bodies.add(page.getBytes(Corpus.UTF_8));
+        }
+        next = 0;
+    }
+
+    /**
+     * Starts every iteration with an empty directory, so neither the archive
+     * nor the lineage log the paths are read from just keeps growing.
+     *
+     * @throws IOException
+     */
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws IOException {
+        directory = Files.createTempDirectory("narchiver-bench").toFile();
+        archive = new ArchiveWriter(new File(directory, "archive"), 256L * 1024 * 1024);
+        root = new Page("/", new PageLineage(new File(directory, "lineage.log"), 0));
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws IOException {
+        pages = new LinkedList<>();
+        for (int i = 0; i < batch; ++i) {
+            next = (next + 1) % bodies.size();
+            Page page = new Page("/listing/" + next, root, "Listing " + next);
+            page.setBody(bodies.get(next), Corpus.UTF_8);
+            page.setDate(1442357918L + next);
+            pages.add(page);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws IOException {
+        archive.close();
+        root.getLineage().close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void directory() throws IOException {
+        Writer.storePages(pages, directory.getAbsolutePath() + "/pages");
+    }
+
+    @Benchmark
+    public void archive() throws IOException {
+        archive.storePages(pages);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.Random;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * AdaptiveRateLimiter spaces out the requests made to a site, speeding up
+ * while the site is coping and backing off when it isn't. Every worker
+ * trawling the site shares one, so the rate holds for the site as a whole, no
+ * matter how many workers there are.
+ *
+ * The rate is set by additive increase, multiplicative decrease. Every
+ * healthy response adds a fixed step to the rate, so it climbs from the floor
+ * to the ceiling over {@link #INCREASE_STEPS} responses, including error
+ * responses like a 404 which say nothing about the pace. A failure, meaning a
+ * 5xx, a 403 or no response at all, or latency well above normal, halves it.
+ * Only requests sent since the last decrease can cause another, so a burst of
+ * failures from requests that were already in flight counts once.
+ *
+ * Latency is smoothed, and normally compared to the lowest smoothed latency
+ * seen, which drifts up slowly so a site that's just gotten slower for good
+ * isn't punished forever. Latency counts as well above normal at twice that
+ * plus a quarter of a second, so jitter on a fast site doesn't count. A fixed
+ * target can be given instead.
+ *
+ * @author njanetos
+ */
+public class AdaptiveRateLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveRateLimiter.class);
+
+    /**
+     * How many healthy responses it takes to go from the floor to the
+     * ceiling.
+     */
+    public static final int INCREASE_STEPS = 50;
+
+    private static final double DECREASE = 0.5;
+    private static final double JITTER = 0.25;
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final double BASELINE_DRIFT = 0.01;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final long LATENCY_SLACK = 250;
+    private static final int LATENCY_WARMUP = 5;
+
+    // Rates are in requests per millisecond
+    private final double floor;
+    private final double ceiling;
+    private final double increase;
+    private final long latencyTarget;
+    private final Random random;
+    private double rate;
+    private double latency;
+    private double baseline;
+    private int samples;
+    private long nextSlot;
+    private long lastDecrease;
+    private long decreases;
+
+    /**
+     *
+     * @param lowerWaitTime The shortest wait between two requests, in
+     * milliseconds, which sets the ceiling rate.
+     * @param upperWaitTime The longest wait between two requests, in
+     * milliseconds, which sets the floor rate.
+     * @param latencyTarget Back off if latency goes over this, in
+     * milliseconds, or 0 to back off when it's well above normal.
+     */
+    public AdaptiveRateLimiter(int lowerWaitTime, int upperWaitTime, long latencyTarget) {
+        this.ceiling = 1.0 / Math.max(1, lowerWaitTime);
+        this.floor = 1.0 / Math.max(1, Math.max(lowerWaitTime, upperWaitTime));
+        this.increase = (ceiling - floor) / INCREASE_STEPS;
+        this.latencyTarget = latencyTarget;
+        this.random = new Random();
+
+        // Start half way, which is about what the old fixed wait averaged
+        this.rate = 2.0 / (Math.max(1, lowerWaitTime) + Math.max(1, Math.max(lowerWaitTime, upperWaitTime)));
+        this.nextSlot = 0;
+        this.lastDecrease = 0;
+    }
+
+    /**
+     * Blocks until the calling worker is allowed to make its next request.
+     *
+     * @return When the request was allowed, to hand back with its outcome.
+     * @throws InterruptedException
+     */
+    public long acquire() throws InterruptedException {
+        long slot;
+        long wait;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            slot = Math.max(now, nextSlot);
+
+            // Reserve the slot, and push the next one back by a jittered wait
+            // so requests don't come on a fixed beat
+            double interval = 1.0 / rate;
+            nextSlot = slot + (long) (interval * (1 + JITTER * (random.nextDouble() - 0.5)));
+
+            wait = slot - now;
+        }
+
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+        return slot;
+    }
+
+    /**
+     * Records a response, whatever its status.
+     *
+     * @param issued What {@link #acquire()} returned for the request.
+     * @param statusCode The response's status code. Only a 403 or a 5xx
+     * counts as a failure.
+     * @param latency How long the response took, in milliseconds.
+     */
+    public synchronized void onResponse(long issued, int statusCode, long latency) {
+        if (statusCode == 403 || (statusCode >= 500 && statusCode < 600)) {
+            onFailure(issued);
+            return;
+        }
+
+        // Smooth the latency, and keep track of what's normal for the site
+        if (samples == 0) {
+            this.latency = latency;
+            baseline = latency;
+        } else {
+            this.latency += LATENCY_WEIGHT * (latency - this.latency);
+            if (this.latency < baseline) {
+                baseline = this.latency;
+            } else {
+                baseline += BASELINE_DRIFT * (this.latency - baseline);
+            }
+        }
+        ++samples;
+
+        boolean slow;
+        if (latencyTarget > 0) {
+            slow = this.latency > latencyTarget;
+        } else {
+            slow = samples >= LATENCY_WARMUP && this.latency > LATENCY_TOLERANCE * baseline + LATENCY_SLACK;
+        }
+
+        if (slow) {
+            decrease(issued, "latency is " + (long) this.latency + " ms");
+        } else {
+            rate = Math.min(ceiling, rate + increase);
+        }
+    }
+
+    /**
+     * Records a request which got no response at all.
+     *
+     * @param issued What {@link #acquire()} returned for the request.
+     */
+    public synchronized void onFailure(long issued) {
+        decrease(issued, "a request failed");
+    }
+
+    /**
+     *
+     * @return The current rate, in requests per second.
+     */
+    public synchronized double getRate() {
+        return rate * 1000;
+    }
+
+    /**
+     *
+     * @return How many times we've backed off.
+     */
+    public synchronized long getDecreases() {
+        return decreases;
+    }
+
+    private void decrease(long issued, String reason) {
+        // Requests already in flight at the last decrease don't count again
+        if (issued < lastDecrease) {
+            return;
+        }
+        double before = rate;
+        rate = Math.max(floor, rate * DECREASE);
+        lastDecrease = System.currentTimeMillis();
+
+        // Don't let the old, faster schedule carry on
+        nextSlot = Math.max(nextSlot, lastDecrease + (long) (1.0 / rate));
+
+        if (rate < before) {
+            ++decreases;
+            logger.info("Backing off to " + String.format("%.2f", rate * 1000) + " requests a second, " + reason + ".");
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.jsoup.select.Elements;
+
+/**
+ * Finds the anchors in a page without building a DOM.
+ *
+ * {@link #scan(String)} walks the markup once, skipping comments, doctypes,
+ * CDATA and the contents of script, style and other raw text elements, and
+ * notes where each {@code <a>} starts and ends. It follows Jsoup's tokenizer
+ * where that is odd, for instance in how comments end and in dropping the
+ * character after a stray slash in a tag. Hrefs are entity-decoded the same way
+ * Jsoup does it. The inner HTML of an anchor is only worked out if it's
+ * asked for: plain text is tidied up the way Jsoup prints it, and anything
+ * with markup or entities in it is run through Jsoup on its own.
+ *
+ * Jsoup's tree builder moves things around when the markup is broken, so the
+ * scanner only trusts anchors which hold text and simple inline elements that
+ * are properly closed. Pages with anything else, such as a block element or
+ * another anchor inside an anchor, an anchor that's never closed, an anchor
+ * inside a select, or a noscript before the body, return null, and the caller should use
+ * {@link #parse(String)} instead.
+ *
+ * @author njanetos
+ */
+public class AnchorScanner {
+
+    private static final String[] RAW_TEXT = {"script", "style", "textarea", "title", "xmp", "iframe", "noembed", "noframes"};
+    private static final HashSet<String> INLINE = new HashSet<>(Arrays.asList(
+            "b", "i", "em", "strong", "span", "small", "big", "font", "u", "s", "strike", "sub", "sup",
+            "abbr", "acronym", "code", "tt", "kbd", "samp", "var", "cite", "dfn", "q", "label", "mark"));
+    private static final HashSet<String> VOID = new HashSet<>(Arrays.asList("br", "img", "wbr"));
+
+    /**
+     * Scans a page for anchors.
+     *
+     * @param html The page.
+     * @return The anchors, in document order, or null if the page needs a
+     * full parse.
+     */
+    public static List<Anchor> scan(String html) {
+        ArrayList<Anchor> anchors = new ArrayList<>();
+        int n = html.length();
+        int i = 0;
+        boolean inAnchor = false;
+        boolean inSelect = false;
+        boolean inBody = false;
+        ArrayList<String> open = new ArrayList<>();
+        String href = "";
+        int innerStart = 0;
+
+        while (i < n) {
+            int lt = html.indexOf('<', i);
+            if (lt < 0 || lt + 1 >= n) {
+                break;
+            }
+            char next = html.charAt(lt + 1);
+
+            if (html.startsWith("<!--", lt)) {
+                // Comment, which may be empty or end with --!>
+                int end = commentEnd(html, lt + 4);
+                if (end < 0) {
+                    return inAnchor ? null : anchors;
+                }
+                i = end;
+            } else if (html.startsWith("<![CDATA[", lt)) {
+                // Text up to ]]>, even if it looks like markup
+                int end = html.indexOf("]]>", lt + 9);
+                if (inAnchor) {
+                    return null;
+                }
+                if (end < 0) {
+                    return anchors;
+                }
+                i = end + 3;
+            } else if (next == '!' || next == '?') {
+                // Doctype, CDATA or some other bogus comment
+                int end = html.indexOf('>', lt);
+                if (end < 0) {
+                    return inAnchor ? null : anchors;
+                }
+                i = end + 1;
+            } else if (next == '/') {
+                // Closing tag
+                int nameEnd = tagNameEnd(html, lt + 2);
+                int end = html.indexOf('>', nameEnd);
+                if (end < 0) {
+                    return inAnchor ? null : anchors;
+                }
+                String name = html.substring(lt + 2, nameEnd).toLowerCase();
+                if (inAnchor) {
+                    if (name.equals("a")) {
+                        if (!open.isEmpty()) {
+                            return null;
+                        }
+                        anchors.add(new Anchor(href, html, innerStart, lt));
+                        inAnchor = false;
+                    } else if (open.isEmpty() || !open.remove(open.size() - 1).equals(name)) {
+                        // Closing something opened outside the anchor
+                        return null;
+                    }
+                } else if (name.equals("select")) {
+                    inSelect = false;
+                }
+                i = end + 1;
+            } else if (isLetter(next)) {
+                // Opening tag
+                int nameEnd = tagNameEnd(html, lt + 1);
+                String name = html.substring(lt + 1, nameEnd).toLowerCase();
+                boolean isAnchor = name.equals("a");
+                if (inAnchor) {
+                    // Only simple inline markup inside anchors
+                    if (!INLINE.contains(name) && !VOID.contains(name)) {
+                        return null;
+                    }
+                } else if (isAnchor && inSelect) {
+                    // Jsoup drops these
+                    return null;
+                } else if (name.equals("select")) {
+                    inSelect = true;
+                } else if (name.equals("body")) {
+                    inBody = true;
+                } else if (name.equals("noscript") && !inBody) {
+                    // In the head Jsoup drops anchors inside these, in the
+                    // body it keeps them, and we can't tell which this is
+                    return null;
+                }
+
+                // Read the attributes, looking for href
+                String found = null;
+                boolean selfClosing = false;
+                int j = nameEnd;
+                while (true) {
+                    while (j < n && isWhitespace(html.charAt(j))) {
+                        ++j;
+                    }
+                    if (j < n && html.charAt(j) == '/') {
+                        if (j + 1 < n && html.charAt(j + 1) == '>') {
+                            // <a/> and the like are closed straight away
+                            selfClosing = true;
+                            ++j;
+                        } else {
+                            // Jsoup drops the character after a stray slash
+                            j += 2;
+                            continue;
+                        }
+                    }
+                    if (j >= n) {
+                        return inAnchor || isAnchor ? null : anchors;
+                    }
+                    if (html.charAt(j) == '>') {
+                        break;
+                    }
+                    int attributeStart = j;
+                    while (j < n && !isWhitespace(html.charAt(j)) && html.charAt(j) != '/' && html.charAt(j) != '>' && html.charAt(j) != '=') {
+                        ++j;
+                    }
+                    int attributeEnd = j;
+                    while (j < n && isWhitespace(html.charAt(j))) {
+                        ++j;
+                    }
+                    String value = "";
+                    if (j < n && html.charAt(j) == '=') {
+                        ++j;
+                        while (j < n && isWhitespace(html.charAt(j))) {
+                            ++j;
+                        }
+                        if (j < n && (html.charAt(j) == '"' || html.charAt(j) == '\'')) {
+                            int close = html.indexOf(html.charAt(j), j + 1);
+                            if (close < 0) {
+                                return inAnchor || isAnchor ? null : anchors;
+                            }
+                            value = html.substring(j + 1, close);
+                            j = close + 1;
+                        } else {
+                            int valueStart = j;
+                            while (j < n && !isWhitespace(html.charAt(j)) && html.charAt(j) != '>') {
+                                ++j;
+                            }
+                            value = html.substring(valueStart, j);
+                        }
+                    }
+                    // Jsoup keeps the last href
+                    if (isAnchor && attributeEnd - attributeStart == 4 && html.regionMatches(true, attributeStart, "href", 0, 4)) {
+                        found = value;
+                    }
+                }
+                i = j + 1;
+
+                if (inAnchor && INLINE.contains(name) && !selfClosing) {
+                    open.add(name);
+                }
+                if (isAnchor) {
+                    href = found == null ? "" : found.indexOf('&') < 0 ? found : Parser.unescapeEntities(found, true);
+                    if (selfClosing) {
+                        // Nothing inside it
+                        anchors.add(new Anchor(href, html, i, i));
+                    } else {
+                        innerStart = i;
+                        inAnchor = true;
+                    }
+                } else if (name.equals("plaintext")) {
+                    // Everything after this is text
+                    return inAnchor ? null : anchors;
+                } else if (isRawText(name)) {
+                    // Skip to the closing tag, nothing in between is markup
+                    int close = indexOfClosingTag(html, name, i);
+                    if (close < 0) {
+                        return inAnchor ? null : anchors;
+                    }
+                    int end = html.indexOf('>', close);
+                    if (end < 0) {
+                        return inAnchor ? null : anchors;
+                    }
+                    i = end + 1;
+                }
+            } else {
+                // Just a '<' in the text
+                i = lt + 1;
+            }
+        }
+
+        return inAnchor ? null : anchors;
+    }
+
+    /**
+     * Finds the anchors in a page with a full Jsoup parse.
+     *
+     * @param html The page.
+     * @return The anchors, in document order.
+     */
+    public static List<Anchor> parse(String html) {
+        Document doc = Jsoup.parse(html);
+        Elements links = doc.getElementsByTag("a");
+        ArrayList<Anchor> anchors = new ArrayList<>(links.size());
+        for (Element link : links) {
+            anchors.add(new Anchor(link.attr("href"), link.html()));
+        }
+        return anchors;
+    }
+
+    /**
+     * Finds the end of a comment the way Jsoup does: at the first -->, or
+     * --!>, or straight away for <!--> and <!--->.
+     *
+     * @return Just past the end of the comment, or -1 if it never ends.
+     */
+    private static int commentEnd(String html, int from) {
+        if (html.startsWith(">", from)) {
+            return from + 1;
+        }
+        if (html.startsWith("->", from)) {
+            return from + 2;
+        }
+        int i = from;
+        while ((i = html.indexOf("--", i)) >= 0) {
+            if (html.startsWith(">", i + 2)) {
+                return i + 3;
+            }
+            if (html.startsWith("!>", i + 2)) {
+                return i + 4;
+            }
+            ++i;
+        }
+        return -1;
+    }
+
+    private static int tagNameEnd(String html, int start) {
+        int i = start;
+        while (i < html.length()) {
+            char c = html.charAt(i);
+            if (isWhitespace(c) || c == '/' || c == '>') {
+                break;
+            }
+            ++i;
+        }
+        return i;
+    }
+
+    private static int indexOfClosingTag(String html, String name, int from) {
+        int i = from;
+        while ((i = html.indexOf("</", i)) >= 0) {
+            int end = i + 2 + name.length();
+            if (html.regionMatches(true, i + 2, name, 0, name.length())
+                    && (end >= html.length() || isWhitespace(html.charAt(end)) || html.charAt(end) == '/' || html.charAt(end) == '>')) {
+                return i;
+            }
+            i += 2;
+        }
+        return -1;
+    }
+
+    private static boolean isRawText(String name) {
+        for (String raw : RAW_TEXT) {
+            if (raw.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * An anchor found in a page.
+     */
+    public static class Anchor {
+
+        private final String href;
+        private final String html;
+        private final int start;
+        private final int end;
+        private String text;
+
+        private Anchor(String href, String html, int start, int end) {
+            this.href = href;
+            this.html = html;
+            this.start = start;
+            this.end = end;
+        }
+
+        private Anchor(String href, String text) {
+            this(href, null, 0, 0);
+            this.text = text;
+        }
+
+        /**
+         *
+         * @return The href attribute, entities decoded.
+         */
+        public String getHref() {
+            return href;
+        }
+
+        /**
+         *
+         * @return The inner HTML of the anchor, as Jsoup would print it.
+         */
+        public String getText() {
+            if (text == null) {
+                text = innerHtml(html, start, end);
+            }
+            return text;
+        }
+
+        private static String innerHtml(String html, int start, int end) {
+            // Plain text just has its whitespace tidied up
+            StringBuilder builder = new StringBuilder(end - start);
+            boolean space = false;
+            for (int i = start; i < end; ++i) {
+                char c = html.charAt(i);
+                if (c == '<' || c == '>' || c == '&' || c == '\u00a0') {
+                    // Markup or entities, let Jsoup print it. It's parsed
+                    // inside an anchor, since that changes how it's printed.
+                    Document fragment = Jsoup.parseBodyFragment("<a>" + html.substring(start, end) + "</a>");
+                    return fragment.body().getElementsByTag("a").first().html();
+                }
+                if (isWhitespace(c)) {
+                    space = builder.length() > 0;
+                } else {
+                    if (space) {
+                        builder.append(' ');
+                        space = false;
+                    }
+                    builder.append(c);
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads pages back out of an archive written by {@link ArchiveWriter}. The
+ * indexes are loaded when the reader is opened, so each page costs one seek and
+ * one read.
+ *
+ * @author njanetos
+ */
+public class ArchiveReader implements Closeable {
+
+    private final File directory;
+    private final ArrayList<Entry> entries;
+    private final HashMap<String, Entry> byURL;
+    private final HashMap<Integer, RandomAccessFile> segments;
+
+    /**
+     * Opens the archive in a directory and loads its indexes.
+     *
+     * @param directory The archive directory.
+     * @throws IOException If an index can't be read.
+     */
+    public ArchiveReader(File directory) throws IOException {
+        this(directory, true);
+    }
+
+    /**
+     * Opens the archive in a directory.
+     *
+     * @param directory The archive directory.
+     * @param indexed False to skip loading the indexes, if records will only
+     * be read by location.
+     * @throws IOException If an index can't be read.
+     */
+    ArchiveReader(File directory, boolean indexed) throws IOException {
+        this.directory = directory;
+        this.entries = new ArrayList<>();
+        this.byURL = new HashMap<>();
+        this.segments = new HashMap<>();
+
+        if (indexed) {
+            readIndexes(directory, new IndexVisitor() {
+                @Override
+                public void visit(String tagURL, long date, int segment, long offset, int length) {
+                    Entry entry = new Entry(tagURL, date, segment, offset, length);
+                    entries.add(entry);
+                    // Later copies of a page replace earlier ones
+                    byURL.put(tagURL, entry);
+                }
+            });
+        }
+    }
+
+    /**
+     * Goes through the indexes of an archive without keeping them.
+     *
+     * @param directory The archive directory.
+     * @param visitor Told about every record, in the order they were written.
+     * @throws IOException If an index can't be read.
+     */
+    static void readIndexes(File directory, IndexVisitor visitor) throws IOException {
+        for (int segment = 0; ArchiveWriter.indexFile(directory, segment).exists(); ++segment) {
+            File file = ArchiveWriter.indexFile(directory, segment);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+                while (true) {
+                    long offset;
+                    try {
+                        offset = in.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    int length = in.readInt();
+                    long date = in.readLong();
+                    byte[] url = new byte[in.readInt()];
+                    in.readFully(url);
+                    visitor.visit(new String(url, ArchiveWriter.UTF_8), date, segment, offset, length);
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @return Every record in the archive, in the order they were written.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     *
+     * @param tagURL The URL of the page, relative to the site.
+     * @return The latest record for this URL, or null if there isn't one.
+     * @throws IOException If the record can't be read or is corrupt.
+     */
+    public Record read(String tagURL) throws IOException {
+        Entry entry = byURL.get(tagURL);
+        return entry == null ? null : read(entry);
+    }
+
+    /**
+     * Reads a record.
+     *
+     * @param entry The index entry of the record.
+     * @return The record.
+     * @throws IOException If the record can't be read or is corrupt.
+     */
+    public synchronized Record read(Entry entry) throws IOException {
+        RandomAccessFile file = segment(entry.segment);
+        byte[] bytes = new byte[entry.length];
+        file.seek(entry.offset);
+        file.readFully(bytes);
+        return parse(bytes, entry.tagURL, entry.segment);
+    }
+
+    /**
+     * Reads the record at a location from
+     * {@link ArchiveWriter#write(String, String, long, byte[])}, without
+     * needing the index.
+     *
+     * @param location Where the record is.
+     * @return The record.
+     * @throws IOException If the record can't be read or is corrupt.
+     */
+    synchronized Record read(long location) throws IOException {
+        int segment = ArchiveWriter.segment(location);
+        RandomAccessFile file = segment(segment);
+        file.seek(ArchiveWriter.offset(location));
+        int magic = file.readInt();
+        int rest = file.readInt();
+        if (magic != ArchiveWriter.MAGIC || rest < 0) {
+            throw new IOException("Bad record header at " + ArchiveWriter.offset(location) + " in segment " + segment + ".");
+        }
+        byte[] bytes = new byte[rest + 8];
+        file.seek(ArchiveWriter.offset(location));
+        file.readFully(bytes);
+        return parse(bytes, "record at " + ArchiveWriter.offset(location), segment);
+    }
+
+    private RandomAccessFile segment(int segment) throws IOException {
+        RandomAccessFile file = segments.get(segment);
+        if (file == null) {
+            file = new RandomAccessFile(ArchiveWriter.dataFile(directory, segment), "r");
+            segments.put(segment, file);
+        }
+        return file;
+    }
+
+    private static Record parse(byte[] bytes, String name, int segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != ArchiveWriter.MAGIC || buffer.getInt() != bytes.length - 8) {
+            throw new IOException("Bad record header for " + name + " in segment " + segment + ".");
+        }
+        long date = buffer.getLong();
+        String tagURL = readString(buffer);
+        String path = readString(buffer);
+        byte[] body = new byte[buffer.getInt()];
+        int checksum = buffer.getInt();
+        int compressedLength = buffer.getInt();
+
+        Inflater inflater = InflaterPool.acquire(false);
+        try {
+            inflater.setInput(bytes, buffer.position(), compressedLength);
+            int inflated = 0;
+            while (inflated < body.length && !inflater.finished()) {
+                int n = inflater.inflate(body, inflated, body.length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != body.length) {
+                throw new IOException("Record for " + name + " is truncated.");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Record for " + name + " is corrupt: " + e.getMessage());
+        } finally {
+            InflaterPool.release(inflater, false);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch for " + name + ".");
+        }
+
+        return new Record(tagURL, date, path, body);
+    }
+
+    /**
+     * Closes the segment files.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (RandomAccessFile file : segments.values()) {
+            file.close();
+        }
+        segments.clear();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String string = new String(buffer.array(), buffer.position(), length, ArchiveWriter.UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+    /**
+     * Told about the records in an archive's indexes.
+     */
+    interface IndexVisitor {
+
+        /**
+         *
+         * @param tagURL What the record is called.
+         * @param date When it was made.
+         * @param segment Which segment it's in.
+         * @param offset Where it starts in the segment.
+         * @param length How long it is.
+         */
+        void visit(String tagURL, long date, int segment, long offset, int length);
+    }
+
+    /**
+     * Where a record is in the archive.
+     */
+    public static class Entry {
+
+        private final String tagURL;
+        private final long date;
+        private final int segment;
+        private final long offset;
+        private final int length;
+
+        private Entry(String tagURL, long date, int segment, long offset, int length) {
+            this.tagURL = tagURL;
+            this.date = date;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         *
+         * @return The URL of the page.
+         */
+        public String getTagURL() {
+            return tagURL;
+        }
+
+        /**
+         *
+         * @return When the page was fetched.
+         */
+        public long getDate() {
+            return date;
+        }
+    }
+
+    /**
+     * A page read back from the archive.
+     */
+    public static class Record {
+
+        private final String tagURL;
+        private final long date;
+        private final String path;
+        private final byte[] body;
+
+        private Record(String tagURL, long date, String path, byte[] body) {
+            this.tagURL = tagURL;
+            this.date = date;
+            this.path = path;
+            this.body = body;
+        }
+
+        /**
+         *
+         * @return The URL of the page.
+         */
+        public String getTagURL() {
+            return tagURL;
+        }
+
+        /**
+         *
+         * @return When the page was fetched.
+         */
+        public long getDate() {
+            return date;
+        }
+
+        /**
+         *
+         * @return The path of links followed to get to the page.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         *
+         * @return The body of the page, in UTF-8.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         *
+         * @return The body of the page.
+         */
+        public String getHtml() {
+            return new String(body, ArchiveWriter.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.BufferedInputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends pages to rolling segment files, instead of writing one file per
+ * page.
+ *
+ * Each record in a segment is laid out as
+ *
+ * <pre>
+ * int   MAGIC
+ * int   length of the rest of the record
+ * long  date
+ * int   length of the URL, then the URL in UTF-8
+ * int   length of the path, then the path in UTF-8
+ * int   length of the body
+ * int   CRC32 of the body
+ * int   length of the compressed body, then the body deflated
+ * </pre>
+ *
+ * and each segment {@code archive-NNNNN.dat} has a sidecar
+ * {@code archive-NNNNN.idx} holding, for every record, its offset (long),
+ * length (int), date (long) and URL (int length, then UTF-8). The index is
+ * small enough to load whole, so any page can be found with one seek; see
+ * {@link ArchiveReader}.
+ *
+ * Opening an existing archive carries on after the last complete record, so a
+ * resumed trawl adds to the same archive.
+ *
+ * Records don't have to be pages: {@link ContentStore} keeps bodies in the
+ * same format, named by their digest, and finds them again by the location
+ * {@link #write(String, String, long, byte[])} returns.
+ *
+ * @author njanetos
+ */
+public class ArchiveWriter implements PageStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveWriter.class);
+
+    /**
+     * Marks the start of every record.
+     */
+    public static final int MAGIC = 0x4E415243;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 65536;
+    private static final int OFFSET_BITS = 40;
+
+    private final File directory;
+    private final long segmentSize;
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private final ByteArrayOutputStream record;
+    private final DataOutputStream recordOut;
+    private final BodyOutput bodyOut;
+    private byte[] compressed;
+    private int segmentNumber;
+    private long position;
+    private FileOutputStream dataStream;
+    private BufferedOutputStream data;
+    private FileOutputStream indexStream;
+    private DataOutputStream index;
+
+    /**
+     * Opens the archive in a directory, creating it if needed.
+     *
+     * @param directory The directory to write segments to.
+     * @param segmentSize Start a new segment once one gets this big, in bytes.
+     * @throws IOException
+     */
+    public ArchiveWriter(File directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        this.crc = new CRC32();
+        this.record = new ByteArrayOutputStream(BUFFER_SIZE);
+        this.recordOut = new DataOutputStream(record);
+        this.compressed = new byte[BUFFER_SIZE];
+        this.bodyOut = new BodyOutput();
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create archive directory " + directory.getAbsolutePath());
+        }
+
+        // Carry on from the last segment, if there is one
+        segmentNumber = 0;
+        while (dataFile(directory, segmentNumber + 1).exists()) {
+            ++segmentNumber;
+        }
+        if (dataFile(directory, segmentNumber).exists()) {
+            recover();
+        }
+        open();
+    }
+
+    /**
+     * Appends all the pages to the archive, then syncs it.
+     *
+     * @param pages
+     * @throws IOException
+     */
+    @Override
+    public void storePages(LinkedList<Page> pages) throws IOException {
+
+        logger.info("Archiving " + pages.size() + " pages.");
+
+        while (!pages.isEmpty()) {
+            Page page = pages.removeFirst();
+            write(page);
+            // Temporarily try to reduce memory
+            page.clear();
+        }
+
+        sync();
+    }
+
+    /**
+     * Appends a page to the archive.
+     *
+     * @param page The page to store.
+     * @throws IOException
+     */
+    public void write(Page page) throws IOException {
+        write(page.getTagURL(), page.getPath(), page.getDate(), page);
+    }
+
+    /**
+     * Appends a record to the archive.
+     *
+     * @param tagURL What the record is called in the index.
+     * @param pagePath The path to the page, or empty.
+     * @param date When the record was made.
+     * @param body The body.
+     * @return Where the record is, for {@link ArchiveReader#read(long)}.
+     * @throws IOException
+     */
+    public synchronized long write(String tagURL, String pagePath, long date, byte[] body) throws IOException {
+        bodyOut.start();
+        bodyOut.write(body, 0, body.length);
+        return append(tagURL, pagePath, date);
+    }
+
+    /**
+     * Appends a record with a page's body, read straight from wherever the
+     * page keeps it.
+     *
+     * @param tagURL What the record is called in the index.
+     * @param pagePath The path to the page, or empty.
+     * @param date When the record was made.
+     * @param page The page with the body.
+     * @return Where the record is, for {@link ArchiveReader#read(long)}.
+     * @throws IOException
+     */
+    synchronized long write(String tagURL, String pagePath, long date, Page page) throws IOException {
+        bodyOut.start();
+        page.writeUtf8Body(bodyOut);
+        return append(tagURL, pagePath, date);
+    }
+
+    /**
+     * Writes the record for the body just given to {@link #bodyOut}.
+     */
+    private long append(String tagURL, String pagePath, long date) throws IOException {
+        byte[] url = tagURL.getBytes(UTF_8);
+        byte[] path = pagePath.getBytes(UTF_8);
+        int compressedLength = bodyOut.finish();
+
+        record.reset();
+        recordOut.writeInt(MAGIC);
+        recordOut.writeInt(0);
+        recordOut.writeLong(date);
+        recordOut.writeInt(url.length);
+        recordOut.write(url);
+        recordOut.writeInt(path.length);
+        recordOut.write(path);
+        recordOut.writeInt(bodyOut.length);
+        recordOut.writeInt((int) crc.getValue());
+        recordOut.writeInt(compressedLength);
+        recordOut.write(compressed, 0, compressedLength);
+        recordOut.flush();
+
+        byte[] bytes = record.toByteArray();
+        int length = bytes.length;
+        writeInt(bytes, 4, length - 8);
+
+        // Start a new segment if this one is full
+        if (position > 0 && position + length > segmentSize) {
+            closeSegment();
+            ++segmentNumber;
+            open();
+        }
+
+        data.write(bytes, 0, length);
+
+        index.writeLong(position);
+        index.writeInt(length);
+        index.writeLong(date);
+        index.writeInt(url.length);
+        index.write(url);
+
+        long location = location(segmentNumber, position);
+        position += length;
+        return location;
+    }
+
+    /**
+     * Hands everything written so far to the OS, without waiting for it to
+     * reach the disk, so it can be read back.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        data.flush();
+        index.flush();
+    }
+
+    /**
+     * Forces everything written so far to disk. The segment goes first, so the
+     * index never points past the end of it.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        data.flush();
+        dataStream.getChannel().force(false);
+        index.flush();
+        indexStream.getChannel().force(false);
+    }
+
+    /**
+     * Syncs and closes the current segment.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (data != null) {
+            closeSegment();
+            data = null;
+        }
+        deflater.end();
+    }
+
+    /**
+     * Packs a segment number and an offset into it into one long.
+     *
+     * @param segment The segment.
+     * @param offset The offset of a record, below 2^40.
+     * @return The location.
+     */
+    static long location(int segment, long offset) {
+        return ((long) segment << OFFSET_BITS) | offset;
+    }
+
+    static int segment(long location) {
+        return (int) (location >>> OFFSET_BITS);
+    }
+
+    static long offset(long location) {
+        return location & ((1L << OFFSET_BITS) - 1);
+    }
+
+    static File dataFile(File directory, int segment) {
+        return new File(directory, String.format("archive-%05d.dat", segment));
+    }
+
+    static File indexFile(File directory, int segment) {
+        return new File(directory, String.format("archive-%05d.idx", segment));
+    }
+
+    private void open() throws IOException {
+        File file = dataFile(directory, segmentNumber);
+        position = file.length();
+        dataStream = new FileOutputStream(file, true);
+        data = new BufferedOutputStream(dataStream, BUFFER_SIZE);
+        indexStream = new FileOutputStream(indexFile(directory, segmentNumber), true);
+        index = new DataOutputStream(new BufferedOutputStream(indexStream, BUFFER_SIZE));
+    }
+
+    private void closeSegment() throws IOException {
+        sync();
+        data.close();
+        index.close();
+    }
+
+    /**
+     * Cuts the last segment and its index back to the last record both agree
+     * on, in case we died part way through a write.
+     */
+    private void recover() throws IOException {
+        File dataFile = dataFile(directory, segmentNumber);
+        File indexFile = indexFile(directory, segmentNumber);
+        long dataLength = dataFile.length();
+        long validIndex = 0;
+        long validData = 0;
+
+        if (indexFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), BUFFER_SIZE))) {
+                long read = 0;
+                while (true) {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    in.readLong();
+                    int urlLength = in.readInt();
+                    in.skipBytes(urlLength);
+                    if (urlLength < 0 || offset != validData || offset + length > dataLength) {
+                        break;
+                    }
+                    read += 24 + urlLength;
+                    if (read > indexFile.length()) {
+                        break;
+                    }
+                    validIndex = read;
+                    validData = offset + length;
+                }
+            } catch (EOFException e) {
+                // Got to the end of the complete entries
+            }
+        }
+
+        if (validData != dataLength || (indexFile.exists() && validIndex != indexFile.length())) {
+            logger.warn("Archive segment " + dataFile.getAbsolutePath() + " was not closed cleanly, truncating to " + validData + " bytes.");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+            raf.setLength(validData);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+            raf.setLength(validIndex);
+        }
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Compresses and checksums a body as it's written, so it can come from
+     * anywhere without being copied into one array first. The body is
+     * compressed on its own, so it can be read back on its own.
+     */
+    private class BodyOutput extends OutputStream {
+
+        private int length;
+        private int compressedLength;
+
+        private void start() {
+            deflater.reset();
+            crc.reset();
+            length = 0;
+            compressedLength = 0;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) {
+            crc.update(bytes, offset, count);
+            length += count;
+            // The deflater holds on to the array, so use it all up now
+            deflater.setInput(bytes, offset, count);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        /**
+         * @return The length of the compressed body.
+         */
+        private int finish() {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            return compressedLength;
+        }
+
+        private void deflate() {
+            if (compressedLength == compressed.length) {
+                byte[] grown = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, grown, 0, compressedLength);
+                compressed = grown;
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import com.salsaberries.narchiver.enums.HttpType;
+import com.salsaberries.narchiver.exceptions.ConnectionException;
+import com.salsaberries.narchiver.exceptions.TrawlException;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.commons.codec.binary.Base64;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Authenticator fills in and submits a site's login form, solving the captcha
+ * if there is one. It keeps no state of its own, so several accounts can log
+ * in with it at once, each into its own cookie jar.
+ *
+ * Logging in is split in two, so the slow part can be done ahead of time:
+ * {@link #prepare(CookieJar)} fetches the form and starts the captcha solving,
+ * and {@link #submit} fills it in once the answer is back.
+ *
+ * @author njanetos
+ */
+public class Authenticator {
+
+    private static final Logger logger = LoggerFactory.getLogger(Authenticator.class);
+
+    private final SiteConfig config;
+    private final String baseURL;
+    private final HttpTransport transport;
+    private final HeaderTemplate pageHeaders;
+    private final HeaderTemplate imageHeaders;
+    private final CaptchaSolver solver;
+
+    /**
+     *
+     * @param config The site's configuration.
+     * @param transport How requests get to the proxy.
+     * @param pageHeaders The headers pages are requested with.
+     * @param imageHeaders The headers images are requested with.
+     * @param solver Solves the captchas, or null if the site has none.
+     */
+    public Authenticator(SiteConfig config, HttpTransport transport, HeaderTemplate pageHeaders, HeaderTemplate imageHeaders, CaptchaSolver solver) {
+        this.config = config;
+        this.baseURL = config.getBaseURL();
+        this.transport = transport;
+        this.pageHeaders = pageHeaders;
+        this.imageHeaders = imageHeaders;
+        this.solver = solver;
+    }
+
+    /**
+     * Logs into the site as one account. Cookies the site sets go in the
+     * account's jar.
+     *
+     * @param account Who to log in as.
+     * @param cookies The jar to keep the session's cookies in.
+     * @return True if we logged in.
+     * @throws TrawlException If the login page isn't what the initialization
+     * file says it should be.
+     */
+    public boolean login(SiteConfig.Account account, CookieJar cookies) throws TrawlException {
+        LoginForm form = prepare(cookies);
+        return form != null && submit(account, form, cookies);
+    }
+
+    /**
+     * Fetches the login form, and starts solving its captcha if it has one.
+     * This is everything up to filling the form in, so it can be done ahead
+     * of time.
+     *
+     * @param cookies The jar to keep the session's cookies in.
+     * @return The form, or null if the site couldn't be reached.
+     * @throws TrawlException If the login page isn't what the initialization
+     * file says it should be.
+     */
+    public LoginForm prepare(CookieJar cookies) throws TrawlException {
+
+        logger.info("Fetching the login form at " + baseURL + config.getLoginURL());
+
+        try {
+
+            // follow redirects until you get it right
+            HttpRequest httpRequest;
+            HttpMessage httpGet;
+            String url = baseURL + config.getLoginURL();
+            
+            while (true) {
+                httpGet = new HttpMessage(HttpType.GET);
+                httpGet.setUrl(url);
+                httpGet.setHeaderTemplate(pageHeaders);
+                httpGet.addCookieHeaders(cookies);
+
+                httpRequest = new HttpRequest(httpGet, transport);
+                
+                if (httpRequest.getStatusCode() != 200) {
+                    cookies.setCookies(httpRequest.getHeaders(), url);
+                    
+                    // Find the header I want
+                    boolean found = false;
+                    for (Header h : httpRequest.getHeaders()) {
+                        if (h.getName().equals("Location")) {
+                            url = h.getValue();
+                            found = true;
+                        }
+                    }
+                    
+                    if (!found) {
+                        throw new TrawlException("Redirect loop.");
+                    }
+                    
+                } else {
+                    break;
+                }
+                
+                
+            }
+
+            // Get headers
+            ArrayList<Header> headers = httpRequest.getHeaders();
+            // Parse the cookies
+            cookies.setCookies(headers, url);
+
+            String body = httpRequest.getHtml();
+            Document doc = Jsoup.parse(body);
+            Elements logins = doc.getElementsByAttributeValue("action", config.getLoginSubmit());
+
+            if (logins.isEmpty()) {
+                logins = doc.getElementsByAttributeValue("action", config.getBaseURL() + config.getLoginSubmit());
+            }
+            if (logins.isEmpty()) {
+                logins = doc.getElementsByAttributeValue("method", "POST");
+            }
+
+            if (logins.isEmpty()) {
+                throw new TrawlException("Failed to find login form!");
+            }
+            if (logins.size() > 1) {
+                logger.warn("Found multiple login forms. Picking the first one...");
+            }
+
+            Element login = logins.get(0);
+
+            // Start solving the captcha, if the site has one
+            Future<CaptchaSolver.Answer> captcha = null;
+            if (config.getCaptcha() != null) {
+                captcha = solver.solve(getCaptchaImage(login, cookies));
+            }
+
+            return new LoginForm(login, captcha);
+
+        } catch (ConnectionException | MalformedURLException | ProtocolException ex) {
+            // Did not get the form. If we were interrupted, the pool is
+            // shutting down and it doesn't matter.
+            if (!Thread.currentThread().isInterrupted()) {
+                logger.error(ex.getMessage());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Fills in and submits a login form, waiting for its captcha to be solved
+     * if it has one.
+     *
+     * @param account Who to log in as.
+     * @param form The form, from {@link #prepare(CookieJar)} with the same
+     * jar.
+     * @param cookies The jar to keep the session's cookies in.
+     * @return True if we logged in.
+     */
+    public boolean submit(SiteConfig.Account account, LoginForm form, CookieJar cookies) {
+
+        logger.info("Attempting to log in as " + account.getUsername() + " at " + baseURL + config.getLoginSubmit());
+
+        Element login = form.getForm();
+        CaptchaSolver.Answer answer = null;
+
+        try {
+
+            // Wait for the captcha
+            String captchaResult = "";
+            if (form.getCaptcha() != null) {
+                try {
+                    answer = form.getCaptcha().get(config.getCaptchaTimeout(), TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    logger.error("Unable to solve captcha: " + e.getCause().getMessage());
+                    return false;
+                } catch (TimeoutException e) {
+                    form.getCaptcha().cancel(true);
+                    logger.error("Gave up waiting for the captcha to be solved.");
+                    return false;
+                }
+                captchaResult = answer.getText();
+                logger.info("Decoded captcha: " + captchaResult);
+            }
+
+            // Grab any hidden fields
+            Elements hidden = login.getElementsByAttributeValue("type", "hidden");
+
+            // Build the post response
+            HttpMessage httpPost = new HttpMessage(HttpType.POST);
+            httpPost.setHeaderTemplate(pageHeaders);
+            // TODO: Read this from the html!
+            httpPost.setUrl(baseURL + config.getLoginSubmit());
+            httpPost.addCookieHeaders(cookies);
+
+            httpPost.appendContent(config.getUsernameField(), account.getUsername());
+            httpPost.appendContent(config.getPasswordField(), account.getPassword());
+            if (!captchaResult.equals("")) {
+                httpPost.appendContent(config.getCaptchaField(), captchaResult);
+            }
+
+            for (int i = 0; i < hidden.size(); ++i) {
+                httpPost.appendContent(hidden.get(i).attr("name"), hidden.get(i).attr("value"));
+            }
+
+            // Add the submit info
+            Element submit = login.getElementsByAttributeValue("type", "submit").get(0);
+            httpPost.appendContent(submit.attr("name"), submit.attr("value"));
+
+            // Add the referrer
+            httpPost.addHeader(new Header("Referer", baseURL + config.getLoginURL()));
+
+            // Log in
+            HttpRequest response = new HttpRequest(httpPost, transport);
+            ArrayList<Header> headers = response.getHeaders();
+            // Add any relevant cookies
+            cookies.setCookies(headers, httpPost.getUrl());
+            String landing = response.getHtml();
+
+            // Were we redirected? If so, visit the redirection URL before continuing. 
+            if (response.getStatusCode() == 302) {
+                // Send a GET request to the redirection URL before continuing. 
+                HttpMessage httpGet = new HttpMessage(HttpType.GET);
+                httpGet.setHeaderTemplate(pageHeaders);
+                httpGet.addHeader(new Header("Referer", baseURL + config.getLoginURL()));
+                String redirectionURL = getRedirectionURL(headers);
+                httpGet.setUrl(redirectionURL);
+                httpGet.addCookieHeaders(cookies);
+
+                HttpRequest httpRequest = new HttpRequest(httpGet, transport);
+                cookies.setCookies(httpRequest.getHeaders(), redirectionURL);
+                landing = httpRequest.getHtml();
+                logger.debug("Visited redirected page. Status code " + httpRequest.getStatusCode());
+            }
+
+            // If we've landed on the login page again, it didn't work
+            if (config.getLoginTest() != null && landing != null && config.getLoginTest().matcher(landing).find()) {
+                logger.warn("Logging in as " + account.getUsername() + " took us back to the login page.");
+                if (answer != null) {
+                    solver.report(answer, false);
+                }
+                return false;
+            }
+            if (answer != null) {
+                solver.report(answer, true);
+            }
+            logger.info("Successfully logged in as " + account.getUsername() + ", response code: " + response.getStatusCode());
+
+        } catch (ConnectionException | MalformedURLException | ProtocolException ex) {
+            // Did not successfully log in
+            logger.error(ex.getMessage());
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        // Did we successfully log in? Then return true.
+        return true;
+
+    }
+
+    /**
+     * Gets the captcha's image, as the site sent it.
+     */
+    private byte[] getCaptchaImage(Element login, CookieJar cookies) throws TrawlException, ConnectionException, MalformedURLException, ProtocolException {
+        HttpMessage getCaptcha = new HttpMessage(HttpType.GET);
+        getCaptcha.setImage(true);
+        if (config.getCaptchaImage() != null) {
+            getCaptcha.setUrl(baseURL + config.getCaptchaImage());
+        } else {
+            // Just try to get the image
+            Elements captchas = login.getElementsByTag("img");
+
+            if (captchas.size() != 1) {
+                throw new TrawlException("Failed to find captcha, but the initialization file says there should be one.");
+            }
+
+            Element captchaImage = captchas.get(0);
+
+            // Does it contain base64?
+            if (captchaImage.attr("src").contains("base64")) {
+                String src = captchaImage.attr("src").split(",")[1];
+                return Base64.decodeBase64(src);
+            }
+
+            if (captchaImage.attr("src").contains(baseURL)) {
+                getCaptcha.setUrl(captchaImage.attr("src"));
+            } else {
+                getCaptcha.setUrl(baseURL + captchaImage.attr("src"));
+            }
+        }
+
+        getCaptcha.setHeaderTemplate(imageHeaders);
+        getCaptcha.addHeader(new Header("Referrer", baseURL + config.getLoginURL()));
+        getCaptcha.addCookieHeaders(cookies);
+
+        HttpRequest image = new HttpRequest(getCaptcha, transport);
+        cookies.setCookies(image.getHeaders(), getCaptcha.getUrl());
+        return image.getBody();
+    }
+
+    /**
+     * Returns the redirection URL to follow from the headers.
+     *
+     * @param headers
+     * @return
+     */
+    private String getRedirectionURL(ArrayList<Header> headers) {
+        for (Header h : headers) {
+            if (h.getName().equals("Location")) {
+                return h.getValue();
+            }
+        }
+
+        return "";
+    }
+
+    /**
+     * A login form which has been fetched but not filled in yet.
+     */
+    public static class LoginForm {
+
+        private final Element form;
+        private final Future<CaptchaSolver.Answer> captcha;
+        private final long fetched;
+
+        private LoginForm(Element form, Future<CaptchaSolver.Answer> captcha) {
+            this.form = form;
+            this.captcha = captcha;
+            this.fetched = System.currentTimeMillis();
+        }
+
+        /**
+         *
+         * @return The form element.
+         */
+        public Element getForm() {
+            return form;
+        }
+
+        /**
+         *
+         * @return The captcha's answer, or null if there's no captcha.
+         */
+        public Future<CaptchaSolver.Answer> getCaptcha() {
+            return captcha;
+        }
+
+        /**
+         *
+         * @return When the form was fetched, in milliseconds.
+         */
+        public long getFetched() {
+            return fetched;
+        }
+
+        /**
+         * Stops solving the captcha, for a form that won't be used.
+         */
+        public void discard() {
+            if (captcha != null) {
+                captcha.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encodes one version of a page as a list of edits to an earlier version.
+ *
+ * The earlier version is cut into blocks, and each block's hash is put in a
+ * table. The new version is then scanned with a rolling hash: wherever it
+ * matches a block, the match is extended as far as it goes in both
+ * directions and becomes a copy from the earlier version. Everything else is
+ * inserted as it is. A page which differs from yesterday's only in a price
+ * becomes a handful of copies and a few bytes of inserts.
+ *
+ * Edits are a copy (0, then the offset and length as varints) or an insert
+ * (1, then the length as a varint and the bytes).
+ *
+ * @author njanetos
+ */
+public class BlockDelta {
+
+    private static final int BLOCK = 32;
+    private static final int COPY = 0;
+    private static final int INSERT = 1;
+    private static final int PRIME = 31;
+
+    /**
+     * Works out the edits which turn base into target.
+     *
+     * @param base The earlier version.
+     * @param target The new version.
+     * @return The edits.
+     */
+    public static byte[] encode(byte[] base, byte[] target) {
+        Output out = new Output(Math.max(64, target.length / 8));
+
+        if (base.length < BLOCK || target.length < BLOCK) {
+            out.insert(target, 0, target.length);
+            return out.toByteArray();
+        }
+
+        // Hash every block of the base. Slots hold offset + 1, 0 is empty.
+        int blocks = base.length / BLOCK;
+        int mask = Integer.highestOneBit(Math.max(blocks * 2, 16)) * 2 - 1;
+        int[] table = new int[mask + 1];
+        for (int b = blocks - 1; b >= 0; --b) {
+            int offset = b * BLOCK;
+            int slot = hash(base, offset) & mask;
+            // Keep the earliest block with this hash
+            table[slot] = offset + 1;
+        }
+
+        // x^(BLOCK-1), to take the oldest byte out of the rolling hash
+        int power = 1;
+        for (int i = 1; i < BLOCK; ++i) {
+            power *= PRIME;
+        }
+
+        int literalStart = 0;
+        int p = 0;
+        int h = hash(target, 0);
+        while (p + BLOCK <= target.length) {
+            int candidate = table[h & mask] - 1;
+            if (candidate >= 0 && matches(base, candidate, target, p)) {
+                // Extend backwards into the literal run, then forwards
+                int baseStart = candidate;
+                int targetStart = p;
+                while (baseStart > 0 && targetStart > literalStart && base[baseStart - 1] == target[targetStart - 1]) {
+                    --baseStart;
+                    --targetStart;
+                }
+                int baseEnd = candidate + BLOCK;
+                int targetEnd = p + BLOCK;
+                while (baseEnd < base.length && targetEnd < target.length && base[baseEnd] == target[targetEnd]) {
+                    ++baseEnd;
+                    ++targetEnd;
+                }
+
+                out.insert(target, literalStart, targetStart - literalStart);
+                out.copy(baseStart, baseEnd - baseStart);
+                literalStart = targetEnd;
+                p = targetEnd;
+                if (p + BLOCK <= target.length) {
+                    h = hash(target, p);
+                }
+            } else {
+                // Roll the hash on one byte
+                if (p + BLOCK < target.length) {
+                    h = (h - (target[p] & 0xff) * power) * PRIME + (target[p + BLOCK] & 0xff);
+                }
+                ++p;
+            }
+        }
+        out.insert(target, literalStart, target.length - literalStart);
+        return out.toByteArray();
+    }
+
+    /**
+     * Applies edits to an earlier version.
+     *
+     * @param base The earlier version.
+     * @param delta The edits, from {@link #encode(byte[], byte[])}.
+     * @param length The length of the result.
+     * @return The new version.
+     * @throws IOException If the edits don't fit the base.
+     */
+    public static byte[] apply(byte[] base, byte[] delta, int length) throws IOException {
+        byte[] target = new byte[length];
+        int[] position = {0};
+        int written = 0;
+        try {
+            while (position[0] < delta.length) {
+                int op = delta[position[0]++];
+                if (op == COPY) {
+                    int offset = readVarint(delta, position);
+                    int n = readVarint(delta, position);
+                    System.arraycopy(base, offset, target, written, n);
+                    written += n;
+                } else if (op == INSERT) {
+                    int n = readVarint(delta, position);
+                    System.arraycopy(delta, position[0], target, written, n);
+                    position[0] += n;
+                    written += n;
+                } else {
+                    throw new IOException("Unknown delta op " + op);
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Delta doesn't fit its base.");
+        }
+        if (written != length) {
+            throw new IOException("Delta made " + written + " bytes, expected " + length + ".");
+        }
+        return target;
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK; ++i) {
+            h = h * PRIME + (bytes[i] & 0xff);
+        }
+        return h;
+    }
+
+    private static boolean matches(byte[] base, int baseOffset, byte[] target, int targetOffset) {
+        for (int i = 0; i < BLOCK; ++i) {
+            if (base[baseOffset + i] != target[targetOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readVarint(byte[] bytes, int[] position) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = bytes[position[0]++] & 0xff;
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint in delta.");
+    }
+
+    /**
+     * A growable buffer of edits.
+     */
+    private static class Output {
+
+        private byte[] buffer;
+        private int size;
+
+        private Output(int initialCapacity) {
+            buffer = new byte[initialCapacity];
+        }
+
+        private void copy(int offset, int length) {
+            ensureSpace(11);
+            buffer[size++] = COPY;
+            writeVarint(offset);
+            writeVarint(length);
+        }
+
+        private void insert(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return;
+            }
+            ensureSpace(6 + length);
+            buffer[size++] = INSERT;
+            writeVarint(length);
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        private void ensureSpace(int space) {
+            if (buffer.length - size < space) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + space));
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Holds page bodies in direct memory while they wait to be written, so a big
+ * write queue doesn't fill the heap.
+ *
+ * Memory is handed out in small fixed size blocks, up to a budget, so a small
+ * page only takes one. Blocks are cut from larger slabs, which are only
+ * allocated when first needed, and are reused once a body is released. A body
+ * that doesn't fit in what's left is refused, and stays on the heap.
+ *
+ * Bodies in other charsets are re-encoded as UTF-8 on the way in, so the
+ * stores can write them straight out of the blocks.
+ *
+ * @author njanetos
+ */
+public class BodyArena {
+
+    /**
+     * The size of each block, in bytes.
+     */
+    public static final int BLOCK_SIZE = 4096;
+
+    /**
+     * How many blocks are allocated at once.
+     */
+    private static final int SLAB_BLOCKS = 256;
+
+    private final int maxBlocks;
+    private final ArrayList<ByteBuffer> blocks;
+    private int[] free;
+    private int freeCount;
+    private int used;
+    private long refused;
+
+    /**
+     *
+     * @param budget The most direct memory to use, in bytes.
+     */
+    public BodyArena(long budget) {
+        this.maxBlocks = (int) Math.min(Integer.MAX_VALUE, budget / BLOCK_SIZE);
+        this.blocks = new ArrayList<>();
+        this.free = new int[16];
+        this.freeCount = 0;
+        this.used = 0;
+        this.refused = 0;
+    }
+
+    /**
+     * Copies bytes into the arena.
+     *
+     * @param bytes The bytes to store.
+     * @return The stored body, or null if there wasn't room.
+     */
+    public Body store(byte[] bytes) {
+        int[] taken = allocate((bytes.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        if (taken == null) {
+            refuse();
+            return null;
+        }
+        for (int i = 0; i < taken.length; ++i) {
+            ByteBuffer block = block(taken[i]);
+            int offset = i * BLOCK_SIZE;
+            block.put(bytes, offset, Math.min(BLOCK_SIZE, bytes.length - offset));
+        }
+        return new Body(taken, bytes.length);
+    }
+
+    /**
+     * Re-encodes bytes as UTF-8 into the arena. The UTF-8 length isn't known
+     * up front, so blocks are taken as they're filled.
+     *
+     * @param bytes The bytes to store.
+     * @param charset The charset the bytes are in.
+     * @return The stored body, in UTF-8, or null if there wasn't room.
+     */
+    public Body store(byte[] bytes, Charset charset) {
+        if (charset.equals(ContentDecoder.DEFAULT_CHARSET)) {
+            return store(bytes);
+        }
+        Filler filler = new Filler();
+        try {
+            ContentDecoder.toUtf8(bytes, charset, filler);
+        } catch (IOException e) {
+            // Only thrown when the arena is full
+            filler.abandon();
+            refuse();
+            return null;
+        }
+        return filler.finish();
+    }
+
+    /**
+     *
+     * @return The bytes of blocks in use.
+     */
+    public synchronized long getUsed() {
+        return (long) used * BLOCK_SIZE;
+    }
+
+    /**
+     *
+     * @return How many bodies didn't fit.
+     */
+    public synchronized long getRefused() {
+        return refused;
+    }
+
+    private synchronized void refuse() {
+        ++refused;
+    }
+
+    private synchronized int[] allocate(int count) {
+        if (used + count > maxBlocks) {
+            return null;
+        }
+        int[] taken = new int[count];
+        for (int i = 0; i < count; ++i) {
+            if (freeCount == 0) {
+                addSlab();
+            }
+            taken[i] = free[--freeCount];
+        }
+        used += count;
+        return taken;
+    }
+
+    /**
+     * Cuts a new slab into blocks, and adds them to the free list. Never goes
+     * past the budget.
+     */
+    private void addSlab() {
+        int count = Math.min(SLAB_BLOCKS, maxBlocks - blocks.size());
+        ByteBuffer slab = ByteBuffer.allocateDirect(count * BLOCK_SIZE);
+        if (freeCount + count > free.length) {
+            int[] grown = new int[Math.max(free.length * 2, freeCount + count)];
+            System.arraycopy(free, 0, grown, 0, freeCount);
+            free = grown;
+        }
+        int first = blocks.size();
+        for (int i = 0; i < count; ++i) {
+            slab.limit((i + 1) * BLOCK_SIZE);
+            slab.position(i * BLOCK_SIZE);
+            blocks.add(slab.slice());
+        }
+        // Hand out the first block of the slab first
+        for (int i = count - 1; i >= 0; --i) {
+            free[freeCount++] = first + i;
+        }
+    }
+
+    private synchronized void release(int[] taken, int count) {
+        if (freeCount + count > free.length) {
+            int[] grown = new int[Math.max(free.length * 2, freeCount + count)];
+            System.arraycopy(free, 0, grown, 0, freeCount);
+            free = grown;
+        }
+        for (int i = 0; i < count; ++i) {
+            free[freeCount++] = taken[i];
+        }
+        used -= count;
+    }
+
+    /**
+     * Each body owns its blocks, so only the list of blocks needs the lock.
+     */
+    private synchronized ByteBuffer block(int index) {
+        return blocks.get(index).duplicate();
+    }
+
+    /**
+     * Fills blocks one after another, taking each as it's needed.
+     */
+    private class Filler extends OutputStream {
+
+        private int[] taken = new int[4];
+        private int count = 0;
+        private int length = 0;
+        private ByteBuffer current;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (current == null || !current.hasRemaining()) {
+                    next();
+                }
+                int n = Math.min(length, current.remaining());
+                current.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+                this.length += n;
+            }
+        }
+
+        private void next() throws IOException {
+            int[] block = allocate(1);
+            if (block == null) {
+                throw new IOException("Body arena is full.");
+            }
+            if (count == taken.length) {
+                int[] grown = new int[taken.length * 2];
+                System.arraycopy(taken, 0, grown, 0, count);
+                taken = grown;
+            }
+            taken[count++] = block[0];
+            current = block(block[0]);
+        }
+
+        private Body finish() {
+            int[] exact = new int[count];
+            System.arraycopy(taken, 0, exact, 0, count);
+            return new Body(exact, length);
+        }
+
+        private void abandon() {
+            release(taken, count);
+        }
+    }
+
+    /**
+     * A body held in the arena. Release it once it's written.
+     */
+    public class Body {
+
+        private int[] taken;
+        private final int length;
+
+        private Body(int[] taken, int length) {
+            this.taken = taken;
+            this.length = length;
+        }
+
+        /**
+         *
+         * @return The length of the body, in bytes.
+         */
+        public int length() {
+            return length;
+        }
+
+        /**
+         * Copies the body back out of the arena. Prefer
+         * {@link #writeTo(OutputStream)} where a stream will do.
+         *
+         * @return The body.
+         */
+        public byte[] read() {
+            checkTaken();
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < taken.length; ++i) {
+                ByteBuffer block = block(taken[i]);
+                int offset = i * BLOCK_SIZE;
+                block.get(bytes, offset, Math.min(BLOCK_SIZE, length - offset));
+            }
+            return bytes;
+        }
+
+        /**
+         * Writes the body out a block at a time, without copying all of it
+         * onto the heap.
+         *
+         * @param out Where to write.
+         * @throws IOException
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            checkTaken();
+            byte[] chunk = new byte[Math.min(BLOCK_SIZE, length)];
+            for (int i = 0; i < taken.length; ++i) {
+                ByteBuffer block = block(taken[i]);
+                int n = Math.min(BLOCK_SIZE, length - i * BLOCK_SIZE);
+                block.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+
+        /**
+         * Gives the body's blocks back to the arena. Does nothing if it's
+         * already been released.
+         */
+        public void release() {
+            if (taken != null) {
+                BodyArena.this.release(taken, taken.length);
+                taken = null;
+            }
+        }
+
+        private void checkTaken() {
+            if (taken == null) {
+                throw new IllegalStateException("Body has already been released.");
+            }
+        }
+    }
+}
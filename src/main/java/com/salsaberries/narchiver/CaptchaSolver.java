@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.concurrent.Future;
+
+/**
+ * Solves captchas. Solving can take a while, so {@link #solve(byte[])} hands
+ * back a future straight away, and the login can fetch other things while it
+ * waits.
+ *
+ * Implementations are thread safe.
+ *
+ * @author njanetos
+ */
+public interface CaptchaSolver {
+
+    /**
+     * Starts solving a captcha.
+     *
+     * @param image The image, exactly as the site sent it.
+     * @return The answer, when there is one. Fails if the captcha couldn't be
+     * solved.
+     */
+    Future<Answer> solve(byte[] image);
+
+    /**
+     * Says whether an answer got us logged in, so bad answers can be
+     * reported and counted.
+     *
+     * @param answer The answer.
+     * @param correct True if the login worked.
+     */
+    void report(Answer answer, boolean correct);
+
+    /**
+     * Stops any solving still going on.
+     */
+    void close();
+
+    /**
+     * A solved captcha.
+     */
+    class Answer {
+
+        private final String text;
+        private final int id;
+
+        /**
+         *
+         * @param text What to type in.
+         * @param id What the solver knows the captcha as, or 0.
+         */
+        public Answer(String text, int id) {
+            this.text = text;
+            this.id = id;
+        }
+
+        /**
+         *
+         * @return What to type in.
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         *
+         * @return What the solver knows the captcha as, or 0.
+         */
+        public int getId() {
+            return id;
+        }
+    }
+}
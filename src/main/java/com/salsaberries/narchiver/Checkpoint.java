@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves enough of a trawl's state that a later run can pick up where it left
+ * off if the JVM dies.
+ *
+ * Three files are kept in the checkpoint directory. The seen log gets the URLs
+ * queued since the last checkpoint, so the seen set never has to be written
+ * out in full. The lineage log is the trawl's {@link PageLineage}, which
+ * appends its nodes there as they're added. The state file is rewritten at
+ * every checkpoint and holds the output location, the pages at the front of
+ * the {@link Frontier}, how far through its segments on disk we are, and any
+ * pages which were being visited or waiting to be written. It also records
+ * how much of each log goes with it, so a run that dies between checkpoints
+ * picks both logs up only from the last one.
+ *
+ * Saving happens in two steps so the trawl isn't held up: {@link #snapshot}
+ * copies the state into memory while the caller holds the frontier lock, and
+ * {@link #commit} does all of the writing after the lock is released.
+ *
+ * @author njanetos
+ */
+public class Checkpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(Checkpoint.class);
+
+    private static final int VERSION = 4;
+
+    private final File directory;
+    private final File stateFile;
+    private final File seenFile;
+    private final File lineageFile;
+    private PageLineage lineage;
+    private FileOutputStream seenStream;
+    private final ByteArrayOutputStream seenBuffer = new ByteArrayOutputStream(65536);
+    private final DataOutputStream seenLog = new DataOutputStream(seenBuffer);
+    private long seenLength;
+
+    /**
+     * Opens the checkpoint in a directory, creating it if needed.
+     *
+     * @param directory The checkpoint directory.
+     */
+    public Checkpoint(File directory) {
+        this.directory = directory;
+        this.stateFile = new File(directory, "state");
+        this.seenFile = new File(directory, "seen.log");
+        this.lineageFile = new File(directory, "lineage.log");
+    }
+
+    /**
+     *
+     * @return True if there is a saved state to resume from.
+     */
+    public boolean exists() {
+        return stateFile.exists();
+    }
+
+    /**
+     * Throws away any old checkpoint and starts a fresh seen log and lineage.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        delete();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create checkpoint directory " + directory.getAbsolutePath());
+        }
+        openSeenLog(0);
+        lineage = new PageLineage(lineageFile, 0);
+    }
+
+    /**
+     * Loads the saved state, replays the seen log into the seen set, reopens
+     * the lineage where the state left it, and gets ready to carry on
+     * appending to both.
+     *
+     * @param seen The seen set to fill.
+     * @return The saved state.
+     * @throws IOException If the checkpoint can't be read.
+     */
+    public State resume(SeenSet seen) throws IOException {
+        State state;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unknown checkpoint version in " + stateFile.getAbsolutePath());
+            }
+            String outputLocation = in.readUTF();
+            long savedSeenLength = in.readLong();
+            long savedLineageLength = in.readLong();
+
+            // Pages refer to lineage nodes, so that comes first. Anything
+            // added after the checkpoint is cut off.
+            lineage = new PageLineage(lineageFile, savedLineageLength);
+
+            ArrayList<Page> pending = new ArrayList<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                pending.add(Page.read(in, lineage));
+            }
+
+            byte[] frontier = new byte[in.readInt()];
+            in.readFully(frontier);
+
+            state = new State(outputLocation, pending, frontier, lineage);
+            seenLength = savedSeenLength;
+        }
+
+        // Replay the seen log, ignoring anything written after the checkpoint
+        int replayed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(seenFile), 65536))) {
+            long read = 0;
+            while (read < seenLength) {
+                int length = in.readInt();
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                seen.add(new String(bytes, ContentDecoder.DEFAULT_CHARSET));
+                read += 4 + length;
+                ++replayed;
+            }
+        } catch (EOFException e) {
+            throw new IOException("Seen log " + seenFile.getAbsolutePath() + " is shorter than the checkpoint says.");
+        }
+        logger.info("Replayed " + replayed + " seen URLs from " + seenFile.getAbsolutePath());
+
+        openSeenLog(seenLength);
+        return state;
+    }
+
+    /**
+     *
+     * @return The trawl's lineage, kept in the lineage log. Only there once
+     * the checkpoint has been started or resumed.
+     */
+    public PageLineage getLineage() {
+        return lineage;
+    }
+
+    /**
+     * Records newly queued URLs. Call while holding the frontier lock, so the
+     * seen log always agrees with the frontier. They're kept in memory until
+     * the next {@link #commit}, so nothing here touches the disk.
+     *
+     * @param pages The pages just queued.
+     * @throws IOException
+     */
+    public void recordSeen(Collection<Page> pages) throws IOException {
+        for (Page page : pages) {
+            byte[] bytes = page.getTagURL().getBytes(ContentDecoder.DEFAULT_CHARSET);
+            seenLog.writeInt(bytes.length);
+            seenLog.write(bytes);
+            seenLength += 4 + bytes.length;
+        }
+    }
+
+    /**
+     * Copies the state of the trawl. Call while holding the frontier lock; the
+     * result is then written with {@link #commit(Snapshot)} after the lock is
+     * released. Nothing is written to disk here.
+     *
+     * @param outputLocation The output location of this trawl.
+     * @param pending Pages taken from the frontier but not yet written.
+     * @param frontier The frontier.
+     * @return The copied state.
+     * @throws IOException
+     */
+    public Snapshot snapshot(String outputLocation, Collection<Page> pending, Frontier frontier) throws IOException {
+        // Take the seen URLs recorded since the last checkpoint
+        byte[] seenBytes = seenBuffer.toByteArray();
+        seenBuffer.reset();
+
+        // Every page in the frontier or pending was made before now, so its
+        // lineage node is below this
+        long lineageLength = lineage.length();
+
+        ByteArrayOutputStream frontierBytes = new ByteArrayOutputStream(65536);
+        frontier.writeState(new DataOutputStream(frontierBytes));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(frontierBytes.size() + 65536);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(VERSION);
+        out.writeUTF(outputLocation);
+        out.writeLong(seenLength);
+        out.writeLong(lineageLength);
+        out.writeInt(pending.size());
+        for (Page page : pending) {
+            page.write(out);
+        }
+        out.writeInt(frontierBytes.size());
+        frontierBytes.writeTo(out);
+        out.flush();
+
+        return new Snapshot(bytes.toByteArray(), seenBytes, frontier.getMappedSegments(), frontier.takeRetired());
+    }
+
+    /**
+     * Makes a snapshot durable: appends to and syncs the seen log, syncs the
+     * lineage and the frontier segments, then atomically replaces the state
+     * file. Segments
+     * that the snapshot no longer needs are deleted afterwards. Snapshots
+     * must be committed in the order they were taken, and if one fails no
+     * later one can be.
+     *
+     * @param snapshot The snapshot to write.
+     * @throws IOException
+     */
+    public void commit(Snapshot snapshot) throws IOException {
+        seenStream.write(snapshot.seen);
+        seenStream.getChannel().force(false);
+        lineage.sync();
+        for (MappedByteBuffer segment : snapshot.segments) {
+            segment.force();
+        }
+
+        File temp = new File(directory, "state.tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(snapshot.state);
+            out.getChannel().force(false);
+        }
+        Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (File file : snapshot.retired) {
+            if (!file.delete()) {
+                logger.warn("Unable to delete frontier segment " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Closes the logs, including the lineage.
+     */
+    public void close() {
+        if (seenStream != null) {
+            try {
+                seenStream.close();
+            } catch (IOException e) {
+                logger.warn("Error closing seen log: " + e.getMessage());
+            }
+            seenStream = null;
+        }
+        if (lineage != null) {
+            lineage.close();
+        }
+    }
+
+    /**
+     * Closes and removes the checkpoint. Called once a trawl has finished, so
+     * there's nothing left to resume.
+     */
+    public void delete() {
+        close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    logger.warn("Unable to delete " + file.getAbsolutePath());
+                }
+            }
+        }
+        if (directory.exists() && !directory.delete()) {
+            logger.warn("Unable to delete checkpoint directory " + directory.getAbsolutePath());
+        }
+    }
+
+    private void openSeenLog(long length) throws IOException {
+        // Cut off anything written after the checkpoint we resumed from
+        try (RandomAccessFile raf = new RandomAccessFile(seenFile, "rw")) {
+            raf.setLength(length);
+        }
+        seenStream = new FileOutputStream(seenFile, true);
+        seenBuffer.reset();
+        seenLength = length;
+    }
+
+    /**
+     * The state loaded from a checkpoint.
+     */
+    public static class State {
+
+        private final String outputLocation;
+        private final List<Page> pending;
+        private final byte[] frontier;
+        private final PageLineage lineage;
+
+        private State(String outputLocation, List<Page> pending, byte[] frontier, PageLineage lineage) {
+            this.outputLocation = outputLocation;
+            this.pending = pending;
+            this.frontier = frontier;
+            this.lineage = lineage;
+        }
+
+        /**
+         *
+         * @return The output location of the trawl being resumed.
+         */
+        public String getOutputLocation() {
+            return outputLocation;
+        }
+
+        /**
+         *
+         * @return Pages which were being visited or waiting to be written, and
+         * need to be visited again.
+         */
+        public List<Page> getPending() {
+            return pending;
+        }
+
+        /**
+         * Restores the frontier from this state.
+         *
+         * @param directory The directory the segments are in.
+         * @param memoryLimit How many pages to keep in memory.
+         * @param segmentSize The size of new segment files, in bytes.
+         * @return The frontier.
+         * @throws IOException
+         */
+        public Frontier restoreFrontier(File directory, int memoryLimit, int segmentSize) throws IOException {
+            return Frontier.restore(new DataInputStream(new ByteArrayInputStream(frontier)), directory, memoryLimit, segmentSize, lineage);
+        }
+    }
+
+    /**
+     * A copy of the trawl's state, waiting to be committed.
+     */
+    public static class Snapshot {
+
+        private final byte[] state;
+        private final byte[] seen;
+        private final List<MappedByteBuffer> segments;
+        private final List<File> retired;
+
+        private Snapshot(byte[] state, byte[] seen, List<MappedByteBuffer> segments, List<File> retired) {
+            this.state = state;
+            this.seen = seen;
+            this.segments = segments;
+            this.retired = retired;
+        }
+    }
+}
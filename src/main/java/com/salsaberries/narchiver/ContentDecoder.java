@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns a raw response body into the bytes of the page, and works out which
+ * character set those bytes are in. Everything stays as bytes: turning them
+ * into a String is left to whoever needs one.
+ *
+ * @author njanetos
+ */
+public class ContentDecoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentDecoder.class);
+
+    /**
+     * Used when neither the headers nor the page say what the charset is.
+     */
+    public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int BUFFER_SIZE = 65536;
+    private static final int TRANSCODE_CHARS = 4096;
+    private static final int SNIFF_LENGTH = 1024;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private ContentDecoder() {
+    }
+
+    /**
+     * Undoes the Content-Encoding of a body.
+     *
+     * @param raw The body as it came off the wire.
+     * @param contentEncoding The Content-Encoding header, or null.
+     * @return The decoded body. This is the same array if there was nothing to
+     * decode.
+     * @throws IOException If the body is not valid for its encoding.
+     */
+    public static byte[] decode(byte[] raw, String contentEncoding) throws IOException {
+        if (contentEncoding == null || raw.length == 0) {
+            return raw;
+        }
+
+        String encoding = contentEncoding.trim().toLowerCase();
+        switch (encoding) {
+            case "":
+            case "identity":
+                return raw;
+            case "gzip":
+            case "x-gzip":
+                if (raw.length < 2 || readShort(raw, 0) != GZIP_MAGIC) {
+                    // Some servers say gzip and then don't bother
+                    logger.debug("Body claims to be gzip but isn't, using it as is.");
+                    return raw;
+                }
+                return gunzip(raw);
+            case "deflate":
+                return inflate(raw);
+            default:
+                throw new IOException("Unsupported content encoding " + contentEncoding);
+        }
+    }
+
+    /**
+     * Works out the charset of a page, first from the Content-Type header, then
+     * from a byte order mark, then from a meta tag near the top of the page.
+     *
+     * @param contentType The Content-Type header, or null.
+     * @param body The decoded body.
+     * @return The charset, or {@link #DEFAULT_CHARSET} if nothing says.
+     */
+    public static Charset detectCharset(String contentType, byte[] body) {
+        Charset charset = null;
+
+        if (contentType != null) {
+            charset = parseCharset(contentType.toLowerCase(), contentType.toLowerCase().indexOf("charset"));
+        }
+
+        // Byte order marks
+        if (charset == null && body.length >= 3 && (body[0] & 0xff) == 0xef && (body[1] & 0xff) == 0xbb && (body[2] & 0xff) == 0xbf) {
+            charset = Charset.forName("UTF-8");
+        }
+        if (charset == null && body.length >= 2 && (body[0] & 0xff) == 0xfe && (body[1] & 0xff) == 0xff) {
+            charset = Charset.forName("UTF-16BE");
+        }
+        if (charset == null && body.length >= 2 && (body[0] & 0xff) == 0xff && (body[1] & 0xff) == 0xfe) {
+            charset = Charset.forName("UTF-16LE");
+        }
+
+        if (charset == null) {
+            charset = sniffMeta(body);
+        }
+
+        return charset == null ? DEFAULT_CHARSET : charset;
+    }
+
+    /**
+     * Looks for &lt;meta charset="..."&gt; or &lt;meta http-equiv="Content-Type"
+     * content="...; charset=..."&gt; in the first kilobyte of the page.
+     */
+    private static Charset sniffMeta(byte[] body) {
+        String head = new String(body, 0, Math.min(body.length, SNIFF_LENGTH), ISO_8859_1).toLowerCase();
+
+        int meta = head.indexOf("<meta");
+        while (meta >= 0) {
+            int end = head.indexOf('>', meta);
+            if (end < 0) {
+                end = head.length();
+            }
+            int charsetAt = head.indexOf("charset", meta);
+            if (charsetAt >= 0 && charsetAt < end) {
+                Charset charset = parseCharset(head.substring(0, end), charsetAt);
+                if (charset != null) {
+                    return charset;
+                }
+            }
+            meta = head.indexOf("<meta", end);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the value of charset=... starting at the given index.
+     */
+    private static Charset parseCharset(String s, int charsetAt) {
+        if (charsetAt < 0) {
+            return null;
+        }
+
+        int i = charsetAt + "charset".length();
+        while (i < s.length() && (s.charAt(i) == ' ' || s.charAt(i) == '=' || s.charAt(i) == '"' || s.charAt(i) == '\'')) {
+            ++i;
+        }
+        int start = i;
+        while (i < s.length() && " \"';>/".indexOf(s.charAt(i)) < 0) {
+            ++i;
+        }
+
+        String name = s.substring(start, i);
+        try {
+            if (!name.isEmpty() && Charset.isSupported(name)) {
+                return Charset.forName(name);
+            }
+        } catch (IllegalCharsetNameException e) {
+            logger.debug("Ignoring bad charset name " + name);
+        }
+        return null;
+    }
+
+    /**
+     * Re-encodes bytes as UTF-8, a few thousand characters at a time, without
+     * building a String. Bytes which aren't valid in the charset are
+     * replaced, as {@link String#String(byte[], Charset)} would.
+     *
+     * @param bytes The bytes.
+     * @param charset The charset they're in.
+     * @param out Where to write the UTF-8.
+     * @throws IOException If out can't be written to.
+     */
+    public static void toUtf8(byte[] bytes, Charset charset, OutputStream out) throws IOException {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharsetEncoder encoder = DEFAULT_CHARSET.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        CharBuffer chars = CharBuffer.allocate(TRANSCODE_CHARS);
+        // Never more than three bytes a char in UTF-8
+        ByteBuffer encoded = ByteBuffer.allocate(TRANSCODE_CHARS * 3);
+
+        CoderResult result;
+        do {
+            result = decoder.decode(in, chars, true);
+            encode(encoder, chars, encoded, out, false);
+        } while (result.isOverflow());
+        do {
+            result = decoder.flush(chars);
+            encode(encoder, chars, encoded, out, false);
+        } while (result.isOverflow());
+        encode(encoder, chars, encoded, out, true);
+    }
+
+    /**
+     * Encodes the chars decoded so far. Half a surrogate pair is left for next
+     * time.
+     */
+    private static void encode(CharsetEncoder encoder, CharBuffer chars, ByteBuffer encoded, OutputStream out, boolean end) throws IOException {
+        chars.flip();
+        encoder.encode(chars, encoded, end);
+        if (end) {
+            encoder.flush(encoded);
+        }
+        chars.compact();
+        out.write(encoded.array(), 0, encoded.position());
+        encoded.clear();
+    }
+
+    /**
+     * Inflates one or more gzip members.
+     */
+    private static byte[] gunzip(byte[] raw) throws IOException {
+        ByteSink out = new ByteSink(raw.length * 4);
+        int offset = 0;
+
+        while (offset < raw.length) {
+            if (raw.length - offset < 18 || readShort(raw, offset) != GZIP_MAGIC) {
+                if (offset == 0) {
+                    throw new IOException("Not in GZIP format");
+                }
+                // Trailing garbage after the last member
+                break;
+            }
+
+            offset = skipGzipHeader(raw, offset);
+
+            Inflater inflater = InflaterPool.acquire(true);
+            try {
+                offset = inflate(inflater, raw, offset, out);
+            } finally {
+                InflaterPool.release(inflater, true);
+            }
+
+            // Skip the CRC32 and length trailer
+            offset += 8;
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Inflates a deflate body. The standard says this should have a zlib
+     * header, but plenty of servers send raw deflate data instead.
+     */
+    private static byte[] inflate(byte[] raw) throws IOException {
+        boolean nowrap = !hasZlibHeader(raw);
+        ByteSink out = new ByteSink(raw.length * 4);
+
+        Inflater inflater = InflaterPool.acquire(nowrap);
+        try {
+            inflate(inflater, raw, 0, out);
+        } finally {
+            InflaterPool.release(inflater, nowrap);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Inflates a single deflate stream starting at offset.
+     *
+     * @return The offset just past the end of the stream.
+     */
+    private static int inflate(Inflater inflater, byte[] raw, int offset, ByteSink out) throws IOException {
+        inflater.setInput(raw, offset, raw.length - offset);
+        try {
+            while (!inflater.finished()) {
+                out.ensureSpace(BUFFER_SIZE);
+                int n = inflater.inflate(out.buffer, out.size, out.buffer.length - out.size);
+                out.size += n;
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("Unexpected end of compressed data");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data: " + e.getMessage());
+        }
+        return raw.length - inflater.getRemaining();
+    }
+
+    private static int skipGzipHeader(byte[] raw, int offset) throws IOException {
+        int flags = raw[offset + 3] & 0xff;
+        if ((raw[offset + 2] & 0xff) != 8) {
+            throw new IOException("Unsupported gzip compression method");
+        }
+
+        // Magic, method, flags, mtime, extra flags, OS
+        int i = offset + 10;
+        if ((flags & FEXTRA) != 0) {
+            i += 2 + readShort(raw, i);
+        }
+        if ((flags & FNAME) != 0) {
+            while (i < raw.length && raw[i] != 0) {
+                ++i;
+            }
+            ++i;
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (i < raw.length && raw[i] != 0) {
+                ++i;
+            }
+            ++i;
+        }
+        if ((flags & FHCRC) != 0) {
+            i += 2;
+        }
+
+        if (i >= raw.length) {
+            throw new EOFException("Truncated gzip header");
+        }
+        return i;
+    }
+
+    private static boolean hasZlibHeader(byte[] raw) {
+        if (raw.length < 2) {
+            return false;
+        }
+        int cmf = raw[0] & 0xff;
+        int flg = raw[1] & 0xff;
+        return (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    /**
+     * Reads a little-endian unsigned short.
+     */
+    private static int readShort(byte[] raw, int offset) {
+        return (raw[offset] & 0xff) | ((raw[offset + 1] & 0xff) << 8);
+    }
+
+    /**
+     * A growable byte array that lets the Inflater write straight into it.
+     */
+    private static class ByteSink {
+
+        private byte[] buffer;
+        private int size;
+
+        private ByteSink(int initialCapacity) {
+            buffer = new byte[Math.max(initialCapacity, BUFFER_SIZE)];
+            size = 0;
+        }
+
+        private void ensureSpace(int space) {
+            if (buffer.length - size < space) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + space));
+            }
+        }
+
+        private byte[] toByteArray() {
+            return size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+        }
+    }
+}
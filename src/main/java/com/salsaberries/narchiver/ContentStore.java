@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores page bodies by the SHA-1 of their contents, so a body which hasn't
+ * changed since the last trawl is only ever stored once.
+ *
+ * Objects are appended to rolling segments in the {@link ArchiveWriter}
+ * format, each record named by its hex digest, rather than kept one file
+ * apiece. Nothing is synced until {@link #sync()}, which is called once per
+ * batch; a crash before then loses the unsynced objects, and opening the
+ * store again cuts the last segment back to its last complete record. The
+ * store is shared by every trawl of a site.
+ *
+ * Where each object is goes in a {@link FingerprintMap}, keyed by the first
+ * 64 bits of its digest and rebuilt from the segment indexes when the store is
+ * opened. Two bodies sharing those 64 bits would be stored once, which won't
+ * happen in practice, and {@link #get(String)} checks the whole digest
+ * anyway.
+ *
+ * @author njanetos
+ */
+public class ContentStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentStore.class);
+
+    private final ArchiveWriter writer;
+    private final ArchiveReader reader;
+    private final FingerprintMap locations;
+    private final MessageDigest sha1;
+    private boolean unflushed;
+    private long stored;
+    private long duplicates;
+
+    /**
+     *
+     * @param directory The objects directory. Created if needed.
+     * @param segmentSize Start a new segment once one gets this big, in
+     * bytes.
+     * @throws IOException If the store can't be opened.
+     */
+    public ContentStore(File directory, long segmentSize) throws IOException {
+        try {
+            this.sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not available: " + e.getMessage());
+        }
+
+        // Opening the writer first cuts off anything half written
+        this.writer = new ArchiveWriter(directory, segmentSize);
+        this.reader = new ArchiveReader(directory, false);
+        this.locations = new FingerprintMap(1 << 16);
+        ArchiveReader.readIndexes(directory, new ArchiveReader.IndexVisitor() {
+            @Override
+            public void visit(String digest, long date, int segment, long offset, int length) {
+                locations.put(key(digest), ArchiveWriter.location(segment, offset));
+            }
+        });
+        if (locations.size() > 0) {
+            logger.info("Found " + locations.size() + " stored bodies in " + directory.getPath() + ".");
+        }
+    }
+
+    /**
+     * Stores a body, unless it's already stored.
+     *
+     * @param body The body.
+     * @return The hex SHA-1 of the body.
+     * @throws IOException If the body can't be stored.
+     */
+    public synchronized String put(byte[] body) throws IOException {
+        sha1.reset();
+        String digest = Hex.encodeHexString(sha1.digest(body));
+        put(digest, body);
+        return digest;
+    }
+
+    /**
+     * Stores a page's body, unless it's already stored. The body is hashed
+     * and written straight from wherever the page keeps it. It isn't safely
+     * on disk until the next {@link #sync()}.
+     *
+     * @param page The page.
+     * @return The hex SHA-1 of the body, in UTF-8.
+     * @throws IOException If the body can't be stored.
+     */
+    public synchronized String put(Page page) throws IOException {
+        sha1.reset();
+        page.writeUtf8Body(new DigestOutputStream(NullOutputStream.NULL_OUTPUT_STREAM, sha1));
+        String digest = Hex.encodeHexString(sha1.digest());
+        long key = key(digest);
+        if (locations.containsKey(key)) {
+            ++duplicates;
+            return digest;
+        }
+        locations.put(key, writer.write(digest, "", System.currentTimeMillis() / 1000, page));
+        unflushed = true;
+        ++stored;
+        return digest;
+    }
+
+    /**
+     * Stores a body whose digest is already known, unless it's already stored.
+     * It isn't safely on disk until the next {@link #sync()}.
+     *
+     * @param digest The hex SHA-1 of the body.
+     * @param body The body.
+     * @throws IOException If the body can't be stored.
+     */
+    public synchronized void put(String digest, byte[] body) throws IOException {
+        long key = key(digest);
+        if (locations.containsKey(key)) {
+            ++duplicates;
+            return;
+        }
+        locations.put(key, writer.write(digest, "", System.currentTimeMillis() / 1000, body));
+        unflushed = true;
+        ++stored;
+    }
+
+    /**
+     * Forces every object stored so far to disk. Call before recording
+     * anywhere else that they're stored.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        writer.sync();
+        unflushed = false;
+    }
+
+    /**
+     * Counts a body which was known to be stored without looking, for
+     * example because the server said it hadn't changed.
+     */
+    public synchronized void countDuplicate() {
+        ++duplicates;
+    }
+
+    /**
+     *
+     * @param digest The hex SHA-1 of a body.
+     * @return True if the body is stored.
+     */
+    public synchronized boolean contains(String digest) {
+        return locations.containsKey(key(digest));
+    }
+
+    /**
+     * Reads a body back.
+     *
+     * @param digest The hex SHA-1 of the body.
+     * @return The body.
+     * @throws IOException If it isn't stored, or doesn't match its digest,
+     * in which case it's forgotten so it can be stored again.
+     */
+    public byte[] get(String digest) throws IOException {
+        long location;
+        synchronized (this) {
+            location = locations.get(key(digest), -1);
+            if (location >= 0 && unflushed) {
+                // It may still be in the write buffer
+                writer.flush();
+                unflushed = false;
+            }
+        }
+        if (location < 0) {
+            throw new IOException("Object " + digest + " isn't stored.");
+        }
+
+        try {
+            ArchiveReader.Record record = reader.read(location);
+            if (!record.getTagURL().equals(digest) || !digest(record.getBody()).equals(digest)) {
+                throw new IOException("Object " + digest + " doesn't match its digest.");
+            }
+            return record.getBody();
+        } catch (IOException e) {
+            // Forget it, so the next copy fetched is stored again
+            synchronized (this) {
+                if (locations.get(key(digest), -1) == location) {
+                    locations.remove(key(digest));
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     *
+     * @return How many new bodies have been stored.
+     */
+    public synchronized long getStored() {
+        return stored;
+    }
+
+    /**
+     *
+     * @return How many bodies were already stored.
+     */
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Syncs and closes the segments.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        try {
+            writer.close();
+        } finally {
+            reader.close();
+        }
+    }
+
+
+    /**
+     *
+     * @param body A body.
+     * @return Its hex SHA-1.
+     */
+    public static String digest(byte[] body) {
+        try {
+            return Hex.encodeHexString(MessageDigest.getInstance("SHA-1").digest(body));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available.", e);
+        }
+    }
+
+    /**
+     * The first 64 bits of a hex digest, which are already as good as random.
+     */
+    private static long key(String digest) {
+        long key = 0;
+        for (int i = 0; i < 16 && i < digest.length(); ++i) {
+            key = (key << 4) | Character.digit(digest.charAt(i), 16);
+        }
+        return key == 0 ? 1 : key;
+    }
+}
@@ -20,14 +20,15 @@ package com.salsaberries.narchiver;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A Cookie stores some temporary information from the website. Corresponds to
- * the concept of 'cookie' in a browser.
+ * the concept of 'cookie' in a browser. Cookies are kept in a
+ * {@link CookieJar}.
  *
  * @author njanetos
  */
@@ -38,17 +39,135 @@ public class Cookie {
      */
     public static final Logger logger = LoggerFactory.getLogger(Cookie.class);
 
-    private final String value;
+    /**
+     * The expiry of a cookie which lasts as long as the trawl.
+     */
+    public static final long SESSION = Long.MAX_VALUE;
+
+    private static final String[] DATE_FORMATS = {
+        "EEE, dd MMM yyyy HH:mm:ss zzz",
+        // Takes two digit years in this century, and longer ones as written
+        "EEE, dd-MMM-yy HH:mm:ss zzz",
+        "EEE MMM d HH:mm:ss yyyy"
+    };
+
     private final String name;
+    private final String value;
+    private final String domain;
+    private final boolean hostOnly;
+    private final String path;
+    private final long expires;
+    private final boolean secure;
+    private final boolean httpOnly;
+
+    private Cookie(String name, String value, String domain, boolean hostOnly, String path, long expires, boolean secure, boolean httpOnly) {
+        this.name = name;
+        this.value = value;
+        this.domain = domain;
+        this.hostOnly = hostOnly;
+        this.path = path;
+        this.expires = expires;
+        this.secure = secure;
+        this.httpOnly = httpOnly;
+    }
 
     /**
-     * Builds a cookie from the input.
+     * Reads a cookie from the value of a Set-Cookie header. Only the first
+     * name=value pair is the cookie; what follows are its attributes.
      *
-     * @param raw
+     * @param header The Set-Cookie header value.
+     * @param host The host of the request it came back from.
+     * @param requestPath The path of the request it came back from.
+     * @param now The current time, in milliseconds.
+     * @return The cookie, or null if it's malformed or not allowed for the
+     * host.
      */
-    public Cookie(String raw) {
-        name = raw.split("=")[0];
-        value = raw.split("=")[1];
+    public static Cookie parse(String header, String host, String requestPath, long now) {
+        String[] parts = header.split(";");
+        int equals = parts[0].indexOf('=');
+        if (equals <= 0) {
+            return null;
+        }
+        String name = parts[0].substring(0, equals).trim();
+        String value = parts[0].substring(equals + 1).trim();
+        if (name.isEmpty()) {
+            return null;
+        }
+
+        host = host.toLowerCase(Locale.US);
+        String domain = null;
+        String path = null;
+        long expires = SESSION;
+        boolean maxAge = false;
+        boolean secure = false;
+        boolean httpOnly = false;
+
+        for (int i = 1; i < parts.length; ++i) {
+            String attribute = parts[i].trim();
+            int split = attribute.indexOf('=');
+            String key = (split < 0 ? attribute : attribute.substring(0, split)).trim().toLowerCase(Locale.US);
+            String argument = split < 0 ? "" : attribute.substring(split + 1).trim();
+            switch (key) {
+                case "domain":
+                    if (argument.startsWith(".")) {
+                        argument = argument.substring(1);
+                    }
+                    if (!argument.isEmpty()) {
+                        domain = argument.toLowerCase(Locale.US);
+                    }
+                    break;
+                case "path":
+                    if (argument.startsWith("/")) {
+                        path = argument;
+                    }
+                    break;
+                case "max-age":
+                    // Max-Age wins over Expires, whichever comes first
+                    try {
+                        long seconds = Long.parseLong(argument);
+                        expires = seconds <= 0 ? 0 : now + Math.min(seconds, Long.MAX_VALUE / 2000) * 1000;
+                        maxAge = true;
+                    } catch (NumberFormatException e) {
+                        logger.debug("Ignoring bad Max-Age on cookie " + name + ": " + argument);
+                    }
+                    break;
+                case "expires":
+                    if (!maxAge) {
+                        long date = parseDate(argument);
+                        if (date >= 0) {
+                            expires = date;
+                        } else {
+                            logger.debug("Ignoring bad Expires on cookie " + name + ": " + argument);
+                        }
+                    }
+                    break;
+                case "secure":
+                    secure = true;
+                    break;
+                case "httponly":
+                    httpOnly = true;
+                    break;
+                default:
+                    // Anything else isn't ours to worry about
+            }
+        }
+
+        // A host can only set cookies for itself and the domains above it
+        boolean hostOnly = domain == null;
+        if (hostOnly) {
+            domain = host;
+        } else if (!domainMatches(host, domain)) {
+            logger.debug("Rejecting cookie " + name + " for " + domain + " from " + host);
+            return null;
+        }
+
+        // No path means the directory of the request
+        if (path == null) {
+            int slash = requestPath.lastIndexOf('/');
+            path = slash <= 0 ? "/" : requestPath.substring(0, slash);
+        }
+
+        return new Cookie(name, value, domain, hostOnly, path, expires, secure, httpOnly);
     }
 
     /**
@@ -67,6 +186,92 @@ public class Cookie {
         return name;
     }
 
+    /**
+     *
+     * @return The domain this cookie is sent to.
+     */
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     *
+     * @return The path this cookie is sent under.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     *
+     * @return When this cookie expires, in milliseconds, or {@link #SESSION}.
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     *
+     * @return Whether this cookie is only sent over https.
+     */
+    public boolean isSecure() {
+        return secure;
+    }
+
+    /**
+     *
+     * @return Whether the site asked scripts not to see this cookie.
+     */
+    public boolean isHttpOnly() {
+        return httpOnly;
+    }
+
+    /**
+     *
+     * @param now The current time, in milliseconds.
+     * @return Whether this cookie has expired.
+     */
+    public boolean isExpired(long now) {
+        return expires <= now;
+    }
+
+    /**
+     * Checks whether this cookie should be sent with a request.
+     *
+     * @param host The request's host.
+     * @param requestPath The request's path.
+     * @param https Whether the request is over https.
+     * @return True if it should be sent.
+     */
+    public boolean matches(String host, String requestPath, boolean https) {
+        return matchesHost(host, https) && pathMatches(requestPath);
+    }
+
+    /**
+     *
+     * @param host The request's host.
+     * @param https Whether the request is over https.
+     * @return Whether this cookie goes to the host, on some path.
+     */
+    public boolean matchesHost(String host, boolean https) {
+        if (secure && !https) {
+            return false;
+        }
+        return hostOnly ? host.equals(domain) : domainMatches(host, domain);
+    }
+
+    /**
+     *
+     * @param requestPath The request's path.
+     * @return Whether this cookie's path covers it.
+     */
+    public boolean pathMatches(String requestPath) {
+        if (!requestPath.startsWith(path)) {
+            return false;
+        }
+        return requestPath.length() == path.length() || path.endsWith("/") || requestPath.charAt(path.length()) == '/';
+    }
+
     /**
      *
      * @return Returns a header formatted for this cookie.
@@ -76,13 +281,14 @@ public class Cookie {
     }
 
     /**
-     * Checks whether this cookie has the same name as another.
+     * Checks whether this cookie would replace another: the same name,
+     * domain and path.
      *
      * @param otherCookie The cookie to compare to.
      * @return True if a match.
      */
     public boolean isTheSameAs(Cookie otherCookie) {
-        return (otherCookie.getName().equals(getName()));
+        return otherCookie.name.equals(name) && otherCookie.domain.equals(domain) && otherCookie.path.equals(path);
     }
 
     /**
@@ -95,44 +301,20 @@ public class Cookie {
         return getName() + "=" + getValue();
     }
 
-    /**
-     * Checks whether this cookie is already in a list (albeit possibly with a
-     * different value.)
-     *
-     * @param cookies The list to search in.
-     * @param cookie The cookie to compare.
-     * @return True if it's already in the list.
-     */
-    public static boolean isAlreadyIn(ArrayList<Cookie> cookies, Cookie cookie) {
-        for (Cookie c : cookies) {
-            if (c.isTheSameAs(cookie)) {
-                return true;
-            }
-        }
-        return false;
+    private static boolean domainMatches(String host, String domain) {
+        return host.equals(domain) || host.endsWith("." + domain);
     }
 
-    /**
-     * Adds a {@link Cookie} to an array, but removes any existing cookies with
-     * the same name first.
-     *
-     * @param cookies The list to add to.
-     * @param cookie The cookie to add.
-     */
-    public static void replace(ArrayList<Cookie> cookies, Cookie cookie) {
-
-        ArrayList<Cookie> flaggedCookies = new ArrayList<>();
-
-        for (Cookie c : cookies) {
-            if (c.isTheSameAs(cookie)) {
-                flaggedCookies.add(c);
+    private static long parseDate(String date) {
+        for (String format : DATE_FORMATS) {
+            SimpleDateFormat parser = new SimpleDateFormat(format, Locale.US);
+            parser.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return parser.parse(date).getTime();
+            } catch (ParseException e) {
+                // Try the next format
             }
         }
-
-        for (Cookie c : flaggedCookies) {
-            cookies.remove(c);
-        }
-
-        cookies.add(cookie);
+        return -1;
     }
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Holds the cookies for a trawl, shared by all its workers.
+ *
+ * Cookies are kept by name, domain and path, so a new value replaces the old
+ * one in one lookup. The Cookie header is built once and reused until a cookie
+ * changes or expires. If every cookie sent to a host has path "/", which is
+ * usual, the same header goes with every request; otherwise the cookies for
+ * the host are kept in order and filtered by path per request.
+ *
+ * @author njanetos
+ */
+public class CookieJar {
+
+    private final String defaultHost;
+    private final HashMap<String, Cookie> cookies;
+    private final HashMap<String, Long> order;
+    private long sequence;
+    private volatile long version;
+    private volatile Cached cached;
+
+    /**
+     *
+     * @param baseURL The site's base URL. Requests to relative URLs are taken
+     * to be to its host.
+     */
+    public CookieJar(String baseURL) {
+        this.defaultHost = host(baseURL, "");
+        this.cookies = new HashMap<>();
+        this.order = new HashMap<>();
+        this.sequence = 0;
+        this.version = 0;
+    }
+
+    /**
+     * Reads any Set-Cookie headers from a response.
+     *
+     * @param headers The response headers.
+     * @param url The URL of the request.
+     */
+    public void setCookies(List<Header> headers, String url) {
+        String host = host(url, defaultHost);
+        String path = path(url);
+        long now = System.currentTimeMillis();
+        for (Header header : headers) {
+            if (header.getName().equalsIgnoreCase("set-cookie")) {
+                Cookie cookie = Cookie.parse(header.getValue(), host, path, now);
+                if (cookie != null) {
+                    add(cookie, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a cookie, replacing any with the same name, domain and path. An
+     * expired cookie removes the old one.
+     *
+     * @param cookie The cookie.
+     * @param now The current time, in milliseconds.
+     */
+    public synchronized void add(Cookie cookie, long now) {
+        String key = key(cookie);
+        Cookie old = cookies.get(key);
+        if (cookie.isExpired(now)) {
+            if (old != null) {
+                cookies.remove(key);
+                order.remove(key);
+                ++version;
+            }
+            return;
+        }
+        if (old != null && old.getValue().equals(cookie.getValue()) && old.getExpires() == cookie.getExpires()
+                && old.isSecure() == cookie.isSecure()) {
+            return;
+        }
+        cookies.put(key, cookie);
+        // A replaced cookie keeps its place in the header
+        if (old == null) {
+            order.put(key, sequence++);
+        }
+        ++version;
+    }
+
+    /**
+     * Builds the value of the Cookie header for a request.
+     *
+     * @param url The URL of the request.
+     * @return The header value, or null if there are no cookies to send.
+     */
+    public String getHeaderValue(String url) {
+        String host = host(url, defaultHost);
+        boolean https = url.regionMatches(true, 0, "https://", 0, 8);
+        long now = System.currentTimeMillis();
+
+        Cached current = cached;
+        if (current == null || current.version != version || now >= current.expires
+                || current.https != https || !current.host.equals(host)) {
+            current = rebuild(host, https, now);
+        }
+        if (current.header != null || current.cookies.isEmpty()) {
+            return current.header;
+        }
+
+        // Some cookies are only for some paths
+        String path = path(url);
+        StringBuilder header = new StringBuilder();
+        for (Cookie cookie : current.cookies) {
+            if (cookie.pathMatches(path)) {
+                if (header.length() > 0) {
+                    header.append("; ");
+                }
+                header.append(cookie.getName()).append('=').append(cookie.getValue());
+            }
+        }
+        return header.length() == 0 ? null : header.toString();
+    }
+
+    /**
+     *
+     * @return The number of cookies held.
+     */
+    public synchronized int size() {
+        return cookies.size();
+    }
+
+    /**
+     * Throws away every cookie.
+     */
+    public synchronized void clear() {
+        cookies.clear();
+        order.clear();
+        ++version;
+    }
+
+    private synchronized Cached rebuild(String host, boolean https, long now) {
+        // Drop anything that's expired
+        Iterator<Map.Entry<String, Cookie>> it = cookies.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Cookie> entry = it.next();
+            if (entry.getValue().isExpired(now)) {
+                order.remove(entry.getKey());
+                it.remove();
+                ++version;
+            }
+        }
+
+        // Longer paths first, then oldest first
+        ArrayList<Cookie> matching = new ArrayList<>();
+        boolean allRoot = true;
+        long expires = Long.MAX_VALUE;
+        for (Cookie cookie : cookies.values()) {
+            if (cookie.matchesHost(host, https)) {
+                matching.add(cookie);
+                allRoot &= cookie.getPath().equals("/");
+                expires = Math.min(expires, cookie.getExpires());
+            }
+        }
+        Collections.sort(matching, new Comparator<Cookie>() {
+            @Override
+            public int compare(Cookie a, Cookie b) {
+                if (a.getPath().length() != b.getPath().length()) {
+                    return b.getPath().length() - a.getPath().length();
+                }
+                return Long.compare(order.get(key(a)), order.get(key(b)));
+            }
+        });
+
+        String header = null;
+        if (allRoot && !matching.isEmpty()) {
+            StringBuilder builder = new StringBuilder();
+            for (Cookie cookie : matching) {
+                if (builder.length() > 0) {
+                    builder.append("; ");
+                }
+                builder.append(cookie.getName()).append('=').append(cookie.getValue());
+            }
+            header = builder.toString();
+        }
+
+        Cached result = new Cached(version, host, https, expires, matching, header);
+        cached = result;
+        return result;
+    }
+
+    private static String key(Cookie cookie) {
+        return cookie.getName() + ';' + cookie.getDomain() + ';' + cookie.getPath();
+    }
+
+    private static String host(String url, String defaultHost) {
+        int start = url.indexOf("://");
+        if (start < 0) {
+            return defaultHost;
+        }
+        start += 3;
+        int end = start;
+        while (end < url.length() && url.charAt(end) != '/' && url.charAt(end) != ':' && url.charAt(end) != '?') {
+            ++end;
+        }
+        return url.substring(start, end).toLowerCase(Locale.US);
+    }
+
+    private static String path(String url) {
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : url.indexOf('/', start + 3);
+        if (start < 0) {
+            return "/";
+        }
+        int end = start;
+        while (end < url.length() && url.charAt(end) != '?' && url.charAt(end) != '#') {
+            ++end;
+        }
+        return end == start ? "/" : url.substring(start, end);
+    }
+
+    /**
+     * The cookies for one host, as of one version of the jar.
+     */
+    private static class Cached {
+
+        private final long version;
+        private final String host;
+        private final boolean https;
+        private final long expires;
+        private final List<Cookie> cookies;
+        private final String header;
+
+        private Cached(long version, String host, boolean https, long expires, List<Cookie> cookies, String header) {
+            this.version = version;
+            this.host = host;
+            this.https = https;
+            this.expires = expires;
+            this.cookies = cookies;
+            this.header = header;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import com.DeathByCaptcha.Captcha;
+import com.DeathByCaptcha.SocketClient;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends captchas to DeathByCaptcha, over one client shared by every login.
+ *
+ * @author njanetos
+ */
+public class DeathByCaptchaSolver implements CaptchaSolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeathByCaptchaSolver.class);
+
+    private final SocketClient client;
+    private final ExecutorService executor;
+
+    /**
+     *
+     * @param name What to name the solving threads after.
+     * @param username The DeathByCaptcha username.
+     * @param password The DeathByCaptcha password.
+     * @param threads How many captchas to solve at once.
+     */
+    public DeathByCaptchaSolver(final String name, String username, String password, int threads) {
+        this.client = new SocketClient(username, password);
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-captcha-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public Future<Answer> solve(final byte[] image) {
+        return executor.submit(new Callable<Answer>() {
+            @Override
+            public Answer call() throws Exception {
+                Captcha captcha = client.decode(image);
+                if (captcha == null || captcha.text == null) {
+                    throw new IOException("DeathByCaptcha didn't solve the captcha in time.");
+                }
+                return new Answer(captcha.text, captcha.id);
+            }
+        });
+    }
+
+    @Override
+    public void report(Answer answer, boolean correct) {
+        if (correct || answer.getId() == 0) {
+            return;
+        }
+        // Get our money back for the bad answer
+        Captcha captcha = new Captcha();
+        captcha.id = answer.getId();
+        try {
+            client.report(captcha);
+        } catch (com.DeathByCaptcha.Exception | IOException e) {
+            logger.warn("Unable to report captcha " + answer.getId() + " as incorrect: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
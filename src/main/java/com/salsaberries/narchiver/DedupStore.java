@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores each body once in a {@link ContentStore} shared by every trawl of the
+ * site, and lists the snapshot's pages in a {@link Manifest}. A body which
+ * hasn't changed since an earlier trawl costs one manifest entry.
+ *
+ * @author njanetos
+ */
+public class DedupStore implements PageStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(DedupStore.class);
+
+    private final ContentStore objects;
+    private final Manifest manifest;
+    private final ValidatorStore validators;
+
+    /**
+     *
+     * @param objects The shared object store.
+     * @param manifest The manifest file for this snapshot.
+     * @param validators Where to record each page's validators and digest for
+     * next time, or null.
+     * @throws IOException If the manifest can't be opened.
+     */
+    public DedupStore(ContentStore objects, File manifest, ValidatorStore validators) throws IOException {
+        this.objects = objects;
+        this.manifest = new Manifest(manifest);
+        this.validators = validators;
+    }
+
+    /**
+     * Stores each page's body, unless it's already stored, then adds the pages
+     * to the manifest. The new objects are synced once for the whole batch,
+     * before the manifest and validators, so those never name one that isn't
+     * on disk.
+     *
+     * A page whose digest is already known, because the server said it hadn't
+     * changed and its stored copy was read back, isn't hashed or stored
+     * again. Everything else goes through {@link ContentStore#put(Page)},
+     * which knows whether the body is already stored.
+     *
+     * @param pages
+     * @throws IOException
+     */
+    @Override
+    public void storePages(LinkedList<Page> pages) throws IOException {
+        long stored = objects.getStored();
+        long duplicates = objects.getDuplicates();
+        int count = pages.size();
+
+        while (!pages.isEmpty()) {
+            Page page = pages.removeFirst();
+            String digest = page.getDigest();
+            if (digest != null) {
+                objects.countDuplicate();
+            } else {
+                digest = objects.put(page);
+            }
+            manifest.add(page, digest);
+            if (validators != null) {
+                validators.put(page.getTagURL(), page.getETag(), page.getLastModified(), digest);
+            }
+            // Temporarily try to reduce memory
+            page.clear();
+        }
+
+        // Objects first, so nothing synced names one that isn't on disk
+        objects.sync();
+        manifest.sync();
+        if (validators != null) {
+            validators.sync();
+        }
+
+        logger.info("Stored " + count + " pages, " + (objects.getStored() - stored) + " new and " + (objects.getDuplicates() - duplicates) + " unchanged.");
+    }
+
+    @Override
+    public void close() throws IOException {
+        manifest.close();
+        if (validators != null) {
+            validators.close();
+        }
+        objects.close();
+        logger.info("Stored " + objects.getStored() + " new bodies, " + objects.getDuplicates() + " were already stored.");
+    }
+}
@@ -0,0 +1,591 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores every version of a page as a delta against the version before it,
+ * across every trawl of a site.
+ *
+ * Versions are appended to segments, {@code versions-00000.dat} and so on,
+ * and a new segment is started once one passes the segment size, as
+ * {@link ArchiveWriter} does. Each record is laid out as
+ *
+ * <pre>
+ * int   MAGIC
+ * int   length of the rest of the record
+ * long  date
+ * long  location of the previous version of this URL, or -1
+ * byte  1 if this is a keyframe, 0 if it's a delta
+ * int   length of the URL, then the URL in UTF-8
+ * int   length of the path, then the path in UTF-8
+ * int   length of the body
+ * int   CRC32 of the body
+ * int   length of the payload, then the payload deflated
+ * </pre>
+ *
+ * where a location is a segment number and an offset into it, packed as
+ * {@link ArchiveWriter#location(int, long)} packs them. The payload of a
+ * keyframe is the body, and the payload of a delta is a {@link BlockDelta}
+ * against the previous version. A keyframe is written every
+ * {@code keyframeInterval} versions, so rebuilding a version never reads more
+ * than that many records.
+ *
+ * Each segment has an index, {@code versions-00000.idx}, holding for every
+ * record its offset (long), length (int), how many deltas it is past its
+ * keyframe (int) and its URL (int length, then UTF-8). The indexes are read
+ * at startup to find the newest version of each URL, which is kept in a
+ * {@link FingerprintMap} keyed by the URL's fingerprint. A record's URL is
+ * checked before it's used, so a fingerprint collision just starts a new
+ * chain with a keyframe.
+ *
+ * @author njanetos
+ */
+public class DeltaStore implements PageStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeltaStore.class);
+
+    /**
+     * Marks the start of every record.
+     */
+    public static final int MAGIC = 0x4E414456;
+
+    /**
+     * The most deltas past a keyframe a version can be, whatever the keyframe
+     * interval.
+     */
+    public static final int MAX_DEPTH = 127;
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final int HEADER_SIZE = 8;
+    private static final int DEPTH_SHIFT = 56;
+
+    private final File directory;
+    private final int keyframeInterval;
+    private final long segmentSize;
+    private final FingerprintMap tips;
+    private final ArrayList<RandomAccessFile> readers;
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private final ByteArrayOutputStream record;
+    private final DataOutputStream recordOut;
+    private byte[] compressed;
+    private int segmentNumber;
+    private long position;
+    private long flushed;
+    private FileOutputStream dataStream;
+    private BufferedOutputStream data;
+    private FileOutputStream indexStream;
+    private DataOutputStream index;
+    private long keyframes;
+    private long deltas;
+    private long storedBytes;
+    private long bodyBytes;
+
+    /**
+     * Opens the store in a directory, creating it if needed.
+     *
+     * @param directory The directory to keep versions in.
+     * @param keyframeInterval Store a full version at least this often, and
+     * at least every {@link #MAX_DEPTH} + 1 versions.
+     * @param segmentSize Start a new segment once one gets this big, in bytes.
+     * @throws IOException
+     */
+    public DeltaStore(File directory, int keyframeInterval, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.keyframeInterval = Math.min(keyframeInterval, MAX_DEPTH + 1);
+        this.segmentSize = segmentSize;
+        this.tips = new FingerprintMap(1 << 16);
+        this.readers = new ArrayList<>();
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        this.crc = new CRC32();
+        this.record = new ByteArrayOutputStream(BUFFER_SIZE);
+        this.recordOut = new DataOutputStream(record);
+        this.compressed = new byte[BUFFER_SIZE];
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create version directory " + directory.getAbsolutePath());
+        }
+
+        // Stores from before there were segments are the first segment
+        File single = new File(directory, "versions.dat");
+        if (single.exists() && !dataFile(0).exists()) {
+            Files.move(single.toPath(), dataFile(0).toPath());
+            File singleIndex = new File(directory, "versions.idx");
+            if (singleIndex.exists()) {
+                Files.move(singleIndex.toPath(), indexFile(0).toPath());
+            }
+        }
+
+        segmentNumber = 0;
+        while (dataFile(segmentNumber + 1).exists()) {
+            ++segmentNumber;
+        }
+        for (int segment = 0; segment <= segmentNumber; ++segment) {
+            recover(segment);
+        }
+        if (tips.size() > 0) {
+            logger.info("Found earlier versions of " + tips.size() + " pages in " + (segmentNumber + 1) + " segments.");
+        }
+        open();
+    }
+
+    /**
+     * Appends a version of each page to the store, then syncs it.
+     *
+     * @param pages
+     * @throws IOException
+     */
+    @Override
+    public void storePages(LinkedList<Page> pages) throws IOException {
+
+        logger.info("Storing versions of " + pages.size() + " pages.");
+
+        while (!pages.isEmpty()) {
+            Page page = pages.removeFirst();
+            write(page);
+            // Temporarily try to reduce memory
+            page.clear();
+        }
+
+        sync();
+    }
+
+    /**
+     * Appends a version of a page, as a delta against the last version of the
+     * same URL if there is one and we're not due a keyframe.
+     *
+     * @param page The page to store.
+     * @throws IOException
+     */
+    public synchronized void write(Page page) throws IOException {
+        String tagURL = page.getTagURL();
+        // The delta needs the whole body to search, so this one is copied
+        // onto the heap
+        byte[] body = page.getUtf8Body();
+        byte[] url = tagURL.getBytes(ArchiveWriter.UTF_8);
+        byte[] path = page.getPath().getBytes(ArchiveWriter.UTF_8);
+
+        long fingerprint = FingerprintSet.fingerprint(tagURL);
+        long tip = tips.get(fingerprint, -1);
+        long previous = -1;
+        byte[] payload = body;
+        int depth = 0;
+        if (tip >= 0) {
+            try {
+                Record last = read(location(tip));
+                if (last.version.url.equals(tagURL)) {
+                    previous = last.version.location;
+                    if (depth(tip) + 1 < keyframeInterval) {
+                        byte[] delta = BlockDelta.encode(rebuild(last), body);
+                        // A delta bigger than half the page isn't worth the reads
+                        if (delta.length < body.length / 2) {
+                            payload = delta;
+                            depth = depth(tip) + 1;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Unable to rebuild the last version of " + tagURL + ", storing it in full: " + e.getMessage());
+            }
+        }
+        int compressedLength = deflate(payload);
+        crc.reset();
+        crc.update(body);
+
+        record.reset();
+        recordOut.writeInt(MAGIC);
+        recordOut.writeInt(0);
+        recordOut.writeLong(page.getDate());
+        recordOut.writeLong(previous);
+        recordOut.writeByte(depth == 0 ? 1 : 0);
+        recordOut.writeInt(url.length);
+        recordOut.write(url);
+        recordOut.writeInt(path.length);
+        recordOut.write(path);
+        recordOut.writeInt(body.length);
+        recordOut.writeInt((int) crc.getValue());
+        recordOut.writeInt(compressedLength);
+        recordOut.write(compressed, 0, compressedLength);
+        recordOut.flush();
+
+        byte[] bytes = record.toByteArray();
+        int length = bytes.length;
+        bytes[4] = (byte) ((length - HEADER_SIZE) >>> 24);
+        bytes[5] = (byte) ((length - HEADER_SIZE) >>> 16);
+        bytes[6] = (byte) ((length - HEADER_SIZE) >>> 8);
+        bytes[7] = (byte) (length - HEADER_SIZE);
+
+        // Start a new segment if this one is full
+        if (position > 0 && position + length > segmentSize) {
+            closeSegment();
+            ++segmentNumber;
+            open();
+        }
+
+        data.write(bytes, 0, length);
+
+        index.writeLong(position);
+        index.writeInt(length);
+        index.writeInt(depth);
+        index.writeInt(url.length);
+        index.write(url);
+
+        tips.put(fingerprint, tip(ArchiveWriter.location(segmentNumber, position), depth));
+        position += length;
+
+        if (depth == 0) {
+            ++keyframes;
+        } else {
+            ++deltas;
+        }
+        storedBytes += length;
+        bodyBytes += body.length;
+    }
+
+    /**
+     * Lists every stored version of a URL, oldest first.
+     *
+     * @param tagURL The page's URL.
+     * @return The versions, or an empty list if there are none.
+     * @throws IOException
+     */
+    public synchronized List<Version> getVersions(String tagURL) throws IOException {
+        ArrayList<Version> versions = new ArrayList<>();
+        long tip = tips.get(FingerprintSet.fingerprint(tagURL), -1);
+        long location = tip < 0 ? -1 : location(tip);
+        while (location >= 0) {
+            Version version = read(location).version;
+            if (!version.url.equals(tagURL)) {
+                // Another URL with the same fingerprint
+                break;
+            }
+            versions.add(version);
+            location = version.previous;
+        }
+        Collections.reverse(versions);
+        return versions;
+    }
+
+    /**
+     * Rebuilds a version of a page, from its keyframe and the deltas since.
+     *
+     * @param version A version from {@link #getVersions(String)}.
+     * @return The page's body.
+     * @throws IOException If the version is damaged.
+     */
+    public synchronized String reconstruct(Version version) throws IOException {
+        return new String(rebuild(read(version.location)), ContentDecoder.DEFAULT_CHARSET);
+    }
+
+    /**
+     * Forces everything written so far to disk. The versions go first, so the
+     * index never points past the end of them.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        data.flush();
+        flushed = position;
+        dataStream.getChannel().force(false);
+        index.flush();
+        indexStream.getChannel().force(false);
+    }
+
+    /**
+     * Syncs and closes the store.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (data != null) {
+            closeSegment();
+            for (RandomAccessFile reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+            data = null;
+            if (keyframes + deltas > 0) {
+                logger.info("Stored " + keyframes + " keyframes and " + deltas + " deltas, " + storedBytes + " bytes for " + bodyBytes + " bytes of pages.");
+            }
+        }
+        deflater.end();
+    }
+
+    /**
+     * Reads back the records from a version to its keyframe, then applies the
+     * deltas forwards.
+     */
+    private byte[] rebuild(Record last) throws IOException {
+        ArrayList<Record> chain = new ArrayList<>();
+        Record current = last;
+        chain.add(current);
+        while (!current.version.keyframe) {
+            current = read(current.version.previous);
+            chain.add(current);
+        }
+
+        byte[] body = null;
+        for (int i = chain.size() - 1; i >= 0; --i) {
+            Record next = chain.get(i);
+            byte[] payload = ContentDecoder.decode(next.payload, "deflate");
+            body = next.version.keyframe ? payload : BlockDelta.apply(body, payload, next.bodyLength);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != next.crc) {
+                throw new IOException("Checksum mismatch rebuilding " + next.version.url + " at " + next.version.location + ".");
+            }
+        }
+        return body;
+    }
+
+    private Record read(long location) throws IOException {
+        int segment = ArchiveWriter.segment(location);
+        long offset = ArchiveWriter.offset(location);
+        if (location < 0 || segment > segmentNumber || (segment == segmentNumber && offset >= position)) {
+            throw new IOException("No version at " + location + ".");
+        }
+        // The record may still be in the write buffer
+        if (segment == segmentNumber && offset >= flushed) {
+            data.flush();
+            flushed = position;
+        }
+        RandomAccessFile reader = reader(segment);
+        reader.seek(offset);
+        if (reader.readInt() != MAGIC) {
+            throw new IOException("Bad magic number at " + offset + " in segment " + segment + ".");
+        }
+        reader.readInt();
+        long date = reader.readLong();
+        long previous = reader.readLong();
+        boolean keyframe = reader.readByte() == 1;
+        String url = readString(reader);
+        String path = readString(reader);
+        Record result = new Record();
+        result.version = new Version(url, path, date, location, previous, keyframe);
+        result.bodyLength = reader.readInt();
+        result.crc = reader.readInt();
+        result.payload = new byte[reader.readInt()];
+        reader.readFully(result.payload);
+        return result;
+    }
+
+    private RandomAccessFile reader(int segment) throws IOException {
+        while (readers.size() <= segment) {
+            readers.add(null);
+        }
+        RandomAccessFile reader = readers.get(segment);
+        if (reader == null) {
+            reader = new RandomAccessFile(dataFile(segment), "r");
+            readers.set(segment, reader);
+        }
+        return reader;
+    }
+
+    private int deflate(byte[] input) {
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                byte[] grown = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, grown, 0, compressedLength);
+                compressed = grown;
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        return compressedLength;
+    }
+
+    private File dataFile(int segment) {
+        return new File(directory, String.format("versions-%05d.dat", segment));
+    }
+
+    private File indexFile(int segment) {
+        return new File(directory, String.format("versions-%05d.idx", segment));
+    }
+
+    private void open() throws IOException {
+        File file = dataFile(segmentNumber);
+        position = file.length();
+        flushed = position;
+        dataStream = new FileOutputStream(file, true);
+        data = new BufferedOutputStream(dataStream, BUFFER_SIZE);
+        indexStream = new FileOutputStream(indexFile(segmentNumber), true);
+        index = new DataOutputStream(new BufferedOutputStream(indexStream, BUFFER_SIZE));
+    }
+
+    private void closeSegment() throws IOException {
+        sync();
+        data.close();
+        index.close();
+    }
+
+    /**
+     * Loads the newest version of every URL in a segment from its index, and
+     * cuts the segment and its index back to the last record both agree on,
+     * in case we died part way through a write.
+     */
+    private void recover(int segment) throws IOException {
+        File dataFile = dataFile(segment);
+        File indexFile = indexFile(segment);
+        long dataLength = dataFile.length();
+        long validIndex = 0;
+        long validData = 0;
+
+        if (indexFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), BUFFER_SIZE))) {
+                while (true) {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    int depth = in.readInt();
+                    int urlLength = in.readInt();
+                    if (urlLength < 0 || offset != validData || offset + length > dataLength) {
+                        break;
+                    }
+                    byte[] url = new byte[urlLength];
+                    in.readFully(url);
+                    long fingerprint = FingerprintSet.fingerprint(new String(url, ArchiveWriter.UTF_8));
+                    tips.put(fingerprint, tip(ArchiveWriter.location(segment, offset), depth));
+                    validIndex += 20 + urlLength;
+                    validData = offset + length;
+                }
+            } catch (EOFException e) {
+                // Got to the end of the complete entries
+            }
+        }
+
+        if (validData != dataLength || (indexFile.exists() && validIndex != indexFile.length())) {
+            logger.warn("Version segment " + dataFile.getAbsolutePath() + " was not closed cleanly, truncating to " + validData + " bytes.");
+            try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+                raf.setLength(validData);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+                raf.setLength(validIndex);
+            }
+        }
+    }
+
+    /**
+     * Packs the location of the newest version of a URL, and how many deltas
+     * it is past its keyframe, into one long.
+     */
+    private static long tip(long location, int depth) {
+        return ((long) Math.min(depth, MAX_DEPTH) << DEPTH_SHIFT) | location;
+    }
+
+    private static long location(long tip) {
+        return tip & ((1L << DEPTH_SHIFT) - 1);
+    }
+
+    private static int depth(long tip) {
+        return (int) (tip >>> DEPTH_SHIFT);
+    }
+
+    private static String readString(RandomAccessFile in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, ArchiveWriter.UTF_8);
+    }
+
+    private static class Record {
+
+        private Version version;
+        private int bodyLength;
+        private int crc;
+        private byte[] payload;
+    }
+
+    /**
+     * One stored version of a page.
+     */
+    public static class Version {
+
+        private final String url;
+        private final String path;
+        private final long date;
+        private final long location;
+        private final long previous;
+        private final boolean keyframe;
+
+        private Version(String url, String path, long date, long location, long previous, boolean keyframe) {
+            this.url = url;
+            this.path = path;
+            this.date = date;
+            this.location = location;
+            this.previous = previous;
+            this.keyframe = keyframe;
+        }
+
+        /**
+         *
+         * @return The page's URL.
+         */
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         *
+         * @return The path to the page when it was trawled.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         *
+         * @return When this version was trawled.
+         */
+        public long getDate() {
+            return date;
+        }
+
+        /**
+         *
+         * @return Whether this version is stored in full.
+         */
+        public boolean isKeyframe() {
+            return keyframe;
+        }
+    }
+}
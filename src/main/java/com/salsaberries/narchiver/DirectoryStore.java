@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Stores each page in a file of its own, named by date and URL. See
+ * {@link Writer#storePages(LinkedList, String)}.
+ *
+ * @author njanetos
+ */
+public class DirectoryStore implements PageStore {
+
+    private final String location;
+
+    /**
+     *
+     * @param location The directory to write to.
+     */
+    public DirectoryStore(String location) {
+        this.location = location;
+    }
+
+    @Override
+    public void storePages(LinkedList<Page> pages) throws IOException {
+        Writer.storePages(pages, location);
+    }
+
+    @Override
+    public void close() {
+    }
+}
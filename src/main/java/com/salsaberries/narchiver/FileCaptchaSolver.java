@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks captchas up in a directory of answers. Each captcha is known by the
+ * SHA-1 of its image, and its answer is in {@code <sha1>.txt}.
+ *
+ * If there's no answer yet, the image is saved as {@code <sha1>.png} (or .jpg
+ * or .gif), and the solver waits for someone to write the answer. An answer
+ * which turns out wrong is renamed to {@code <sha1>.wrong}, so it isn't used
+ * again. With a directory of known captchas this replays a site's logins
+ * without any outside service.
+ *
+ * @author njanetos
+ */
+public class FileCaptchaSolver implements CaptchaSolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileCaptchaSolver.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long POLL_INTERVAL = 500;
+
+    private final File directory;
+    private final long timeout;
+    private final ExecutorService executor;
+    private final Map<Answer, File> answerFiles;
+
+    /**
+     *
+     * @param name What to name the solving thread after.
+     * @param directory Where the captchas and answers are.
+     * @param timeout How long to wait for an answer to be written, in
+     * milliseconds.
+     */
+    public FileCaptchaSolver(final String name, File directory, long timeout) {
+        this.directory = directory;
+        this.timeout = timeout;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-captcha-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.answerFiles = new WeakHashMap<>();
+    }
+
+    @Override
+    public Future<Answer> solve(final byte[] image) {
+        return executor.submit(new Callable<Answer>() {
+            @Override
+            public Answer call() throws IOException, InterruptedException {
+                String hash = DigestUtils.sha1Hex(image);
+                File answerFile = new File(directory, hash + ".txt");
+
+                if (!answerFile.exists()) {
+                    File imageFile = new File(directory, hash + extension(image));
+                    if (!imageFile.exists()) {
+                        FileUtils.writeByteArrayToFile(imageFile, image);
+                    }
+                    logger.info("Waiting for the answer to " + imageFile.getAbsolutePath() + " in " + answerFile.getName());
+
+                    long deadline = System.currentTimeMillis() + timeout;
+                    while (!answerFile.exists()) {
+                        if (System.currentTimeMillis() > deadline) {
+                            throw new IOException("Nobody answered captcha " + hash + ".");
+                        }
+                        Thread.sleep(POLL_INTERVAL);
+                    }
+                }
+
+                Answer answer = new Answer(FileUtils.readFileToString(answerFile, UTF_8).trim(), 0);
+                synchronized (answerFiles) {
+                    answerFiles.put(answer, answerFile);
+                }
+                return answer;
+            }
+        });
+    }
+
+    @Override
+    public void report(Answer answer, boolean correct) {
+        File answerFile;
+        synchronized (answerFiles) {
+            answerFile = answerFiles.remove(answer);
+        }
+        if (correct || answerFile == null) {
+            return;
+        }
+        String name = answerFile.getName();
+        File wrong = new File(directory, name.substring(0, name.length() - 4) + ".wrong");
+        if (!answerFile.renameTo(wrong)) {
+            logger.warn("Unable to mark " + answerFile.getAbsolutePath() + " as wrong.");
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Guesses the image's file extension from its first bytes.
+     */
+    private static String extension(byte[] image) {
+        if (image.length >= 3 && (image[0] & 0xFF) == 0xFF && (image[1] & 0xFF) == 0xD8 && (image[2] & 0xFF) == 0xFF) {
+            return ".jpg";
+        }
+        if (image.length >= 3 && image[0] == 'G' && image[1] == 'I' && image[2] == 'F') {
+            return ".gif";
+        }
+        return ".png";
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+/**
+ * A map from 64 bit fingerprints to longs, in an open-addressing table of
+ * primitive longs like {@link FingerprintSet}. The stores use it to find
+ * things on disk by URL or digest for 16 bytes a slot, where a HashMap from
+ * Strings would cost several dozen per entry plus the Strings themselves.
+ *
+ * Fingerprints must not be zero, which marks an empty slot. Not thread safe.
+ *
+ * @author njanetos
+ */
+public class FingerprintMap {
+
+    private static final double MAX_LOAD = 0.7;
+    private static final long EMPTY = 0;
+
+    private long[] keys;
+    private long[] values;
+    private int capacity;
+    private int size;
+
+    /**
+     *
+     * @param initialCapacity Roughly how many entries to expect.
+     */
+    public FingerprintMap(int initialCapacity) {
+        this.capacity = Integer.highestOneBit(Math.max(16, (int) (initialCapacity / MAX_LOAD)) - 1) << 1;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.size = 0;
+    }
+
+    /**
+     *
+     * @param fingerprint The key, not zero.
+     * @param missing What to return if it isn't there.
+     * @return The value, or missing.
+     */
+    public long get(long fingerprint, long missing) {
+        int mask = capacity - 1;
+        for (int i = (int) fingerprint & mask;; i = (i + 1) & mask) {
+            long key = keys[i];
+            if (key == EMPTY) {
+                return missing;
+            }
+            if (key == fingerprint) {
+                return values[i];
+            }
+        }
+    }
+
+    /**
+     *
+     * @param fingerprint The key, not zero.
+     * @return True if it's there.
+     */
+    public boolean containsKey(long fingerprint) {
+        int mask = capacity - 1;
+        for (int i = (int) fingerprint & mask;; i = (i + 1) & mask) {
+            long key = keys[i];
+            if (key == EMPTY) {
+                return false;
+            }
+            if (key == fingerprint) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Sets the value for a fingerprint, replacing any there already.
+     *
+     * @param fingerprint The key, not zero.
+     * @param value The value.
+     */
+    public void put(long fingerprint, long value) {
+        if (fingerprint == EMPTY) {
+            throw new IllegalArgumentException("Fingerprints can't be zero.");
+        }
+        int mask = capacity - 1;
+        int i = (int) fingerprint & mask;
+        for (;; i = (i + 1) & mask) {
+            long key = keys[i];
+            if (key == fingerprint) {
+                values[i] = value;
+                return;
+            }
+            if (key == EMPTY) {
+                break;
+            }
+        }
+        keys[i] = fingerprint;
+        values[i] = value;
+        if (++size > capacity * MAX_LOAD) {
+            grow();
+        }
+    }
+
+    /**
+     * Removes a fingerprint, moving back any entries which probed past it so
+     * they can still be found.
+     *
+     * @param fingerprint The key. Zero is never there.
+     * @return True if it was there.
+     */
+    public boolean remove(long fingerprint) {
+        if (fingerprint == EMPTY) {
+            return false;
+        }
+        int mask = capacity - 1;
+        int i = (int) fingerprint & mask;
+        while (keys[i] != fingerprint) {
+            if (keys[i] == EMPTY) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+
+        // Fill the hole with the next entry that would have gone here or
+        // before, until we come to an empty slot
+        int hole = i;
+        for (int j = (hole + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = (int) keys[j] & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = EMPTY;
+        values[hole] = 0;
+        --size;
+        return true;
+    }
+
+    /**
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @return A copy of every value, in no particular order.
+     */
+    public long[] values() {
+        long[] all = new long[size];
+        int n = 0;
+        for (int i = 0; i < capacity; ++i) {
+            if (keys[i] != EMPTY) {
+                all[n++] = values[i];
+            }
+        }
+        return all;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        int oldCapacity = capacity;
+
+        capacity = oldCapacity << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+
+        int mask = capacity - 1;
+        for (int j = 0; j < oldCapacity; ++j) {
+            long fingerprint = oldKeys[j];
+            if (fingerprint == EMPTY) {
+                continue;
+            }
+            int i = (int) fingerprint & mask;
+            while (keys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = fingerprint;
+            values[i] = oldValues[j];
+        }
+    }
+}
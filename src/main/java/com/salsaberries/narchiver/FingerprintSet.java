@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import com.salsaberries.narchiver.enums.CollisionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * A set of URLs stored as 64 bit fingerprints in an open-addressing table of
+ * primitive longs, rather than as Strings. Costs 8 bytes per slot (16 with
+ * {@link CollisionPolicy#VERIFY}), against several dozen for a String in a
+ * HashSet. The table can live off the heap.
+ *
+ * Not thread safe; see {@link StripedSeenSet}.
+ *
+ * @author njanetos
+ */
+public class FingerprintSet implements SeenSet {
+
+    private static final double MAX_LOAD = 0.7;
+
+    // Marks an empty slot, so real fingerprints of zero are moved elsewhere
+    private static final long EMPTY = 0;
+
+    private final CollisionPolicy policy;
+    private final boolean offHeap;
+    private LongBuffer primary;
+    private LongBuffer secondary;
+    private int capacity;
+    private int size;
+    private long collisions;
+
+    /**
+     *
+     * @param initialCapacity Roughly how many URLs to expect.
+     * @param policy What to do about fingerprint collisions.
+     * @param offHeap True to keep the table in direct memory.
+     */
+    public FingerprintSet(int initialCapacity, CollisionPolicy policy, boolean offHeap) {
+        this.policy = policy;
+        this.offHeap = offHeap;
+        this.capacity = Integer.highestOneBit(Math.max(16, (int) (initialCapacity / MAX_LOAD)) - 1) << 1;
+        this.primary = allocate(capacity);
+        this.secondary = policy == CollisionPolicy.VERIFY ? allocate(capacity) : null;
+        this.size = 0;
+        this.collisions = 0;
+    }
+
+    @Override
+    public boolean contains(String url) {
+        return contains(fingerprint(url), policy == CollisionPolicy.VERIFY ? secondaryFingerprint(url) : EMPTY);
+    }
+
+    @Override
+    public boolean add(String url) {
+        return add(fingerprint(url), policy == CollisionPolicy.VERIFY ? secondaryFingerprint(url) : EMPTY);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @return The number of times two different URLs were found to share a
+     * fingerprint. Always zero with {@link CollisionPolicy#TRUST}, which can't
+     * tell.
+     */
+    public long getCollisions() {
+        return collisions;
+    }
+
+    /**
+     *
+     * @return The collision policy.
+     */
+    public CollisionPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Looks up precomputed fingerprints.
+     *
+     * @param fingerprint From {@link #fingerprint(java.lang.String)}.
+     * @param check From {@link #secondaryFingerprint(java.lang.String)}, only
+     * used with {@link CollisionPolicy#VERIFY}.
+     * @return True if present.
+     */
+    boolean contains(long fingerprint, long check) {
+        int mask = capacity - 1;
+        for (int i = (int) fingerprint & mask;; i = (i + 1) & mask) {
+            long slot = primary.get(i);
+            if (slot == EMPTY) {
+                return false;
+            }
+            if (slot == fingerprint && (secondary == null || secondary.get(i) == check)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds precomputed fingerprints.
+     *
+     * @param fingerprint From {@link #fingerprint(java.lang.String)}.
+     * @param check From {@link #secondaryFingerprint(java.lang.String)}, only
+     * used with {@link CollisionPolicy#VERIFY}.
+     * @return True if it wasn't already present.
+     */
+    boolean add(long fingerprint, long check) {
+        int mask = capacity - 1;
+        int i = (int) fingerprint & mask;
+        for (;; i = (i + 1) & mask) {
+            long slot = primary.get(i);
+            if (slot == EMPTY) {
+                break;
+            }
+            if (slot == fingerprint) {
+                if (secondary == null || secondary.get(i) == check) {
+                    return false;
+                }
+                // Same fingerprint, different URL. Keep probing.
+                ++collisions;
+            }
+        }
+
+        primary.put(i, fingerprint);
+        if (secondary != null) {
+            secondary.put(i, check);
+        }
+        if (++size > capacity * MAX_LOAD) {
+            grow();
+        }
+        return true;
+    }
+
+    private void grow() {
+        LongBuffer oldPrimary = primary;
+        LongBuffer oldSecondary = secondary;
+        int oldCapacity = capacity;
+
+        capacity = oldCapacity << 1;
+        primary = allocate(capacity);
+        secondary = oldSecondary == null ? null : allocate(capacity);
+
+        int mask = capacity - 1;
+        for (int j = 0; j < oldCapacity; ++j) {
+            long fingerprint = oldPrimary.get(j);
+            if (fingerprint == EMPTY) {
+                continue;
+            }
+            int i = (int) fingerprint & mask;
+            while (primary.get(i) != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            primary.put(i, fingerprint);
+            if (secondary != null) {
+                secondary.put(i, oldSecondary.get(j));
+            }
+        }
+    }
+
+    private LongBuffer allocate(int slots) {
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(slots * 8).asLongBuffer();
+        }
+        return LongBuffer.wrap(new long[slots]);
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the URL, mixed so the low bits are usable as a
+     * table index.
+     *
+     * @param url The URL.
+     * @return Its fingerprint, never zero.
+     */
+    public static long fingerprint(String url) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); ++i) {
+            h ^= url.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = mix(h);
+        return h == EMPTY ? 1 : h;
+    }
+
+    /**
+     * A second fingerprint, computed independently of the first.
+     *
+     * @param url The URL.
+     * @return Its secondary fingerprint.
+     */
+    public static long secondaryFingerprint(String url) {
+        long h = 0x9e3779b97f4a7c15L ^ url.length();
+        for (int i = 0; i < url.length(); ++i) {
+            h = (h ^ url.charAt(i)) * 0xc6a4a7935bd1e995L;
+            h ^= h >>> 47;
+        }
+        return mix(h);
+    }
+
+    /**
+     * The 64 bit finalizer from MurmurHash3.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Frontier is the queue of pages waiting to be visited. Only a bounded
+ * window of pages at the front is kept in memory; the rest are appended to
+ * memory-mapped segment files on disk and read back, in order, as the window
+ * empties. Pages come out in the order they went in, except that pages pushed
+ * with {@link #push(Page)} come out next.
+ *
+ * The state of the Frontier can be saved with {@link #writeState} and brought
+ * back with {@link #restore}. Segments on disk are not copied: the state just
+ * records how far through them we are. To keep that valid, segments can be kept
+ * after they are read, until the next save.
+ *
+ * The Frontier is not thread safe. Callers synchronize on it.
+ *
+ * @author njanetos
+ */
+public class Frontier {
+
+    private static final Logger logger = LoggerFactory.getLogger(Frontier.class);
+
+    private final ArrayDeque<Page> memory;
+    private final int memoryLimit;
+    private final File directory;
+    private final int segmentSize;
+    private final ArrayDeque<Segment> segments;
+    private final ArrayDeque<Page> overflow;
+    private final ByteArrayOutputStream scratch;
+    private long spilled;
+    private int segmentCount;
+    private boolean spillFailed;
+    private boolean retainConsumed;
+    private final ArrayList<Segment> retired;
+    private final PageLineage lineage;
+
+    /**
+     *
+     * @param directory Where to put the segment files. Created if needed.
+     * @param memoryLimit How many pages to keep in memory before spilling to
+     * disk.
+     * @param segmentSize The size of each segment file, in bytes.
+     * @param lineage The lineage of the pages, for reading them back.
+     */
+    public Frontier(File directory, int memoryLimit, int segmentSize, PageLineage lineage) {
+        this.memory = new ArrayDeque<>();
+        this.memoryLimit = Math.max(1, memoryLimit);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.segments = new ArrayDeque<>();
+        this.overflow = new ArrayDeque<>();
+        this.scratch = new ByteArrayOutputStream(1024);
+        this.spilled = 0;
+        this.segmentCount = 0;
+        this.spillFailed = false;
+        this.retainConsumed = false;
+        this.retired = new ArrayList<>();
+        this.lineage = lineage;
+    }
+
+    /**
+     * Adds a page to the back of the queue.
+     *
+     * @param page The page to add.
+     */
+    public void add(Page page) {
+        if (spilled == 0 && overflow.isEmpty() && memory.size() < memoryLimit) {
+            memory.addLast(page);
+        } else {
+            spill(page);
+        }
+    }
+
+    /**
+     * Adds pages to the back of the queue, in order.
+     *
+     * @param pages The pages to add.
+     */
+    public void addAll(Collection<Page> pages) {
+        for (Page page : pages) {
+            add(page);
+        }
+    }
+
+    /**
+     * Pushes a page onto the front of the queue, so it comes out next.
+     *
+     * @param page The page to push.
+     */
+    public void push(Page page) {
+        memory.addFirst(page);
+    }
+
+    /**
+     * Removes the page at the front of the queue.
+     *
+     * @return The page at the front, or null if there are none left. This can
+     * happen even if {@link #size()} said there were, when the pages on disk
+     * couldn't be read back.
+     */
+    public Page removeFirst() {
+        if (memory.isEmpty()) {
+            refill();
+        }
+        return memory.pollFirst();
+    }
+
+    /**
+     *
+     * @return The number of pages in the queue, in memory and on disk.
+     */
+    public long size() {
+        return memory.size() + spilled + overflow.size();
+    }
+
+    /**
+     *
+     * @return True if there are no pages left.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     *
+     * @return The number of pages currently on disk.
+     */
+    public long getSpilled() {
+        return spilled;
+    }
+
+    /**
+     * Drops everything and deletes the segment files.
+     */
+    public void close() {
+        memory.clear();
+        overflow.clear();
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+        for (Segment segment : retired) {
+            segment.delete();
+        }
+        retired.clear();
+        spilled = 0;
+        // Anything left over from a run which died before it could tidy up
+        File[] leftovers = directory.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                if (!file.delete()) {
+                    logger.warn("Unable to delete " + file.getAbsolutePath());
+                }
+            }
+        }
+        if (directory.exists() && !directory.delete()) {
+            logger.warn("Unable to delete frontier directory " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Keeps segments around after they've been read, until
+     * {@link #takeRetired()} is called. Needed if the state is being saved,
+     * since the last saved state may still point into them.
+     *
+     * @param retainConsumed True to keep read segments.
+     */
+    public void setRetainConsumed(boolean retainConsumed) {
+        this.retainConsumed = retainConsumed;
+    }
+
+    /**
+     * Hands over the segments which have been read since the last call. The
+     * caller deletes them once a newer state has been saved.
+     *
+     * @return The segment files, which are no longer needed by the Frontier.
+     */
+    public List<File> takeRetired() {
+        ArrayList<File> files = new ArrayList<>();
+        for (Segment segment : retired) {
+            files.add(segment.file);
+        }
+        retired.clear();
+        return files;
+    }
+
+    /**
+     *
+     * @return The buffers of every live segment, so the caller can force them
+     * to disk.
+     */
+    public List<MappedByteBuffer> getMappedSegments() {
+        ArrayList<MappedByteBuffer> buffers = new ArrayList<>();
+        for (Segment segment : segments) {
+            buffers.add(segment.writer);
+        }
+        return buffers;
+    }
+
+    /**
+     * Writes out the pages in memory and how far through each segment we are.
+     * The segments themselves must be forced to disk separately, see
+     * {@link #getMappedSegments()}.
+     *
+     * @param out Where to write.
+     * @throws IOException
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeInt(segmentCount);
+
+        out.writeInt(memory.size());
+        for (Page page : memory) {
+            page.write(out);
+        }
+        out.writeInt(overflow.size());
+        for (Page page : overflow) {
+            page.write(out);
+        }
+
+        out.writeInt(segments.size());
+        for (Segment segment : segments) {
+            out.writeUTF(segment.file.getName());
+            out.writeInt(segment.writer.capacity());
+            out.writeInt(segment.written);
+            out.writeInt(segment.read);
+            out.writeInt(segment.writer.position());
+            out.writeInt(segment.reader.position());
+        }
+    }
+
+    /**
+     * Brings back a Frontier saved with {@link #writeState}, reopening its
+     * segment files.
+     *
+     * @param in Where to read the state from.
+     * @param directory The directory the segments are in.
+     * @param memoryLimit How many pages to keep in memory.
+     * @param segmentSize The size of new segment files, in bytes.
+     * @param lineage The lineage of the pages, already restored.
+     * @return The restored Frontier.
+     * @throws IOException If the state or a segment can't be read.
+     */
+    public static Frontier restore(DataInput in, File directory, int memoryLimit, int segmentSize, PageLineage lineage) throws IOException {
+        Frontier frontier = new Frontier(directory, memoryLimit, segmentSize, lineage);
+        frontier.segmentCount = in.readInt();
+
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            frontier.memory.addLast(Page.read(in, lineage));
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            frontier.overflow.addLast(Page.read(in, lineage));
+        }
+
+        count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            File file = new File(directory, in.readUTF());
+            int capacity = in.readInt();
+            if (!file.exists() || file.length() < capacity) {
+                throw new IOException("Frontier segment " + file.getAbsolutePath() + " is missing or truncated.");
+            }
+            Segment segment = new Segment(file, capacity);
+            segment.written = in.readInt();
+            segment.read = in.readInt();
+            segment.writer.position(in.readInt());
+            segment.reader.position(in.readInt());
+            frontier.segments.addLast(segment);
+            frontier.spilled += segment.written - segment.read;
+        }
+
+        return frontier;
+    }
+
+    private void retire(Segment segment) {
+        if (retainConsumed) {
+            retired.add(segment);
+        } else {
+            segment.delete();
+        }
+    }
+
+    /**
+     * Appends a page to the last segment on disk, starting a new segment if
+     * it's full. If the disk fails us, pages are kept in memory from then on.
+     */
+    private void spill(Page page) {
+        if (spillFailed) {
+            overflow.addLast(page);
+            return;
+        }
+
+        try {
+            scratch.reset();
+            page.write(new DataOutputStream(scratch));
+            int length = scratch.size();
+
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.writer.remaining() < 4 + length) {
+                segment = newSegment(4 + length);
+            }
+            segment.writer.putInt(length);
+            segment.writer.put(scratch.toByteArray(), 0, length);
+            ++segment.written;
+            ++spilled;
+        } catch (IOException e) {
+            logger.error("Unable to spill the frontier to " + directory.getAbsolutePath() + ", keeping everything in memory from now on: " + e.getMessage());
+            spillFailed = true;
+            overflow.addLast(page);
+        }
+    }
+
+    private Segment newSegment(int minimumSize) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory.getAbsolutePath());
+        }
+        File file = new File(directory, String.format("frontier-%06d.seg", segmentCount++));
+        Segment segment = new Segment(file, Math.max(segmentSize, minimumSize));
+        segments.addLast(segment);
+        logger.debug("Started frontier segment " + file.getName());
+        return segment;
+    }
+
+    /**
+     * Reads the next window of pages back into memory, in order. Pages which
+     * can't be read are dropped and it carries on with the next, so the window
+     * is only left empty if the disk and the overflow are.
+     */
+    private void refill() {
+        while (memory.size() < memoryLimit && spilled > 0) {
+            Segment segment = segments.peekFirst();
+            if (segment.read == segment.written) {
+                // Finished with this segment
+                if (segment == segments.peekLast()) {
+                    break;
+                }
+                retire(segments.removeFirst());
+                continue;
+            }
+
+            int length = segment.reader.remaining() < 4 ? -1 : segment.reader.getInt();
+            if (length < 0 || length > segment.reader.remaining()) {
+                // Without the length there's no finding the next page either
+                logger.error("Lost " + (segment.written - segment.read) + " pages reading the frontier back from "
+                        + segment.file.getName() + ": bad length " + length);
+                spilled -= segment.written - segment.read;
+                segment.read = segment.written;
+                continue;
+            }
+
+            try {
+                byte[] bytes = new byte[length];
+                segment.reader.get(bytes);
+                memory.addLast(Page.read(new DataInputStream(new ByteArrayInputStream(bytes)), lineage));
+            } catch (IOException e) {
+                logger.error("Lost a page reading the frontier back from " + segment.file.getName() + ": " + e.getMessage());
+            }
+            ++segment.read;
+            --spilled;
+        }
+
+        // The disk is empty, so anything that couldn't be spilled comes next
+        if (spilled == 0) {
+            Segment last = segments.peekLast();
+            if (last != null && last.read == last.written) {
+                retire(segments.removeLast());
+            }
+            while (memory.size() < memoryLimit && !overflow.isEmpty()) {
+                memory.addLast(overflow.removeFirst());
+            }
+        }
+    }
+
+    /**
+     * One memory-mapped segment file.
+     */
+    private static class Segment {
+
+        private final File file;
+        private final MappedByteBuffer writer;
+        private final ByteBuffer reader;
+        private int written;
+        private int read;
+
+        private Segment(File file, int size) throws IOException {
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                this.writer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            this.reader = writer.duplicate();
+            this.written = 0;
+            this.read = 0;
+        }
+
+        private void delete() {
+            if (!file.delete()) {
+                logger.warn("Unable to delete frontier segment " + file.getAbsolutePath());
+            }
+        }
+    }
+}
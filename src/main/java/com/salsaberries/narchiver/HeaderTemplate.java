@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The headers every request to a site starts with, built once when the
+ * trawler starts rather than for every request.
+ *
+ * A template can't be changed: it keeps only the names and values, and hands
+ * out copies of its headers. Each header is also kept as its encoded
+ * "Name: value\r\n" line, so a request can be written out without building
+ * strings. Headers that differ per request, like Cookie and Referer, are added
+ * on top in the {@link HttpMessage}; one with the same name as a template
+ * header replaces it.
+ *
+ * @author njanetos
+ */
+public class HeaderTemplate {
+
+    static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final String[] names;
+    private final String[] values;
+    private final byte[][] lines;
+
+    /**
+     *
+     * @param headers The headers, in the order they're sent.
+     */
+    public HeaderTemplate(List<Header> headers) {
+        this.names = new String[headers.size()];
+        this.values = new String[headers.size()];
+        this.lines = new byte[headers.size()][];
+        for (int i = 0; i < headers.size(); ++i) {
+            Header header = headers.get(i);
+            names[i] = header.getName();
+            values[i] = header.getValue();
+            lines[i] = (names[i] + ": " + values[i] + "\r\n").getBytes(ISO_8859_1);
+        }
+    }
+
+    /**
+     * Builds the headers that make us look like a browser fetching a page.
+     *
+     * @param config The site's configuration.
+     * @return The template.
+     */
+    public static HeaderTemplate forPages(SiteConfig config) {
+        ArrayList<Header> headers = new ArrayList<>();
+        headers.add(new Header("Host", config.getHost()));
+        headers.add(new Header("User-Agent", config.getUserAgent()));
+        headers.add(new Header("Accept", config.getAccept()));
+        headers.add(new Header("Accept-Language", config.getAcceptLanguage()));
+        headers.add(new Header("Accept-Encoding", config.getAcceptEncoding()));
+        headers.add(new Header("Connection", config.getConnection()));
+        headers.add(new Header("Content-Type", "application/x-www-form-urlencoded"));
+        return new HeaderTemplate(headers);
+    }
+
+    /**
+     * Builds the headers for fetching an image, such as a captcha.
+     *
+     * @param config The site's configuration.
+     * @return The template.
+     */
+    public static HeaderTemplate forImages(SiteConfig config) {
+        ArrayList<Header> headers = new ArrayList<>();
+        headers.add(new Header("Host", config.getHost()));
+        headers.add(new Header("User-Agent", config.getUserAgent()));
+        headers.add(new Header("Accept", config.getAcceptImage()));
+        headers.add(new Header("Accept-Language", config.getAcceptLanguage()));
+        headers.add(new Header("Accept-Encoding", config.getAcceptEncoding()));
+        headers.add(new Header("Connection", config.getConnection()));
+        return new HeaderTemplate(headers);
+    }
+
+    /**
+     *
+     * @return A new copy of the headers. Changing them doesn't change the
+     * template, or what it sends.
+     */
+    public List<Header> getHeaders() {
+        ArrayList<Header> headers = new ArrayList<>(names.length);
+        for (int i = 0; i < names.length; ++i) {
+            headers.add(new Header(names[i], values[i]));
+        }
+        return headers;
+    }
+
+    /**
+     *
+     * @return The number of headers.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     *
+     * @param index Which header.
+     * @return Its name.
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     *
+     * @param index Which header.
+     * @return Its value.
+     */
+    public String getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * Finds a header's value. Names are compared ignoring case.
+     *
+     * @param name The header name.
+     * @return The value, or null if there's no such header.
+     */
+    public String get(String name) {
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].equalsIgnoreCase(name)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes one header as its encoded line.
+     *
+     * @param index Which header.
+     * @param out Where to write.
+     * @throws IOException
+     */
+    public void writeLine(int index, OutputStream out) throws IOException {
+        out.write(lines[index]);
+    }
+}
@@ -19,10 +19,11 @@
 package com.salsaberries.narchiver;
 
 import com.salsaberries.narchiver.enums.HttpType;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import org.apache.commons.lang.StringUtils;
-import org.json.JSONObject;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -36,6 +37,7 @@ public class HttpMessage {
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger(HttpMessage.class);
 
     private HttpType httpType;
+    private HeaderTemplate template;
     private ArrayList<Header> headers;
     private String content;
     private String url;
@@ -67,18 +69,33 @@ public class HttpMessage {
     }
 
     /**
+     * Lists the headers, template first. If there's a template this is a new
+     * list, with copies of the template's headers, so changing it doesn't
+     * change the message.
      *
      * @return A list of the headers.
      */
     public ArrayList<Header> getHeaders() {
-        return headers;
+        if (template == null) {
+            return headers;
+        }
+        ArrayList<Header> all = new ArrayList<>(template.size() + headers.size());
+        for (int i = 0; i < template.size(); ++i) {
+            if (!isOverridden(template.getName(i))) {
+                all.add(new Header(template.getName(i), template.getValue(i)));
+            }
+        }
+        all.addAll(headers);
+        return all;
     }
 
     /**
+     * Sets the headers, without any template.
      *
      * @param headers A list of the headers.
      */
     public void setHeaders(ArrayList<Header> headers) {
+        this.template = null;
         this.headers = headers;
     }
 
@@ -127,72 +144,96 @@ public class HttpMessage {
     }
 
     /**
-     * Intitializes a set of default headers that we should have to spoof a
-     * browser.
+     * Starts the headers from a site's template. Anything added afterwards
+     * goes on top, and replaces a template header with the same name.
      *
-     * @param site The initialization file.
+     * @param template The site's headers.
      */
-    public void initializeDefaultHeaders(JSONObject site) {
-        
-        if (image) {
-            initializeDefaultImageHeaders(site);
-            return;
-        }
-        
-        if (headers == null) {
-            headers = new ArrayList<>();
-        } else {
-            headers.clear();
-        }
+    public void setHeaderTemplate(HeaderTemplate template) {
+        this.template = template;
+        this.headers = new ArrayList<>(4);
+    }
 
-        headers.add(new Header("Host", site.getString("BASE_URL").substring(7)));
-        headers.add(new Header("User-Agent", site.getString("USER-AGENT")));
-        headers.add(new Header("Accept", site.getString("ACCEPT")));
-        headers.add(new Header("Accept-Language", site.getString("ACCEPT-LANGUAGE")));
-        headers.add(new Header("Accept-Encoding", site.getString("ACCEPT-ENCODING")));
-        headers.add(new Header("Connection", site.getString("CONNECTION")));
-        headers.add(new Header("Content-Type", "application/x-www-form-urlencoded"));
+    /**
+     *
+     * @return The template the headers started from, or null.
+     */
+    public HeaderTemplate getHeaderTemplate() {
+        return template;
     }
-    
-    public void initializeDefaultImageHeaders(JSONObject site) {
-                if (headers == null) {
-            headers = new ArrayList<>();
-        } else {
-            headers.clear();
-        }
 
-        headers.add(new Header("Host", site.getString("BASE_URL").substring(7)));
-        headers.add(new Header("User-Agent", site.getString("USER-AGENT")));
+    /**
+     * Finds a header's value. Names are compared ignoring case.
+     *
+     * @param name The header name.
+     * @return The value, or null if there's no such header.
+     */
+    public String getHeader(String name) {
+        if (headers != null) {
+            for (int i = headers.size() - 1; i >= 0; --i) {
+                if (headers.get(i).getName().equalsIgnoreCase(name)) {
+                    return headers.get(i).getValue();
+                }
+            }
+        }
+        return template == null ? null : template.get(name);
+    }
 
-        if (site.isNull("ACCEPT-IMAGE")) {
-            headers.add(new Header("Accept", site.getString("ACCEPT")));
+    /**
+     * Writes every header as "Name: value\r\n" lines. Template headers are
+     * already encoded, so this doesn't build any strings.
+     *
+     * @param out Where to write.
+     * @throws IOException
+     */
+    public void writeHeaders(OutputStream out) throws IOException {
+        if (template != null) {
+            for (int i = 0; i < template.size(); ++i) {
+                if (!isOverridden(template.getName(i))) {
+                    template.writeLine(i, out);
+                }
+            }
         }
-        else {
-            headers.add(new Header("Accept", site.getString("ACCEPT-IMAGE")));
+        if (headers != null) {
+            for (int i = 0; i < headers.size(); ++i) {
+                Header h = headers.get(i);
+                writeLatin1(out, h.getName());
+                out.write(':');
+                out.write(' ');
+                writeLatin1(out, h.getValue());
+                out.write('\r');
+                out.write('\n');
+            }
         }
-
-        headers.add(new Header("Accept-Language", site.getString("ACCEPT-LANGUAGE")));
-        headers.add(new Header("Accept-Encoding", site.getString("ACCEPT-ENCODING")));
-        headers.add(new Header("Connection", site.getString("CONNECTION")));
-        //headers.add(new Header("Content-Type", "application/x-www-form-urlencoded"));
     }
 
     /**
-     * Converts a list of cookies into a list of appropriate headers of the form
-     * "Cookie: [Cookie text]".
+     * Adds a "Cookie: [Cookie text]" header with the cookies in the jar for
+     * this request's url. Set the url first.
      *
-     * @param cookies The cookies to convert.
+     * @param cookies The cookies to send.
      */
-    public void addCookieHeaders(ArrayList<Cookie> cookies) {
-        if (cookies.isEmpty()) {
-            return;
+    public void addCookieHeaders(CookieJar cookies) {
+        String add = cookies.getHeaderValue(url);
+        if (add != null) {
+            addHeader(new Header("Cookie", add));
         }
+    }
 
-        String add = cookies.get(0).toString();
-        for (int i = 1; i < cookies.size(); ++i) {
-            add = add + "; " + cookies.get(i).toString();
+    /**
+     * Asks the server to answer 304 Not Modified if the page hasn't changed
+     * since we last fetched it.
+     *
+     * @param etag The ETag from last time, or null.
+     * @param lastModified The Last-Modified date from last time, or null.
+     */
+    public void addValidatorHeaders(String etag, String lastModified) {
+        if (etag != null) {
+            addHeader(new Header("If-None-Match", etag));
+        }
+        if (lastModified != null) {
+            addHeader(new Header("If-Modified-Since", lastModified));
         }
-        headers.add(new Header("Cookie", add));
     }
 
     /**
@@ -205,7 +246,7 @@ public class HttpMessage {
         String firstString = "\n\n ========= " + getHttpType().toString() + ": " + getUrl() + " =========";
         String string = firstString;
 
-        for (Header h : headers) {
+        for (Header h : getHeaders()) {
             string = string + "\n " + h.getName() + ": " + h.getValue();
         }
 
@@ -247,13 +288,18 @@ public class HttpMessage {
     }
 
     /**
-     * Checks to see if the header is already there and replaces it if so.
+     * Checks to see if the header is already there and replaces it if so. A
+     * template header with the same name is left out when the message is
+     * sent.
      *
      * @param header
      */
     public void replaceHeader(Header header) {
-        for (int i = headers.size() - 1; i > 0; --i) {
-            if (headers.get(i).getName().equals(header.getName())) {
+        if (headers == null) {
+            headers = new ArrayList<>();
+        }
+        for (int i = headers.size() - 1; i >= 0; --i) {
+            if (headers.get(i).getName().equalsIgnoreCase(header.getName())) {
                 headers.remove(i);
             }
         }
@@ -261,4 +307,24 @@ public class HttpMessage {
         headers.add(header);
     }
 
+    private boolean isOverridden(String name) {
+        for (int i = 0; i < headers.size(); ++i) {
+            if (headers.get(i).getName().equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Headers are ISO-8859-1. Anything outside it goes out as '?', the same
+     * as String.getBytes would do.
+     */
+    private static void writeLatin1(OutputStream out, String string) throws IOException {
+        for (int i = 0; i < string.length(); ++i) {
+            char c = string.charAt(i);
+            out.write(c < 256 ? c : '?');
+        }
+    }
+
 }
@@ -19,26 +19,14 @@
 package com.salsaberries.narchiver;
 
 import com.salsaberries.narchiver.exceptions.ConnectionException;
-import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.ProtocolException;
-import java.net.Proxy;
 import java.net.URL;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
-import javax.imageio.ImageIO;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -49,14 +37,16 @@ public class HttpRequest {
 
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger(HttpRequest.class);
 
-    private String html;
+    private byte[] body;
+    private Charset charset;
     private ArrayList<Header> headers;
     private int statusCode;
-    private BufferedImage image;
+    private int received;
+    private long millis;
 
     /**
      * Opens a new HTTP connection using the information contained in an
-     * {@link HttpMessage}.
+     * {@link HttpMessage}, through a fresh {@link UrlConnectionTransport}.
      *
      * @param message The information used to open the session. If incomplete an
      * exception will occur.
@@ -68,115 +58,122 @@ public class HttpRequest {
      * from the stream.
      */
     public HttpRequest(HttpMessage message) throws ConnectionException, MalformedURLException, ProtocolException {
+        this(message, new UrlConnectionTransport());
+    }
 
-        logger.debug(message.getFormattedMessage());
-
-        try {
-            Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", 8118));
-            HttpURLConnection.setFollowRedirects(false);
-
-            URL url = new URL(message.getUrl());
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection(proxy);
-
-            // Default timeout is 120 seconds
-            connection.setConnectTimeout(120000);
-
-            // Allow the request to have content, if turned on
-            if (!message.getContent().equals("")) {
-                connection.setDoOutput(true);
-            }
+    /**
+     * Sends an {@link HttpMessage} over the given transport and reads the
+     * response.
+     *
+     * @param message The information used to open the session. If incomplete an
+     * exception will occur.
+     * @param transport The transport to send the message over.
+     * @throws com.salsaberries.narchiver.exceptions.ConnectionException Throws
+     * a connection exception with status 0 after any error reading content, or
+     * with the status if the server responds with an error code.
+     * @throws java.net.MalformedURLException Throws if the URL is malformed.
+     * (This should never happen.)
+     * @throws java.net.ProtocolException Throws if there was an error reading
+     * from the stream.
+     */
+    public HttpRequest(HttpMessage message, HttpTransport transport) throws ConnectionException, MalformedURLException, ProtocolException {
 
-            // Set what type of request this is
-            connection.setRequestMethod(message.getHttpType().toString());
+        if (logger.isDebugEnabled()) {
+            logger.debug(message.getFormattedMessage());
+        }
 
-            // Add headers
-            for (Header h : message.getHeaders()) {
-                connection.setRequestProperty(h.getName(), h.getValue());
-            }
+        // Wait for this site's turn on the proxy
+        ProxyGate proxyPermit;
+        try {
+            proxyPermit = ProxyGate.acquire(new URL(message.getUrl()).getHost());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectionException(0);
+        }
 
-            // Open and write output stream, if the message has output
-            if (!message.getContent().equals("")) {
-                try (DataOutputStream writer = new DataOutputStream(connection.getOutputStream())) {
-                    writer.writeBytes(message.getContent());
-                    writer.flush();
-                }
+        // Time the request from here, so waiting for the proxy behind other
+        // sites doesn't count
+        long sent = System.currentTimeMillis();
+        RawResponse response;
+        try {
+            response = transport.send(message);
+        } catch (MalformedURLException | ProtocolException e) {
+            throw e;
+        } catch (IOException e) {
+            logger.error("IOException " + e.getMessage() + ", " + statusCode);
+            throw new ConnectionException(statusCode);
+        } finally {
+            ProxyGate.release(proxyPermit);
+        }
+        millis = System.currentTimeMillis() - sent;
+
+        // Get the status code and the headers
+        statusCode = response.getStatusCode();
+        headers = response.getHeaders();
+        received = response.getBody().length;
+
+        // print out the status
+        if (logger.isDebugEnabled()) {
+            StringBuilder result = new StringBuilder();
+            for (Header h : headers) {
+                result.append(h.getName()).append(": ").append(h.getValue()).append('\n');
             }
+            logger.debug(result.toString());
+        }
 
-            // Get the status code
-            statusCode = connection.getResponseCode();
-
-            // print out the status
-            String result = "";
-            Map<String, List<String>> h = connection.getHeaderFields();
-            for (String header : h.keySet()) {
-                result += header + ": " + h.get(header) + "\n";
-            }
-            logger.debug(result);
+        // Error responses have no content we want
+        if (statusCode >= 400) {
+            logger.error("Error response " + statusCode + " from " + message.getUrl());
+            throw new ConnectionException(statusCode, millis);
+        }
 
-            logger.debug(connection.getContentEncoding());
+        try {
+            // Undo any gzip or deflate, keeping everything as bytes
+            body = ContentDecoder.decode(response.getBody(), response.getHeader("Content-Encoding"));
 
             // Get the response, if not an image
             if (!message.isImage()) {
-
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                    String input;
-                    StringBuilder response = new StringBuilder();
-
-                    while ((input = reader.readLine()) != null) {
-                        response.append(input);
-                    }
-
-                    // Unzip if necessary
-                    String finalResponse = response.toString();
-                    if ("gzip".equals(connection.getContentEncoding())) {
-                        finalResponse = decompress(response.toString().getBytes("UTF-8"));
-                    }
-
-                    // Get the headers
-                    Map<String, List<String>> heads = connection.getHeaderFields();
-                    headers = new ArrayList<>();
-
-                    for (String headName : heads.keySet()) {
-                        for (String headValue : heads.get(headName)) {
-                            headers.add(new Header(headName, headValue));
-                        }
-                    }
-
-                    // Get html
-                    html = finalResponse;
-                    logger.debug(finalResponse);
-                }
+                charset = ContentDecoder.detectCharset(response.getHeader("Content-Type"), body);
+                logger.debug("Read " + body.length + " bytes in " + charset.name());
             } else {
-                logger.info("Attempting to download image at " + message.getUrl());
-
-                try {
-                    InputStream is;
-                    if ("gzip".equals(connection.getContentEncoding())) {
-                        is = new GZIPInputStream(connection.getInputStream());
-                    } else {
-                        is = connection.getInputStream();
-                    }
-                    
-                    image = ImageIO.read(is);
-                    
-                } catch (IOException e) {
-                    logger.error(e.getMessage());
-                    System.exit(1);
-                }
-
+                // Leave images as the site sent them
+                logger.info("Downloaded image at " + message.getUrl());
             }
         } catch (IOException e) {
+            // Don't take the other sites down with us. The body didn't
+            // arrive intact, so this counts as no response.
             logger.error("IOException " + e.getMessage() + ", " + statusCode);
-            throw new ConnectionException(statusCode);
+            throw new ConnectionException(0);
         }
     }
 
     /**
+     * Decodes the body into a String. This makes a new String every time, so
+     * prefer {@link #getBody()} where bytes will do.
      *
      * @return The html body of the response.
      */
     public String getHtml() {
-        return html;
+        if (body == null) {
+            return null;
+        }
+        return new String(body, charset == null ? ContentDecoder.DEFAULT_CHARSET : charset);
+    }
+
+    /**
+     *
+     * @return The decoded bytes of the body.
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     *
+     * @return The charset of the body.
+     */
+    public Charset getCharset() {
+        return charset == null ? ContentDecoder.DEFAULT_CHARSET : charset;
     }
 
     /**
@@ -187,6 +184,20 @@ public class HttpRequest {
         return headers;
     }
 
+    /**
+     *
+     * @param name The name of a header, in any case.
+     * @return The value of the first header with that name, or null.
+     */
+    public String getHeader(String name) {
+        for (Header h : headers) {
+            if (h.getName() != null && h.getName().equalsIgnoreCase(name)) {
+                return h.getValue();
+            }
+        }
+        return null;
+    }
+
     /**
      *
      * @return The HTTP status code of the response.
@@ -195,6 +206,24 @@ public class HttpRequest {
         return statusCode;
     }
 
+    /**
+     *
+     * @return How many bytes of body came back, before any gzip or deflate
+     * was undone.
+     */
+    public int getReceived() {
+        return received;
+    }
+
+    /**
+     *
+     * @return How long the response took, from sending the request until
+     * the body was read, not counting any wait for the proxy.
+     */
+    public long getMillis() {
+        return millis;
+    }
+
     /**
      * Compresses a string using gzip.
      *
@@ -203,40 +232,22 @@ public class HttpRequest {
      * @throws IOException
      */
     public static byte[] compress(String string) throws IOException {
-        byte[] compressed = null;
-        try (ByteArrayOutputStream os = new ByteArrayOutputStream(string.length()); GZIPOutputStream gos = new GZIPOutputStream(os)) {
-            gos.write(string.getBytes());
+        ByteArrayOutputStream os = new ByteArrayOutputStream(string.length());
+        try (GZIPOutputStream gos = new GZIPOutputStream(os)) {
+            gos.write(string.getBytes(ContentDecoder.DEFAULT_CHARSET));
         }
-        return compressed;
+        return os.toByteArray();
     }
 
     /**
      * Decompresses a string using gzip.
      *
      * @param compressed The compressed array of bytes.
-     * @return A decompressed string.
+     * @return A decompressed string, read as UTF-8.
      * @throws IOException
      */
     public static String decompress(byte[] compressed) throws IOException {
-        final int BUFFER_SIZE = 32;
-        StringBuilder string;
-        try (ByteArrayInputStream is = new ByteArrayInputStream(compressed); GZIPInputStream gis = new GZIPInputStream(is, BUFFER_SIZE)) {
-            string = new StringBuilder();
-            byte[] data = new byte[BUFFER_SIZE];
-            int bytesRead;
-            while ((bytesRead = gis.read(data)) != -1) {
-                string.append(new String(data, 0, bytesRead));
-            }
-        }
-        return string.toString();
-    }
-
-    public BufferedImage getImage() {
-        return image;
-    }
-
-    public void setImage(BufferedImage image) {
-        this.image = image;
+        return new String(ContentDecoder.decode(compressed, "gzip"), ContentDecoder.DEFAULT_CHARSET);
     }
 
 }
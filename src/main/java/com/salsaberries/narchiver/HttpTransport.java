@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.IOException;
+
+/**
+ * An HttpTransport sends an {@link HttpMessage} through the local proxy and
+ * reads back the raw response. The body is returned exactly as it came off the
+ * wire, still content-encoded; {@link HttpRequest} takes care of decoding it.
+ *
+ * @author njanetos
+ */
+public interface HttpTransport {
+
+    /**
+     * The host of the local proxy which forwards requests to Tor.
+     */
+    public static final String PROXY_HOST = "127.0.0.1";
+
+    /**
+     * The port of the local proxy.
+     */
+    public static final int PROXY_PORT = 8118;
+
+    /**
+     * Default timeout for connecting and reading, in milliseconds.
+     */
+    public static final int TIMEOUT = 120000;
+
+    /**
+     * Sends the message and reads the entire response.
+     *
+     * @param message The message to send.
+     * @return The response.
+     * @throws IOException If anything goes wrong talking to the proxy.
+     */
+    public RawResponse send(HttpMessage message) throws IOException;
+
+    /**
+     * Releases any connections held by this transport.
+     */
+    public void close();
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps a handful of {@link Inflater}s around for reuse. An Inflater holds
+ * native memory and is expensive to create, so making a new one for every page
+ * is wasteful.
+ *
+ * @author njanetos
+ */
+public class InflaterPool {
+
+    private static final int MAX_POOLED = 32;
+
+    private static final ConcurrentLinkedQueue<Inflater> raw = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> wrapped = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger rawCount = new AtomicInteger();
+    private static final AtomicInteger wrappedCount = new AtomicInteger();
+
+    private InflaterPool() {
+    }
+
+    /**
+     * Takes an Inflater from the pool, or makes a new one.
+     *
+     * @param nowrap True for raw deflate data (as inside gzip), false for data
+     * with a zlib header.
+     * @return A freshly reset Inflater.
+     */
+    public static Inflater acquire(boolean nowrap) {
+        Inflater inflater = nowrap ? raw.poll() : wrapped.poll();
+        if (inflater == null) {
+            return new Inflater(nowrap);
+        }
+        (nowrap ? rawCount : wrappedCount).decrementAndGet();
+        return inflater;
+    }
+
+    /**
+     * Gives an Inflater back to the pool. It must not be used afterwards.
+     *
+     * @param inflater The Inflater to give back.
+     * @param nowrap The value it was acquired with.
+     */
+    public static void release(Inflater inflater, boolean nowrap) {
+        AtomicInteger count = nowrap ? rawCount : wrappedCount;
+        if (count.incrementAndGet() > MAX_POOLED) {
+            count.decrementAndGet();
+            inflater.end();
+            return;
+        }
+        inflater.reset();
+        (nowrap ? raw : wrapped).offer(inflater);
+    }
+}
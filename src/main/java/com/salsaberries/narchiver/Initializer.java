@@ -18,12 +18,14 @@
  */
 package com.salsaberries.narchiver;
 
+import com.salsaberries.narchiver.exceptions.ConfigurationException;
 import com.salsaberries.narchiver.exceptions.TerminalException;
-import com.salsaberries.narchiver.exceptions.TrawlException;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -32,9 +34,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Loads the initialization file and loops over the listed sites, determines if 
- * they need to be trawled, and if so instantiates a new Trawler to do so. Also
- * registers a shutdown hook that emails the log when the program terminates to
- * a listed user.
+ * they need to be trawled, and if so hands them to a {@link SiteScheduler},
+ * which trawls up to MAX_CONCURRENT_SITES of them at once. Also registers a
+ * shutdown hook that emails the log when the program terminates to a listed
+ * user.
  * 
  * @author njanetos
  */
@@ -69,21 +72,61 @@ public class Initializer {
             FileInputStream is = new FileInputStream(initialize);
             JSONObject initialization = new JSONObject(IOUtils.toString(is));
 
-            // Loop through all the sites
             JSONArray sites = initialization.getJSONArray("SITES");
-            for (int i = 0; i < sites.length(); ++i) {
 
-                JSONObject site = sites.getJSONObject(i);
+            // By default every site runs at once
+            int maxConcurrentSites = sites.length();
+            if (!initialization.isNull("MAX_CONCURRENT_SITES")) {
+                maxConcurrentSites = initialization.getInt("MAX_CONCURRENT_SITES");
+            }
+            if (maxConcurrentSites < 1) {
+                throw new TerminalException("MAX_CONCURRENT_SITES must be at least 1.");
+            }
 
-                logger.info("Preparing to trawl " + site.getString("LOCATION"));
+            // All sites share the one proxy
+            if (!initialization.isNull("MAX_PROXY_CONNECTIONS")) {
+                int maxProxyConnections = initialization.getInt("MAX_PROXY_CONNECTIONS");
+                if (maxProxyConnections < 1) {
+                    throw new TerminalException("MAX_PROXY_CONNECTIONS must be at least 1.");
+                }
+                ProxyGate.configure(maxProxyConnections);
+            }
 
-                // Create a new trawler
+            // Check every site before trawling any of them, so a typo in the
+            // last one doesn't turn up hours into the first
+            ArrayList<SiteConfig> configs = new ArrayList<>();
+            HashSet<String> locations = new HashSet<>();
+            int invalid = 0;
+            for (int i = 0; i < sites.length(); ++i) {
+                JSONObject site = sites.optJSONObject(i);
+                String name = site == null || site.isNull("LOCATION") ? "number " + (i + 1) : site.optString("LOCATION");
                 try {
-                    Trawler trawler = new Trawler(site);
-                } catch (TrawlException e) {
-                    logger.error("Trawler for " + site.getString("LOCATION") + " failed: " + e.getMessage());
+                    if (site == null) {
+                        throw new ConfigurationException("Expected an object.");
+                    }
+                    SiteConfig config = SiteConfig.parse(site);
+                    if (!locations.add(config.getLocation())) {
+                        throw new ConfigurationException("Another site already uses LOCATION " + config.getLocation() + ".");
+                    }
+                    configs.add(config);
+                } catch (ConfigurationException e) {
+                    logger.error("Site " + name + " is misconfigured: " + e.getMessage());
+                    ++invalid;
                 }
             }
+            if (invalid > 0) {
+                throw new TerminalException(invalid + " of " + sites.length() + " sites are misconfigured.");
+            }
+
+            logger.info("Trawling " + sites.length() + " sites, at most " + maxConcurrentSites + " at a time.");
+
+            // Loop through all the sites
+            SiteScheduler scheduler = new SiteScheduler(maxConcurrentSites);
+            for (SiteConfig config : configs) {
+                scheduler.submit(config);
+            }
+
+            scheduler.awaitCompletion();
         } catch (FileNotFoundException e) {
             logger.error(e.getMessage());
             throw new TerminalException("Unable to find initialization file " + initialize);
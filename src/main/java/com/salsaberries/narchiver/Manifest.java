@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The list of pages in one snapshot, and the digest of each page's body in the
+ * {@link ContentStore}.
+ *
+ * Each entry is the date (long), the SHA-1 of the body (20 bytes), then the
+ * URL and path, each as an int length followed by UTF-8. Entries are only ever
+ * appended. Opening an existing manifest drops any entry left half written, so
+ * a resumed trawl carries on in the same manifest.
+ *
+ * @author njanetos
+ */
+public class Manifest {
+
+    private static final Logger logger = LoggerFactory.getLogger(Manifest.class);
+
+    private final FileOutputStream stream;
+    private final DataOutputStream out;
+
+    /**
+     * Opens a manifest for appending, creating it if needed.
+     *
+     * @param file The manifest file.
+     * @throws IOException
+     */
+    public Manifest(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent.getAbsolutePath());
+        }
+
+        // Drop anything after the last complete entry
+        if (file.exists()) {
+            long valid = read(file, null);
+            if (valid != file.length()) {
+                logger.warn("Manifest " + file.getAbsolutePath() + " was not closed cleanly, truncating to " + valid + " bytes.");
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(valid);
+                }
+            }
+        }
+
+        stream = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+    }
+
+    /**
+     * Adds a page to the manifest.
+     *
+     * @param page The page.
+     * @param digest The hex SHA-1 of its body.
+     * @throws IOException
+     */
+    public synchronized void add(Page page, String digest) throws IOException {
+        byte[] url = page.getTagURL().getBytes(ArchiveWriter.UTF_8);
+        byte[] path = page.getPath().getBytes(ArchiveWriter.UTF_8);
+        out.writeLong(page.getDate());
+        try {
+            out.write(Hex.decodeHex(digest.toCharArray()));
+        } catch (DecoderException e) {
+            throw new IOException("Bad digest " + digest);
+        }
+        out.writeInt(url.length);
+        out.write(url);
+        out.writeInt(path.length);
+        out.write(path);
+    }
+
+    /**
+     * Forces everything added so far to disk.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        out.flush();
+        stream.getChannel().force(false);
+    }
+
+    /**
+     * Syncs and closes the manifest.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        sync();
+        out.close();
+    }
+
+    /**
+     * Reads a manifest.
+     *
+     * @param file The manifest file.
+     * @return Every entry, in the order they were added.
+     * @throws IOException
+     */
+    public static List<Entry> read(File file) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<>();
+        read(file, entries);
+        return entries;
+    }
+
+    /**
+     * Reads complete entries into a list, if there is one.
+     *
+     * @return The length of the complete entries, in bytes.
+     */
+    private static long read(File file, List<Entry> entries) throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            byte[] digest = new byte[20];
+            while (true) {
+                long date = in.readLong();
+                in.readFully(digest);
+                int urlLength = in.readInt();
+                if (urlLength < 0 || valid + 36 + urlLength > file.length()) {
+                    break;
+                }
+                byte[] url = new byte[urlLength];
+                in.readFully(url);
+                int pathLength = in.readInt();
+                if (pathLength < 0 || valid + 36 + urlLength + pathLength > file.length()) {
+                    break;
+                }
+                byte[] path = new byte[pathLength];
+                in.readFully(path);
+
+                valid += 36 + urlLength + pathLength;
+                if (entries != null) {
+                    entries.add(new Entry(new String(url, ArchiveWriter.UTF_8), date, new String(path, ArchiveWriter.UTF_8), Hex.encodeHexString(digest)));
+                }
+            }
+        } catch (EOFException e) {
+            // Got to the end of the complete entries
+        }
+        return valid;
+    }
+
+    /**
+     * A page in a manifest.
+     */
+    public static class Entry {
+
+        private final String tagURL;
+        private final long date;
+        private final String path;
+        private final String digest;
+
+        private Entry(String tagURL, long date, String path, String digest) {
+            this.tagURL = tagURL;
+            this.date = date;
+            this.path = path;
+            this.digest = digest;
+        }
+
+        /**
+         *
+         * @return The URL of the page.
+         */
+        public String getTagURL() {
+            return tagURL;
+        }
+
+        /**
+         *
+         * @return When the page was fetched.
+         */
+        public long getDate() {
+            return date;
+        }
+
+        /**
+         *
+         * @return The path of links followed to get to the page.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         *
+         * @return The hex SHA-1 of the body, its name in the ContentStore.
+         */
+        public String getDigest() {
+            return digest;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wraps another solver, and keeps track of how long captchas take to solve,
+ * how many couldn't be solved, and how many answers got us logged in.
+ *
+ * Each captcha being solved has a thread waiting on it, so the time is taken
+ * when the answer arrives rather than when someone asks for it. Captchas only
+ * come with logins, so there are never many.
+ *
+ * @author njanetos
+ */
+public class MeteredCaptchaSolver implements CaptchaSolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(MeteredCaptchaSolver.class);
+
+    private final CaptchaSolver solver;
+    private final ExecutorService waiters;
+    private long solved;
+    private long failed;
+    private long correct;
+    private long incorrect;
+    private long totalLatency;
+    private long maxLatency;
+
+    /**
+     *
+     * @param name What to name the waiting threads after.
+     * @param solver The solver to measure.
+     */
+    public MeteredCaptchaSolver(final String name, CaptchaSolver solver) {
+        this.solver = solver;
+        this.waiters = Executors.newCachedThreadPool(new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-captcha-wait-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public Future<Answer> solve(byte[] image) {
+        final long started = System.currentTimeMillis();
+        final Future<Answer> answer = solver.solve(image);
+        return waiters.submit(new Callable<Answer>() {
+            @Override
+            public Answer call() throws Exception {
+                try {
+                    Answer result = answer.get();
+                    solved(System.currentTimeMillis() - started);
+                    return result;
+                } catch (InterruptedException e) {
+                    // Cancelled, so pass that on
+                    answer.cancel(true);
+                    throw e;
+                } catch (ExecutionException e) {
+                    failed();
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void report(Answer answer, boolean correct) {
+        synchronized (this) {
+            if (correct) {
+                ++this.correct;
+            } else {
+                ++incorrect;
+            }
+        }
+        solver.report(answer, correct);
+    }
+
+    @Override
+    public void close() {
+        waiters.shutdownNow();
+        solver.close();
+        synchronized (this) {
+            if (solved + failed > 0) {
+                logger.info("Solved " + solved + " captchas, in " + getMeanLatency() + " ms on average and "
+                        + maxLatency + " ms at most. " + failed + " couldn't be solved, and "
+                        + incorrect + " of " + (correct + incorrect) + " answers were wrong.");
+            }
+        }
+    }
+
+    /**
+     *
+     * @return How many captchas have been solved.
+     */
+    public synchronized long getSolved() {
+        return solved;
+    }
+
+    /**
+     *
+     * @return How many captchas couldn't be solved.
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     *
+     * @return How many answers got us logged in.
+     */
+    public synchronized long getCorrect() {
+        return correct;
+    }
+
+    /**
+     *
+     * @return How many answers didn't.
+     */
+    public synchronized long getIncorrect() {
+        return incorrect;
+    }
+
+    /**
+     *
+     * @return The average time to solve a captcha, in milliseconds.
+     */
+    public synchronized long getMeanLatency() {
+        return solved == 0 ? 0 : totalLatency / solved;
+    }
+
+    /**
+     *
+     * @return The longest time to solve a captcha, in milliseconds.
+     */
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+
+    private synchronized void solved(long latency) {
+        ++solved;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+    }
+
+    private synchronized void failed() {
+        ++failed;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.json.JSONObject;
+
+/**
+ * Keeps one site's counters, gauges and histograms in memory, so they can be
+ * read while the trawl runs without any I/O on the workers' side. See
+ * {@link MetricsExporter} for how they get out.
+ *
+ * Metrics are registered by name once, when the trawler and its parts are set
+ * up, and the objects are kept and updated directly after that. Updates don't
+ * take any locks. Gauges are only read when a snapshot is taken.
+ *
+ * @author njanetos
+ */
+public class Metrics {
+
+    private final String name;
+    private final LinkedHashMap<String, Counter> counters;
+    private final LinkedHashMap<String, Gauge> gauges;
+    private final LinkedHashMap<String, Histogram> histograms;
+
+    /**
+     *
+     * @param name What the metrics are for, usually the site's LOCATION.
+     */
+    public Metrics(String name) {
+        this.name = name;
+        this.counters = new LinkedHashMap<>();
+        this.gauges = new LinkedHashMap<>();
+        this.histograms = new LinkedHashMap<>();
+    }
+
+    /**
+     *
+     * @return What the metrics are for.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets a counter, registering it if it's new.
+     *
+     * @param name The counter's name.
+     * @return The counter.
+     */
+    public synchronized Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Gets a histogram, registering it if it's new.
+     *
+     * @param name The histogram's name.
+     * @return The histogram.
+     */
+    public synchronized Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge, replacing any with the same name.
+     *
+     * @param name The gauge's name.
+     * @param gauge Reads the value.
+     */
+    public synchronized void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Reads every metric. Each histogram is summed up as its count, sum,
+     * mean, min, max and 50th, 90th and 99th percentiles, under its name with
+     * a suffix, e.g. {@code fetch.latency.p99}.
+     *
+     * @return Every metric's value by name, in the order they were
+     * registered.
+     */
+    public synchronized LinkedHashMap<String, Number> read() {
+        LinkedHashMap<String, Number> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getValue());
+        }
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            String prefix = histogram.getKey() + ".";
+            Histogram h = histogram.getValue();
+            values.put(prefix + "count", h.getCount());
+            values.put(prefix + "sum", h.getSum());
+            values.put(prefix + "mean", h.getMean());
+            values.put(prefix + "min", h.getMin());
+            values.put(prefix + "max", h.getMax());
+            values.put(prefix + "p50", h.getPercentile(0.5));
+            values.put(prefix + "p90", h.getPercentile(0.9));
+            values.put(prefix + "p99", h.getPercentile(0.99));
+        }
+        return values;
+    }
+
+    /**
+     * Reads every metric into a JSON object, along with the name and when it
+     * was taken.
+     *
+     * @return The snapshot.
+     */
+    public JSONObject snapshot() {
+        JSONObject snapshot = new JSONObject();
+        snapshot.put("name", name);
+        snapshot.put("time", System.currentTimeMillis());
+        JSONObject values = new JSONObject();
+        for (Map.Entry<String, Number> value : read().entrySet()) {
+            values.put(value.getKey(), value.getValue());
+        }
+        snapshot.put("metrics", values);
+        return snapshot;
+    }
+
+    /**
+     * Reads a value which is kept somewhere else, such as a queue's size.
+     */
+    public interface Gauge {
+
+        /**
+         *
+         * @return The value right now.
+         */
+        double getValue();
+    }
+
+    /**
+     * A count which only goes up.
+     */
+    public static class Counter {
+
+        private final AtomicLong count = new AtomicLong();
+
+        private Counter() {
+        }
+
+        /**
+         * Adds one.
+         */
+        public void increment() {
+            count.incrementAndGet();
+        }
+
+        /**
+         * Adds some amount.
+         *
+         * @param amount How much to add.
+         */
+        public void add(long amount) {
+            count.addAndGet(amount);
+        }
+
+        /**
+         *
+         * @return The count so far.
+         */
+        public long get() {
+            return count.get();
+        }
+    }
+
+    /**
+     * Counts values, such as latencies or sizes, into buckets which grow
+     * exponentially, four to each power of two. Percentiles are read off the
+     * buckets, so they're at most a quarter out, but it takes a fixed amount
+     * of memory however many values go in. Values below 0 count as 0.
+     */
+    public static class Histogram {
+
+        private static final int SUB_BUCKETS = 4;
+        private static final int BUCKETS = SUB_BUCKETS * 63;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+        private Histogram() {
+        }
+
+        /**
+         * Adds a value.
+         *
+         * @param value The value.
+         */
+        public void update(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+                // Someone else got there first, try again
+            }
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // Someone else got there first, try again
+            }
+        }
+
+        /**
+         *
+         * @return How many values have been added.
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         *
+         * @return The total of the values.
+         */
+        public long getSum() {
+            return sum.get();
+        }
+
+        /**
+         *
+         * @return The mean value, or 0 if there are none.
+         */
+        public double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        /**
+         *
+         * @return The smallest value, or 0 if there are none.
+         */
+        public long getMin() {
+            long value = min.get();
+            return value == Long.MAX_VALUE ? 0 : value;
+        }
+
+        /**
+         *
+         * @return The largest value, or 0 if there are none.
+         */
+        public long getMax() {
+            long value = max.get();
+            return value == Long.MIN_VALUE ? 0 : value;
+        }
+
+        /**
+         * Estimates a percentile, as the top of the bucket it falls in.
+         *
+         * @param quantile Which percentile, between 0 and 1.
+         * @return The estimate, or 0 if there are no values.
+         */
+        public long getPercentile(double quantile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        /**
+         * Values below four get a bucket each. After that, each power of two
+         * is split into four.
+         */
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS * (exponent - 1) + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + 1;
+            int sub = bucket % SUB_BUCKETS;
+            long top = ((long) (SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+            return top < 0 ? Long.MAX_VALUE : top;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gets a site's {@link Metrics} out of the process, by writing a snapshot to
+ * a file every so often, and by publishing every metric as a read only JMX
+ * attribute under
+ * {@code com.salsaberries.narchiver:type=Metrics,site=<LOCATION>}.
+ *
+ * The snapshot is JSON, written to a temporary file and moved over the old
+ * one, so whoever reads it never sees half a snapshot.
+ *
+ * @author njanetos
+ */
+public class MetricsExporter implements DynamicMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsExporter.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Metrics metrics;
+    private final File file;
+    private final long interval;
+    private final boolean jmx;
+    private final ScheduledExecutorService writer;
+    private ObjectName objectName;
+
+    /**
+     *
+     * @param metrics The metrics to export.
+     * @param file Where to write the snapshot.
+     * @param interval How often to write the snapshot, in milliseconds. 0
+     * means never.
+     * @param jmx Whether to publish the metrics over JMX.
+     */
+    public MetricsExporter(final Metrics metrics, File file, long interval, boolean jmx) {
+        this.metrics = metrics;
+        this.file = file;
+        this.interval = interval;
+        this.jmx = jmx;
+        this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, metrics.getName() + "-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Registers with JMX and starts writing snapshots.
+     */
+    public void start() {
+        if (jmx) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName("com.salsaberries.narchiver:type=Metrics,site=" + ObjectName.quote(metrics.getName()));
+                if (server.isRegistered(name)) {
+                    // Left over from an earlier trawl of the same site
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(this, name);
+                objectName = name;
+            } catch (JMException e) {
+                logger.warn("Unable to publish metrics over JMX: " + e.getMessage());
+            }
+        }
+
+        if (interval > 0) {
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (!directory.exists() && !directory.mkdirs()) {
+                logger.warn("Unable to create metrics directory " + directory.getAbsolutePath());
+            }
+            writer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes one last snapshot, and unregisters from JMX.
+     */
+    public void close() {
+        writer.shutdownNow();
+        if (interval > 0) {
+            write();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("Unable to unpublish metrics: " + e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Writes a snapshot to the file now.
+     */
+    public synchronized void write() {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), UTF_8)) {
+                metrics.snapshot().write(out);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to write metrics to " + file.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = metrics.read().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException("No metric called " + attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        LinkedHashMap<String, Number> values = metrics.read();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only.");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        // Metrics have no operations
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    /**
+     * Lists every metric registered so far, each as a long or a double,
+     * whichever it's read as.
+     */
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        ArrayList<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Number> value : metrics.read().entrySet()) {
+            String type = value.getValue() instanceof Long ? "java.lang.Long" : "java.lang.Double";
+            attributes.add(new MBeanAttributeInfo(value.getKey(), type, value.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Trawl metrics for " + metrics.getName(),
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -18,33 +18,64 @@
  */
 package com.salsaberries.narchiver;
 
-import java.util.ArrayList;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 
 /**
- * A Page just stores html info along with the url
+ * A Page just stores html info along with the url. The html is kept as the
+ * bytes it was downloaded as, and only decoded when asked for. While it waits
+ * to be written, the body can be moved into a {@link BodyArena}.
  *
  * @author njanetos
  */
 public class Page {
 
     private String tagURL;
-    private String html;
+    private byte[] body;
+    private BodyArena.Body arenaBody;
+    private Charset charset;
     private int trawlingInterruptsRemaining;
+    private int trawlingInterrupts;
     private int depth;
     private long date;
-    private String path;
+    private PageLineage lineage;
+    private long node;
+    private String etag;
+    private String lastModified;
+    private String digest;
 
     /**
+     * The path to the page is noted in the referring page's lineage, rather
+     * than copied onto this one, with the URL the referring page has now, so
+     * a redirect it followed is the one recorded.
      *
      * @param tagURL The end URL, for example, '/items'.
      * @param referringPage
      * @param clickedLink
+     * @throws IOException If the page can't be added to the lineage.
      */
-    public Page(String tagURL, Page referringPage, String clickedLink) {
+    public Page(String tagURL, Page referringPage, String clickedLink) throws IOException {
         this.tagURL = tagURL;
         trawlingInterruptsRemaining = 2;
         this.depth = referringPage.getDepth()+1;
-        this.path = referringPage.getPath() + ", " + referringPage.getTagURL() + ": " + clickedLink;
+        this.lineage = referringPage.getLineage();
+        this.node = lineage.add(referringPage.node, referringPage.getTagURL(), clickedLink);
+    }
+
+    /**
+     *
+     * @param tagURL The end URL, for example, '/items'.
+     * @param lineage The lineage of the trawl this page starts.
+     * @throws IOException If the page can't be added to the lineage.
+     */
+    public Page(String tagURL, PageLineage lineage) throws IOException {
+        this(tagURL);
+        this.lineage = lineage;
+        this.node = lineage.addRoot(tagURL);
     }
 
     /**
@@ -55,7 +86,7 @@ public class Page {
         trawlingInterruptsRemaining = 6;
         this.tagURL = tagURL;
         depth = 0;
-        this.path = "root";
+        node = -1;
     }
 
     /**
@@ -77,12 +108,17 @@ public class Page {
     }
 
     /**
-     * Gets the html source of the page.
+     * Gets the html source of the page. This decodes the body every time it's
+     * called.
      *
      * @return  The html source.
      */
     public String getHtml() {
-        return html;
+        byte[] bytes = getBody();
+        if (bytes == null) {
+            return null;
+        }
+        return new String(bytes, charset);
     }
 
     /**
@@ -91,7 +127,108 @@ public class Page {
      * @param html The html source.
      */
     public void setHtml(String html) {
-        this.html = html;
+        release();
+        if (html == null) {
+            this.body = null;
+        } else {
+            this.charset = ContentDecoder.DEFAULT_CHARSET;
+            this.body = html.getBytes(charset);
+        }
+    }
+
+    /**
+     * Sets the html source as raw bytes.
+     *
+     * @param body The html source.
+     * @param charset The charset the bytes are in.
+     */
+    public void setBody(byte[] body, Charset charset) {
+        release();
+        this.body = body;
+        this.charset = charset;
+    }
+
+    /**
+     *
+     * @return The html source as bytes, in {@link #getCharset()}. If the body
+     * is in an arena, this is a copy.
+     */
+    public byte[] getBody() {
+        if (arenaBody != null) {
+            return arenaBody.read();
+        }
+        return body;
+    }
+
+    /**
+     * Moves the body off the heap into an arena, until the page is cleared.
+     * It's re-encoded as UTF-8 on the way, so it's ready to be written. If
+     * the arena is full the body stays where it is.
+     *
+     * @param arena The arena to move to.
+     * @return True if the body was moved.
+     */
+    public boolean moveBodyTo(BodyArena arena) {
+        if (body == null || body.length == 0 || arenaBody != null) {
+            return false;
+        }
+        arenaBody = arena.store(body, charset);
+        if (arenaBody == null) {
+            return false;
+        }
+        body = null;
+        charset = ContentDecoder.DEFAULT_CHARSET;
+        return true;
+    }
+
+    /**
+     *
+     * @return The charset of the html source.
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     *
+     * @return The html source as UTF-8 bytes. Only copies if the page was in
+     * some other charset, or is in an arena.
+     */
+    public byte[] getUtf8Body() {
+        byte[] bytes = getBody();
+        if (bytes == null) {
+            return new byte[0];
+        }
+        if (charset.equals(ContentDecoder.DEFAULT_CHARSET)) {
+            return bytes;
+        }
+        ByteArrayOutputStream utf8 = new ByteArrayOutputStream(bytes.length + bytes.length / 2);
+        try {
+            ContentDecoder.toUtf8(bytes, charset, utf8);
+        } catch (IOException e) {
+            // Can't happen writing to memory
+            throw new IllegalStateException(e);
+        }
+        return utf8.toByteArray();
+    }
+
+    /**
+     * Writes the html source out as UTF-8. A body in an arena is written
+     * straight from its blocks.
+     *
+     * @param out Where to write.
+     * @throws IOException
+     */
+    public void writeUtf8Body(OutputStream out) throws IOException {
+        if (arenaBody != null) {
+            arenaBody.writeTo(out);
+        } else if (body != null) {
+            if (charset.equals(ContentDecoder.DEFAULT_CHARSET)) {
+                out.write(body);
+            } else {
+                ContentDecoder.toUtf8(body, charset, out);
+            }
+        }
     }
 
     /**
@@ -110,6 +247,14 @@ public class Page {
         this.trawlingInterruptsRemaining = trawlingInterruptsRemaining;
     }
 
+    /**
+     *
+     * @return The number of trawling interrupts this page has had so far.
+     */
+    public int getTrawlingInterrupts() {
+        return trawlingInterrupts;
+    }
+
     /**
      * Returns the page's depth in the recursive search
      *
@@ -133,15 +278,24 @@ public class Page {
      */
     public boolean registerTrawlInterrupt() {
         --trawlingInterruptsRemaining;
+        ++trawlingInterrupts;
         return (trawlingInterruptsRemaining > 0);
     }
 
     /**
-     * Removes all high memory stuff. Only call after writing to the file or it
-     * will be lost.
+     * Removes all high memory stuff, and gives back any arena blocks. Only
+     * call after writing to the file or it will be lost.
      */
     public void clear() {
-        html = "";
+        release();
+        body = new byte[0];
+    }
+
+    private void release() {
+        if (arenaBody != null) {
+            arenaBody.release();
+            arenaBody = null;
+        }
     }   
 
     public long getDate() {
@@ -155,18 +309,139 @@ public class Page {
     @Override
     public String toString() {
         String output = "";
-        output += html;
+        output += getHtml();
         output += "\n";
-        output += path;
+        output += getPath();
         return output;
     }
 
+    /**
+     * Builds the path to this page from its lineage. This walks back to the
+     * root every time it's called, so only call it when writing the page.
+     *
+     * @return The links followed to get here, or "root".
+     */
     public String getPath() {
-        return path;
+        if (lineage == null) {
+            return "root";
+        }
+        return lineage.getPath(node);
+    }
+
+    /**
+     *
+     * @return The lineage this page is in. A page made without one starts
+     * its own.
+     */
+    public PageLineage getLineage() {
+        if (lineage == null) {
+            lineage = new PageLineage();
+            try {
+                node = lineage.addRoot(tagURL);
+            } catch (IOException e) {
+                // Only a log on disk can fail
+                throw new IllegalStateException(e);
+            }
+        }
+        return lineage;
+    }
+
+    /**
+     *
+     * @return The ETag the server sent with the body, or null.
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     *
+     * @return The Last-Modified date the server sent with the body, or null.
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Remembers the validators the server sent, so the next trawl can ask
+     * whether the page has changed.
+     *
+     * @param etag The ETag header, or null.
+     * @param lastModified The Last-Modified header, or null.
+     */
+    public void setValidators(String etag, String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     *
+     * @return The SHA-1 of the body, if it's already known, or null.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     *
+     * @param digest The SHA-1 of the body, if it's already known.
+     */
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Writes out everything needed to visit this page later: the URL, depth,
+     * trawling interrupts had and remaining, and lineage node. The html is not written,
+     * and nor is the lineage itself.
+     *
+     * @param out Where to write.
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        writeString(out, tagURL);
+        out.writeInt(depth);
+        out.writeInt(trawlingInterruptsRemaining);
+        out.writeInt(trawlingInterrupts);
+        out.writeLong(node);
+    }
+
+    /**
+     * Reads a page written by {@link #write(java.io.DataOutput)}.
+     *
+     * @param in Where to read from.
+     * @param lineage The lineage the page's node is in.
+     * @return The page, without any html.
+     * @throws IOException
+     */
+    public static Page read(DataInput in, PageLineage lineage) throws IOException {
+        Page page = new Page(readString(in));
+        page.depth = in.readInt();
+        page.trawlingInterruptsRemaining = in.readInt();
+        page.trawlingInterrupts = in.readInt();
+        page.node = in.readLong();
+        if (page.node >= 0) {
+            if (page.node >= lineage.length()) {
+                throw new IOException("Page " + page.tagURL + " has unknown lineage node " + page.node + ".");
+            }
+            page.lineage = lineage;
+        }
+        return page;
+    }
+
+    /**
+     * Unlike writeUTF, this has no 64k limit.
+     */
+    private static void writeString(DataOutput out, String string) throws IOException {
+        byte[] bytes = string.getBytes(ContentDecoder.DEFAULT_CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
     }
 
-    public void setPath(String path) {
-        this.path = path;
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, ContentDecoder.DEFAULT_CHARSET);
     }
     
 }
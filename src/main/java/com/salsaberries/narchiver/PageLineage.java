@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How every page in a trawl was reached, kept as one shared log rather than a
+ * path string on every page.
+ *
+ * Each page is a node in the log, holding its parent's node, the URL the
+ * parent page had when its links were read, and the text of the link that
+ * was clicked to get here. A node is its offset in the log, so nothing is
+ * kept in memory for it. The readable path is only built when a page is
+ * written, by reading back up to the root.
+ *
+ * Each node is laid out as
+ *
+ * <pre>
+ * int   length of the rest of the node
+ * long  parent node, or -1 for a page the trawl starts from
+ * int   length of the parent's URL, then the URL in UTF-8
+ * int   length of the link text, then the text in UTF-8
+ * </pre>
+ *
+ * where a page the trawl starts from has its own URL and no text.
+ *
+ * Nodes are never changed once added. A lineage with a file is appended to it
+ * and can be reopened at any length it was synced at, which is how a
+ * {@link Checkpoint} saves it. If an append fails, part of the node may have
+ * reached the file, so nothing more is added after it. One without a file
+ * keeps the log in memory, which is only meant for a handful of pages.
+ *
+ * @author njanetos
+ */
+public class PageLineage {
+
+    private static final Logger logger = LoggerFactory.getLogger(PageLineage.class);
+
+    private static final long ROOT = -1;
+    private static final int BUFFER_SIZE = 65536;
+
+    private final ByteArrayOutputStream node;
+    private final DataOutputStream nodeOut;
+    private FileOutputStream stream;
+    private BufferedOutputStream out;
+    private FileChannel reader;
+    private byte[] memory;
+    private long length;
+    private long flushed;
+    private boolean failed;
+
+    /**
+     * Creates an empty lineage in memory.
+     */
+    public PageLineage() {
+        this.node = new ByteArrayOutputStream(256);
+        this.nodeOut = new DataOutputStream(node);
+        this.memory = new byte[4096];
+    }
+
+    /**
+     * Opens a lineage in a file, cutting it back to a length it was synced
+     * at, or starting it afresh at 0.
+     *
+     * @param file The log.
+     * @param length How much of the log to keep, in bytes.
+     * @throws IOException If the file is shorter than that, or can't be
+     * opened.
+     */
+    public PageLineage(File file, long length) throws IOException {
+        this.node = new ByteArrayOutputStream(256);
+        this.nodeOut = new DataOutputStream(node);
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent.getAbsolutePath());
+        }
+        if (file.length() < length) {
+            throw new IOException("Lineage log " + file.getAbsolutePath() + " is shorter than " + length + " bytes.");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+        this.stream = new FileOutputStream(file, true);
+        this.out = new BufferedOutputStream(stream, BUFFER_SIZE);
+        this.reader = new RandomAccessFile(file, "r").getChannel();
+        this.length = length;
+        this.flushed = length;
+    }
+
+    /**
+     * Adds a page the trawl starts from.
+     *
+     * @param tagURL The page's URL.
+     * @return The page's node.
+     * @throws IOException If the node can't be appended to the log.
+     */
+    public long addRoot(String tagURL) throws IOException {
+        return add(ROOT, tagURL, "");
+    }
+
+    /**
+     * Adds a page found by following a link.
+     *
+     * @param parent The node of the page the link was on.
+     * @param parentURL The URL of the page the link was on, after any
+     * redirect.
+     * @param linkText The inner html of the link.
+     * @return The page's node.
+     * @throws IOException If the node can't be appended to the log, or an
+     * earlier one couldn't.
+     */
+    public synchronized long add(long parent, String parentURL, String linkText) throws IOException {
+        if (failed) {
+            throw new IOException("An earlier node couldn't be added to the lineage log, so no more can be.");
+        }
+        node.reset();
+        nodeOut.writeInt(0);
+        nodeOut.writeLong(parent);
+        writeString(nodeOut, parentURL);
+        writeString(nodeOut, linkText == null ? "" : linkText);
+        byte[] bytes = node.toByteArray();
+        int rest = bytes.length - 4;
+        bytes[0] = (byte) (rest >>> 24);
+        bytes[1] = (byte) (rest >>> 16);
+        bytes[2] = (byte) (rest >>> 8);
+        bytes[3] = (byte) rest;
+
+        if (out == null) {
+            if (length + bytes.length > memory.length) {
+                memory = Arrays.copyOf(memory, (int) Math.max(memory.length * 2L, length + bytes.length));
+            }
+            System.arraycopy(bytes, 0, memory, (int) length, bytes.length);
+        } else {
+            try {
+                out.write(bytes);
+            } catch (IOException e) {
+                // Some of the node may be in the file, so the offsets of
+                // any nodes after it would be wrong
+                failed = true;
+                throw e;
+            }
+        }
+        long added = length;
+        length += bytes.length;
+        return added;
+    }
+
+    /**
+     * Builds the readable path to a page: "root", then for every link
+     * followed, the URL of the page it was on and its text.
+     *
+     * @param node The page's node.
+     * @return The path, or "unknown" if it can't be read back.
+     */
+    public String getPath(long node) {
+        if (node < 0) {
+            return "unknown";
+        }
+        ArrayList<String[]> chain = new ArrayList<>();
+        try {
+            for (long n = node;;) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(read(n)));
+                long parent = in.readLong();
+                if (parent == ROOT) {
+                    break;
+                }
+                chain.add(new String[]{readString(in), readString(in)});
+                n = parent;
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to read lineage node " + node + ": " + e.getMessage());
+            return "unknown";
+        }
+
+        StringBuilder path = new StringBuilder("root");
+        for (int i = chain.size() - 1; i >= 0; --i) {
+            path.append(", ").append(chain.get(i)[0]).append(": ").append(chain.get(i)[1]);
+        }
+        return path.toString();
+    }
+
+    /**
+     *
+     * @return The length of the log, in bytes. Every node is below it.
+     */
+    public synchronized long length() {
+        return length;
+    }
+
+    /**
+     * Forces every node added so far to disk.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        if (out != null) {
+            out.flush();
+            flushed = length;
+            stream.getChannel().force(false);
+        }
+    }
+
+    /**
+     * Syncs and closes the log. Does nothing if it's already closed.
+     */
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                sync();
+                out.close();
+                reader.close();
+            } catch (IOException e) {
+                logger.warn("Error closing lineage log: " + e.getMessage());
+            }
+            out = null;
+            memory = new byte[0];
+        }
+    }
+
+    /**
+     * Reads back a node, after its length.
+     */
+    private byte[] read(long n) throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            if (n + 4 > length) {
+                throw new IOException("No node at " + n + ".");
+            }
+            if (out == null) {
+                if (memory.length < length) {
+                    throw new IOException("Lineage log is closed.");
+                }
+                int rest = ByteBuffer.wrap(memory, (int) n, 4).getInt();
+                return Arrays.copyOfRange(memory, (int) n + 4, (int) n + 4 + rest);
+            }
+            // The node may still be in the write buffer
+            if (n >= flushed) {
+                out.flush();
+                flushed = length;
+            }
+            channel = reader;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(channel, header, n);
+        int rest = header.getInt(0);
+        if (rest < 8 || n + 4 + rest > length()) {
+            throw new IOException("Bad node length " + rest + " at " + n + ".");
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(rest);
+        readFully(channel, bytes, n + 4);
+        return bytes.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Lineage log ends early.");
+            }
+        }
+    }
+
+    private static void writeString(DataOutput out, String string) throws IOException {
+        byte[] bytes = string.getBytes(ContentDecoder.DEFAULT_CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, ContentDecoder.DEFAULT_CHARSET);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Somewhere the writer stage stores pages. Picked with ARCHIVE_FORMAT.
+ *
+ * @author njanetos
+ */
+public interface PageStore {
+
+    /**
+     * Stores a batch of pages, and makes sure they're on disk before
+     * returning. Empties the list and clears each page's body.
+     *
+     * @param pages The pages to store.
+     * @throws IOException If any page couldn't be stored or synced. Some of
+     * the batch may already have been stored.
+     */
+    public void storePages(LinkedList<Page> pages) throws IOException;
+
+    /**
+     * Finishes up. No more pages are stored after this.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException;
+}
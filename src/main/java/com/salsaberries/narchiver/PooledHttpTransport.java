@@ -0,0 +1,558 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import com.salsaberries.narchiver.enums.HttpType;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends requests over persistent connections to the proxy, keeping idle
+ * connections around so the next request to the same host can skip the
+ * connection handshake. Connections are only kept if the message asks for
+ * "Connection: keep-alive" and the response allows it.
+ *
+ * Each host gets at most a fixed number of connections, and idle connections
+ * are closed once they've sat unused for too long.
+ *
+ * @author njanetos
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(PooledHttpTransport.class);
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] GET = "GET ".getBytes(ISO_8859_1);
+    private static final byte[] POST = "POST ".getBytes(ISO_8859_1);
+    private static final byte[] HTTP_1_1 = " HTTP/1.1\r\n".getBytes(ISO_8859_1);
+    private static final int BUFFER_SIZE = 16384;
+
+    private final int maxConnectionsPerHost;
+    private final long idleTimeout;
+    private final HashMap<String, HostPool> pools;
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+
+    /**
+     *
+     * @param maxConnectionsPerHost The most connections open to a single host
+     * at once. Requests beyond this wait for a connection to free up.
+     * @param idleTimeout How long an idle connection is kept, in milliseconds.
+     */
+    public PooledHttpTransport(int maxConnectionsPerHost, long idleTimeout) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("Need at least one connection per host.");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.idleTimeout = idleTimeout;
+        this.pools = new HashMap<>();
+    }
+
+    @Override
+    public RawResponse send(HttpMessage message) throws IOException {
+        URL url = new URL(message.getUrl());
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        HostPool pool = getPool(url.getHost() + ":" + port);
+
+        try {
+            pool.permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + url.getHost());
+        }
+
+        try {
+            Connection connection = pool.takeIdle();
+            if (connection != null) {
+                reused.incrementAndGet();
+                try {
+                    return exchange(pool, connection, message);
+                } catch (StaleConnectionException e) {
+                    // The server closed the idle connection before we used it.
+                    // Nothing was read, so it's safe to send a GET again.
+                    logger.debug("Reused connection to " + url.getHost() + " was stale, opening a new one.");
+                    if (message.getHttpType() != HttpType.GET) {
+                        throw e;
+                    }
+                }
+            }
+
+            return exchange(pool, open(), message);
+        } finally {
+            pool.permits.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (pools) {
+            for (HostPool pool : pools.values()) {
+                pool.closeAll();
+            }
+            pools.clear();
+        }
+        logger.info("Closed connection pool: " + getStatistics());
+    }
+
+    /**
+     *
+     * @return The number of connections opened so far.
+     */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     *
+     * @return The number of requests sent over an already open connection.
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     *
+     * @return The number of idle connections closed for sitting too long.
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     *
+     * @return A summary of the connection counters, for logging.
+     */
+    public String getStatistics() {
+        return "opened " + opened.get() + ", reused " + reused.get() + ", evicted " + evicted.get() + ", closed " + closed.get();
+    }
+
+    private HostPool getPool(String host) {
+        synchronized (pools) {
+            HostPool pool = pools.get(host);
+            if (pool == null) {
+                pool = new HostPool();
+                pools.put(host, pool);
+            }
+            return pool;
+        }
+    }
+
+    private Connection open() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(TIMEOUT);
+            socket.connect(new InetSocketAddress(PROXY_HOST, PROXY_PORT), TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        opened.incrementAndGet();
+        return new Connection(socket);
+    }
+
+    /**
+     * Sends the message, reads the response, and then either returns the
+     * connection to the pool or closes it.
+     */
+    private RawResponse exchange(HostPool pool, Connection connection, HttpMessage message) throws IOException {
+        boolean keep = false;
+        try {
+            // Send the request and read the status line. If a reused
+            // connection fails at this point, the other end most likely
+            // closed it while it sat idle.
+            String statusLine;
+            try {
+                writeRequest(connection.out, message);
+                statusLine = readLine(connection.in);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (connection.uses > 0) {
+                    throw new StaleConnectionException();
+                }
+                throw e;
+            }
+            if (statusLine == null) {
+                if (connection.uses > 0) {
+                    throw new StaleConnectionException();
+                }
+                throw new EOFException("Proxy closed the connection without a response.");
+            }
+            int statusCode = parseStatusCode(statusLine);
+            // Skip any interim 1xx responses
+            ArrayList<Header> headers = readHeaders(connection.in, statusLine);
+            while (statusCode >= 100 && statusCode < 200) {
+                statusLine = readLine(connection.in);
+                if (statusLine == null) {
+                    throw new EOFException("Proxy closed the connection after an interim response.");
+                }
+                statusCode = parseStatusCode(statusLine);
+                headers = readHeaders(connection.in, statusLine);
+            }
+
+            // Read the body, and work out whether the connection survives it
+            byte[] body;
+            boolean delimited = true;
+            String transferEncoding = headerValue(headers, "Transfer-Encoding");
+            String contentLength = headerValue(headers, "Content-Length");
+            if (statusCode == 204 || statusCode == 304) {
+                body = new byte[0];
+            } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+                body = readChunked(connection.in);
+            } else if (contentLength != null) {
+                body = readExactly(connection.in, parseContentLength(contentLength));
+            } else {
+                body = UrlConnectionTransport.readFully(connection.in);
+                delimited = false;
+            }
+
+            keep = delimited && isKeepAlive(message) && allowsKeepAlive(headers, statusLine);
+            ++connection.uses;
+
+            return new RawResponse(statusCode, headers, body);
+        } finally {
+            if (keep) {
+                pool.giveBack(connection);
+            } else {
+                connection.close();
+                closed.incrementAndGet();
+            }
+        }
+    }
+
+    private static void writeRequest(OutputStream out, HttpMessage message) throws IOException {
+        String content = message.getContent();
+
+        // Proxies take the absolute URL on the request line
+        out.write(message.getHttpType() == HttpType.POST ? POST : GET);
+        String url = message.getUrl();
+        for (int i = 0; i < url.length(); ++i) {
+            out.write(url.charAt(i));
+        }
+        out.write(HTTP_1_1);
+
+        // Only messages with content are sent with a length
+        message.writeHeaders(out);
+        if (!content.isEmpty() && message.getHeader("Content-Length") == null) {
+            out.write(("Content-Length: " + content.length()).getBytes(ISO_8859_1));
+            out.write(CRLF);
+        }
+        out.write(CRLF);
+        if (!content.isEmpty()) {
+            out.write(content.getBytes(ISO_8859_1));
+        }
+        out.flush();
+    }
+
+    /**
+     * Whether the message asked for the connection to be kept open.
+     */
+    private static boolean isKeepAlive(HttpMessage message) {
+        String connection = message.getHeader("Connection");
+        if (connection != null) {
+            return connection.toLowerCase().contains("keep-alive");
+        }
+        // HTTP/1.1 connections are persistent unless told otherwise
+        return true;
+    }
+
+    /**
+     * Whether the response lets us keep the connection open.
+     */
+    private static boolean allowsKeepAlive(ArrayList<Header> headers, String statusLine) {
+        String connection = headerValue(headers, "Connection");
+        String proxyConnection = headerValue(headers, "Proxy-Connection");
+        if (connection != null && connection.toLowerCase().contains("close")) {
+            return false;
+        }
+        if (proxyConnection != null && proxyConnection.toLowerCase().contains("close")) {
+            return false;
+        }
+        if (statusLine.startsWith("HTTP/1.0")) {
+            return (connection != null && connection.toLowerCase().contains("keep-alive"))
+                    || (proxyConnection != null && proxyConnection.toLowerCase().contains("keep-alive"));
+        }
+        return true;
+    }
+
+    private static String headerValue(ArrayList<Header> headers, String name) {
+        for (Header h : headers) {
+            if (h.getName().equalsIgnoreCase(name)) {
+                return h.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static int parseStatusCode(String statusLine) throws IOException {
+        String[] parts = statusLine.split(" ");
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+    }
+
+    /**
+     * Reads a Content-Length, throwing an IOException if the proxy sent
+     * something we can't use, so it counts as a dropped connection rather
+     * than taking the worker down.
+     */
+    private static int parseContentLength(String contentLength) throws IOException {
+        int length;
+        try {
+            length = Integer.parseInt(contentLength.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed Content-Length: " + contentLength);
+        }
+        if (length < 0) {
+            throw new IOException("Negative Content-Length: " + contentLength);
+        }
+        return length;
+    }
+
+    private static ArrayList<Header> readHeaders(InputStream in, String statusLine) throws IOException {
+        ArrayList<Header> headers = new ArrayList<>();
+
+        // HttpURLConnection lists the status line as a header with no name
+        headers.add(new Header(null, statusLine));
+
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && headers.size() > 1) {
+                // Folded continuation of the previous header
+                Header last = headers.get(headers.size() - 1);
+                last.setValue(last.getValue() + " " + line.trim());
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.add(new Header(line.substring(0, colon).trim(), line.substring(colon + 1).trim()));
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Connection closed while reading headers.");
+        }
+        return headers;
+    }
+
+    /**
+     * Reads a CRLF terminated line as ISO-8859-1.
+     *
+     * @return The line without its terminator, or null at the end of the
+     * stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static byte[] readExactly(InputStream in, int length) throws IOException {
+        byte[] body = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(body, offset, length - offset);
+            if (read == -1) {
+                throw new EOFException("Connection closed after " + offset + " of " + length + " bytes.");
+            }
+            offset += read;
+        }
+        return body;
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null) {
+                throw new EOFException("Connection closed while reading a chunk.");
+            }
+            int semicolon = sizeLine.indexOf(';');
+            if (semicolon >= 0) {
+                sizeLine = sizeLine.substring(0, semicolon);
+            }
+            int size;
+            try {
+                size = Integer.parseInt(sizeLine.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed chunk size: " + sizeLine);
+            }
+            if (size < 0) {
+                throw new IOException("Negative chunk size: " + sizeLine);
+            }
+
+            if (size == 0) {
+                // Skip any trailers
+                String trailer;
+                while ((trailer = readLine(in)) != null && !trailer.isEmpty()) {
+                    logger.debug("Ignoring trailer " + trailer);
+                }
+                return body.toByteArray();
+            }
+
+            while (size > 0) {
+                int read = in.read(buffer, 0, Math.min(size, buffer.length));
+                if (read == -1) {
+                    throw new EOFException("Connection closed in the middle of a chunk.");
+                }
+                body.write(buffer, 0, read);
+                size -= read;
+            }
+
+            // CRLF after the chunk data
+            readLine(in);
+        }
+    }
+
+    /**
+     * The connections to a single host.
+     */
+    private class HostPool {
+
+        private final Semaphore permits = new Semaphore(maxConnectionsPerHost, true);
+        private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+
+        /**
+         * Takes the most recently used idle connection, closing any that have
+         * been idle too long.
+         */
+        private synchronized Connection takeIdle() {
+            evictIdle();
+            while (!idle.isEmpty()) {
+                Connection connection = idle.pollFirst();
+                if (!connection.socket.isClosed() && !connection.socket.isInputShutdown()) {
+                    return connection;
+                }
+                connection.close();
+                closed.incrementAndGet();
+            }
+            return null;
+        }
+
+        private synchronized void giveBack(Connection connection) {
+            connection.lastUsed = System.currentTimeMillis();
+            idle.addFirst(connection);
+            evictIdle();
+        }
+
+        /**
+         * Closes connections which have sat unused for longer than the idle
+         * timeout. The oldest are at the back of the queue.
+         */
+        private void evictIdle() {
+            long cutoff = System.currentTimeMillis() - idleTimeout;
+            Iterator<Connection> it = idle.descendingIterator();
+            while (it.hasNext()) {
+                Connection connection = it.next();
+                if (connection.lastUsed >= cutoff) {
+                    break;
+                }
+                it.remove();
+                connection.close();
+                evicted.incrementAndGet();
+            }
+        }
+
+        private synchronized void closeAll() {
+            for (Connection connection : idle) {
+                connection.close();
+                closed.incrementAndGet();
+            }
+            idle.clear();
+        }
+    }
+
+    /**
+     * A socket to the proxy along with its buffered streams.
+     */
+    private static class Connection {
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private long lastUsed;
+        private int uses;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            this.lastUsed = System.currentTimeMillis();
+            this.uses = 0;
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug("Error closing connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Thrown when a reused connection turns out to have been closed by the
+     * other end before we sent anything on it.
+     */
+    private static class StaleConnectionException extends IOException {
+
+        private StaleConnectionException() {
+            super("Stale connection.");
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * ProxyGate limits the number of requests that may be in flight through the
+ * local proxy at any one time. Every site shares the same gate. When it's
+ * full, sites take turns: each free slot goes to the next site in line with a
+ * request waiting, and a site's own requests go in arrival order. A site with
+ * many workers can't starve one with few.
+ *
+ * @author njanetos
+ */
+public class ProxyGate {
+
+    /**
+     * The default number of simultaneous requests through the proxy.
+     */
+    public static final int DEFAULT_PERMITS = 8;
+
+    private static ProxyGate gate = new ProxyGate(DEFAULT_PERMITS);
+
+    private final int permits;
+    private int inFlight = 0;
+    // Sites with requests waiting, in the order they get their next turn
+    private final ArrayDeque<String> turns = new ArrayDeque<>();
+    private final HashMap<String, ArrayDeque<Waiter>> waiting = new HashMap<>();
+
+    /**
+     *
+     * @param permits The number of simultaneous requests allowed.
+     */
+    ProxyGate(int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("The proxy needs at least one connection.");
+        }
+        this.permits = permits;
+    }
+
+    /**
+     * Sets the number of simultaneous requests allowed through the proxy.
+     * Should be called before any trawling begins.
+     *
+     * @param maxConnections The maximum number of requests in flight.
+     */
+    public static synchronized void configure(int maxConnections) {
+        gate = new ProxyGate(maxConnections);
+    }
+
+    /**
+     * Waits for a free slot on the proxy.
+     *
+     * @param site The site the request is for, usually its host.
+     * @return The gate the slot was taken from. Pass this back to
+     * {@link #release(ProxyGate)}.
+     * @throws InterruptedException
+     */
+    public static ProxyGate acquire(String site) throws InterruptedException {
+        ProxyGate current;
+        synchronized (ProxyGate.class) {
+            current = gate;
+        }
+        current.enter(site);
+        return current;
+    }
+
+    /**
+     * Gives a slot on the proxy back.
+     *
+     * @param gate The gate returned by {@link #acquire(String)}.
+     */
+    public static void release(ProxyGate gate) {
+        gate.leave();
+    }
+
+    /**
+     * Waits for a slot, in the site's turn.
+     *
+     * @param site The site the request is for.
+     * @throws InterruptedException
+     */
+    synchronized void enter(String site) throws InterruptedException {
+        if (inFlight < permits && turns.isEmpty()) {
+            ++inFlight;
+            return;
+        }
+
+        Waiter waiter = new Waiter();
+        ArrayDeque<Waiter> queue = waiting.get(site);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            waiting.put(site, queue);
+            turns.addLast(site);
+        }
+        queue.addLast(waiter);
+
+        try {
+            while (!waiter.admitted) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            if (waiter.admitted) {
+                // Too late, the slot's ours. Pass it on.
+                leave();
+            } else {
+                queue.remove(waiter);
+                if (queue.isEmpty()) {
+                    waiting.remove(site);
+                    turns.remove(site);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a slot back, and hands it to the next site in line.
+     */
+    synchronized void leave() {
+        --inFlight;
+        while (inFlight < permits && !turns.isEmpty()) {
+            String site = turns.removeFirst();
+            ArrayDeque<Waiter> queue = waiting.get(site);
+            queue.removeFirst().admitted = true;
+            ++inFlight;
+            if (queue.isEmpty()) {
+                waiting.remove(site);
+            } else {
+                turns.addLast(site);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     *
+     * @return The number of requests holding a slot.
+     */
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     *
+     * @return The number of requests waiting for a slot.
+     */
+    synchronized int getWaiting() {
+        int count = 0;
+        for (ArrayDeque<Waiter> queue : waiting.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    private static class Waiter {
+
+        private boolean admitted = false;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.ArrayList;
+
+/**
+ * The raw response to a request, as read by an {@link HttpTransport}.
+ *
+ * @author njanetos
+ */
+public class RawResponse {
+
+    private final int statusCode;
+    private final ArrayList<Header> headers;
+    private final byte[] body;
+
+    /**
+     *
+     * @param statusCode The HTTP status code.
+     * @param headers The response headers, in the order they were received.
+     * @param body The body, still content-encoded.
+     */
+    public RawResponse(int statusCode, ArrayList<Header> headers, byte[] body) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     *
+     * @return The HTTP status code.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     *
+     * @return The response headers.
+     */
+    public ArrayList<Header> getHeaders() {
+        return headers;
+    }
+
+    /**
+     *
+     * @return The body, still content-encoded.
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Finds the first header with the given name, ignoring case.
+     *
+     * @param name The header name.
+     * @return The header value, or null if there is no such header.
+     */
+    public String getHeader(String name) {
+        for (Header h : headers) {
+            if (h.getName().equalsIgnoreCase(name)) {
+                return h.getValue();
+            }
+        }
+        return null;
+    }
+}
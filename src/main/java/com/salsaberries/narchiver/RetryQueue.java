@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Pages waiting to be tried again after a trawling interrupt, in the order
+ * they're due.
+ *
+ * Each time a page is interrupted it waits twice as long as the last time,
+ * starting from the base delay and capped at the maximum. The wait is
+ * jittered between half and all of that, so pages which failed together
+ * don't all come back together. Meanwhile the workers carry on with the rest
+ * of the queue.
+ *
+ * The RetryQueue is not thread safe. Callers synchronize on it, or on
+ * whatever guards the rest of their queue.
+ *
+ * @author njanetos
+ */
+public class RetryQueue {
+
+    private final PriorityQueue<Entry> entries;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random;
+    private long sequence;
+
+    /**
+     *
+     * @param baseDelay The wait after a page's first interrupt, in
+     * milliseconds.
+     * @param maxDelay The longest a page waits, in milliseconds.
+     */
+    public RetryQueue(long baseDelay, long maxDelay) {
+        this.entries = new PriorityQueue<>();
+        this.baseDelay = baseDelay;
+        this.maxDelay = Math.max(baseDelay, maxDelay);
+        this.random = new Random();
+        this.sequence = 0;
+    }
+
+    /**
+     * Schedules a page to be tried again, after a wait based on how many
+     * interrupts it's had.
+     *
+     * @param page The page.
+     * @param now The time now, in milliseconds.
+     * @return How long the page will wait, in milliseconds.
+     */
+    public long add(Page page, long now) {
+        long delay = maxDelay;
+        int shift = Math.max(0, page.getTrawlingInterrupts() - 1);
+        if (shift < 63 && baseDelay <= (maxDelay >> shift)) {
+            delay = baseDelay << shift;
+        }
+        delay = delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+        entries.add(new Entry(page, now + delay, sequence++));
+        return delay;
+    }
+
+    /**
+     * Takes the page which has been due the longest.
+     *
+     * @param now The time now, in milliseconds.
+     * @return The page, or null if none are due yet.
+     */
+    public Page pollDue(long now) {
+        Entry first = entries.peek();
+        if (first == null || first.due > now) {
+            return null;
+        }
+        return entries.poll().page;
+    }
+
+    /**
+     *
+     * @return When the next page is due, in milliseconds, or Long.MAX_VALUE
+     * if there are none.
+     */
+    public long nextDue() {
+        Entry first = entries.peek();
+        return first == null ? Long.MAX_VALUE : first.due;
+    }
+
+    /**
+     * Adds every waiting page to a collection, soonest due first, without
+     * taking them out.
+     *
+     * @param pages Where to add them.
+     */
+    public void getPages(Collection<Page> pages) {
+        Entry[] sorted = entries.toArray(new Entry[entries.size()]);
+        Arrays.sort(sorted);
+        for (Entry entry : sorted) {
+            pages.add(entry.page);
+        }
+    }
+
+    /**
+     *
+     * @return The number of pages waiting.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     *
+     * @return True if no pages are waiting.
+     */
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    private static class Entry implements Comparable<Entry> {
+
+        private final Page page;
+        private final long due;
+        private final long sequence;
+
+        private Entry(Page page, long due, long sequence) {
+            this.page = page;
+            this.due = due;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (due != other.due) {
+                return due < other.due ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+/**
+ * The set of URLs the trawler has already found, so each is only queued once.
+ *
+ * @author njanetos
+ */
+public interface SeenSet {
+
+    /**
+     *
+     * @param url The URL to look for.
+     * @return True if the URL has been added before.
+     */
+    public boolean contains(String url);
+
+    /**
+     * Adds a URL.
+     *
+     * @param url The URL to add.
+     * @return True if the URL was not already in the set.
+     */
+    public boolean add(String url);
+
+    /**
+     *
+     * @return The number of URLs in the set.
+     */
+    public int size();
+}
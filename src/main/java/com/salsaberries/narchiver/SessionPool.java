@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import com.salsaberries.narchiver.exceptions.TrawlException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a logged in session going for each of a site's accounts, each with
+ * its own cookie jar, and hands them out to the workers.
+ *
+ * Logins happen on threads of their own. When a session expires, it's taken
+ * out of use and logged in again in the background. The workers carry on
+ * with the other sessions meanwhile, and only wait if none are logged in. A
+ * worker keeps the same session until it expires, and each new assignment
+ * goes to the session with the fewest workers.
+ *
+ * Once we've seen how long sessions last, the login form (and its captcha,
+ * which is the slow part) for the next login is fetched a little before each
+ * session is due to expire, so logging in again only takes the one POST.
+ *
+ * A session is retired for good if it fails to log in MAX_LOGIN_ATTEMPTS
+ * times in a row, or expires that many times without fetching a page in
+ * between. Once every session is retired, the trawl can't go on.
+ *
+ * @author njanetos
+ */
+public class SessionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionPool.class);
+
+    /**
+     * How long to wait before trying a failed login again, in milliseconds.
+     */
+    public static final long RETRY_DELAY = 60000;
+
+    /**
+     * How long before a session's expected to expire to fetch the next login
+     * form, in milliseconds.
+     */
+    public static final long PREFETCH_LEAD = 120000;
+
+    /**
+     * How old a fetched login form can get before it's thrown away, in
+     * milliseconds.
+     */
+    public static final long PREFETCH_MAX_AGE = 300000;
+
+    // How much each expiry moves the expected lifetime
+    private static final double LIFETIME_WEIGHT = 0.25;
+
+    private final ArrayList<Session> sessions;
+    private final String baseURL;
+    private final Authenticator authenticator;
+    private final int maxFailures;
+    private final ScheduledExecutorService logins;
+    private final Metrics.Counter loginsSucceeded;
+    private final Metrics.Counter loginsFailed;
+    private final Metrics.Counter expiredCount;
+    private final Metrics.Histogram loginMillis;
+    private int retired;
+    private double lifetime;
+    private int prefetched;
+
+    /**
+     *
+     * @param name What to name the login threads after.
+     * @param baseURL The site's URL, which the cookie jars are for.
+     * @param accounts The accounts to log in with.
+     * @param authenticator Does the logging in.
+     * @param maxFailures How many failures in a row retire a session.
+     * @param metrics Where to record how logging in is going.
+     */
+    public SessionPool(final String name, String baseURL, List<SiteConfig.Account> accounts, Authenticator authenticator, int maxFailures, Metrics metrics) {
+        this.sessions = new ArrayList<>();
+        for (SiteConfig.Account account : accounts) {
+            sessions.add(new Session(account, new CookieJar(baseURL)));
+        }
+        this.baseURL = baseURL;
+        this.authenticator = authenticator;
+        this.maxFailures = maxFailures;
+        this.logins = Executors.newScheduledThreadPool(sessions.size(), new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-login-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.retired = 0;
+        this.lifetime = 0;
+        this.prefetched = 0;
+
+        this.loginsSucceeded = metrics.counter("logins.succeeded");
+        this.loginsFailed = metrics.counter("logins.failed");
+        this.expiredCount = metrics.counter("sessions.expired");
+        this.loginMillis = metrics.histogram("login.millis");
+        metrics.gauge("sessions.ready", new Metrics.Gauge() {
+            @Override
+            public double getValue() {
+                return getReady();
+            }
+        });
+        metrics.gauge("sessions.lifetime", new Metrics.Gauge() {
+            @Override
+            public double getValue() {
+                return getLifetime();
+            }
+        });
+        metrics.gauge("logins.prefetched", new Metrics.Gauge() {
+            @Override
+            public double getValue() {
+                return getPrefetched();
+            }
+        });
+    }
+
+    /**
+     * Starts logging in every session.
+     */
+    public synchronized void start() {
+        for (Session session : sessions) {
+            scheduleLogin(session, 0);
+        }
+    }
+
+    /**
+     * Gets a logged in session for a worker, waiting for one if need be.
+     *
+     * @param current The worker's session so far, or null. It's kept if it's
+     * still logged in.
+     * @return A logged in session.
+     * @throws TrawlException If every session has been retired.
+     * @throws InterruptedException
+     */
+    public synchronized Session acquire(Session current) throws TrawlException, InterruptedException {
+        if (current != null) {
+            if (current.state == State.READY) {
+                return current;
+            }
+            --current.workers;
+        }
+
+        while (true) {
+            Session best = null;
+            for (Session session : sessions) {
+                if (session.state == State.READY && (best == null || session.workers < best.workers)) {
+                    best = session;
+                }
+            }
+            if (best != null) {
+                ++best.workers;
+                return best;
+            }
+            if (retired == sessions.size()) {
+                throw new TrawlException("Every account has been retired, so we can't log in.");
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Gives a worker's session back, when the worker's done.
+     *
+     * @param session The session, or null.
+     */
+    public synchronized void release(Session session) {
+        if (session != null) {
+            --session.workers;
+        }
+    }
+
+    /**
+     * Notes that a session fetched a page, so it's still good.
+     *
+     * @param session The session.
+     */
+    public synchronized void succeeded(Session session) {
+        session.expiries = 0;
+    }
+
+    /**
+     * Takes a session out of use and logs it in again in the background.
+     *
+     * @param session The session.
+     * @param generation What {@link Session#getGeneration()} was when the
+     * request went out. If the session has logged in again since, this does
+     * nothing.
+     * @return False if we already knew, because another request found out
+     * first.
+     */
+    public synchronized boolean expired(Session session, int generation) {
+        if (session.state != State.READY || session.generation != generation) {
+            return false;
+        }
+        expiredCount.increment();
+        if (++session.expiries >= maxFailures) {
+            retire(session, "it expired " + session.expiries + " times without fetching a page");
+            return true;
+        }
+
+        // Learn how long sessions last, to know when to prefetch
+        long lasted = System.currentTimeMillis() - session.loggedIn;
+        lifetime = lifetime == 0 ? lasted : (1 - LIFETIME_WEIGHT) * lifetime + LIFETIME_WEIGHT * lasted;
+        logger.info("Session for " + session.getUsername() + " has expired after " + (lasted / 1000) + " seconds. Logging in again in the background.");
+        scheduleLogin(session, 0);
+        return true;
+    }
+
+    /**
+     *
+     * @return The number of sessions logged in right now.
+     */
+    public synchronized int getReady() {
+        int ready = 0;
+        for (Session session : sessions) {
+            if (session.state == State.READY) {
+                ++ready;
+            }
+        }
+        return ready;
+    }
+
+    /**
+     *
+     * @return How long sessions are expected to last, in milliseconds, or 0
+     * if none has expired yet.
+     */
+    public synchronized long getLifetime() {
+        return (long) lifetime;
+    }
+
+    /**
+     *
+     * @return How many logins used a login form fetched ahead of time.
+     */
+    public synchronized int getPrefetched() {
+        return prefetched;
+    }
+
+    /**
+     * Stops any logins still going on.
+     */
+    public void close() {
+        logins.shutdownNow();
+        synchronized (this) {
+            for (Session session : sessions) {
+                if (session.prepared != null) {
+                    session.prepared.discard();
+                    session.prepared = null;
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    private void scheduleLogin(final Session session, long delay) {
+        session.state = State.LOGGING_IN;
+        logins.schedule(new Runnable() {
+            @Override
+            public void run() {
+                login(session);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void schedulePrefetch(final Session session, long delay) {
+        final int generation = session.generation;
+        logins.schedule(new Runnable() {
+            @Override
+            public void run() {
+                prefetch(session, generation);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void prefetch(Session session, int generation) {
+        synchronized (this) {
+            if (session.state != State.READY || session.generation != generation) {
+                return;
+            }
+        }
+
+        // Fetch into a jar of its own, so the live session's cookies are left
+        // alone
+        CookieJar cookies = new CookieJar(baseURL);
+        Authenticator.LoginForm form;
+        try {
+            form = authenticator.prepare(cookies);
+        } catch (TrawlException | RuntimeException e) {
+            logger.warn("Unable to fetch the next login form for " + session.getUsername() + ": " + e.getMessage());
+            return;
+        }
+        if (form == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (logins.isShutdown() || session.state != State.READY || session.generation != generation) {
+                // Too late, it's logging in already
+                form.discard();
+                return;
+            }
+            logger.debug("Fetched the next login form for " + session.getUsername() + ".");
+            session.prepared = form;
+            session.preparedCookies = cookies;
+        }
+    }
+
+    private void login(Session session) {
+        // Use the form fetched ahead of time, if it's still fresh
+        Authenticator.LoginForm form = null;
+        CookieJar cookies = null;
+        synchronized (this) {
+            if (session.prepared != null) {
+                if (System.currentTimeMillis() - session.prepared.getFetched() < PREFETCH_MAX_AGE) {
+                    form = session.prepared;
+                    cookies = session.preparedCookies;
+                    ++prefetched;
+                } else {
+                    session.prepared.discard();
+                }
+                session.prepared = null;
+                session.preparedCookies = null;
+            }
+        }
+
+        long started = System.currentTimeMillis();
+        boolean success;
+        try {
+            if (form != null) {
+                success = authenticator.submit(session.account, form, cookies);
+            } else {
+                // Start from a clean jar, rather than the expired session's
+                // cookies
+                cookies = new CookieJar(baseURL);
+                success = authenticator.login(session.account, cookies);
+            }
+        } catch (TrawlException e) {
+            logger.error("Unable to log in as " + session.getUsername() + ": " + e.getMessage());
+            success = false;
+        } catch (RuntimeException e) {
+            logger.error("Unable to log in as " + session.getUsername() + ": " + e.getMessage(), e);
+            success = false;
+        }
+
+        loginMillis.update(System.currentTimeMillis() - started);
+        if (success) {
+            loginsSucceeded.increment();
+        } else {
+            loginsFailed.increment();
+        }
+
+        synchronized (this) {
+            if (logins.isShutdown()) {
+                return;
+            }
+            if (success) {
+                session.cookies = cookies;
+                session.failures = 0;
+                session.loggedIn = System.currentTimeMillis();
+                ++session.generation;
+                session.state = State.READY;
+                if (lifetime > 0) {
+                    schedulePrefetch(session, Math.max(0, (long) lifetime - PREFETCH_LEAD));
+                }
+                notifyAll();
+            } else if (++session.failures >= maxFailures) {
+                retire(session, "it failed to log in " + session.failures + " times in a row");
+            } else {
+                logger.warn("Failed to log in as " + session.getUsername() + ". Trying again in " + (RETRY_DELAY / 1000) + " seconds.");
+                scheduleLogin(session, RETRY_DELAY);
+            }
+        }
+    }
+
+    private void retire(Session session, String reason) {
+        session.state = State.RETIRED;
+        ++retired;
+        logger.error("Retiring the session for " + session.getUsername() + ", since " + reason + ". " + (sessions.size() - retired) + " sessions left.");
+        notifyAll();
+    }
+
+    private enum State {
+
+        LOGGING_IN, READY, RETIRED
+    }
+
+    /**
+     * One account's session. The pool's lock guards everything but the
+     * cookies, which look after themselves, and are swapped for a new jar at
+     * each login.
+     */
+    public static class Session {
+
+        private final SiteConfig.Account account;
+        private volatile CookieJar cookies;
+        private volatile State state;
+        private volatile int generation;
+        private int workers;
+        private int failures;
+        private int expiries;
+        private long loggedIn;
+        private Authenticator.LoginForm prepared;
+        private CookieJar preparedCookies;
+
+        private Session(SiteConfig.Account account, CookieJar cookies) {
+            this.account = account;
+            this.cookies = cookies;
+            this.state = State.LOGGING_IN;
+        }
+
+        /**
+         *
+         * @return The session's cookies.
+         */
+        public CookieJar getCookies() {
+            return cookies;
+        }
+
+        /**
+         *
+         * @return How many times the session has logged in.
+         */
+        public int getGeneration() {
+            return generation;
+        }
+
+        /**
+         *
+         * @return The account's username.
+         */
+        public String getUsername() {
+            return account.getUsername();
+        }
+    }
+}
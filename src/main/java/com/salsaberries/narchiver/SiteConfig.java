@@ -0,0 +1,903 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import com.salsaberries.narchiver.enums.ArchiveFormat;
+import com.salsaberries.narchiver.enums.CaptchaSolverType;
+import com.salsaberries.narchiver.enums.CollisionPolicy;
+import com.salsaberries.narchiver.enums.LinkExtractor;
+import com.salsaberries.narchiver.enums.TransportType;
+import com.salsaberries.narchiver.exceptions.ConfigurationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One site's entry in the initialization file, read and checked once before
+ * any trawling starts.
+ *
+ * Every key is read here, with its default if it's optional, and regexes are
+ * compiled here. A missing key, a value of the wrong type, or a value out of
+ * range throws a {@link ConfigurationException} straight away rather than
+ * part way through a trawl. The trawler then only reads fields.
+ *
+ * @author njanetos
+ */
+public class SiteConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(SiteConfig.class);
+
+    private static final HashSet<String> KEYS = new HashSet<>(Arrays.asList(
+            "LOCATION", "BASE_URL", "DEPTH", "BEGIN", "EXCLUDE", "EXCLUDE_IF_EQUAL", "STOP_AT", "PASS_FILTER",
+            "CAPTCHA", "CAPTCHA_IMAGE", "CAPTCHA_FIELD", "CAPTCHA_SOLVER", "CAPTCHA_USERNAME",
+            "CAPTCHA_PASSWORD", "CAPTCHA_DIRECTORY", "CAPTCHA_ANSWER", "CAPTCHA_TIMEOUT", "USER-AGENT", "ACCEPT", "ACCEPT-IMAGE", "ACCEPT-LANGUAGE",
+            "ACCEPT-ENCODING", "CONNECTION", "LOGIN_TEST", "LOGIN_URL", "LOGIN_SUBMIT", "USERNAME", "PASSWORD", "ACCOUNTS",
+            "USERNAME_FIELD", "PASSWORD_FIELD", "MAX_LOGIN_ATTEMPTS", "WRITE_BUFFER", "LOWER_WAIT_TIME",
+            "UPPER_WAIT_TIME", "LATENCY_TARGET", "RETRY_DELAY", "RETRY_MAX_DELAY", "WORKERS", "LINK_EXTRACTOR", "SEEN_SET_COLLISIONS", "SEEN_SET_OFF_HEAP",
+            "CHECKPOINT_INTERVAL", "RESUME", "FRONTIER_MEMORY", "FRONTIER_SEGMENT_SIZE", "ARCHIVE_FORMAT",
+            "ARCHIVE_SEGMENT_SIZE", "CONDITIONAL_GET", "KEYFRAME_INTERVAL", "WRITE_QUEUE_CAPACITY",
+            "BODY_ARENA_BYTES", "TRANSPORT", "MAX_CONNECTIONS_PER_HOST", "CONNECTION_IDLE_TIMEOUT", "METRICS_INTERVAL",
+            "METRICS_JMX"));
+
+    private final JSONObject site;
+
+    private final String location;
+    private final String baseURL;
+    private final String host;
+    private final int depth;
+    private final List<String> begin;
+    private final List<String> exclude;
+    private final List<String> excludeIfEqual;
+    private final List<String> stopAt;
+    private final Pattern passFilter;
+
+    private final Pattern captcha;
+    private final String captchaImage;
+    private final String captchaField;
+    private final CaptchaSolverType captchaSolver;
+    private final String captchaUsername;
+    private final String captchaPassword;
+    private final String captchaDirectory;
+    private final String captchaAnswer;
+    private final long captchaTimeout;
+
+    private final String userAgent;
+    private final String accept;
+    private final String acceptImage;
+    private final String acceptLanguage;
+    private final String acceptEncoding;
+    private final String connection;
+
+    private final Pattern loginTest;
+    private final String loginURL;
+    private final String loginSubmit;
+    private final List<Account> accounts;
+    private final String usernameField;
+    private final String passwordField;
+    private final int maxLoginAttempts;
+
+    private final int lowerWaitTime;
+    private final int upperWaitTime;
+    private final long latencyTarget;
+    private final long retryDelay;
+    private final long retryMaxDelay;
+    private final int workers;
+    private final LinkExtractor linkExtractor;
+    private final CollisionPolicy seenSetCollisions;
+    private final boolean seenSetOffHeap;
+
+    private final int checkpointInterval;
+    private final boolean resume;
+    private final int frontierMemory;
+    private final int frontierSegmentSize;
+
+    private final ArchiveFormat archiveFormat;
+    private final long archiveSegmentSize;
+    private final boolean conditionalGet;
+    private final int keyframeInterval;
+    private final int writeBuffer;
+    private final int writeQueueCapacity;
+    private final long bodyArenaBytes;
+
+    private final TransportType transport;
+    private final int maxConnectionsPerHost;
+    private final long connectionIdleTimeout;
+
+    private final long metricsInterval;
+    private final boolean metricsJmx;
+
+    private SiteConfig(JSONObject site) throws ConfigurationException {
+        this.site = site;
+
+        location = requireString("LOCATION");
+        if (location.isEmpty()) {
+            throw new ConfigurationException("LOCATION can't be empty.");
+        }
+        baseURL = requireString("BASE_URL");
+        int scheme = baseURL.indexOf("://");
+        if (!baseURL.startsWith("http://") && !baseURL.startsWith("https://")) {
+            throw new ConfigurationException("BASE_URL must start with http:// or https://, got " + baseURL);
+        }
+        int slash = baseURL.indexOf('/', scheme + 3);
+        host = slash < 0 ? baseURL.substring(scheme + 3) : baseURL.substring(scheme + 3, slash);
+        depth = atLeast("DEPTH", requireInt("DEPTH"), 0);
+        begin = stringList("BEGIN", true);
+        if (begin.isEmpty()) {
+            throw new ConfigurationException("BEGIN must list at least one page.");
+        }
+        exclude = stringList("EXCLUDE", false);
+        excludeIfEqual = stringList("EXCLUDE_IF_EQUAL", false);
+        stopAt = stringList("STOP_AT", false);
+        passFilter = compile("PASS_FILTER", requireString("PASS_FILTER"));
+
+        // An empty CAPTCHA means the login form has none
+        String captchaRegex = optString("CAPTCHA", "");
+        captcha = captchaRegex.isEmpty() ? null : compile("CAPTCHA", captchaRegex);
+        captchaImage = optString("CAPTCHA_IMAGE", null);
+        captchaField = optString("CAPTCHA_FIELD", "");
+        captchaSolver = optEnum("CAPTCHA_SOLVER", CaptchaSolverType.class, CaptchaSolverType.DEATHBYCAPTCHA);
+        boolean solving = captcha != null;
+        captchaUsername = credential("CAPTCHA_USERNAME", solving && captchaSolver == CaptchaSolverType.DEATHBYCAPTCHA);
+        captchaPassword = credential("CAPTCHA_PASSWORD", solving && captchaSolver == CaptchaSolverType.DEATHBYCAPTCHA);
+        captchaDirectory = optString("CAPTCHA_DIRECTORY", "captchas/" + location);
+        captchaAnswer = solving && captchaSolver == CaptchaSolverType.STUB ? requireString("CAPTCHA_ANSWER") : optString("CAPTCHA_ANSWER", null);
+        captchaTimeout = atLeast("CAPTCHA_TIMEOUT", optLong("CAPTCHA_TIMEOUT", 120000), 1);
+
+        userAgent = requireString("USER-AGENT");
+        accept = requireString("ACCEPT");
+        acceptImage = optString("ACCEPT-IMAGE", accept);
+        acceptLanguage = requireString("ACCEPT-LANGUAGE");
+        acceptEncoding = requireString("ACCEPT-ENCODING");
+        connection = requireString("CONNECTION");
+
+        String loginTestRegex = optString("LOGIN_TEST", null);
+        loginTest = loginTestRegex == null ? null : compile("LOGIN_TEST", loginTestRegex);
+        loginURL = requireString("LOGIN_URL");
+        loginSubmit = requireString("LOGIN_SUBMIT");
+        accounts = accounts();
+        usernameField = requireString("USERNAME_FIELD");
+        passwordField = requireString("PASSWORD_FIELD");
+        maxLoginAttempts = atLeast("MAX_LOGIN_ATTEMPTS", requireInt("MAX_LOGIN_ATTEMPTS"), 1);
+
+        lowerWaitTime = atLeast("LOWER_WAIT_TIME", requireInt("LOWER_WAIT_TIME"), 0);
+        upperWaitTime = atLeast("UPPER_WAIT_TIME", requireInt("UPPER_WAIT_TIME"), lowerWaitTime);
+        latencyTarget = atLeast("LATENCY_TARGET", optLong("LATENCY_TARGET", 0), 0);
+        retryDelay = atLeast("RETRY_DELAY", optLong("RETRY_DELAY", 10000), 0);
+        retryMaxDelay = atLeast("RETRY_MAX_DELAY", optLong("RETRY_MAX_DELAY", 10L * 60 * 1000), retryDelay);
+        workers = atLeast("WORKERS", optInt("WORKERS", 1), 1);
+        linkExtractor = optEnum("LINK_EXTRACTOR", LinkExtractor.class, LinkExtractor.STREAMING);
+        seenSetCollisions = optEnum("SEEN_SET_COLLISIONS", CollisionPolicy.class, CollisionPolicy.TRUST);
+        seenSetOffHeap = optBoolean("SEEN_SET_OFF_HEAP", false);
+
+        checkpointInterval = atLeast("CHECKPOINT_INTERVAL", optInt("CHECKPOINT_INTERVAL", 300), 0);
+        resume = optBoolean("RESUME", false);
+        frontierMemory = atLeast("FRONTIER_MEMORY", optInt("FRONTIER_MEMORY", 10000), 1);
+        frontierSegmentSize = atLeast("FRONTIER_SEGMENT_SIZE", optInt("FRONTIER_SEGMENT_SIZE", 64 * 1024 * 1024), 4096);
+
+        archiveFormat = optEnum("ARCHIVE_FORMAT", ArchiveFormat.class, ArchiveFormat.SEGMENTS);
+        archiveSegmentSize = atLeast("ARCHIVE_SEGMENT_SIZE", optLong("ARCHIVE_SEGMENT_SIZE", 256L * 1024 * 1024), 1);
+        conditionalGet = optBoolean("CONDITIONAL_GET", archiveFormat == ArchiveFormat.DEDUP);
+        keyframeInterval = atLeast("KEYFRAME_INTERVAL", optInt("KEYFRAME_INTERVAL", 16), 1);
+        writeBuffer = atLeast("WRITE_BUFFER", requireInt("WRITE_BUFFER"), 1);
+        writeQueueCapacity = atLeast("WRITE_QUEUE_CAPACITY", optInt("WRITE_QUEUE_CAPACITY", 4 * writeBuffer), 1);
+        bodyArenaBytes = atLeast("BODY_ARENA_BYTES", optLong("BODY_ARENA_BYTES", 64L * 1024 * 1024), 0);
+
+        transport = optEnum("TRANSPORT", TransportType.class, TransportType.POOLED);
+        maxConnectionsPerHost = atLeast("MAX_CONNECTIONS_PER_HOST", optInt("MAX_CONNECTIONS_PER_HOST", workers), 1);
+        connectionIdleTimeout = atLeast("CONNECTION_IDLE_TIMEOUT", optLong("CONNECTION_IDLE_TIMEOUT", 30000), 0);
+
+        metricsInterval = atLeast("METRICS_INTERVAL", optLong("METRICS_INTERVAL", 10000), 0);
+        metricsJmx = optBoolean("METRICS_JMX", true);
+
+        // Most likely a typo, which would otherwise quietly fall back to
+        // the default
+        Iterator<?> keys = site.keys();
+        while (keys.hasNext()) {
+            Object key = keys.next();
+            if (!KEYS.contains(key)) {
+                logger.warn("Ignoring unknown key " + key + " for site " + location + ".");
+            }
+        }
+    }
+
+    /**
+     * Reads and checks a site's entry.
+     *
+     * @param site The site's object from the initialization file.
+     * @return The site's configuration.
+     * @throws ConfigurationException If anything is missing or wrong.
+     */
+    public static SiteConfig parse(JSONObject site) throws ConfigurationException {
+        return new SiteConfig(site);
+    }
+
+    /**
+     *
+     * @return The directory, relative to the working directory, that trawls
+     * of this site are stored under.
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     *
+     * @return The site's URL, which page URLs are relative to.
+     */
+    public String getBaseURL() {
+        return baseURL;
+    }
+
+    /**
+     *
+     * @return The host part of the base URL, for the Host header.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     *
+     * @return How many links deep to follow.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     *
+     * @return The pages to start from.
+     */
+    public List<String> getBegin() {
+        return begin;
+    }
+
+    /**
+     *
+     * @return URL fragments which exclude a link.
+     */
+    public List<String> getExclude() {
+        return exclude;
+    }
+
+    /**
+     *
+     * @return URLs which are excluded only when matched exactly.
+     */
+    public List<String> getExcludeIfEqual() {
+        return excludeIfEqual;
+    }
+
+    /**
+     *
+     * @return URL fragments whose pages are stored but not followed.
+     */
+    public List<String> getStopAt() {
+        return stopAt;
+    }
+
+    /**
+     *
+     * @return What a URL must match to be stored.
+     */
+    public Pattern getPassFilter() {
+        return passFilter;
+    }
+
+    /**
+     *
+     * @return The CAPTCHA setting, or null if the login form has no captcha.
+     * Any other value means it always has one, whatever the page says.
+     */
+    public Pattern getCaptcha() {
+        return captcha;
+    }
+
+    /**
+     *
+     * @return Where to fetch the captcha image, or null to find it on the
+     * login form.
+     */
+    public String getCaptchaImage() {
+        return captchaImage;
+    }
+
+    /**
+     *
+     * @return The form field the captcha answer goes in.
+     */
+    public String getCaptchaField() {
+        return captchaField;
+    }
+
+    /**
+     *
+     * @return Who solves the captchas.
+     */
+    public CaptchaSolverType getCaptchaSolver() {
+        return captchaSolver;
+    }
+
+    /**
+     *
+     * @return The DeathByCaptcha username, from the site or else the
+     * environment.
+     */
+    public String getCaptchaUsername() {
+        return captchaUsername;
+    }
+
+    /**
+     *
+     * @return The DeathByCaptcha password, from the site or else the
+     * environment.
+     */
+    public String getCaptchaPassword() {
+        return captchaPassword;
+    }
+
+    /**
+     *
+     * @return Where the file solver keeps captchas and their answers.
+     */
+    public String getCaptchaDirectory() {
+        return captchaDirectory;
+    }
+
+    /**
+     *
+     * @return The answer the stub solver gives.
+     */
+    public String getCaptchaAnswer() {
+        return captchaAnswer;
+    }
+
+    /**
+     *
+     * @return How long to wait for a captcha to be solved, in milliseconds.
+     */
+    public long getCaptchaTimeout() {
+        return captchaTimeout;
+    }
+
+    /**
+     *
+     * @return The User-Agent header.
+     */
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    /**
+     *
+     * @return The Accept header for pages.
+     */
+    public String getAccept() {
+        return accept;
+    }
+
+    /**
+     *
+     * @return The Accept header for images.
+     */
+    public String getAcceptImage() {
+        return acceptImage;
+    }
+
+    /**
+     *
+     * @return The Accept-Language header.
+     */
+    public String getAcceptLanguage() {
+        return acceptLanguage;
+    }
+
+    /**
+     *
+     * @return The Accept-Encoding header.
+     */
+    public String getAcceptEncoding() {
+        return acceptEncoding;
+    }
+
+    /**
+     *
+     * @return The Connection header.
+     */
+    public String getConnection() {
+        return connection;
+    }
+
+    /**
+     *
+     * @return What a page has on it when we've been logged out, or null to
+     * not check.
+     */
+    public Pattern getLoginTest() {
+        return loginTest;
+    }
+
+    /**
+     *
+     * @return The login page.
+     */
+    public String getLoginURL() {
+        return loginURL;
+    }
+
+    /**
+     *
+     * @return Where the login form is posted.
+     */
+    public String getLoginSubmit() {
+        return loginSubmit;
+    }
+
+    /**
+     *
+     * @return The accounts to log in with, from ACCOUNTS, or else USERNAME and
+     * PASSWORD.
+     */
+    public List<Account> getAccounts() {
+        return accounts;
+    }
+
+    /**
+     *
+     * @return The form field the username goes in.
+     */
+    public String getUsernameField() {
+        return usernameField;
+    }
+
+    /**
+     *
+     * @return The form field the password goes in.
+     */
+    public String getPasswordField() {
+        return passwordField;
+    }
+
+    /**
+     *
+     * @return How many times to try logging in before giving up.
+     */
+    public int getMaxLoginAttempts() {
+        return maxLoginAttempts;
+    }
+
+    /**
+     *
+     * @return The shortest wait between requests, in milliseconds, however
+     * well the site is coping.
+     */
+    public int getLowerWaitTime() {
+        return lowerWaitTime;
+    }
+
+    /**
+     *
+     * @return The longest wait between requests, in milliseconds, however
+     * badly the site is coping.
+     */
+    public int getUpperWaitTime() {
+        return upperWaitTime;
+    }
+
+    /**
+     *
+     * @return The latency to back off above, in milliseconds, or 0 to back
+     * off when it's well above normal.
+     */
+    public long getLatencyTarget() {
+        return latencyTarget;
+    }
+
+    /**
+     *
+     * @return How long an interrupted page waits before it's tried again the
+     * first time, in milliseconds.
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     *
+     * @return The longest an interrupted page waits, in milliseconds.
+     */
+    public long getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
+
+    /**
+     *
+     * @return How many pages to fetch at once.
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     *
+     * @return How to find links.
+     */
+    public LinkExtractor getLinkExtractor() {
+        return linkExtractor;
+    }
+
+    /**
+     *
+     * @return What to do about fingerprint collisions in the seen set.
+     */
+    public CollisionPolicy getSeenSetCollisions() {
+        return seenSetCollisions;
+    }
+
+    /**
+     *
+     * @return Whether the seen set is kept off the heap.
+     */
+    public boolean isSeenSetOffHeap() {
+        return seenSetOffHeap;
+    }
+
+    /**
+     *
+     * @return How many pages between checkpoints, or 0 for none.
+     */
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     *
+     * @return Whether to carry on from the last checkpoint.
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     *
+     * @return How many queued pages to keep in memory.
+     */
+    public int getFrontierMemory() {
+        return frontierMemory;
+    }
+
+    /**
+     *
+     * @return The size of the frontier's segment files, in bytes.
+     */
+    public int getFrontierSegmentSize() {
+        return frontierSegmentSize;
+    }
+
+    /**
+     *
+     * @return How pages are stored.
+     */
+    public ArchiveFormat getArchiveFormat() {
+        return archiveFormat;
+    }
+
+    /**
+     *
+     * @return The size archive segments, and the segments of the dedup
+     * object store and the delta archive, roll over at, in bytes.
+     */
+    public long getArchiveSegmentSize() {
+        return archiveSegmentSize;
+    }
+
+    /**
+     *
+     * @return Whether to ask if pages have changed since the last trawl.
+     */
+    public boolean isConditionalGet() {
+        return conditionalGet;
+    }
+
+    /**
+     *
+     * @return How many versions between full keyframes in a delta archive.
+     */
+    public int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    /**
+     *
+     * @return How many pages to write at once.
+     */
+    public int getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    /**
+     *
+     * @return How many pages can wait to be written before workers wait.
+     */
+    public int getWriteQueueCapacity() {
+        return writeQueueCapacity;
+    }
+
+    /**
+     *
+     * @return How much direct memory bodies can wait in, in bytes, or 0 to
+     * keep them on the heap.
+     */
+    public long getBodyArenaBytes() {
+        return bodyArenaBytes;
+    }
+
+    /**
+     *
+     * @return How requests get to the proxy.
+     */
+    public TransportType getTransport() {
+        return transport;
+    }
+
+    /**
+     *
+     * @return The most connections to keep open to a host.
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     *
+     * @return How long an idle connection is kept, in milliseconds.
+     */
+    public long getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    /**
+     *
+     * @return How often to write the metrics snapshot, in milliseconds. 0
+     * means never.
+     */
+    public long getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    /**
+     *
+     * @return Whether to publish the metrics over JMX.
+     */
+    public boolean isMetricsJmx() {
+        return metricsJmx;
+    }
+
+    private String requireString(String key) throws ConfigurationException {
+        if (site.isNull(key)) {
+            throw new ConfigurationException(key + " is missing.");
+        }
+        return optString(key, null);
+    }
+
+    private String optString(String key, String defaultValue) throws ConfigurationException {
+        if (site.isNull(key)) {
+            return defaultValue;
+        }
+        Object value = site.get(key);
+        if (!(value instanceof String)) {
+            throw new ConfigurationException(key + " must be a string, got " + value);
+        }
+        return (String) value;
+    }
+
+    /**
+     * Reads a secret which shouldn't be kept in the initialization file. The
+     * site's own key wins if it has one, then the system property named after
+     * the key (CAPTCHA_USERNAME is narchiver.captcha.username), then the
+     * environment variable (NARCHIVER_CAPTCHA_USERNAME).
+     */
+    private String credential(String key, boolean required) throws ConfigurationException {
+        String value = optString(key, null);
+        String property = "narchiver." + key.toLowerCase(Locale.US).replace('_', '.');
+        String variable = "NARCHIVER_" + key;
+        if (value == null) {
+            value = System.getProperty(property);
+        }
+        if (value == null) {
+            value = System.getenv(variable);
+        }
+        if (value == null && required) {
+            throw new ConfigurationException(key + " is missing. Set -D" + property + " or " + variable + ", or give it in the site.");
+        }
+        return value;
+    }
+
+    private int requireInt(String key) throws ConfigurationException {
+        if (site.isNull(key)) {
+            throw new ConfigurationException(key + " is missing.");
+        }
+        return optInt(key, 0);
+    }
+
+    private int optInt(String key, int defaultValue) throws ConfigurationException {
+        long value = optLong(key, defaultValue);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new ConfigurationException(key + " is too big, got " + value);
+        }
+        return (int) value;
+    }
+
+    private long optLong(String key, long defaultValue) throws ConfigurationException {
+        if (site.isNull(key)) {
+            return defaultValue;
+        }
+        Object value = site.get(key);
+        if (!(value instanceof Integer || value instanceof Long)) {
+            throw new ConfigurationException(key + " must be a whole number, got " + value);
+        }
+        return ((Number) value).longValue();
+    }
+
+    private boolean optBoolean(String key, boolean defaultValue) throws ConfigurationException {
+        if (site.isNull(key)) {
+            return defaultValue;
+        }
+        Object value = site.get(key);
+        if (!(value instanceof Boolean)) {
+            throw new ConfigurationException(key + " must be true or false, got " + value);
+        }
+        return (Boolean) value;
+    }
+
+    private <E extends Enum<E>> E optEnum(String key, Class<E> type, E defaultValue) throws ConfigurationException {
+        String value = optString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.US));
+        } catch (IllegalArgumentException e) {
+            StringBuilder expected = new StringBuilder();
+            E[] constants = type.getEnumConstants();
+            for (int i = 0; i < constants.length; ++i) {
+                if (i > 0) {
+                    expected.append(i == constants.length - 1 ? " or " : ", ");
+                }
+                expected.append(constants[i].name().toLowerCase(Locale.US));
+            }
+            throw new ConfigurationException("Unknown " + key + " " + value + ", expected " + expected + ".");
+        }
+    }
+
+    private List<String> stringList(String key, boolean required) throws ConfigurationException {
+        if (site.isNull(key)) {
+            if (required) {
+                throw new ConfigurationException(key + " is missing.");
+            }
+            return Collections.emptyList();
+        }
+        ArrayList<String> list = new ArrayList<>();
+        try {
+            JSONArray array = site.getJSONArray(key);
+            for (int i = 0; i < array.length(); ++i) {
+                list.add(array.getString(i));
+            }
+        } catch (JSONException e) {
+            throw new ConfigurationException(key + " must be a list of strings.");
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    private List<Account> accounts() throws ConfigurationException {
+        if (site.isNull("ACCOUNTS")) {
+            return Collections.singletonList(new Account(requireString("USERNAME"), requireString("PASSWORD")));
+        }
+        if (!site.isNull("USERNAME") || !site.isNull("PASSWORD")) {
+            throw new ConfigurationException("Give either ACCOUNTS or USERNAME and PASSWORD, not both.");
+        }
+        ArrayList<Account> list = new ArrayList<>();
+        HashSet<String> usernames = new HashSet<>();
+        try {
+            JSONArray array = site.getJSONArray("ACCOUNTS");
+            for (int i = 0; i < array.length(); ++i) {
+                JSONObject account = array.getJSONObject(i);
+                String username = account.getString("USERNAME");
+                if (!usernames.add(username)) {
+                    throw new ConfigurationException("ACCOUNTS lists " + username + " twice.");
+                }
+                list.add(new Account(username, account.getString("PASSWORD")));
+            }
+        } catch (JSONException e) {
+            throw new ConfigurationException("ACCOUNTS must be a list of objects with USERNAME and PASSWORD.");
+        }
+        if (list.isEmpty()) {
+            throw new ConfigurationException("ACCOUNTS must list at least one account.");
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    private static Pattern compile(String key, String regex) throws ConfigurationException {
+        try {
+            return Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            throw new ConfigurationException(key + " is not a valid regex: " + e.getDescription());
+        }
+    }
+
+    private static int atLeast(String key, int value, int minimum) throws ConfigurationException {
+        if (value < minimum) {
+            throw new ConfigurationException(key + " must be at least " + minimum + ", got " + value);
+        }
+        return value;
+    }
+
+    private static long atLeast(String key, long value, long minimum) throws ConfigurationException {
+        if (value < minimum) {
+            throw new ConfigurationException(key + " must be at least " + minimum + ", got " + value);
+        }
+        return value;
+    }
+
+    /**
+     * One account to log in to the site with.
+     */
+    public static class Account {
+
+        private final String username;
+        private final String password;
+
+        /**
+         *
+         * @param username The username.
+         * @param password The password.
+         */
+        public Account(String username, String password) {
+            this.username = username;
+            this.password = password;
+        }
+
+        /**
+         *
+         * @return The username.
+         */
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         *
+         * @return The password.
+         */
+        public String getPassword() {
+            return password;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import com.salsaberries.narchiver.enums.UrlDecision;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The EXCLUDE, EXCLUDE_IF_EQUAL, STOP_AT and PASS_FILTER rules of a site,
+ * compiled once.
+ *
+ * The substring rules, EXCLUDE and STOP_AT, are compiled together into one
+ * Aho-Corasick automaton, so a URL is checked against all of them in a single
+ * scan, however many there are. EXCLUDE_IF_EQUAL is a hash set, and
+ * PASS_FILTER is compiled once, by {@link SiteConfig}, instead of on every
+ * write.
+ *
+ * The automaton is a full transition table over the characters which appear
+ * in the rules. Any other character can't be part of a match, so it sends the
+ * scan back to the start.
+ *
+ * @author njanetos
+ */
+public class SitePolicy {
+
+    private static final int EXCLUDE = 1;
+    private static final int STOP = 2;
+
+    private final HashSet<String> excludeIfEqual;
+    private final Pattern passFilter;
+    private final int[] asciiClass;
+    private final HashMap<Character, Integer> otherClass;
+    private final int alphabetSize;
+    private final int[] transitions;
+    private final int[] output;
+
+    /**
+     *
+     * @param exclude Substrings which exclude a URL.
+     * @param excludeIfEqual URLs which are excluded.
+     * @param stopAt Substrings which stop links being extracted from a page.
+     * @param passFilter What a URL must match to be stored.
+     */
+    public SitePolicy(Collection<String> exclude, Collection<String> excludeIfEqual, Collection<String> stopAt, Pattern passFilter) {
+        this.excludeIfEqual = new HashSet<>(excludeIfEqual);
+        this.passFilter = passFilter;
+
+        // Number the characters which appear in the rules. 0 is everything else.
+        asciiClass = new int[128];
+        otherClass = new HashMap<>();
+        int classes = 1;
+        ArrayList<String> patterns = new ArrayList<>(exclude);
+        patterns.addAll(stopAt);
+        for (String pattern : patterns) {
+            for (int i = 0; i < pattern.length(); ++i) {
+                char c = pattern.charAt(i);
+                if (c < 128) {
+                    if (asciiClass[c] == 0) {
+                        asciiClass[c] = classes++;
+                    }
+                } else if (!otherClass.containsKey(c)) {
+                    otherClass.put(c, classes++);
+                }
+            }
+        }
+        alphabetSize = classes;
+
+        // Build the trie
+        ArrayList<int[]> trie = new ArrayList<>();
+        ArrayList<Integer> flags = new ArrayList<>();
+        trie.add(new int[alphabetSize]);
+        flags.add(0);
+        addAll(trie, flags, exclude, EXCLUDE);
+        addAll(trie, flags, stopAt, STOP);
+
+        // Fill in the failure transitions breadth first, so each state's
+        // failure state is done before it is. Class 0 is never in the trie,
+        // so it always goes back to the start.
+        int states = trie.size();
+        transitions = new int[states * alphabetSize];
+        output = new int[states];
+        int[] failure = new int[states];
+        for (int s = 0; s < states; ++s) {
+            System.arraycopy(trie.get(s), 0, transitions, s * alphabetSize, alphabetSize);
+            output[s] = flags.get(s);
+        }
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < alphabetSize; ++c) {
+            int next = transitions[c];
+            if (next != 0) {
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            output[state] |= output[failure[state]];
+            for (int c = 0; c < alphabetSize; ++c) {
+                int next = transitions[state * alphabetSize + c];
+                if (next != 0) {
+                    failure[next] = transitions[failure[state] * alphabetSize + c];
+                    queue.add(next);
+                } else {
+                    transitions[state * alphabetSize + c] = transitions[failure[state] * alphabetSize + c];
+                }
+            }
+        }
+    }
+
+    /**
+     * Decides whether to follow a link, in one pass over its URL. STOP_AT
+     * doesn't come into it, since it's about the page links are extracted
+     * from; check that with {@link #isStop(String)}.
+     *
+     * @param tagURL The URL, relative to the site.
+     * @return EXCLUDE if it matches an exclusion rule, otherwise ADMIT.
+     */
+    public UrlDecision decide(String tagURL) {
+        if (excludeIfEqual.contains(tagURL)) {
+            return UrlDecision.EXCLUDE;
+        }
+        if ((match(tagURL, EXCLUDE) & EXCLUDE) != 0) {
+            return UrlDecision.EXCLUDE;
+        }
+        return UrlDecision.ADMIT;
+    }
+
+    /**
+     * Checks only the STOP_AT rules. A page can be visited even though it
+     * matches an exclusion rule, if it's a BEGIN page or we were redirected
+     * to it, so an exclusion doesn't hide a STOP_AT match here.
+     *
+     * @param tagURL The URL, relative to the site.
+     * @return True if no links should be extracted from the page.
+     */
+    public boolean isStop(String tagURL) {
+        return (match(tagURL, STOP) & STOP) != 0;
+    }
+
+    /**
+     *
+     * @param tagURL The URL, relative to the site.
+     * @return True if the page should be stored.
+     */
+    public boolean passes(String tagURL) {
+        return passFilter.matcher(tagURL).find();
+    }
+
+    /**
+     * Runs the automaton over a URL, stopping early once any of the wanted
+     * rules has matched.
+     *
+     * @return The rules which matched.
+     */
+    private int match(String tagURL, int wanted) {
+        int state = 0;
+        int matched = output[0];
+        for (int i = 0; i < tagURL.length() && (matched & wanted) == 0; ++i) {
+            char c = tagURL.charAt(i);
+            int cls;
+            if (c < 128) {
+                cls = asciiClass[c];
+            } else {
+                Integer other = otherClass.get(c);
+                cls = other == null ? 0 : other;
+            }
+            state = transitions[state * alphabetSize + cls];
+            matched |= output[state];
+        }
+        return matched;
+    }
+
+    private void addAll(List<int[]> trie, List<Integer> flags, Collection<String> patterns, int flag) {
+        for (String pattern : patterns) {
+            int state = 0;
+            for (int i = 0; i < pattern.length(); ++i) {
+                char c = pattern.charAt(i);
+                int cls = c < 128 ? asciiClass[c] : otherClass.get(c);
+                int next = trie.get(state)[cls];
+                if (next == 0) {
+                    next = trie.size();
+                    trie.add(new int[alphabetSize]);
+                    flags.add(0);
+                    trie.get(state)[cls] = next;
+                }
+                state = next;
+            }
+            flags.set(state, flags.get(state) | flag);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import com.salsaberries.narchiver.exceptions.TrawlException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SiteScheduler runs the trawl for each site on its own thread, with at most a
+ * fixed number of sites running at once. A site which fails, for whatever
+ * reason, is logged and does not affect the others.
+ *
+ * @author njanetos
+ */
+public class SiteScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(SiteScheduler.class);
+
+    private final ExecutorService executor;
+    private final ArrayList<Future<?>> trawls;
+    private final ArrayList<String> locations;
+
+    /**
+     *
+     * @param maxConcurrentSites The maximum number of sites to trawl at once.
+     */
+    public SiteScheduler(int maxConcurrentSites) {
+        executor = Executors.newFixedThreadPool(maxConcurrentSites, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(r, "site-" + (++count));
+            }
+        });
+        trawls = new ArrayList<>();
+        locations = new ArrayList<>();
+    }
+
+    /**
+     * Queues a site to be trawled. The trawl starts as soon as a slot is free.
+     *
+     * @param config The site's configuration.
+     */
+    public void submit(final SiteConfig config) {
+        final String location = config.getLocation();
+
+        trawls.add(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Thread.currentThread().setName(location);
+                logger.info("Preparing to trawl " + location);
+
+                try {
+                    Trawler trawler = new Trawler(config);
+                    trawler.trawl();
+                    logger.info("Trawler for " + location + " finished.");
+                } catch (TrawlException e) {
+                    logger.error("Trawler for " + location + " failed: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    logger.error("Trawler for " + location + " crashed: " + e.getMessage(), e);
+                }
+            }
+        }));
+        locations.add(location);
+    }
+
+    /**
+     * Blocks until every submitted site has finished trawling.
+     */
+    public void awaitCompletion() {
+        executor.shutdown();
+
+        for (int i = 0; i < trawls.size(); ++i) {
+            try {
+                trawls.get(i).get();
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for " + locations.get(i) + ". Stopping all trawlers.");
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                logger.error("Trawler for " + locations.get(i) + " crashed: " + e.getCause(), e.getCause());
+            }
+        }
+    }
+}
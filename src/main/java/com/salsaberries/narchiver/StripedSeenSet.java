@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import com.salsaberries.narchiver.enums.CollisionPolicy;
+
+/**
+ * A thread safe {@link SeenSet} made of several {@link FingerprintSet}s, each
+ * with its own lock, so workers adding different URLs rarely wait on each
+ * other.
+ *
+ * @author njanetos
+ */
+public class StripedSeenSet implements SeenSet {
+
+    private final FingerprintSet[] stripes;
+    private final boolean verify;
+
+    /**
+     *
+     * @param stripeCount The number of stripes, rounded up to a power of two.
+     * @param initialCapacity Roughly how many URLs to expect, in total.
+     * @param policy What to do about fingerprint collisions.
+     * @param offHeap True to keep the tables in direct memory.
+     */
+    public StripedSeenSet(int stripeCount, int initialCapacity, CollisionPolicy policy, boolean offHeap) {
+        int count = Integer.highestOneBit(Math.max(1, stripeCount) - 1) << 1;
+        if (count < 1) {
+            count = 1;
+        }
+        stripes = new FingerprintSet[count];
+        for (int i = 0; i < count; ++i) {
+            stripes[i] = new FingerprintSet(initialCapacity / count, policy, offHeap);
+        }
+        verify = policy == CollisionPolicy.VERIFY;
+    }
+
+    @Override
+    public boolean contains(String url) {
+        long fingerprint = FingerprintSet.fingerprint(url);
+        long check = verify ? FingerprintSet.secondaryFingerprint(url) : 0;
+        FingerprintSet stripe = stripe(fingerprint);
+        synchronized (stripe) {
+            return stripe.contains(fingerprint, check);
+        }
+    }
+
+    @Override
+    public boolean add(String url) {
+        long fingerprint = FingerprintSet.fingerprint(url);
+        long check = verify ? FingerprintSet.secondaryFingerprint(url) : 0;
+        FingerprintSet stripe = stripe(fingerprint);
+        synchronized (stripe) {
+            return stripe.add(fingerprint, check);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (FingerprintSet stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     *
+     * @return The number of fingerprint collisions found so far.
+     */
+    public long getCollisions() {
+        long collisions = 0;
+        for (FingerprintSet stripe : stripes) {
+            synchronized (stripe) {
+                collisions += stripe.getCollisions();
+            }
+        }
+        return collisions;
+    }
+
+    /**
+     * Picks a stripe from the high bits, since the low bits pick the slot.
+     */
+    private FingerprintSet stripe(long fingerprint) {
+        return stripes[(int) (fingerprint >>> 32) & (stripes.length - 1)];
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Gives the same answer to every captcha, straight away. For testing against
+ * sites which don't check it.
+ *
+ * @author njanetos
+ */
+public class StubCaptchaSolver implements CaptchaSolver {
+
+    private final String answer;
+
+    /**
+     *
+     * @param answer The answer to give.
+     */
+    public StubCaptchaSolver(String answer) {
+        this.answer = answer;
+    }
+
+    @Override
+    public Future<Answer> solve(byte[] image) {
+        FutureTask<Answer> task = new FutureTask<>(new Callable<Answer>() {
+            @Override
+            public Answer call() {
+                return new Answer(answer, 0);
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    @Override
+    public void report(Answer answer, boolean correct) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -18,36 +18,30 @@
  */
 package com.salsaberries.narchiver;
 
-import com.DeathByCaptcha.Captcha;
-import com.DeathByCaptcha.Exception;
-import com.DeathByCaptcha.SocketClient;
 import com.salsaberries.narchiver.enums.HttpType;
+import com.salsaberries.narchiver.enums.LinkExtractor;
+import com.salsaberries.narchiver.enums.UrlDecision;
 import com.salsaberries.narchiver.exceptions.AuthenticationException;
 import com.salsaberries.narchiver.exceptions.ConnectionException;
 import com.salsaberries.narchiver.exceptions.RedirectionException;
 import com.salsaberries.narchiver.exceptions.TrawlException;
 import com.salsaberries.narchiver.exceptions.TrawlingInterrupt;
-import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Random;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import javax.imageio.ImageIO;
-import org.apache.commons.codec.binary.Base64;
-import org.json.JSONObject;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,487 +55,838 @@ public class Trawler {
 
     private static final Logger logger = LoggerFactory.getLogger(Trawler.class);
 
-    private final LinkedList<Page> pageQueue;
-    private final HashSet<String> trawledPages;
-    private final LinkedList<Page> writeQueue;
+    /**
+     * How long to wait for the workers to stop when the trawl is interrupted.
+     */
+    private static final int WORKER_STOP_SECONDS = 30;
+
+    private final Frontier pageQueue;
+    private final RetryQueue retries;
+    private final SeenSet trawledPages;
+    private final PageLineage lineage;
     private final int maxDepth;
     private final String baseURL;
-    private final ArrayList<String> exclude;
-    private final ArrayList<String> excludeIfEqual;
-    private final ArrayList<String> stopAt;
-    private final JSONObject site;
-    private int loginAttempts;
-    private final ArrayList<Cookie> cookies;
-    private final Random random;
+    private final SitePolicy policy;
+    private final LinkExtractor linkExtractor;
+    private final SiteConfig config;
+    private final HeaderTemplate pageHeaders;
+    private final HeaderTemplate imageHeaders;
     private final String outputLocation;
-    private boolean needToLogin = true;
+    private final Checkpoint checkpoint;
+    private final int checkpointInterval;
+    private final Object checkpointLock = new Object();
+    private final ArrayList<Page> visiting = new ArrayList<>();
+    private int pagesFinished = 0;
+    private boolean checkpointFailed = false;
+    private final AdaptiveRateLimiter rateLimiter;
+    private final int workers;
+    private final WriterStage writerStage;
+    private final HttpTransport transport;
+    private final SessionPool sessions;
+    private final CaptchaSolver captchaSolver;
+    private final PageStore store;
+    private ContentStore objects;
+    private ValidatorStore validators;
+    private final Metrics metrics;
+    private final MetricsExporter metricsExporter;
+    private final Metrics.Counter pagesFetched;
+    private final Metrics.Counter unchangedPages;
+    private final Metrics.Counter pagesRetried;
+    private final Metrics.Counter pagesDropped;
+    private final Metrics.Counter bytesIn;
+    private final Metrics.Counter bytesOut;
+    private final Metrics.Histogram fetchMillis;
+    private final Metrics.Histogram parseMicros;
+    private final Metrics.Histogram pageBytes;
+    private int pagesInFlight = 0;
+    private volatile TrawlException failure;
 
     /**
-     * Trawler implements the recursive algorithm to search the web page.
+     * Trawler implements the recursive algorithm to search the web page. Call
+     * {@link #trawl()} to begin.
      *
-     * @param site
+     * @param config The site's configuration.
      * @throws com.salsaberries.narchiver.exceptions.TrawlException
      */
-    public Trawler(JSONObject site) throws TrawlException {
-
-        // Initialize the random variable
-        random = new Random();
-
-        this.site = site;
-
-        // Create the initial beginning pages
-        ArrayList<Page> pages = new ArrayList<>();
-        for (int j = 0; j < site.getJSONArray("BEGIN").length(); ++j) {
-            pages.add(new Page(site.getJSONArray("BEGIN").getString(j)));
+    public Trawler(SiteConfig config) throws TrawlException {
+
+        this.config = config;
+
+        // Kept in memory, and written out every METRICS_INTERVAL rather than
+        // on every page
+        metrics = new Metrics(config.getLocation());
+        pagesFetched = metrics.counter("pages.fetched");
+        unchangedPages = metrics.counter("pages.unchanged");
+        pagesRetried = metrics.counter("pages.retried");
+        pagesDropped = metrics.counter("pages.dropped");
+        bytesIn = metrics.counter("bytes.in");
+        bytesOut = metrics.counter("bytes.out");
+        fetchMillis = metrics.histogram("fetch.millis");
+        parseMicros = metrics.histogram("parse.micros");
+        pageBytes = metrics.histogram("page.bytes");
+
+        // Compile the rules once, rather than scanning the lists for every link
+        policy = new SitePolicy(config.getExclude(), config.getExcludeIfEqual(), config.getStopAt(), config.getPassFilter());
+
+        // How to find links. Streaming skips building a DOM for most pages.
+        linkExtractor = config.getLinkExtractor();
+
+        // URLs we've already found, kept as fingerprints rather than Strings
+        trawledPages = new StripedSeenSet(16, 1 << 16, config.getSeenSetCollisions(), config.isSeenSetOffHeap());
+
+        this.maxDepth = config.getDepth();
+        this.baseURL = config.getBaseURL();
+
+        // Save our progress every so many pages, so a crashed trawl can resume
+        checkpointInterval = config.getCheckpointInterval();
+        Checkpoint.State resumed = null;
+        if (checkpointInterval > 0) {
+            checkpoint = new Checkpoint(new File("checkpoint/" + config.getLocation()));
+            try {
+                if (config.isResume() && checkpoint.exists()) {
+                    resumed = checkpoint.resume(trawledPages);
+                } else {
+                    checkpoint.start();
+                }
+            } catch (IOException e) {
+                throw new TrawlException("Unable to open checkpoint: " + e.getMessage());
+            }
+        } else {
+            checkpoint = null;
+            if (config.isResume()) {
+                logger.warn("RESUME is set but CHECKPOINT_INTERVAL is 0, so there's nothing to resume from.");
+            }
         }
 
-        // Create the list of EXCLUSIONS
-        exclude = new ArrayList<>();
-        for (int j = 0; j < site.getJSONArray("EXCLUDE").length(); ++j) {
-            exclude.add(site.getJSONArray("EXCLUDE").getString(j));
-        }
+        // Keep the front of the queue in memory, and spill the rest to disk
+        if (resumed != null) {
+            // Carry on writing to the same place, from where we left off
+            outputLocation = resumed.getOutputLocation();
+            lineage = checkpoint.getLineage();
+            try {
+                pageQueue = resumed.restoreFrontier(new File("frontier/" + config.getLocation() + outputLocation), config.getFrontierMemory(), config.getFrontierSegmentSize());
+            } catch (IOException e) {
+                throw new TrawlException("Unable to restore the page queue: " + e.getMessage());
+            }
 
-        // Creat the list of EXCLUDE_IF_EQUAL
-        excludeIfEqual = new ArrayList<>();
-        if (!site.isNull("EXCLUDE_IF_EQUAL")) {
-            for (int j = 0; j < site.getJSONArray("EXCLUDE_IF_EQUAL").length(); ++j) {
-                excludeIfEqual.add(site.getJSONArray("EXCLUDE_IF_EQUAL").getString(j));
+            // Pages we hadn't finished with go first, in their original order
+            List<Page> pending = resumed.getPending();
+            for (int i = pending.size() - 1; i >= 0; --i) {
+                pageQueue.push(pending.get(i));
             }
-        }
+            logger.info("Resuming trawl " + outputLocation + " with " + pageQueue.size() + " pages queued and " + trawledPages.size() + " seen.");
+        } else {
+            Date date = new Date();
+            outputLocation = Long.toString(date.getTime());
+            File frontierDirectory = new File("frontier/" + config.getLocation() + outputLocation);
+
+            // How every page was reached, kept in a log on disk rather than
+            // copied onto each page. The checkpoint keeps it if there is one.
+            PageLineage trawlLineage;
+            try {
+                trawlLineage = checkpoint != null ? checkpoint.getLineage() : new PageLineage(new File(frontierDirectory, "lineage.log"), 0);
+            } catch (IOException e) {
+                throw new TrawlException("Unable to open the lineage log: " + e.getMessage());
+            }
+            lineage = trawlLineage;
+            pageQueue = new Frontier(frontierDirectory, config.getFrontierMemory(), config.getFrontierSegmentSize(), lineage);
 
-        // Create the list of STOP_AT
-        stopAt = new ArrayList<>();
-        for (int j = 0; j < site.getJSONArray("STOP_AT").length(); ++j) {
-            stopAt.add(site.getJSONArray("STOP_AT").getString(j));
+            // Push the initial pages onto the queue
+            try {
+                for (String begin : config.getBegin()) {
+                    pageQueue.add(new Page(begin, lineage));
+                }
+            } catch (IOException e) {
+                throw new TrawlException("Unable to add to the lineage log: " + e.getMessage());
+            }
         }
+        // Interrupted pages wait here, longer each time, guarded by pageQueue
+        retries = new RetryQueue(config.getRetryDelay(), config.getRetryMaxDelay());
 
-        // Set the maximum number of login attempts
-        loginAttempts = site.getInt("MAX_LOGIN_ATTEMPTS");
-
-        pageQueue = new LinkedList<>();
-        trawledPages = new HashSet<>();
-        writeQueue = new LinkedList<>();
-
-        this.maxDepth = site.getInt("DEPTH");
-        this.baseURL = site.getString("BASE_URL");
-
-        // Push the initial pages onto the queue
-        for (int i = 0; i < pages.size(); ++i) {
-            pageQueue.add(pages.get(i));
+        if (checkpoint != null) {
+            // The last checkpoint may still point into segments we've read
+            pageQueue.setRetainConsumed(true);
         }
 
-        // Initialize cookies
-        cookies = new ArrayList<>();
+        // Every request starts from the same headers, so build them once
+        pageHeaders = HeaderTemplate.forPages(config);
+        imageHeaders = HeaderTemplate.forImages(config);
 
-        Date date = new Date();
-        outputLocation = Long.toString(date.getTime());
+        // All workers share one rate, which speeds up while the site copes
+        rateLimiter = new AdaptiveRateLimiter(config.getLowerWaitTime(), config.getUpperWaitTime(), config.getLatencyTarget());
 
-        logger.info("Begun trawling at " + date.getTime() + ".");
+        // Number of pages to fetch at once
+        workers = config.getWorkers();
 
-        // Start trawling
-        while (pageQueue.size() != 0) {
-            // If there are pages remaining to visit, visit the next one.
-            visitNext();
-
-            // If the number of final pages is higher than some number, write them to file.
-            // This will remove everything from finalPages. Also, it will remove their
-            // html content. Also, run a pass filter.
-            if (writeQueue.size() > site.getInt("WRITE_BUFFER")) {
-                flushToFile();
+        // Pick how pages are stored. Segments are appended to, so a resumed
+        // trawl carries on in the same archive.
+        String snapshotLocation = config.getLocation() + "/" + outputLocation;
+        try {
+            switch (config.getArchiveFormat()) {
+                case SEGMENTS:
+                    store = new ArchiveWriter(new File(snapshotLocation), config.getArchiveSegmentSize());
+                    break;
+                case DEDUP:
+                    // Bodies are shared between every trawl of the site, and
+                    // so is what we know about whether they've changed
+                    objects = new ContentStore(new File(config.getLocation() + "/objects"), config.getArchiveSegmentSize());
+                    if (config.isConditionalGet()) {
+                        validators = new ValidatorStore(new File(config.getLocation() + "/validators"));
+                    }
+                    store = new DedupStore(objects, new File(snapshotLocation + "/manifest"), validators);
+                    break;
+                case DELTA:
+                    // Versions are chained across every trawl of the site
+                    store = new DeltaStore(new File(config.getLocation() + "/versions"), config.getKeyframeInterval(), config.getArchiveSegmentSize());
+                    break;
+                default:
+                    store = new DirectoryStore(snapshotLocation);
             }
+        } catch (IOException e) {
+            throw new TrawlException("Unable to open archive: " + e.getMessage());
+        }
+        if (validators == null && config.isConditionalGet()) {
+            logger.warn("CONDITIONAL_GET needs ARCHIVE_FORMAT dedup, to keep the bodies it reuses. Fetching every page in full.");
         }
 
-        logger.info("Trawling has terminated for " + site.getString("BASE_URL") + ". Writing to file.");
-
-        // Finish any final flushing
-        flushToFile();
-
-    }
-
-    private void visitNext() throws TrawlException {
-
-        // Wait a random time period
-        try {
-            Thread.sleep(random.nextInt(site.getInt("UPPER_WAIT_TIME") - site.getInt("LOWER_WAIT_TIME")) + site.getInt("LOWER_WAIT_TIME"));
-        } catch (InterruptedException ex) {
-
+        // Pages are written in batches of WRITE_BUFFER on a thread of their
+        // own. Workers wait if WRITE_QUEUE_CAPACITY pages are already queued.
+        // Bodies wait for the writer off the heap, up to BODY_ARENA_BYTES. 0
+        // keeps them on the heap.
+        BodyArena arena = config.getBodyArenaBytes() > 0 ? new BodyArena(config.getBodyArenaBytes()) : null;
+        writerStage = new WriterStage(config.getLocation() + "-writer", config.getWriteQueueCapacity(), config.getWriteBuffer(),
+                policy, store, arena, metrics);
+
+        // Pick how requests get to the proxy. The pooled transport keeps
+        // connections open between requests if the site asks for keep-alive.
+        switch (config.getTransport()) {
+            case URLCONNECTION:
+                transport = new UrlConnectionTransport();
+                break;
+            default:
+                transport = new PooledHttpTransport(config.getMaxConnectionsPerHost(), config.getConnectionIdleTimeout());
         }
 
-        Page page = null;
-        try {
-            // Do we need to log in?
+        // Pick who solves the captchas, if the site has them
+        if (config.getCaptcha() == null) {
+            captchaSolver = null;
+        } else {
+            CaptchaSolver solver;
+            switch (config.getCaptchaSolver()) {
+                case FILE:
+                    solver = new FileCaptchaSolver(config.getLocation(), new File(config.getCaptchaDirectory()), config.getCaptchaTimeout());
+                    break;
+                case STUB:
+                    solver = new StubCaptchaSolver(config.getCaptchaAnswer());
+                    break;
+                default:
+                    solver = new DeathByCaptchaSolver(config.getLocation(), config.getCaptchaUsername(), config.getCaptchaPassword(), config.getAccounts().size());
+            }
+            final MeteredCaptchaSolver metered = new MeteredCaptchaSolver(config.getLocation(), solver);
+            metrics.gauge("captchas.solved", new Metrics.Gauge() {
+                @Override
+                public double getValue() {
+                    return metered.getSolved();
+                }
+            });
+            metrics.gauge("captchas.failed", new Metrics.Gauge() {
+                @Override
+                public double getValue() {
+                    return metered.getFailed();
+                }
+            });
+            metrics.gauge("captchas.incorrect", new Metrics.Gauge() {
+                @Override
+                public double getValue() {
+                    return metered.getIncorrect();
+                }
+            });
+            metrics.gauge("captchas.latency", new Metrics.Gauge() {
+                @Override
+                public double getValue() {
+                    return metered.getMeanLatency();
+                }
+            });
+            captchaSolver = metered;
+        }
 
-            if (needToLogin) {
-                needToLogin = (!login());
-                if (needToLogin) {
-                    // Wait ten seconds
-                    try {
-                        Thread.sleep(60000);
-                    } catch (InterruptedException ex) {
+        // Every account keeps its own session, logged in in the background
+        sessions = new SessionPool(config.getLocation(), baseURL, config.getAccounts(),
+                new Authenticator(config, transport, pageHeaders, imageHeaders, captchaSolver), config.getMaxLoginAttempts(), metrics);
 
-                    }
-                    throw new TrawlingInterrupt("Failed to log in, but this has been detected to be a recoverable error. I've waited a minute and now I'll try again.");
+        // Everything else is read when a snapshot is taken
+        metrics.gauge("frontier.size", new Metrics.Gauge() {
+            @Override
+            public double getValue() {
+                synchronized (pageQueue) {
+                    return pageQueue.size();
                 }
-            } else {
-                // Reset the login attempts
-                loginAttempts = site.getInt("MAX_LOGIN_ATTEMPTS");
-                page = pageQueue.removeFirst();
-                visit(page);
             }
-        } catch (AuthenticationException e) {
-            // Re-add the page (at the beginning) if necessary
-            if (page != null) {
-                if (!page.registerTrawlInterrupt()) {
-                    // Don't do anything: It's been interrupted too many times.
-                    logger.error("Trawling has been interrupted for this page too many times. Removing from site map.");
-                } else {
-                    // Push the page back on.
-                    pageQueue.push(page);
+        });
+        metrics.gauge("retries.size", new Metrics.Gauge() {
+            @Override
+            public double getValue() {
+                synchronized (pageQueue) {
+                    return retries.size();
                 }
             }
-            needToLogin = true;
-        } catch (TrawlingInterrupt e) {
-            logger.warn("Trawling interrupt: " + e.getMessage());
-            if (page != null) {
-                if (!page.registerTrawlInterrupt()) {
-                    // Don't do anything: It's been interrupted too many times.
-                    logger.error("Trawling has been interrupted for this page too many times. Removing from site map.");
-                } else {
-                    // Push the page back on.
-                    pageQueue.push(page);
+        });
+        metrics.gauge("pages.visiting", new Metrics.Gauge() {
+            @Override
+            public double getValue() {
+                synchronized (pageQueue) {
+                    return pagesInFlight;
                 }
             }
-
-            logger.debug("Warning! Trawling was interrupted. Retrying in 10 seconds: " + e.getMessage());
-
-            // Wait ten seconds
-            try {
-                Thread.sleep(10000);
-            } catch (InterruptedException ex) {
-
+        });
+        metrics.gauge("seen.size", new Metrics.Gauge() {
+            @Override
+            public double getValue() {
+                return trawledPages.size();
             }
-        } catch (RedirectionException e) {
-            // Set this page's URL to the new URL and push it back onto the queue.
-            if (page != null) {
-                // Has the redirection already been followed?
-                if (trawledPages.contains(page.getTagURL())) {
-                    logger.info("Redirecting to page " + e.getMessage() + ". It's already been followed, so we're ignoring it.");
-                } else {
-                    logger.info("Redirecting to page " + e.getMessage() + ". I'm going to set this to this page's new URL, push it back onto the queue, and restart.");
-                    page.setTagURL(e.getMessage().substring(baseURL.length()));
-                    pageQueue.add(page);
-                }
+        });
+        metrics.gauge("rate", new Metrics.Gauge() {
+            @Override
+            public double getValue() {
+                return rateLimiter.getRate();
             }
-        }
+        });
+        metrics.gauge("rate.decreases", new Metrics.Gauge() {
+            @Override
+            public double getValue() {
+                return rateLimiter.getDecreases();
+            }
+        });
+        metricsExporter = new MetricsExporter(metrics, new File("info/" + config.getLocation() + outputLocation + ".json"),
+                config.getMetricsInterval(), config.isMetricsJmx());
     }
 
     /**
-     * Logs into the site.
+     * Trawls the site until there are no pages left to visit, then writes
+     * everything to file. Blocks until the trawl is finished.
      *
-     * @return
      * @throws TrawlException
      */
-    private boolean login() throws TrawlException {
-        --loginAttempts;
+    public void trawl() throws TrawlException {
 
-        if (loginAttempts < 0) {
-            logger.error("Warning! Exceeded maximum number of login attempts! Program is now exiting.");
-            throw new TrawlException("Maximum login attempts exceeded.");
-        }
+        logger.info("Begun trawling at " + outputLocation + " with " + workers + " workers.");
 
-        logger.info("Attempting to log in at " + baseURL + site.getString("LOGIN_URL"));
+        writerStage.start();
+        sessions.start();
+        metricsExporter.start();
 
-        try {
+        // Start trawling
+        final String location = config.getLocation();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private int count = 0;
 
-            // follow redirects until you get it right
-            HttpRequest httpRequest;
-            HttpMessage httpGet;
-            String url = baseURL + site.getString("LOGIN_URL");
-            
-            while (true) {
-                httpGet = new HttpMessage(HttpType.GET);
-                httpGet.setUrl(url);
-                httpGet.initializeDefaultHeaders(site);
-                httpGet.addCookieHeaders(cookies);
-
-                httpRequest = new HttpRequest(httpGet);
-                
-                if (httpRequest.getStatusCode() != 200) {
-                    getTempCookies(httpRequest.getHeaders());
-                    
-                    // Find the header I want
-                    boolean found = false;
-                    for (Header h : httpRequest.getHeaders()) {
-                        if (h.getName().equals("Location")) {
-                            url = h.getValue();
-                            found = true;
-                        }
-                    }
-                    
-                    if (!found) {
-                        throw new TrawlException("Redirect loop.");
-                    }
-                    
-                } else {
-                    break;
-                }
-                
-                
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(r, location + "-" + (++count));
             }
+        });
+        for (int i = 0; i < workers; ++i) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+        pool.shutdown();
 
-            // Get headers
-            ArrayList<Header> headers = httpRequest.getHeaders();
-            // Parse the cookies
-            getTempCookies(headers);
-
-            String body = httpRequest.getHtml();
-            Document doc = Jsoup.parse(body);
-            Elements logins = doc.getElementsByAttributeValue("action", site.getString("LOGIN_SUBMIT"));
-
-            if (logins.isEmpty()) {
-                logins = doc.getElementsByAttributeValue("action", site.getString("BASE_URL") + site.getString("LOGIN_SUBMIT"));
+        boolean interrupted = false;
+        boolean stopped = true;
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.debug("Still trawling " + baseURL + ".");
             }
-            if (logins.isEmpty()) {
-                logins = doc.getElementsByAttributeValue("method", "POST");
+        } catch (InterruptedException e) {
+            interrupted = true;
+            fail(new TrawlException("Interrupted while trawling " + baseURL + "."));
+            // Give the workers a chance to put their pages back before the
+            // queues are saved or closed
+            pool.shutdownNow();
+            try {
+                stopped = pool.awaitTermination(WORKER_STOP_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException f) {
+                stopped = false;
             }
-
-            if (logins.isEmpty()) {
-                throw new TrawlException("Failed to find login form!");
+            if (!stopped) {
+                logger.warn("Workers for " + baseURL + " didn't stop within " + WORKER_STOP_SECONDS + " seconds.");
             }
-            if (logins.size() > 1) {
-                logger.warn("Found multiple login forms. Picking the first one...");
+        } finally {
+            sessions.close();
+            if (captchaSolver != null) {
+                captchaSolver.close();
             }
+            transport.close();
+        }
 
-            Element login = logins.get(0);
-
-            // Extract the captcha image if appropriate
-            String captchaResult = "";
-            if (!site.getString("CAPTCHA").equals("")) {
-                // Download the captcha image
-                HttpMessage getCaptcha = new HttpMessage(HttpType.GET);
-                getCaptcha.setImage(true);
-                if (!site.isNull("CAPTCHA_IMAGE")) {
-                    getCaptcha.setUrl(baseURL + site.getString("CAPTCHA_IMAGE"));
-
-                    getCaptcha.initializeDefaultImageHeaders(site);
-                    getCaptcha.addHeader(new Header("Referrer", baseURL + site.getString("LOGIN_URL")));
-                    getCaptcha.addCookieHeaders(cookies);
-
-                    // Send it to deathbycaptcha
-                    SocketClient client = new SocketClient("njanetos", "2point7182");
-                    HttpRequest image = new HttpRequest(getCaptcha);
-                    ByteArrayOutputStream os = new ByteArrayOutputStream();
-                    ImageIO.write(image.getImage(), "png", os);
-                    Captcha result = client.decode(os.toByteArray());
-                    captchaResult = result.toString();
-                } else {
-                    // Just try to get the image
-                    Elements captchas = login.getElementsByTag("img");
-
-                    if (captchas.size() != 1) {
-                        throw new TrawlException("Failed to find captcha, but the initialization file says there should be one.");
-                    }
-
-                    Element captchaImage = captchas.get(0);
-
-                    // Does it contain base64?
-                    if (captchaImage.attr("src").contains("base64")) {
-                        String src = captchaImage.attr("src").split(",")[1];
-
-                        byte image[] = Base64.decodeBase64(src);
-                        ByteArrayOutputStream os = new ByteArrayOutputStream();
-                        os.write(image);
-
-                        SocketClient client = new SocketClient("njanetos", "2point7182");
-
-                        Captcha result = client.decode(os.toByteArray());
-                        captchaResult = result.toString();
+        if (interrupted) {
+            logger.info("Trawling was interrupted for " + config.getBaseURL() + ". Writing what was fetched.");
+        } else {
+            logger.info("Trawling has terminated for " + config.getBaseURL() + ". Writing to file.");
+        }
+        logger.info("Finished at " + String.format("%.2f", rateLimiter.getRate()) + " requests a second, after backing off " + rateLimiter.getDecreases() + " times.");
+        if (validators != null) {
+            logger.info(unchangedPages.get() + " pages were not modified since the last trawl.");
+        }
 
-                    } else {
-                        if (captchaImage.attr("src").contains(baseURL)) {
-                            getCaptcha.setUrl(captchaImage.attr("src"));
-                        } else {
-                            getCaptcha.setUrl(baseURL + captchaImage.attr("src"));
-                        }
+        try {
+            // Wait for the writer to finish what's queued
+            try {
+                writerStage.close();
+                if (writerStage.getFailure() != null && failure == null) {
+                    // Keep the checkpoint, which has the pages it didn't write
+                    failure = new TrawlException("Writer stopped before writing every page: " + writerStage.getFailure());
+                }
+            } catch (InterruptedException e) {
+                // The writer may still be using the store, so leave it open
+                interrupted = true;
+                throw new TrawlException("Interrupted while writing " + baseURL + ".");
+            } finally {
+                // The last snapshot has everything in it
+                metricsExporter.close();
+            }
+            try {
+                store.close();
+            } catch (IOException e) {
+                logger.error("Unable to close archive: " + e.getMessage());
+            }
 
-                        getCaptcha.initializeDefaultImageHeaders(site);
-                        getCaptcha.addHeader(new Header("Referrer", baseURL + site.getString("LOGIN_URL")));
-                        getCaptcha.addCookieHeaders(cookies);
-
-                        // Send it to deathbycaptcha
-                        SocketClient client = new SocketClient("njanetos", "2point7182");
-                        HttpRequest image = new HttpRequest(getCaptcha);
-                        ByteArrayOutputStream os = new ByteArrayOutputStream();
-                        ImageIO.write(image.getImage(), "png", os);
-                        Captcha result = client.decode(os.toByteArray());
-                        captchaResult = result.toString();
+            if (failure != null) {
+                // Save where we got to, so the trawl can be resumed
+                if (checkpoint != null) {
+                    saveCheckpoint();
+                    checkpoint.close();
+                } else if (stopped) {
+                    // Workers which didn't stop may still be using these
+                    lineage.close();
+                    synchronized (pageQueue) {
+                        pageQueue.close();
                     }
                 }
+                throw failure;
+            }
 
-                logger.info("Decoded captcha: " + captchaResult);
+            // Done, nothing left to resume
+            if (checkpoint != null) {
+                checkpoint.delete();
+            }
+            lineage.close();
+            synchronized (pageQueue) {
+                pageQueue.close();
             }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-            // Grab any hidden fields
-            Elements hidden = login.getElementsByAttributeValue("type", "hidden");
+    /**
+     * The loop run by each worker. Takes pages off the queue until there are
+     * none left and no other worker is still visiting a page which might add
+     * more.
+     */
+    private void work() {
+        SessionPool.Session session = null;
+        try {
+            Page page;
+            while ((page = nextPage()) != null) {
+                boolean checkpointDue;
+                try {
+                    session = visitNext(page, session);
+                } catch (TrawlException | InterruptedException | RuntimeException e) {
+                    // Keep the page so it's saved with the last checkpoint
+                    requeue(page);
+                    throw e;
+                } finally {
+                    checkpointDue = finishedPage(page);
+                }
 
-            // Build the post response
-            HttpMessage httpPost = new HttpMessage(HttpType.POST);
-            httpPost.initializeDefaultHeaders(site);
-            httpPost.addCookieHeaders(cookies);
-            // TODO: Read this from the html!
-            httpPost.setUrl(baseURL + site.getString("LOGIN_SUBMIT"));
+                if (checkpointDue) {
+                    saveCheckpoint();
+                }
+            }
+        } catch (TrawlException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.error("Worker crashed: " + e.getMessage(), e);
+            fail(new TrawlException("Worker crashed: " + e.getMessage()));
+        } finally {
+            sessions.release(session);
+        }
+    }
 
-            httpPost.appendContent(site.getString("USERNAME_FIELD"), site.getString("USERNAME"));
-            httpPost.appendContent(site.getString("PASSWORD_FIELD"), site.getString("PASSWORD"));
-            if (!captchaResult.equals("")) {
-                httpPost.appendContent(site.getString("CAPTCHA_FIELD"), captchaResult);
+    /**
+     * Stops every worker, and remembers why.
+     */
+    private void fail(TrawlException e) {
+        synchronized (pageQueue) {
+            if (failure == null) {
+                failure = e;
             }
+            pageQueue.notifyAll();
+        }
+    }
 
-            for (int i = 0; i < hidden.size(); ++i) {
-                httpPost.appendContent(hidden.get(i).attr("name"), hidden.get(i).attr("value"));
+    /**
+     * Takes the next page off the queue, waiting if the queue is empty but
+     * some other worker may still add to it. Retries which are due come
+     * first.
+     *
+     * @return The next page, or null if the trawl is over.
+     * @throws InterruptedException
+     */
+    private Page nextPage() throws InterruptedException {
+        synchronized (pageQueue) {
+            while (true) {
+                if (failure != null) {
+                    pageQueue.notifyAll();
+                    return null;
+                }
+                long now = System.currentTimeMillis();
+                Page page = retries.pollDue(now);
+                if (page == null && !pageQueue.isEmpty()) {
+                    page = pageQueue.removeFirst();
+                }
+                if (page != null) {
+                    ++pagesInFlight;
+                    visiting.add(page);
+                    return page;
+                }
+                if (retries.isEmpty()) {
+                    if (pagesInFlight == 0) {
+                        pageQueue.notifyAll();
+                        return null;
+                    }
+                    pageQueue.wait();
+                } else {
+                    // Nothing else to do until the next retry is due
+                    pageQueue.wait(Math.max(1, retries.nextDue() - now));
+                }
             }
+        }
+    }
 
-            // Add the submit info
-            Element submit = login.getElementsByAttributeValue("type", "submit").get(0);
-            httpPost.appendContent(submit.attr("name"), submit.attr("value"));
+    /**
+     * Marks a page taken with {@link #nextPage()} as done.
+     *
+     * @return True if it's time to save a checkpoint.
+     */
+    private boolean finishedPage(Page page) {
+        synchronized (pageQueue) {
+            --pagesInFlight;
+            removeVisiting(page);
+            pageQueue.notifyAll();
+            ++pagesFinished;
+            return checkpoint != null && pagesFinished % checkpointInterval == 0;
+        }
+    }
 
-            // Add the referrer
-            httpPost.addHeader(new Header("Referer", baseURL + site.getString("LOGIN_URL")));
+    /**
+     * Adds a page to the back of the queue under a URL it's just been given,
+     * and notes the URL in the seen log.
+     */
+    private void enqueue(Page page) {
+        synchronized (pageQueue) {
+            pageQueue.add(page);
+            if (checkpoint != null && !checkpointFailed) {
+                try {
+                    checkpoint.recordSeen(Collections.singletonList(page));
+                } catch (IOException e) {
+                    logger.error("Unable to write seen log, no more checkpoints will be saved: " + e.getMessage());
+                    checkpointFailed = true;
+                }
+            }
+            removeVisiting(page);
+            pageQueue.notifyAll();
+        }
+    }
 
-            // Log in
-            HttpRequest response = new HttpRequest(httpPost);
-            headers = response.getHeaders();
-            // Add any relevant cookies
-            getTempCookies(headers);
-            logger.info("Successfully logged in, response code: " + response.getStatusCode());
+    /**
+     * Pushes a page onto the front of the queue, so it's retried next.
+     */
+    private void requeue(Page page) {
+        synchronized (pageQueue) {
+            pageQueue.push(page);
+            removeVisiting(page);
+            pageQueue.notifyAll();
+        }
+    }
 
-            // Were we redirected? If so, visit the redirection URL before continuing. 
-            if (response.getStatusCode() == 302) {
-                // Send a GET request to the redirection URL before continuing. 
-                httpGet = new HttpMessage(HttpType.GET);
-                httpGet.initializeDefaultHeaders(site);
-                httpGet.addHeader(new Header("Referer", baseURL + site.getString("LOGIN_URL")));
-                String redirectionURL = getRedirectionURL(headers);
-                httpGet.setUrl(redirectionURL);
-                httpGet.addCookieHeaders(cookies);
+    /**
+     * Puts a page aside to be tried again after a wait, so the rest of the
+     * queue keeps moving in the meantime.
+     */
+    private void retry(Page page) {
+        synchronized (pageQueue) {
+            long delay = retries.add(page, System.currentTimeMillis());
+            removeVisiting(page);
+            pagesRetried.increment();
+            pageQueue.notifyAll();
+            logger.info("Retrying " + page.getTagURL() + " in " + (delay / 1000) + " seconds.");
+        }
+    }
 
-                httpRequest = new HttpRequest(httpGet);
-                logger.debug("Visited redirected page. Status code " + httpRequest.getStatusCode());
+    /**
+     * Forgets a page which is no longer being visited. Pages are compared by
+     * identity, since the same URL may be queued twice. Call while holding the
+     * pageQueue lock.
+     */
+    private void removeVisiting(Page page) {
+        for (int i = 0; i < visiting.size(); ++i) {
+            if (visiting.get(i) == page) {
+                visiting.remove(i);
+                return;
             }
-
-        } catch (ConnectionException | MalformedURLException | ProtocolException ex) {
-            // Did not successfully log in
-            logger.error(ex.getMessage());
-            return false;
-        } catch (IOException ex) {
-            // Did not successfully log in
-            logger.error(ex.getMessage());
-            return false;
-        } catch (Exception | InterruptedException ex) {
-            // Did not successfully log in
-            logger.error(ex.getMessage());
-            return false;
         }
+    }
 
-        // Did we successfully log in? Then return true.
-        return true;
+    /**
+     * Saves the page queue, the pages which haven't been written yet, and how
+     * much of the seen log goes with them. The state is copied into memory
+     * while the queues are locked, then written to disk after they've been
+     * released, so workers never wait on the disk.
+     */
+    private void saveCheckpoint() {
+        synchronized (checkpointLock) {
+            Checkpoint.Snapshot snapshot;
+            synchronized (pageQueue) {
+                if (checkpointFailed) {
+                    return;
+                }
+                // A page can briefly be both visiting and with the writer.
+                // Retries go with the pending pages, and are tried again
+                // straight away on resume.
+                ArrayList<Page> unwritten = new ArrayList<>(visiting);
+                retries.getPages(unwritten);
+                writerStage.getPending(unwritten);
+                Set<Page> added = Collections.newSetFromMap(new IdentityHashMap<Page, Boolean>());
+                ArrayList<Page> pending = new ArrayList<>();
+                for (Page page : unwritten) {
+                    if (added.add(page)) {
+                        pending.add(page);
+                    }
+                }
+                try {
+                    snapshot = checkpoint.snapshot(outputLocation, pending, pageQueue);
+                } catch (IOException e) {
+                    logger.error("Unable to save checkpoint, no more will be saved: " + e.getMessage());
+                    checkpointFailed = true;
+                    return;
+                }
+            }
 
+            try {
+                checkpoint.commit(snapshot);
+                logger.info("Saved checkpoint for " + config.getLocation() + outputLocation + ".");
+            } catch (IOException e) {
+                // The logs may be missing what this one added, so later
+                // checkpoints can't build on it
+                logger.error("Unable to save checkpoint, no more will be saved: " + e.getMessage());
+                synchronized (pageQueue) {
+                    checkpointFailed = true;
+                }
+            }
+        }
     }
 
-    private void flushToFile() {
-        // Create regex pattern for final pass
-        Pattern passFilter = Pattern.compile(site.getString("PASS_FILTER"));
+    /**
+     * Visits a page with a logged in session, and deals with whatever went
+     * wrong.
+     *
+     * @param page The page.
+     * @param current The worker's session so far, or null.
+     * @return The session the page was visited with.
+     */
+    private SessionPool.Session visitNext(Page page, SessionPool.Session current) throws TrawlException, InterruptedException {
 
-        logger.info("\n\n=== Flushing data to file ====\n\n");
+        // Get a logged in session. This only waits if none are.
+        SessionPool.Session session = sessions.acquire(current);
+        int generation = session.getGeneration();
 
-        // Run the pass filters
-        for (int i = writeQueue.size() - 1; i >= 0; --i) {
-            logger.debug("Check " + writeQueue.get(i).getTagURL());
-            if (!passFilter.matcher(writeQueue.get(i).getTagURL()).find()) {
-                logger.info("Final pass: Removing page " + writeQueue.get(i).getTagURL());
-                writeQueue.remove(i);
+        // Wait our turn
+        long issued = rateLimiter.acquire();
+
+        try {
+            visit(page, issued, session);
+        } catch (AuthenticationException e) {
+            logger.info("Logged out: " + e.getMessage());
+            // Only the request which found the session had expired counts
+            // against the page. Others were just in flight at the time.
+            if (sessions.expired(session, generation) && !page.registerTrawlInterrupt()) {
+                // Don't do anything: It's been interrupted too many times.
+                logger.error("Trawling has been interrupted for this page too many times. Removing from site map.");
+                pagesDropped.increment();
+            } else {
+                // Push the page back on, for another session to fetch
+                requeue(page);
+            }
+        } catch (TrawlingInterrupt e) {
+            logger.warn("Trawling interrupt: " + e.getMessage());
+            if (!page.registerTrawlInterrupt()) {
+                // Don't do anything: It's been interrupted too many times.
+                logger.error("Trawling has been interrupted for this page too many times. Removing from site map.");
+                pagesDropped.increment();
+            } else {
+                // Try it again later, and carry on with other pages meanwhile
+                retry(page);
+            }
+        } catch (RedirectionException e) {
+            // Set this page's URL to the new URL and push it back onto the queue.
+            // Has the redirection already been followed? Checked and marked
+            // in one step, as links are.
+            String target = redirectTarget(page, e.getMessage());
+            if (target == null) {
+                logger.info("Redirecting to page " + e.getMessage() + ". It's off the site, so we're dropping it.");
+                pagesDropped.increment();
+            } else if (!trawledPages.add(target)) {
+                logger.info("Redirecting to page " + e.getMessage() + ". It's already been followed, so we're ignoring it.");
+            } else {
+                logger.info("Redirecting to page " + e.getMessage() + ". I'm going to set this to this page's new URL, push it back onto the queue, and restart.");
+                page.setTagURL(target);
+                enqueue(page);
             }
         }
+        return session;
+    }
 
-        Writer.storePages(writeQueue, site.getString("LOCATION") + "/" + outputLocation);
-
-        logger.info("\n\n=== Finished flushing data ===\n\n");
-
+    /**
+     * Works out where a redirection leads. The Location may be relative, so
+     * it's resolved against the page's own URL first.
+     *
+     * @param page The page which was redirected.
+     * @param location The Location header.
+     * @return The new tag URL, or null if it leads off the site.
+     */
+    private String redirectTarget(Page page, String location) {
+        String resolved;
+        try {
+            resolved = new URL(new URL(baseURL + page.getTagURL()), location).toString();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+        if (!resolved.startsWith(baseURL)) {
+            return null;
+        }
+        String target = resolved.substring(baseURL.length());
+        // Another host which happens to start with ours
+        if (!target.isEmpty() && !target.startsWith("/") && !target.startsWith("?")) {
+            return null;
+        }
+        return target;
     }
 
     /**
      * Visit the first page in the queue. Download all the info. Extract
      * relevant URLs. Add them to the queue. Add this page to the list of final
      * pages.
+     *
+     * @param page The page.
+     * @param issued When the rate limiter let the request go.
+     * @param session The session to fetch it with.
      */
-    private void visit(Page page) throws AuthenticationException, TrawlingInterrupt, RedirectionException {
-
-        logger.info(page.getDepth() + "|" + pageQueue.size() + "|" + writeQueue.size() + "|" + trawledPages.size() + ": " + page.getTagURL());
+    private void visit(Page page, long issued, SessionPool.Session session) throws AuthenticationException, TrawlingInterrupt, RedirectionException, InterruptedException, TrawlException {
 
-        // Write current info to file
-        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("info/" + site.getString("LOCATION") + outputLocation + ".info", false), "utf-8"))) {
-            writer.write(pageQueue.size() + "|" + trawledPages.size());
-        } catch (IOException e) {
-            logger.warn(e.getMessage());
+        long queued;
+        synchronized (pageQueue) {
+            queued = pageQueue.size();
         }
+        int buffered = writerStage.size();
 
-        // Initialize the get request
-        HttpMessage httpGet = new HttpMessage(HttpType.GET);
-        httpGet.setUrl(baseURL + page.getTagURL());
-        httpGet.initializeDefaultHeaders(site);
-        httpGet.addCookieHeaders(cookies);
+        logger.info(page.getDepth() + "|" + queued + "|" + buffered + "|" + trawledPages.size() + ": " + page.getTagURL());
+
+        // Ask whether it's changed since last time, if we still have last
+        // time's copy
+        ValidatorStore.Validator previous = validators == null ? null : validators.get(page.getTagURL());
+        if (previous != null && !(previous.canRevalidate() && objects.contains(previous.getDigest()))) {
+            previous = null;
+        }
 
         // Get the page
         try {
-            HttpRequest httpRequest = new HttpRequest(httpGet);
-
-            // Get the headers
-            ArrayList<Header> headers = httpRequest.getHeaders();
-
-            // Read cookies into memory ALWAYS do this after httpRequest
-            getTempCookies(headers);
-
-            // Check whether we were redirected to the login page. Throws an 
-            // authentication exception if we're redirected to the login page.
-            // Throws a redirection exception otherwise. 
-            checkHeaders(httpRequest);
+            HttpRequest httpRequest = fetch(page, previous, issued, session);
+
+            byte[] stored = null;
+            if (httpRequest.getStatusCode() == 304 && previous != null) {
+                try {
+                    stored = objects.get(previous.getDigest());
+                } catch (IOException e) {
+                    // Our copy has gone, which is no fault of the site's, so
+                    // ask again straight away for the whole page
+                    logger.warn("Unable to read the stored copy of " + page.getTagURL() + ", fetching it in full: " + e.getMessage());
+                    validators.forget(page.getTagURL());
+                    previous = null;
+                    issued = rateLimiter.acquire();
+                    httpRequest = fetch(page, null, issued, session);
+                }
+            }
 
-            // Set the html
-            page.setHtml(httpRequest.getHtml());
+            boolean unchanged = stored != null;
+            if (unchanged) {
+                // Not modified, so use the copy we stored last time and
+                // follow its links again
+                page.setBody(stored, ContentDecoder.DEFAULT_CHARSET);
+                page.setDigest(previous.getDigest());
+                page.setValidators(previous.getETag(), previous.getLastModified());
+                unchangedPages.increment();
+                logger.debug("Not modified: " + page.getTagURL());
+            } else {
+                // Set the html, as bytes
+                page.setBody(httpRequest.getBody(), httpRequest.getCharset());
+                page.setValidators(httpRequest.getHeader("ETag"), httpRequest.getHeader("Last-Modified"));
+            }
+            String html = page.getHtml();
 
-            // Test for whether we're at the login page
-            if (!site.isNull("LOGIN_TEST")) {
-                Matcher loginMatch = Pattern.compile(site.getString("LOGIN_TEST")).matcher(page.getHtml());
+            // Test for whether we're at the login page. The stored copy passed
+            // this last time.
+            if (!unchanged && config.getLoginTest() != null) {
+                Matcher loginMatch = config.getLoginTest().matcher(html);
                 if (loginMatch.find()) {
-                    logger.info("According to LOGIN_TEST, we're at the login page. Attempting to log in...");
-                    needToLogin = true;
-                    throw new TrawlingInterrupt("Log in.");
+                    throw new AuthenticationException("According to LOGIN_TEST, " + session.getUsername() + " is at the login page.");
                 }
             }
+            sessions.succeeded(session);
 
             page.setDate(System.currentTimeMillis() / 1000);
 
             // If we're below the max depth, extract pages from this site
             if (page.getDepth() < maxDepth) {
-                ArrayList<Page> newPages = extractPages(page);
-
-                // Add new pages to the queue.
-                for (int i = 0; i < newPages.size(); ++i) {
-                    pageQueue.add(newPages.get(i));
+                long parsing = System.nanoTime();
+                ArrayList<Page> newPages = extractPages(page, html);
+                parseMicros.update((System.nanoTime() - parsing) / 1000);
+
+                // Add new pages to the queue, and note them in the seen log
+                // at the same time so the two always agree.
+                synchronized (pageQueue) {
+                    pageQueue.addAll(newPages);
+                    if (checkpoint != null && !checkpointFailed && !newPages.isEmpty()) {
+                        try {
+                            checkpoint.recordSeen(newPages);
+                        } catch (IOException e) {
+                            logger.error("Unable to write seen log, no more checkpoints will be saved: " + e.getMessage());
+                            checkpointFailed = true;
+                        }
+                    }
+                    pageQueue.notifyAll();
                 }
             }
 
-            // If all went well, add this page to the final queue for writing
-            writeQueue.add(page);
+            // If all went well, hand this page over to be written
+            pagesFetched.increment();
+            byte[] body = page.getBody();
+            int size = body == null ? 0 : body.length;
+            pageBytes.update(size);
+            bytesOut.add(size);
+            writerStage.submit(page);
 
         } catch (ConnectionException e) {
-            // TODO Wait a few seconds
-
-            try {
-                Thread.sleep(10000);
-            } catch (InterruptedException ex) {
-
-            }
+            // The rate limiter has already heard about it
             throw new TrawlingInterrupt("Error code: " + e);
 
         } catch (MalformedURLException e) {
@@ -549,153 +894,194 @@ public class Trawler {
             logger.error("There was a malformed url: " + baseURL + page.getTagURL() + ". This page will not be included in the final pages.");
         } catch (ProtocolException e) {
             throw new TrawlingInterrupt("Protocol exception. Will retry later...");
+        } catch (IOException e) {
+            // The lineage log can't be added to, so the paths of any pages
+            // found from here on would be wrong
+            throw new TrawlException("Unable to add to the lineage log: " + e.getMessage());
         }
     }
 
+    /**
+     * Sends one GET for a page, records how it went and checks where it led.
+     *
+     * @param page The page.
+     * @param previous What we know about the page from last time, to ask
+     * whether it's changed, or null to fetch it unconditionally.
+     * @param issued When the rate limiter let the request go.
+     * @param session The session to fetch it with.
+     * @return The response.
+     */
+    private HttpRequest fetch(Page page, ValidatorStore.Validator previous, long issued, SessionPool.Session session) throws ConnectionException, MalformedURLException, ProtocolException, AuthenticationException, RedirectionException, TrawlingInterrupt {
+
+        // Initialize the get request
+        HttpMessage httpGet = new HttpMessage(HttpType.GET);
+        httpGet.setUrl(baseURL + page.getTagURL());
+        httpGet.setHeaderTemplate(pageHeaders);
+        httpGet.addCookieHeaders(session.getCookies());
+        if (previous != null) {
+            httpGet.addValidatorHeaders(previous.getETag(), previous.getLastModified());
+        }
+
+        HttpRequest httpRequest;
+        try {
+            httpRequest = new HttpRequest(httpGet, transport);
+        } catch (ConnectionException e) {
+            if (e.getStatusCode() == 0) {
+                // Slow down rather than sleep, so every worker backs off
+                rateLimiter.onFailure(issued);
+            } else {
+                // The site still answered, and only a 403 or a 5xx means
+                // it's struggling. A 404 says nothing about our pace.
+                rateLimiter.onResponse(issued, e.getStatusCode(), e.getMillis());
+            }
+            throw e;
+        } catch (ProtocolException e) {
+            rateLimiter.onFailure(issued);
+            throw e;
+        }
+        // Not counting the wait for the proxy, which other sites share, so
+        // their load doesn't slow this one down
+        long latency = httpRequest.getMillis();
+        rateLimiter.onResponse(issued, httpRequest.getStatusCode(), latency);
+        fetchMillis.update(latency);
+        bytesIn.add(httpRequest.getReceived());
+
+        // Read cookies into memory ALWAYS do this after httpRequest
+        session.getCookies().setCookies(httpRequest.getHeaders(), httpGet.getUrl());
+
+        // Check whether we were redirected to the login page. Throws an 
+        // authentication exception if we're redirected to the login page.
+        // Throws a redirection exception otherwise. 
+        checkHeaders(httpRequest);
+        return httpRequest;
+    }
+
     /**
      * Extracts links from html, and returns a set of Pages with their parent
      * page already defined.
      *
-     * @param html
+     * @param extractPage The page the html came from.
+     * @param html The html of the page, already decoded.
      * @return A list of pages to follow.
+     * @throws IOException If the pages can't be added to the lineage.
      */
-    private ArrayList<Page> extractPages(Page extractPage) {
-
-        String html = extractPage.getHtml();
+    private ArrayList<Page> extractPages(Page extractPage, String html) throws IOException {
 
         ArrayList<Page> pages = new ArrayList<>();
 
         // Are we at a stop at page?
-        for (String e : stopAt) {
-            if (extractPage.getTagURL().contains(e)) {
-                return pages;
-            }
-        }
-
-        // Parse the html
-        Document doc = Jsoup.parse(html);
-        Elements links = doc.getElementsByTag("a");
-
-        for (Element link : links) {
-
-            String tagURL = "";
-            String linkText = "";
-            boolean alreadyFollowed;
-            boolean validURL = false;
-
-            // First format the link
-            if (link.attr("href").startsWith(baseURL)) {
-                tagURL = link.attr("href").replace(baseURL, "");
-                linkText = link.html();
-                validURL = true;
-            } else if (link.attr("href").startsWith("/")) {
-                tagURL = link.attr("href");
-                linkText = link.html();
-                validURL = true;
-            } else if (link.attr("href").startsWith("./")) {
-                tagURL = link.attr("href").substring(1);
-                linkText = link.html();
-                validURL = true;
-            }
-
-//else if (!link.attr("href").startsWith("/") && !link.attr("href").startsWith("http")) {
-            //    tagURL = "/" + link.attr("href");
-            //    linkText = link.html();
-            //    validURL = true;
-            //}
-            // Has it already been followed?
-            alreadyFollowed = trawledPages.contains(tagURL);
-
-            // Does it violate the exclusion rules?
-            boolean excluded = false;
-            for (String e : exclude) {
-                if (tagURL.contains(e)) {
-                    excluded = true;
-                }
-            }
-
-            // Does it violate the exclusion equal rule?
-            for (String e : excludeIfEqual) {
-                if (tagURL.equals(e)) {
-                    excluded = true;
-                }
-            }
-
-            if (!alreadyFollowed && validURL && !excluded) {
-                logger.debug("Creating new page at URL " + tagURL);
-                Page page = new Page(tagURL, extractPage, linkText);
-                trawledPages.add(tagURL);
-                pages.add(page);
-            }
+        if (policy.isStop(extractPage.getTagURL())) {
+            return pages;
+        }
 
-            if (alreadyFollowed) {
-                logger.debug("Skipping duplicate at URL " + tagURL);
-            }
-            if (!validURL) {
-                logger.debug("Invalid URL at " + link.attr("href"));
-            }
-            if (excluded) {
-                logger.debug("Exclusion at " + link.attr("href"));
-            }
+        for (AnchorScanner.Anchor anchor : findAnchors(extractPage, html)) {
+            classifyLink(extractPage, anchor, pages);
         }
         return pages;
     }
 
     /**
-     *
-     * @return The pages which are queued to be written.
+     * Finds the anchors in a page, with whichever LINK_EXTRACTOR is set.
      */
-    public LinkedList<Page> getWriteQueue() {
-        return writeQueue;
+    private List<AnchorScanner.Anchor> findAnchors(Page page, String html) {
+        switch (linkExtractor) {
+            case STREAMING:
+                List<AnchorScanner.Anchor> anchors = AnchorScanner.scan(html);
+                if (anchors == null) {
+                    logger.debug("Markup too complex to scan, parsing " + page.getTagURL());
+                    anchors = AnchorScanner.parse(html);
+                }
+                return anchors;
+            case COMPARE:
+                List<AnchorScanner.Anchor> parsed = AnchorScanner.parse(html);
+                List<AnchorScanner.Anchor> scanned = AnchorScanner.scan(html);
+                if (scanned == null) {
+                    logger.info("Compare: scanner fell back to parsing " + page.getTagURL());
+                } else {
+                    compareAnchors(page, scanned, parsed);
+                }
+                return parsed;
+            default:
+                return AnchorScanner.parse(html);
+        }
     }
 
     /**
-     *
-     * @return The base URL to visit, e.g., 'www.google.com'.
+     * Logs the first difference between what the scanner and Jsoup found.
      */
-    public String getBaseURL() {
-        return baseURL;
+    private void compareAnchors(Page page, List<AnchorScanner.Anchor> scanned, List<AnchorScanner.Anchor> parsed) {
+        for (int i = 0; i < Math.max(scanned.size(), parsed.size()); ++i) {
+            if (i >= scanned.size() || i >= parsed.size()) {
+                logger.warn("Compare: " + page.getTagURL() + " has " + scanned.size() + " anchors scanned but " + parsed.size() + " parsed.");
+                return;
+            }
+            AnchorScanner.Anchor s = scanned.get(i);
+            AnchorScanner.Anchor p = parsed.get(i);
+            if (!s.getHref().equals(p.getHref()) || !s.getText().equals(p.getText())) {
+                logger.warn("Compare: " + page.getTagURL() + " anchor " + i + " scanned as " + s.getHref() + " '" + s.getText() + "' but parsed as " + p.getHref() + " '" + p.getText() + "'.");
+                return;
+            }
+        }
     }
 
     /**
-     * Tests whether the CAPTCHA text appears in the page.
+     * Decides whether to follow a link, and if so adds a new page for it.
      *
-     * @param string
-     * @return
+     * @param extractPage The page the link is on.
+     * @param anchor The link.
+     * @param pages Where to add the new page.
+     * @throws IOException If the page can't be added to the lineage.
      */
-    private boolean testForCaptcha(String string) {
-        Matcher matcherFindNumber = Pattern.compile(site.getString("CAPTCHA")).matcher(string);
+    private void classifyLink(Page extractPage, AnchorScanner.Anchor anchor, ArrayList<Page> pages) throws IOException {
+        String href = anchor.getHref();
+        String tagURL = "";
+        boolean alreadyFollowed = false;
+        boolean validURL = false;
+
+        // First format the link
+        if (href.startsWith(baseURL)) {
+            tagURL = href.replace(baseURL, "");
+            validURL = true;
+        } else if (href.startsWith("/")) {
+            tagURL = href;
+            validURL = true;
+        } else if (href.startsWith("./")) {
+            tagURL = href.substring(1);
+            validURL = true;
+        }
+
+        // Does it violate the exclusion rules?
+        boolean excluded = validURL && policy.decide(tagURL) == UrlDecision.EXCLUDE;
+
+        // Has it already been followed? Checked and marked in one step,
+        // since other workers are adding to the same set.
+        if (validURL && !excluded) {
+            alreadyFollowed = !trawledPages.add(tagURL);
+            if (!alreadyFollowed) {
+                logger.debug("Creating new page at URL " + tagURL);
+                // Only work out the link text for pages we keep
+                Page page = new Page(tagURL, extractPage, anchor.getText());
+                pages.add(page);
+            }
+        }
 
-        return matcherFindNumber.find();
+        if (alreadyFollowed) {
+            logger.debug("Skipping duplicate at URL " + tagURL);
+        }
+        if (!validURL) {
+            logger.debug("Invalid URL at " + href);
+        }
+        if (excluded) {
+            logger.debug("Exclusion at " + href);
+        }
     }
 
     /**
-     * Returns a list of cookies from the header
      *
-     * @param headers
+     * @return The base URL to visit, e.g., 'www.google.com'.
      */
-    private void getTempCookies(ArrayList<Header> headers) {
-        for (Header h : headers) {
-            if (h.getName().toLowerCase().equals("set-cookie")) {
-
-                // Parse out values
-                String[] values = h.getValue().split(";");
-                for (String s : values) {
-                    if (s.contains("=")) {
-                        Cookie cookie = new Cookie(s);
-
-                        // Check whether the cookie is already present, if so, replace it
-                        // with the newest one.
-                        if (!Cookie.isAlreadyIn(cookies, cookie)) {
-                            cookies.add(cookie);
-                        } else {
-                            Cookie.replace(cookies, cookie);
-                        }
-                    }
-
-                }
-            }
-        }
+    public String getBaseURL() {
+        return baseURL;
     }
 
     /**
@@ -723,10 +1109,8 @@ public class Trawler {
         }
 
         // Permissions status
-        if (response.getStatusCode() >= 200 && response.getStatusCode() < 300) {
-            if (response.getStatusCode() == 403) {
-                throw new TrawlingInterrupt(Integer.toString(response.getStatusCode()));
-            }
+        if (response.getStatusCode() == 403) {
+            throw new TrawlingInterrupt(Integer.toString(response.getStatusCode()));
         }
 
         // Server error
@@ -737,20 +1121,4 @@ public class Trawler {
         return Integer.toString(response.getStatusCode());
     }
 
-    /**
-     * Returns the redirection URL to follow from the headers.
-     *
-     * @param headers
-     * @return
-     */
-    private String getRedirectionURL(ArrayList<Header> headers) {
-        for (Header h : headers) {
-            if (h.getName().equals("Location")) {
-                return h.getValue();
-            }
-        }
-
-        return "";
-    }
-
 }
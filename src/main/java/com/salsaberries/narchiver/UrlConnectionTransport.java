@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends requests with {@link HttpURLConnection}, opening a new connection
+ * through the proxy every time. This is the original way of doing things, kept
+ * as a fallback for sites the pooled transport has trouble with.
+ *
+ * @author njanetos
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(UrlConnectionTransport.class);
+
+    private final Proxy proxy;
+
+    /**
+     * Creates a new transport through the local proxy.
+     */
+    public UrlConnectionTransport() {
+        proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(PROXY_HOST, PROXY_PORT));
+    }
+
+    @Override
+    public RawResponse send(HttpMessage message) throws IOException {
+        HttpURLConnection.setFollowRedirects(false);
+
+        URL url = new URL(message.getUrl());
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection(proxy);
+
+        // Default timeout is 120 seconds
+        connection.setConnectTimeout(TIMEOUT);
+
+        // Allow the request to have content, if turned on
+        if (!message.getContent().equals("")) {
+            connection.setDoOutput(true);
+        }
+
+        // Set what type of request this is
+        connection.setRequestMethod(message.getHttpType().toString());
+
+        // Add headers
+        for (Header h : message.getHeaders()) {
+            connection.setRequestProperty(h.getName(), h.getValue());
+        }
+
+        // Open and write output stream, if the message has output
+        if (!message.getContent().equals("")) {
+            try (DataOutputStream writer = new DataOutputStream(connection.getOutputStream())) {
+                writer.writeBytes(message.getContent());
+                writer.flush();
+            }
+        }
+
+        // Get the status code
+        int statusCode = connection.getResponseCode();
+
+        // Get the headers
+        Map<String, List<String>> heads = connection.getHeaderFields();
+        ArrayList<Header> headers = new ArrayList<>();
+        for (String headName : heads.keySet()) {
+            for (String headValue : heads.get(headName)) {
+                headers.add(new Header(headName, headValue));
+            }
+        }
+
+        // Read the whole body, or the error body, so the connection can be
+        // handed back to the JVM's keep-alive cache.
+        InputStream is = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        byte[] body = new byte[0];
+        if (is != null) {
+            try (InputStream in = is) {
+                body = readFully(in);
+            }
+        }
+
+        logger.debug("Read " + body.length + " bytes from " + message.getUrl());
+
+        return new RawResponse(statusCode, headers, body);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Reads a stream until it ends.
+     *
+     * @param is The stream to read.
+     * @return Everything read from the stream.
+     * @throws IOException
+     */
+    static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(8192);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+        return os.toByteArray();
+    }
+}
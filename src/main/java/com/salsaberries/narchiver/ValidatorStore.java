@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers, for each URL of a site, the ETag and Last-Modified date the
+ * server sent last time and the SHA-1 of the body we stored. Kept between
+ * trawls, so the next trawl can send a conditional GET and reuse the stored
+ * body if the server says nothing has changed.
+ *
+ * The file is an append-only log of entries, each the URL, ETag,
+ * Last-Modified and digest as int length prefixed UTF-8 strings, with an
+ * empty string for a missing header. Later entries replace earlier ones. When
+ * the log is opened it's rewritten if most of it is out of date.
+ *
+ * The entries stay on disk. All that's kept in memory is where the latest
+ * entry for each URL is, in a {@link FingerprintMap} keyed by the URL's
+ * fingerprint as the seen set is, and each lookup reads its entry back. The
+ * entry's URL is checked, so a fingerprint collision only costs a full fetch.
+ *
+ * @author njanetos
+ */
+public class ValidatorStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ValidatorStore.class);
+
+    // Entries are found by offset and length, packed into one long
+    private static final int LENGTH_BITS = 16;
+    private static final int MAX_LENGTH = (1 << LENGTH_BITS) - 1;
+
+    private final File file;
+    private final FingerprintMap entries;
+    private final ByteArrayOutputStream entry;
+    private final DataOutputStream entryOut;
+    private FileOutputStream stream;
+    private DataOutputStream out;
+    private FileChannel reader;
+    private long position;
+    private long flushed;
+
+    /**
+     * Finds the validators, creating the file if needed.
+     *
+     * @param file The validator log.
+     * @throws IOException
+     */
+    public ValidatorStore(File file) throws IOException {
+        this.file = file;
+        this.entries = new FingerprintMap(1 << 16);
+        this.entry = new ByteArrayOutputStream(256);
+        this.entryOut = new DataOutputStream(entry);
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent.getAbsolutePath());
+        }
+
+        long count = 0;
+        long valid = 0;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+                while (true) {
+                    String tagURL = readString(in);
+                    String etag = readString(in);
+                    String lastModified = readString(in);
+                    String digest = readString(in);
+                    long length = 16 + length(tagURL) + length(etag) + length(lastModified) + length(digest);
+                    index(tagURL, valid, length);
+                    valid += length;
+                    ++count;
+                }
+            } catch (EOFException e) {
+                // Got to the end of the complete entries
+            }
+        }
+
+        if (file.exists() && valid != file.length()) {
+            logger.warn("Validator log " + file.getAbsolutePath() + " was not closed cleanly, truncating to " + valid + " bytes.");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(valid);
+            }
+        }
+        stream = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+        reader = new RandomAccessFile(file, "r").getChannel();
+        position = valid;
+        flushed = valid;
+
+        if (count > 1000 && count > 2 * entries.size()) {
+            // Mostly superseded entries, write out just the live ones
+            compact();
+        }
+        logger.info("Found validators for " + entries.size() + " pages.");
+    }
+
+    /**
+     *
+     * @param tagURL The URL of a page.
+     * @return What we know about the page from last time, or null.
+     */
+    public Validator get(String tagURL) {
+        long location;
+        synchronized (this) {
+            location = entries.get(FingerprintSet.fingerprint(tagURL), -1);
+            if (location < 0) {
+                return null;
+            }
+            if ((location >>> LENGTH_BITS) >= flushed) {
+                // It's still in the write buffer
+                try {
+                    out.flush();
+                    flushed = position;
+                } catch (IOException e) {
+                    logger.warn("Unable to flush validator log: " + e.getMessage());
+                    return null;
+                }
+            }
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(read(location)));
+            if (!readString(in).equals(tagURL)) {
+                // Another URL with the same fingerprint
+                return null;
+            }
+            String etag = readString(in);
+            String lastModified = readString(in);
+            String digest = readString(in);
+            return new Validator(etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified, digest);
+        } catch (IOException e) {
+            logger.warn("Unable to read the validators for " + tagURL + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Records what we know about a page. Only call once its body is safely
+     * stored.
+     *
+     * @param tagURL The URL of the page.
+     * @param etag The ETag header, or null.
+     * @param lastModified The Last-Modified header, or null.
+     * @param digest The SHA-1 of the stored body.
+     * @throws IOException
+     */
+    public void put(String tagURL, String etag, String lastModified, String digest) throws IOException {
+        Validator validator = new Validator(etag, lastModified, digest);
+        if (validator.equals(get(tagURL))) {
+            return;
+        }
+        synchronized (this) {
+            entry.reset();
+            write(entryOut, tagURL, validator);
+            out.write(entry.toByteArray());
+            index(tagURL, position, entry.size());
+            position += entry.size();
+        }
+    }
+
+    /**
+     * Forgets a page for the rest of this trawl, for example if its stored
+     * body has gone missing.
+     *
+     * @param tagURL The URL of the page.
+     */
+    public synchronized void forget(String tagURL) {
+        entries.remove(FingerprintSet.fingerprint(tagURL));
+    }
+
+    /**
+     * Forces everything recorded so far to disk.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        out.flush();
+        flushed = position;
+        stream.getChannel().force(false);
+    }
+
+    /**
+     * Syncs and closes the log.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        sync();
+        out.close();
+        reader.close();
+    }
+
+    /**
+     * Notes where the latest entry for a URL is. Entries too long to find
+     * this way are left out, and the page is just fetched in full.
+     */
+    private void index(String tagURL, long offset, long length) {
+        if (length > MAX_LENGTH) {
+            entries.remove(FingerprintSet.fingerprint(tagURL));
+            return;
+        }
+        entries.put(FingerprintSet.fingerprint(tagURL), (offset << LENGTH_BITS) | length);
+    }
+
+    private byte[] read(long location) throws IOException {
+        long offset = location >>> LENGTH_BITS;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (location & MAX_LENGTH));
+        while (buffer.hasRemaining()) {
+            if (reader.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Validator log ends early.");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Rewrites the log with only the latest entry for each URL.
+     */
+    private void compact() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        long[] locations = entries.values();
+        try (FileOutputStream tempStream = new FileOutputStream(temp)) {
+            DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(tempStream, 65536));
+            for (long location : locations) {
+                tempOut.write(read(location));
+            }
+            tempOut.flush();
+            tempStream.getChannel().force(false);
+        }
+        out.close();
+        reader.close();
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // Everything has moved, so find it all again
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            for (int i = 0; i < locations.length; ++i) {
+                String tagURL = readString(in);
+                long length = 16 + length(tagURL) + length(readString(in)) + length(readString(in)) + length(readString(in));
+                index(tagURL, offset, length);
+                offset += length;
+            }
+        }
+        stream = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+        reader = new RandomAccessFile(file, "r").getChannel();
+        position = offset;
+        flushed = offset;
+        logger.info("Compacted validator log to " + entries.size() + " entries.");
+    }
+
+    private static void write(DataOutput out, String tagURL, Validator validator) throws IOException {
+        writeString(out, tagURL);
+        writeString(out, validator.etag == null ? "" : validator.etag);
+        writeString(out, validator.lastModified == null ? "" : validator.lastModified);
+        writeString(out, validator.digest);
+    }
+
+    private static void writeString(DataOutput out, String string) throws IOException {
+        byte[] bytes = string.getBytes(ArchiveWriter.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 1 << 24) {
+            throw new EOFException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, ArchiveWriter.UTF_8);
+    }
+
+    private static int length(String string) {
+        return string.getBytes(ArchiveWriter.UTF_8).length;
+    }
+
+    /**
+     * What we know about a page from last time.
+     */
+    public static class Validator {
+
+        private final String etag;
+        private final String lastModified;
+        private final String digest;
+
+        private Validator(String etag, String lastModified, String digest) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+
+        /**
+         *
+         * @return The ETag, or null.
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         *
+         * @return The Last-Modified date, or null.
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         *
+         * @return The SHA-1 of the stored body.
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         *
+         * @return True if the server sent anything we can make a conditional
+         * GET with.
+         */
+        public boolean canRevalidate() {
+            return etag != null || lastModified != null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Validator)) {
+                return false;
+            }
+            Validator v = (Validator) o;
+            return digest.equals(v.digest)
+                    && (etag == null ? v.etag == null : etag.equals(v.etag))
+                    && (lastModified == null ? v.lastModified == null : lastModified.equals(v.lastModified));
+        }
+
+        @Override
+        public int hashCode() {
+            return digest.hashCode();
+        }
+    }
+}
@@ -20,13 +20,14 @@ package com.salsaberries.narchiver;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.zip.GZIPOutputStream;
@@ -50,39 +51,53 @@ public class Writer {
 
     private static final Logger logger = LoggerFactory.getLogger(Writer.class);
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 65536;
+
     /**
-     * Writes all the pages to file.
+     * Writes all the pages to file. Each file, and the directory, is synced
+     * before this returns.
      *
      * @param pages
      * @param location
+     * @throws IOException If a page couldn't be written, in which case it and
+     * the pages after it are left in the list.
      */
-    public static void storePages(LinkedList<Page> pages, String location) {
+    public static void storePages(LinkedList<Page> pages, String location) throws IOException {
 
         logger.info("Dumping " + pages.size() + " pages to file at " + location + "/");
 
         File file = new File(location);
         // Make sure the directory exists
         if (!file.exists()) {
-            try {
-                file.mkdirs();
-                logger.info("Directory " + file.getAbsolutePath() + " does not exist, creating.");
-            } catch (SecurityException e) {
-                logger.error(e.getMessage());
+            logger.info("Directory " + file.getAbsolutePath() + " does not exist, creating.");
+            if (!file.mkdirs() && !file.isDirectory()) {
+                throw new IOException("Unable to create directory " + file.getAbsolutePath() + ".");
             }
         }
         // Write them to the file if they haven't been already written
         while (!pages.isEmpty()) {
-            Page page = pages.removeFirst();
+            Page page = pages.getFirst();
             
             String fileName = file.getAbsolutePath() + "/" + page.getDate() + "|" + URLEncoder.encode(page.getTagURL());
             
-            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), "utf-8"))) {
-                writer.write(page.toString());
-            } catch (IOException e) {
-                logger.warn(e.getMessage());
+            // Write the bytes straight out, the same as page.toString() in UTF-8
+            try (FileOutputStream fos = new FileOutputStream(fileName)) {
+                BufferedOutputStream os = new BufferedOutputStream(fos, BUFFER_SIZE);
+                page.writeUtf8Body(os);
+                os.write('\n');
+                os.write(page.getPath().getBytes(UTF_8));
+                os.flush();
+                fos.getChannel().force(false);
             }
             // Temporarily try to reduce memory
-            page.setHtml("");
+            pages.removeFirst();
+            page.clear();
+        }
+
+        // Make sure the new files' names are on disk too
+        try (FileChannel directory = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
         }
     }
 
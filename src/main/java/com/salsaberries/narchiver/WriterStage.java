@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes pages to disk on its own thread, so workers don't stop fetching while
+ * a batch is written.
+ *
+ * Workers hand pages over with {@link #submit(Page)}. The queue is bounded: if
+ * the disk falls behind, workers wait in submit until there's room, rather
+ * than the queue growing without limit. The writer thread takes everything
+ * queued, up to a batch at a time, runs the pass filter and stores the batch,
+ * so there is one sync per batch rather than per page.
+ *
+ * If a batch can't be stored, the writer stops, and the batch and everything
+ * still queued stay pending; see {@link #getPending(List)} and
+ * {@link #getFailure()}.
+ *
+ * If there's a {@link BodyArena}, bodies are moved into it as they're
+ * submitted, re-encoded as UTF-8, and released once their batch has been
+ * stored.
+ *
+ * How long each batch takes to store, and how many pages are waiting, go in
+ * the site's {@link Metrics}.
+ *
+ * @author njanetos
+ */
+public class WriterStage implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriterStage.class);
+
+    private final ArrayDeque<Page> queue;
+    private final int capacity;
+    private final int batchSize;
+    private final SitePolicy policy;
+    private final PageStore store;
+    private final BodyArena arena;
+    private final Thread thread;
+    private final Metrics.Histogram writeMillis;
+    private final Metrics.Counter pagesWritten;
+    private ArrayList<Page> batch;
+    private boolean closed;
+    private Throwable failure;
+    private long written;
+
+    /**
+     *
+     * @param name The name of the writer thread.
+     * @param capacity How many pages can be waiting before workers have to
+     * wait.
+     * @param batchSize The most pages to write at once.
+     * @param policy Pages which don't pass its PASS_FILTER are not stored.
+     * @param store Where to store pages.
+     * @param arena Where to keep bodies while they wait, or null to keep
+     * them on the heap.
+     * @param metrics Where to record how writing is going.
+     */
+    public WriterStage(String name, int capacity, int batchSize, SitePolicy policy, PageStore store, BodyArena arena, Metrics metrics) {
+        this.queue = new ArrayDeque<>();
+        this.capacity = Math.max(1, capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.policy = policy;
+        this.store = store;
+        this.arena = arena;
+        this.thread = new Thread(this, name);
+        // Don't hold up the JVM if the trawl is abandoned without closing us
+        this.thread.setDaemon(true);
+        this.batch = new ArrayList<>();
+        this.closed = false;
+        this.written = 0;
+        this.writeMillis = metrics.histogram("write.millis");
+        this.pagesWritten = metrics.counter("pages.written");
+        metrics.gauge("writer.queue", new Metrics.Gauge() {
+            @Override
+            public double getValue() {
+                return size();
+            }
+        });
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues a page to be written, waiting if the queue is full.
+     *
+     * @param page The page to write.
+     * @throws InterruptedException
+     * @throws IllegalStateException If the writer has been closed, or has
+     * stopped because of an error.
+     */
+    public void submit(Page page) throws InterruptedException {
+        // Copy outside the lock, so the writer isn't held up
+        if (arena != null) {
+            page.moveBodyTo(arena);
+        }
+        synchronized (this) {
+            while (queue.size() >= capacity && !closed) {
+                wait();
+            }
+            if (closed) {
+                page.clear();
+                if (failure != null) {
+                    throw new IllegalStateException("Writer has stopped: " + failure, failure);
+                }
+                throw new IllegalStateException("Writer has already been closed.");
+            }
+            queue.addLast(page);
+            notifyAll();
+        }
+    }
+
+    /**
+     *
+     * @return The number of pages waiting to be written.
+     */
+    public synchronized int size() {
+        return queue.size() + batch.size();
+    }
+
+    /**
+     *
+     * @return The number of pages written so far.
+     */
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    /**
+     *
+     * @return Why the writer thread stopped before it was closed, or null if
+     * it hasn't.
+     */
+    public synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Adds every page which has been submitted but isn't known to be on disk
+     * yet, including the batch being written.
+     *
+     * @param pending The list to add to.
+     */
+    public synchronized void getPending(List<Page> pending) {
+        pending.addAll(batch);
+        pending.addAll(queue);
+    }
+
+    /**
+     * Writes everything still queued, then stops the writer thread. Blocks
+     * until it's done. Check {@link #getFailure()} afterwards to find out
+     * whether everything was written.
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        thread.join();
+        if (arena != null && arena.getRefused() > 0) {
+            logger.info(arena.getRefused() + " pages didn't fit in the body arena and waited on the heap.");
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            write();
+        } catch (InterruptedException e) {
+            logger.warn("Writer interrupted, " + size() + " pages were not written.");
+            fail(e);
+        } catch (Throwable e) {
+            logger.error("Writer stopped, " + size() + " pages were not written: " + e, e);
+            fail(e);
+        } finally {
+            // Nothing more will be taken off the queue, so don't let workers
+            // wait for room
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void fail(Throwable e) {
+        failure = e;
+    }
+
+    /**
+     * Takes batches off the queue and stores them until we're closed and the
+     * queue is empty.
+     */
+    private void write() throws InterruptedException, IOException {
+        ArrayList<Page> current;
+        while (true) {
+            // Take the next batch
+            synchronized (this) {
+                while (queue.isEmpty() && !closed) {
+                    wait();
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                current = new ArrayList<>(Math.min(batchSize, queue.size()));
+                while (current.size() < batchSize && !queue.isEmpty()) {
+                    current.add(queue.removeFirst());
+                }
+                batch = current;
+                // There's room again
+                notifyAll();
+            }
+
+            long started = System.currentTimeMillis();
+            try {
+                store(current);
+            } finally {
+                // Stores clear what they write, but make sure nothing is
+                // left holding arena blocks. If the store failed, the batch
+                // stays pending, so the checkpoint keeps it and a resumed
+                // trawl fetches it again.
+                for (Page page : current) {
+                    page.clear();
+                }
+            }
+
+            writeMillis.update(System.currentTimeMillis() - started);
+            pagesWritten.add(current.size());
+
+            synchronized (this) {
+                written += batch.size();
+                batch = new ArrayList<>();
+            }
+        }
+    }
+
+    private void store(List<Page> pages) throws IOException {
+        LinkedList<Page> passed = new LinkedList<>();
+
+        // Run the pass filter
+        for (Page page : pages) {
+            if (policy.passes(page.getTagURL())) {
+                passed.add(page);
+            } else {
+                logger.info("Final pass: Removing page " + page.getTagURL());
+                page.clear();
+            }
+        }
+
+        if (passed.isEmpty()) {
+            return;
+        }
+        store.storePages(passed);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver.enums;
+
+/**
+ * How a trawl's pages are stored on disk.
+ *
+ * @author njanetos
+ */
+public enum ArchiveFormat {
+
+    /**
+     * One file per page, named by date and URL.
+     */
+    FILES,
+    /**
+     * Pages appended to rolling segment files, each compressed on its own,
+     * with an offset index beside each segment. See
+     * {@link com.salsaberries.narchiver.ArchiveWriter}.
+     */
+    SEGMENTS,
+    /**
+     * Each body stored once by its SHA-1, in an object store shared by every
+     * trawl of the site, with a manifest of each snapshot's pages. See
+     * {@link com.salsaberries.narchiver.DedupStore}.
+     */
+    DEDUP,
+    /**
+     * Each version of a page stored as a delta against the one before it,
+     * shared by every trawl of the site, with a full keyframe every so often.
+     * See {@link com.salsaberries.narchiver.DeltaStore}.
+     */
+    DELTA;
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver.enums;
+
+/**
+ * Who solves the captchas on a site's login form.
+ *
+ * @author njanetos
+ */
+public enum CaptchaSolverType {
+
+    /**
+     * The DeathByCaptcha service. See
+     * {@link com.salsaberries.narchiver.DeathByCaptchaSolver}.
+     */
+    DEATHBYCAPTCHA,
+    /**
+     * Answers kept in files, which can be written by hand as captchas come
+     * in. See {@link com.salsaberries.narchiver.FileCaptchaSolver}.
+     */
+    FILE,
+    /**
+     * The same answer every time, for testing. See
+     * {@link com.salsaberries.narchiver.StubCaptchaSolver}.
+     */
+    STUB;
+}
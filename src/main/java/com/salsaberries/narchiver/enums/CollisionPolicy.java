@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver.enums;
+
+/**
+ * What a {@link com.salsaberries.narchiver.FingerprintSet} does when two URLs
+ * have the same fingerprint.
+ *
+ * @author njanetos
+ */
+public enum CollisionPolicy {
+
+    /**
+     * Treat a matching fingerprint as the same URL. Cheapest, and with 64 bit
+     * fingerprints a collision is vanishingly unlikely.
+     */
+    TRUST,
+    /**
+     * Also store a second, independent fingerprint, and only treat URLs as the
+     * same if both match. Doubles the memory used.
+     */
+    VERIFY;
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver.enums;
+
+/**
+ * How links are found in a page.
+ *
+ * @author njanetos
+ */
+public enum LinkExtractor {
+
+    /**
+     * Parse the whole page with Jsoup.
+     */
+    JSOUP,
+    /**
+     * Scan the page for anchors without building a DOM, falling back to Jsoup
+     * for pages the scanner can't be sure about.
+     */
+    STREAMING,
+    /**
+     * Do both, log any differences, and use what Jsoup found.
+     */
+    COMPARE;
+}
@@ -19,18 +19,52 @@
 package com.salsaberries.narchiver.exceptions;
 
 /**
- * BotDetectionException is thrown when the website asks for a captcha
- * challenge.
+ * ConnectionException is thrown when a request gets no usable response,
+ * either because it failed on the way or because the server answered with an
+ * error status.
  *
  * @author njanetos
  */
 public class ConnectionException extends Exception {
 
+    private final int statusCode;
+    private final long millis;
+
     /**
      *
-     * @param statusCode
+     * @param statusCode The status the server answered with, or 0 if it
+     * didn't answer.
      */
     public ConnectionException(int statusCode) {
+        this(statusCode, -1);
+    }
+
+    /**
+     *
+     * @param statusCode The status the server answered with.
+     * @param millis How long the server took to answer, once the request was
+     * sent.
+     */
+    public ConnectionException(int statusCode, long millis) {
         super(Integer.toString(statusCode));
+        this.statusCode = statusCode;
+        this.millis = millis;
+    }
+
+    /**
+     *
+     * @return The status the server answered with, or 0 if it didn't answer.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     *
+     * @return How long the server took to answer, once the request was sent,
+     * or -1 if it didn't answer.
+     */
+    public long getMillis() {
+        return millis;
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the scanner against Jsoup. The fuller check, over a corpus and any
+ * saved pages, is AnchorScannerCheck in the benchmarks.
+ *
+ * @author njanetos
+ */
+public class AnchorScannerTest {
+
+    /**
+     * Markup the scanner has to get right, or give up on.
+     */
+    private static final String[] EDGE_CASES = {
+        "<a href=/plain>x</a>",
+        "<a href=\"/a?x=1&amp;y=2\">x</a>",
+        "<a href='/a&#47;b'>x</a>",
+        "<a href=\"/a&copy=1\">x</a>",
+        "<a href>x</a>",
+        "<a>nohref</a>",
+        "<a href=/x1 href=/x2>dup</a>",
+        "<A HREF='/y'>  multi \n space  </A>",
+        "<a href=/v data-x='>'>v</a>",
+        "<a/href=/slash>x</a>",
+        "<a href='/v'/>x</a>",
+        "<!-- <a href=/c1>c</a> --><a href=/d>d</a>",
+        "<!--><a href=/e>e</a>",
+        "<!-- x --!><a href=/y>y</a>",
+        "<![CDATA[<a href=/cd>]]><a href=/e>e</a>",
+        "<!DOCTYPE html><a href=/j>j</a>",
+        "<script>var s='<a href=/s>';</script><a href=/t>t</a>",
+        "<textarea><a href=/ta></textarea><a href=/v>v</a>",
+        "<title><a href=/no></title><a href=/yes>y</a>",
+        "<html><head><noscript><a href=/hn>x</a></noscript></head><body><a href=/b>b</a>",
+        "<a href=/x>x &lt; y</a>",
+        "<a href=/x>x&nbsp;y</a>",
+        "<a href=/x>a<br>b</a>",
+        "<a href=\"/z\"><b>bold</b> &amp; x</a>",
+        "<a href=/x><b>b<i>i</b></i></a>",
+        "<p>1 < 2 <a href=/w>w</a>",
+        "<a href=/x>x</a >",
+        "<a href=/open>open",
+        "<a href=/1><a href=/2>x</a>",
+        "<div><a href=/t>t</div></a>",
+        "<select><option><a href=/sel>s</a></select>"};
+
+    /**
+     * What the random fragments are made of.
+     */
+    private static final String[] PARTS = {"<a href=/x>", "<a href='/y?a&amp;b'>", "<A HREF=\"/q\" >", "<a/href=/s>",
+        "<a href='/w'/>", "<a>", "</a>", "text", " ", "\n", "&amp;", "&nbsp;", "<b>", "</b>", "<span>", "</span>",
+        "<br>", "<img src=i>", "<p>", "</p>", "<div>", "</div>", "<table>", "<select><option>", "</select>",
+        "<!-- c -->", "<!-->", "<![CDATA[<a href=/cd>]]>", "<script>x<a href=/s></script>", "<noscript>", "<body>"};
+
+    @Test
+    public void findsAnchorsInOrder() {
+        List<AnchorScanner.Anchor> anchors = AnchorScanner.scan(
+                "<html><body><p><a href=\"/one\">One</a> and <a href='/two?a=1&amp;b=2'>  Two \n <b>items</b></a></p></body></html>");
+        assertNotNull(anchors);
+        assertEquals(2, anchors.size());
+        assertEquals("/one", anchors.get(0).getHref());
+        assertEquals("One", anchors.get(0).getText());
+        assertEquals("/two?a=1&b=2", anchors.get(1).getHref());
+        assertEquals("Two <b>items</b>", anchors.get(1).getText());
+    }
+
+    @Test
+    public void skipsRawTextAndComments() {
+        List<AnchorScanner.Anchor> anchors = AnchorScanner.scan(
+                "<script>document.write('<a href=/s>')</script><!-- <a href=/c> --><style>a{}</style><a href=/real>r</a>");
+        assertNotNull(anchors);
+        assertEquals(1, anchors.size());
+        assertEquals("/real", anchors.get(0).getHref());
+    }
+
+    @Test
+    public void leavesBrokenAnchorsToJsoup() {
+        assertNull(AnchorScanner.scan("<a href=/open>never closed"));
+        assertNull(AnchorScanner.scan("<a href=/1><a href=/2>x</a>"));
+        assertNull(AnchorScanner.scan("<a href=/x><div>block</div></a>"));
+    }
+
+    @Test
+    public void agreesWithJsoupOnEdgeCases() {
+        for (String html : EDGE_CASES) {
+            assertSameAsJsoup(html);
+        }
+    }
+
+    @Test
+    public void agreesWithJsoupOnRandomMarkup() {
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; ++i) {
+            StringBuilder html = new StringBuilder("<html><body>");
+            for (int parts = random.nextInt(20); parts > 0; --parts) {
+                html.append(PARTS[random.nextInt(PARTS.length)]);
+            }
+            assertSameAsJsoup(html.toString());
+        }
+    }
+
+    /**
+     * Pages the scanner gives up on are fine, since the trawler parses those.
+     */
+    private static void assertSameAsJsoup(String html) {
+        List<AnchorScanner.Anchor> scanned = AnchorScanner.scan(html);
+        if (scanned == null) {
+            return;
+        }
+        List<AnchorScanner.Anchor> parsed = AnchorScanner.parse(html);
+        assertEquals(html, parsed.size(), scanned.size());
+        for (int i = 0; i < scanned.size(); ++i) {
+            assertEquals(html, parsed.get(i).getHref(), scanned.get(i).getHref());
+            assertEquals(html, parsed.get(i).getText(), scanned.get(i).getText());
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author njanetos
+ */
+public class ArchiveWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = new File(folder.getRoot(), "archive");
+    }
+
+    @Test
+    public void readsBackWhatWasStored() throws IOException {
+        PageLineage lineage = new PageLineage();
+        Page root = new Page("/", lineage);
+        LinkedList<Page> pages = new LinkedList<>();
+        for (int i = 0; i < 3; ++i) {
+            Page page = new Page("/item/" + i, root, "Item " + i);
+            page.setBody(body(i), ArchiveWriter.UTF_8);
+            page.setDate(1442357918L + i);
+            pages.add(page);
+        }
+
+        ArchiveWriter writer = new ArchiveWriter(directory, 1 << 20);
+        writer.storePages(pages);
+        assertTrue(pages.isEmpty());
+        writer.close();
+
+        try (ArchiveReader reader = new ArchiveReader(directory)) {
+            assertEquals(3, reader.getEntries().size());
+            for (int i = 0; i < 3; ++i) {
+                ArchiveReader.Record record = reader.read("/item/" + i);
+                assertEquals("/item/" + i, record.getTagURL());
+                assertEquals(1442357918L + i, record.getDate());
+                assertEquals("root, /: Item " + i, record.getPath());
+                assertEquals(new String(body(i), ArchiveWriter.UTF_8), record.getHtml());
+            }
+            assertNull(reader.read("/item/3"));
+        }
+    }
+
+    @Test
+    public void rollsSegmentsAndFindsRecordsByLocation() throws IOException {
+        ArchiveWriter writer = new ArchiveWriter(directory, 2048);
+        long[] locations = new long[40];
+        for (int i = 0; i < locations.length; ++i) {
+            locations[i] = writer.write("/item/" + i, "", i, body(i));
+        }
+        writer.close();
+        assertTrue(ArchiveWriter.dataFile(directory, 1).exists());
+
+        try (ArchiveReader reader = new ArchiveReader(directory)) {
+            List<ArchiveReader.Entry> entries = reader.getEntries();
+            assertEquals(locations.length, entries.size());
+            for (int i = 0; i < locations.length; ++i) {
+                assertEquals("/item/" + i, entries.get(i).getTagURL());
+                assertEquals(new String(body(i), ArchiveWriter.UTF_8), reader.read(locations[i]).getHtml());
+            }
+        }
+    }
+
+    @Test
+    public void laterCopiesReplaceEarlierOnes() throws IOException {
+        ArchiveWriter writer = new ArchiveWriter(directory, 1 << 20);
+        writer.write("/item", "", 1, body(1));
+        writer.write("/item", "", 2, body(2));
+        writer.close();
+
+        try (ArchiveReader reader = new ArchiveReader(directory)) {
+            assertEquals(2, reader.getEntries().size());
+            assertEquals(2, reader.read("/item").getDate());
+        }
+    }
+
+    @Test
+    public void recoversFromATruncatedRecord() throws IOException {
+        ArchiveWriter writer = new ArchiveWriter(directory, 1 << 20);
+        for (int i = 0; i < 3; ++i) {
+            writer.write("/item/" + i, "", i, body(i));
+        }
+        writer.close();
+
+        // Died part way through writing the last record
+        File data = ArchiveWriter.dataFile(directory, 0);
+        try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+
+        writer = new ArchiveWriter(directory, 1 << 20);
+        writer.write("/item/3", "", 3, body(3));
+        writer.close();
+
+        try (ArchiveReader reader = new ArchiveReader(directory)) {
+            List<ArchiveReader.Entry> entries = reader.getEntries();
+            assertEquals(3, entries.size());
+            assertEquals("/item/0", entries.get(0).getTagURL());
+            assertEquals("/item/1", entries.get(1).getTagURL());
+            assertEquals("/item/3", entries.get(2).getTagURL());
+            for (ArchiveReader.Entry entry : entries) {
+                reader.read(entry);
+            }
+            assertNull(reader.read("/item/2"));
+        }
+    }
+
+    @Test
+    public void recoversFromATruncatedIndex() throws IOException {
+        ArchiveWriter writer = new ArchiveWriter(directory, 1 << 20);
+        for (int i = 0; i < 3; ++i) {
+            writer.write("/item/" + i, "", i, body(i));
+        }
+        writer.close();
+        long complete = ArchiveWriter.dataFile(directory, 0).length();
+
+        // The last record reached the disk, but not all of its index entry
+        File index = ArchiveWriter.indexFile(directory, 0);
+        try (RandomAccessFile raf = new RandomAccessFile(index, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        writer = new ArchiveWriter(directory, 1 << 20);
+        writer.close();
+        assertTrue(ArchiveWriter.dataFile(directory, 0).length() < complete);
+
+        try (ArchiveReader reader = new ArchiveReader(directory)) {
+            assertEquals(2, reader.getEntries().size());
+            assertEquals(new String(body(1), ArchiveWriter.UTF_8), reader.read("/item/1").getHtml());
+        }
+    }
+
+    @Test
+    public void noticesACorruptBody() throws IOException {
+        ArchiveWriter writer = new ArchiveWriter(directory, 1 << 20);
+        writer.write("/item", "", 1, body(1));
+        writer.close();
+
+        File data = ArchiveWriter.dataFile(directory, 0);
+        try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+            raf.seek(raf.length() - 5);
+            int b = raf.read();
+            raf.seek(raf.length() - 5);
+            raf.write(b ^ 0xff);
+        }
+
+        try (ArchiveReader reader = new ArchiveReader(directory)) {
+            reader.read("/item");
+            fail("Read a corrupt record.");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static byte[] body(int i) {
+        StringBuilder html = new StringBuilder("<html><body>");
+        for (int j = 0; j < 20; ++j) {
+            html.append("<p>Listing ").append(i).append(", line ").append(j).append("</p>");
+        }
+        return html.append("</body></html>").toString().getBytes(ArchiveWriter.UTF_8);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author njanetos
+ */
+public class BlockDeltaTest {
+
+    @Test
+    public void roundTripsEdits() throws IOException {
+        byte[] base = listing(200, -1);
+        roundTrip(base, base);
+        roundTrip(base, listing(200, 57));
+        roundTrip(base, listing(210, -1));
+        roundTrip(base, listing(150, -1));
+        roundTrip(base, Arrays.copyOfRange(base, 1000, base.length));
+        roundTrip(base, new byte[0]);
+        roundTrip(new byte[0], base);
+        roundTrip("short".getBytes(ArchiveWriter.UTF_8), "shorter".getBytes(ArchiveWriter.UTF_8));
+    }
+
+    @Test
+    public void smallEditsMakeSmallDeltas() throws IOException {
+        byte[] base = listing(200, -1);
+        byte[] target = listing(200, 57);
+        byte[] delta = roundTrip(base, target);
+        assertTrue(delta.length + " bytes", delta.length < target.length / 20);
+    }
+
+    @Test
+    public void roundTripsRandomEdits() throws IOException {
+        Random random = new Random(1);
+        for (int i = 0; i < 200; ++i) {
+            byte[] base = new byte[random.nextInt(4000)];
+            // Few distinct bytes, so there are plenty of repeats
+            for (int j = 0; j < base.length; ++j) {
+                base[j] = (byte) ('a' + random.nextInt(4));
+            }
+            byte[] target = base.clone();
+            for (int edits = random.nextInt(10); edits > 0 && target.length > 0; --edits) {
+                int at = random.nextInt(target.length);
+                int cut = random.nextInt(Math.min(100, target.length - at) + 1);
+                byte[] insert = new byte[random.nextInt(100)];
+                random.nextBytes(insert);
+                byte[] edited = new byte[target.length - cut + insert.length];
+                System.arraycopy(target, 0, edited, 0, at);
+                System.arraycopy(insert, 0, edited, at, insert.length);
+                System.arraycopy(target, at + cut, edited, at + insert.length, target.length - at - cut);
+                target = edited;
+            }
+            roundTrip(base, target);
+        }
+    }
+
+    @Test
+    public void refusesADeltaWhichDoesntFit() {
+        byte[] base = listing(200, -1);
+        byte[] target = listing(200, 57);
+        byte[] delta = BlockDelta.encode(base, target);
+        try {
+            BlockDelta.apply(Arrays.copyOf(base, 100), delta, target.length);
+            fail("Applied a delta to the wrong base.");
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            BlockDelta.apply(base, Arrays.copyOf(delta, delta.length - 1), target.length);
+            fail("Applied a truncated delta.");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static byte[] roundTrip(byte[] base, byte[] target) throws IOException {
+        byte[] delta = BlockDelta.encode(base, target);
+        assertArrayEquals(target, BlockDelta.apply(base, delta, target.length));
+        return delta;
+    }
+
+    /**
+     * A page of listings, with one of them changed if asked.
+     */
+    static byte[] listing(int rows, int changed) {
+        StringBuilder html = new StringBuilder("<html><body><table>");
+        for (int i = 0; i < rows; ++i) {
+            html.append("<tr><td><a href=\"/listing/").append(i).append("\">Listing ").append(i).append("</a></td><td>")
+                    .append(i == changed ? "sold out" : (i * 37 % 1000) + " BTC").append("</td></tr>\n");
+        }
+        return html.append("</table></body></html>").toString().getBytes(ArchiveWriter.UTF_8);
+    }
+}
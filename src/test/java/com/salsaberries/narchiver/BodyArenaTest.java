@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author njanetos
+ */
+public class BodyArenaTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void smallBodiesTakeOneBlock() {
+        BodyArena arena = new BodyArena(1 << 20);
+        BodyArena.Body body = arena.store("<p>Sold out</p>".getBytes(UTF_8));
+        assertEquals(BodyArena.BLOCK_SIZE, arena.getUsed());
+        assertEquals("<p>Sold out</p>", new String(body.read(), UTF_8));
+        body.release();
+        assertEquals(0, arena.getUsed());
+    }
+
+    @Test
+    public void readsBackBodiesSpanningBlocks() throws IOException {
+        BodyArena arena = new BodyArena(1 << 20);
+        byte[] bytes = new byte[BodyArena.BLOCK_SIZE * 3 + 17];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) (i * 31);
+        }
+        BodyArena.Body body = arena.store(bytes);
+        assertEquals(4 * BodyArena.BLOCK_SIZE, arena.getUsed());
+        assertArrayEquals(bytes, body.read());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        assertArrayEquals(bytes, out.toByteArray());
+    }
+
+    @Test
+    public void reencodesOtherCharsetsAsUtf8() throws IOException {
+        BodyArena arena = new BodyArena(1 << 20);
+        // Two bytes each in UTF-8, so the body spans blocks
+        String latin = repeat("Café crème brûlée, ", 600);
+        assertUtf8(arena, latin, Charset.forName("ISO-8859-1"));
+        assertUtf8(arena, repeat("Привет ", 1500), Charset.forName("windows-1251"));
+        // Surrogate pairs, some of which straddle the transcoder's chunks
+        assertUtf8(arena, "x" + repeat("😀", 5000), Charset.forName("UTF-16"));
+    }
+
+    @Test
+    public void refusesBodiesThatDontFit() {
+        BodyArena arena = new BodyArena(2 * BodyArena.BLOCK_SIZE);
+        BodyArena.Body kept = arena.store(new byte[10]);
+        assertNull(arena.store(new byte[BodyArena.BLOCK_SIZE + 1]));
+        // Blocks taken before running out are given back
+        byte[] latin = repeat("é", BodyArena.BLOCK_SIZE).getBytes(Charset.forName("ISO-8859-1"));
+        assertNull(arena.store(latin, Charset.forName("ISO-8859-1")));
+        assertEquals(BodyArena.BLOCK_SIZE, arena.getUsed());
+        assertEquals(2, arena.getRefused());
+
+        kept.release();
+        assertTrue(arena.store(new byte[2 * BodyArena.BLOCK_SIZE]) != null);
+    }
+
+    @Test
+    public void pageWritesItsBodyFromTheArena() throws IOException {
+        BodyArena arena = new BodyArena(1 << 20);
+        String html = repeat("<li>Étagère</li>", 1000);
+        Page page = new Page("/shelves");
+        page.setBody(html.getBytes(Charset.forName("ISO-8859-1")), Charset.forName("ISO-8859-1"));
+
+        assertTrue(page.moveBodyTo(arena));
+        assertFalse(page.moveBodyTo(arena));
+        assertEquals(UTF_8, page.getCharset());
+        assertEquals(html, page.getHtml());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        page.writeUtf8Body(out);
+        assertArrayEquals(html.getBytes(UTF_8), out.toByteArray());
+
+        page.clear();
+        assertEquals(0, arena.getUsed());
+    }
+
+    @Test
+    public void pageReencodesBodiesLeftOnTheHeap() throws IOException {
+        String html = repeat("<li>Étagère</li>", 1000);
+        Page page = new Page("/shelves");
+        page.setBody(html.getBytes(Charset.forName("ISO-8859-1")), Charset.forName("ISO-8859-1"));
+
+        assertArrayEquals(html.getBytes(UTF_8), page.getUtf8Body());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        page.writeUtf8Body(out);
+        assertArrayEquals(html.getBytes(UTF_8), out.toByteArray());
+    }
+
+    private static void assertUtf8(BodyArena arena, String text, Charset charset) throws IOException {
+        BodyArena.Body body = arena.store(text.getBytes(charset), charset);
+        byte[] expected = text.getBytes(UTF_8);
+        assertEquals(expected.length, body.length());
+        assertArrayEquals(expected, body.read());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        assertArrayEquals(expected, out.toByteArray());
+        body.release();
+    }
+
+    private static String repeat(String string, int times) {
+        char[] chars = new char[string.length() * times];
+        for (int i = 0; i < times; ++i) {
+            string.getChars(0, string.length(), chars, i * string.length());
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author njanetos
+ */
+public class CookieJarTest {
+
+    private static final String SITE = "http://market.onion";
+    private static final long NOW = 1442357918000L;
+
+    @Test
+    public void parsesAttributes() {
+        Cookie cookie = Cookie.parse("sid = abc=123 ; Domain=.Market.Onion; Path=/shop; Secure; HttpOnly; Other=x", "market.onion", "/", NOW);
+        assertEquals("sid", cookie.getName());
+        assertEquals("abc=123", cookie.getValue());
+        assertEquals("market.onion", cookie.getDomain());
+        assertEquals("/shop", cookie.getPath());
+        assertEquals(Cookie.SESSION, cookie.getExpires());
+        assertTrue(cookie.isSecure());
+        assertTrue(cookie.isHttpOnly());
+    }
+
+    @Test
+    public void defaultsPathToTheRequestsDirectory() {
+        assertEquals("/a/b", Cookie.parse("x=1", "market.onion", "/a/b/c", NOW).getPath());
+        assertEquals("/", Cookie.parse("x=1", "market.onion", "/a", NOW).getPath());
+        assertEquals("/", Cookie.parse("x=1; Path=relative", "market.onion", "/a", NOW).getPath());
+    }
+
+    @Test
+    public void maxAgeWinsOverExpires() {
+        assertEquals(NOW + 60000, Cookie.parse("x=1; Max-Age=60; Expires=Wed, 09 Jun 2021 10:18:14 GMT", "h", "/", NOW).getExpires());
+        assertEquals(NOW + 60000, Cookie.parse("x=1; Expires=Wed, 09 Jun 2021 10:18:14 GMT; Max-Age=60", "h", "/", NOW).getExpires());
+        assertTrue(Cookie.parse("x=1; Max-Age=0", "h", "/", NOW).isExpired(NOW));
+        assertEquals(Cookie.SESSION, Cookie.parse("x=1; Max-Age=soon", "h", "/", NOW).getExpires());
+    }
+
+    @Test
+    public void readsExpiryDates() {
+        assertEquals(1623233894000L, Cookie.parse("x=1; Expires=Wed, 09 Jun 2021 10:18:14 GMT", "h", "/", NOW).getExpires());
+        assertEquals(1623233894000L, Cookie.parse("x=1; Expires=Wed, 09-Jun-2021 10:18:14 GMT", "h", "/", NOW).getExpires());
+        assertEquals(1623233894000L, Cookie.parse("x=1; Expires=Wed, 09-Jun-21 10:18:14 GMT", "h", "/", NOW).getExpires());
+        assertEquals(Cookie.SESSION, Cookie.parse("x=1; Expires=tomorrow", "h", "/", NOW).getExpires());
+    }
+
+    @Test
+    public void rejectsMalformedAndForeignCookies() {
+        assertNull(Cookie.parse("novalue", "market.onion", "/", NOW));
+        assertNull(Cookie.parse("=value", "market.onion", "/", NOW));
+        assertNull(Cookie.parse(" =value", "market.onion", "/", NOW));
+        assertNull(Cookie.parse("x=1; Domain=other.onion", "market.onion", "/", NOW));
+        assertNull(Cookie.parse("x=1; Domain=shop.market.onion", "market.onion", "/", NOW));
+    }
+
+    @Test
+    public void sendsCookiesInOrderAndReplacesThem() {
+        CookieJar jar = new CookieJar(SITE);
+        assertNull(jar.getHeaderValue(SITE + "/"));
+
+        jar.setCookies(headers("a=1", "b=2; Path=/"), SITE + "/login");
+        assertEquals("a=1; b=2", jar.getHeaderValue(SITE + "/items"));
+        // Relative URLs are to the site's host
+        assertEquals("a=1; b=2", jar.getHeaderValue("/items"));
+
+        // A new value keeps its place
+        jar.setCookies(headers("a=3"), SITE + "/");
+        assertEquals("a=3; b=2", jar.getHeaderValue(SITE + "/items"));
+        assertEquals(2, jar.size());
+
+        // An expired cookie removes the old one
+        jar.setCookies(headers("b=; Max-Age=0"), SITE + "/");
+        assertEquals("a=3", jar.getHeaderValue(SITE + "/items"));
+        assertEquals(1, jar.size());
+
+        jar.clear();
+        assertNull(jar.getHeaderValue(SITE + "/items"));
+    }
+
+    @Test
+    public void sendsPathCookiesOnlyUnderTheirPath() {
+        CookieJar jar = new CookieJar(SITE);
+        jar.setCookies(headers("site=1; Path=/", "shop=2; Path=/shop"), SITE + "/");
+        assertEquals("site=1", jar.getHeaderValue(SITE + "/"));
+        assertEquals("site=1", jar.getHeaderValue(SITE + "/shopping"));
+        // Longer paths first
+        assertEquals("shop=2; site=1", jar.getHeaderValue(SITE + "/shop"));
+        assertEquals("shop=2; site=1", jar.getHeaderValue(SITE + "/shop/item?id=1"));
+    }
+
+    @Test
+    public void sendsCookiesOnlyToTheirHosts() {
+        CookieJar jar = new CookieJar(SITE);
+        jar.setCookies(headers("host=1", "domain=2; Domain=market.onion", "secure=3; Secure"), SITE + "/");
+        assertEquals("host=1; domain=2", jar.getHeaderValue(SITE + "/"));
+        assertEquals("host=1; domain=2; secure=3", jar.getHeaderValue("https://market.onion/"));
+        assertEquals("domain=2", jar.getHeaderValue("http://forum.market.onion/"));
+        assertNull(jar.getHeaderValue("http://other.onion/"));
+    }
+
+    @Test
+    public void dropsCookiesOnceTheyExpire() {
+        CookieJar jar = new CookieJar(SITE);
+        Cookie soon = Cookie.parse("soon=1; Max-Age=60", "market.onion", "/", System.currentTimeMillis() - 61000);
+        jar.add(soon, System.currentTimeMillis() - 61000);
+        jar.setCookies(headers("later=2"), SITE + "/");
+        assertEquals("later=2", jar.getHeaderValue(SITE + "/"));
+        assertFalse(jar.size() > 1);
+    }
+
+    private static List<Header> headers(String... cookies) {
+        ArrayList<Header> headers = new ArrayList<>();
+        headers.add(new Header("Content-Type", "text/html"));
+        for (String cookie : cookies) {
+            headers.add(new Header("Set-Cookie", cookie));
+        }
+        return headers;
+    }
+}
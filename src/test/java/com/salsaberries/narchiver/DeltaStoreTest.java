@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author njanetos
+ */
+public class DeltaStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private Page root;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = new File(folder.getRoot(), "versions");
+        root = new Page("/", new PageLineage());
+    }
+
+    @Test
+    public void rebuildsEveryVersion() throws IOException {
+        DeltaStore store = new DeltaStore(directory, 4, 1 << 20);
+        for (int version = 0; version < 10; ++version) {
+            store.storePages(pages(version, "/a", "/b"));
+        }
+
+        for (String url : new String[]{"/a", "/b"}) {
+            List<DeltaStore.Version> versions = store.getVersions(url);
+            assertEquals(10, versions.size());
+            for (int version = 0; version < 10; ++version) {
+                assertEquals(url, versions.get(version).getUrl());
+                assertEquals(1000 + version, versions.get(version).getDate());
+                assertEquals("root, /: " + url, versions.get(version).getPath());
+                // A keyframe every four versions, and deltas in between
+                assertEquals(version % 4 == 0, versions.get(version).isKeyframe());
+                assertEquals(html(version), store.reconstruct(versions.get(version)));
+            }
+        }
+        assertTrue(store.getVersions("/c").isEmpty());
+        store.close();
+    }
+
+    @Test
+    public void carriesOnChainsAfterReopening() throws IOException {
+        DeltaStore store = new DeltaStore(directory, 100, 1 << 20);
+        for (int version = 0; version < 3; ++version) {
+            store.storePages(pages(version, "/a"));
+        }
+        store.close();
+
+        store = new DeltaStore(directory, 100, 1 << 20);
+        store.storePages(pages(3, "/a"));
+        List<DeltaStore.Version> versions = store.getVersions("/a");
+        assertEquals(4, versions.size());
+        assertFalse(versions.get(3).isKeyframe());
+        for (int version = 0; version < 4; ++version) {
+            assertEquals(html(version), store.reconstruct(versions.get(version)));
+        }
+        store.close();
+    }
+
+    @Test
+    public void rebuildsAcrossSegments() throws IOException {
+        // Each segment only holds a few records
+        DeltaStore store = new DeltaStore(directory, 100, 2048);
+        for (int version = 0; version < 20; ++version) {
+            store.storePages(pages(version, "/a"));
+        }
+        store.close();
+        assertTrue(new File(directory, "versions-00001.dat").exists());
+
+        store = new DeltaStore(directory, 100, 2048);
+        List<DeltaStore.Version> versions = store.getVersions("/a");
+        assertEquals(20, versions.size());
+        for (int version = 0; version < 20; ++version) {
+            assertEquals(html(version), store.reconstruct(versions.get(version)));
+        }
+        store.close();
+    }
+
+    @Test
+    public void recoversFromATruncatedVersion() throws IOException {
+        DeltaStore store = new DeltaStore(directory, 100, 1 << 20);
+        for (int version = 0; version < 3; ++version) {
+            store.storePages(pages(version, "/a"));
+        }
+        store.close();
+
+        // Died part way through writing the last version
+        File data = new File(directory, "versions-00000.dat");
+        try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+
+        store = new DeltaStore(directory, 100, 1 << 20);
+        assertEquals(2, store.getVersions("/a").size());
+        store.storePages(pages(3, "/a"));
+        List<DeltaStore.Version> versions = store.getVersions("/a");
+        assertEquals(3, versions.size());
+        assertEquals(html(0), store.reconstruct(versions.get(0)));
+        assertEquals(html(1), store.reconstruct(versions.get(1)));
+        assertEquals(html(3), store.reconstruct(versions.get(2)));
+        store.close();
+    }
+
+    private LinkedList<Page> pages(int version, String... urls) throws IOException {
+        LinkedList<Page> pages = new LinkedList<>();
+        for (String url : urls) {
+            Page page = new Page(url, root, url);
+            page.setBody(html(version).getBytes(ArchiveWriter.UTF_8), ArchiveWriter.UTF_8);
+            page.setDate(1000 + version);
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    /**
+     * The same listings each time, with a different one sold out.
+     */
+    private static String html(int version) {
+        return new String(BlockDeltaTest.listing(100, version * 7), ArchiveWriter.UTF_8);
+    }
+}
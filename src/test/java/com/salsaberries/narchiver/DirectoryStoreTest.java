@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.LinkedList;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author njanetos
+ */
+public class DirectoryStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesAFilePerPage() throws IOException {
+        File directory = new File(folder.getRoot(), "pages");
+        LinkedList<Page> pages = pages();
+
+        new DirectoryStore(directory.getPath()).storePages(pages);
+        assertTrue(pages.isEmpty());
+
+        assertEquals(3, directory.list().length);
+        File file = new File(directory, (1442357918L + 1) + "|" + URLEncoder.encode("/item/1"));
+        assertEquals("<p>Item 1</p>\nroot, /: Item 1", FileUtils.readFileToString(file, "UTF-8"));
+    }
+
+    @Test
+    public void keepsPagesWhichCouldntBeWritten() throws IOException {
+        // A file where the directory should be
+        File directory = folder.newFile("pages");
+        LinkedList<Page> pages = pages();
+
+        try {
+            new DirectoryStore(directory.getPath()).storePages(pages);
+            fail("Stored pages in a file.");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(3, pages.size());
+        assertEquals("/item/0", pages.getFirst().getTagURL());
+    }
+
+    private static LinkedList<Page> pages() throws IOException {
+        Page root = new Page("/", new PageLineage());
+        LinkedList<Page> pages = new LinkedList<>();
+        for (int i = 0; i < 3; ++i) {
+            Page page = new Page("/item/" + i, root, "Item " + i);
+            page.setBody(("<p>Item " + i + "</p>").getBytes(ArchiveWriter.UTF_8), ArchiveWriter.UTF_8);
+            page.setDate(1442357918L + i);
+            pages.add(page);
+        }
+        return pages;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author njanetos
+ */
+public class FingerprintMapTest {
+
+    @Test
+    public void putsReplacesAndGets() {
+        FingerprintMap map = new FingerprintMap(16);
+        map.put(7, 70);
+        map.put(8, 80);
+        map.put(7, 71);
+        assertEquals(71, map.get(7, -1));
+        assertEquals(80, map.get(8, -1));
+        assertEquals(-1, map.get(9, -1));
+        assertTrue(map.containsKey(8));
+        assertFalse(map.containsKey(9));
+        assertEquals(2, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesZero() {
+        new FingerprintMap(16).put(0, 1);
+    }
+
+    @Test
+    public void zeroIsNeverThere() {
+        FingerprintMap map = new FingerprintMap(16);
+        map.put(7, 70);
+        assertFalse(map.containsKey(0));
+        assertEquals(-1, map.get(0, -1));
+        assertFalse(map.remove(0));
+        assertEquals(1, map.size());
+        assertEquals(70, map.get(7, -1));
+    }
+
+    @Test
+    public void removeKeepsLaterProbesFindable() {
+        // All in the same home slot, and the last one wrapping round the end
+        // of the table
+        FingerprintMap map = new FingerprintMap(16);
+        long[] keys = new long[]{(1L << 32) | 31, (2L << 32) | 31, (3L << 32) | 31, (4L << 32) | 31};
+        for (int i = 0; i < keys.length; ++i) {
+            map.put(keys[i], i);
+        }
+        assertTrue(map.remove(keys[1]));
+        assertFalse(map.remove(keys[1]));
+        assertFalse(map.containsKey(keys[1]));
+        assertEquals(0, map.get(keys[0], -1));
+        assertEquals(2, map.get(keys[2], -1));
+        assertEquals(3, map.get(keys[3], -1));
+
+        assertTrue(map.remove(keys[0]));
+        assertEquals(2, map.get(keys[2], -1));
+        assertEquals(3, map.get(keys[3], -1));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void agreesWithHashMap() {
+        Random random = new Random(1);
+        FingerprintMap map = new FingerprintMap(4);
+        HashMap<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 20000; ++i) {
+            // Few distinct keys with clustered low bits, so removals often
+            // have to move entries back
+            long key = 1 + random.nextInt(500) * 64L;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key) != null, map.remove(key));
+            } else {
+                long value = random.nextLong();
+                expected.put(key, value);
+                map.put(key, value);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals((long) entry.getValue(), map.get(entry.getKey(), -1));
+        }
+
+        long[] values = map.values();
+        long[] wanted = new long[expected.size()];
+        int n = 0;
+        for (long value : expected.values()) {
+            wanted[n++] = value;
+        }
+        Arrays.sort(values);
+        Arrays.sort(wanted);
+        assertArrayEquals(wanted, values);
+    }
+}
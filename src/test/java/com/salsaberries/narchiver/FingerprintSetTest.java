@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import com.salsaberries.narchiver.enums.CollisionPolicy;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author njanetos
+ */
+public class FingerprintSetTest {
+
+    @Test
+    public void addsEachUrlOnce() {
+        for (CollisionPolicy policy : CollisionPolicy.values()) {
+            for (boolean offHeap : new boolean[]{false, true}) {
+                // Small, so the table grows several times
+                FingerprintSet set = new FingerprintSet(4, policy, offHeap);
+                for (int i = 0; i < 5000; ++i) {
+                    assertTrue(set.add("/item/" + i));
+                }
+                for (int i = 0; i < 5000; ++i) {
+                    assertFalse(set.add("/item/" + i));
+                    assertTrue(set.contains("/item/" + i));
+                }
+                assertFalse(set.contains("/item/5000"));
+                assertEquals(5000, set.size());
+                assertEquals(0, set.getCollisions());
+            }
+        }
+    }
+
+    @Test
+    public void verifyKeepsUrlsSharingAFingerprint() {
+        FingerprintSet set = new FingerprintSet(16, CollisionPolicy.VERIFY, false);
+        assertTrue(set.add(42, 1));
+        assertTrue(set.add(42, 2));
+        assertFalse(set.add(42, 1));
+        assertTrue(set.contains(42, 2));
+        assertFalse(set.contains(42, 3));
+        assertEquals(2, set.size());
+        assertEquals(1, set.getCollisions());
+    }
+
+    @Test
+    public void trustTreatsASharedFingerprintAsTheSameUrl() {
+        FingerprintSet set = new FingerprintSet(16, CollisionPolicy.TRUST, false);
+        assertTrue(set.add(42, 1));
+        assertFalse(set.add(42, 2));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void fingerprintsAreNeverZero() {
+        assertNotEquals(0, FingerprintSet.fingerprint(""));
+        assertNotEquals(FingerprintSet.fingerprint("/a"), FingerprintSet.fingerprint("/b"));
+        assertNotEquals(FingerprintSet.secondaryFingerprint("/a"), FingerprintSet.secondaryFingerprint("/b"));
+    }
+
+    @Test
+    public void stripedSetAddsEachUrlOnceAcrossThreads() throws InterruptedException {
+        final StripedSeenSet set = new StripedSeenSet(4, 16, CollisionPolicy.VERIFY, false);
+        final AtomicInteger added = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Every thread tries every URL
+                    for (int i = 0; i < 2000; ++i) {
+                        if (set.add("/item/" + i)) {
+                            added.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(2000, added.get());
+        assertEquals(2000, set.size());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author njanetos
+ */
+public class FrontierTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PageLineage lineage;
+    private Page root;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        lineage = new PageLineage();
+        root = new Page("/", lineage);
+        directory = new File(folder.getRoot(), "frontier");
+    }
+
+    @Test
+    public void keepsOrderAcrossSegments() throws IOException {
+        // Small segments, so the pages are spread over several
+        Frontier frontier = new Frontier(directory, 4, 256, lineage);
+        for (int i = 0; i < 100; ++i) {
+            frontier.add(new Page("/item/" + i, root, "Item " + i));
+        }
+        assertEquals(100, frontier.size());
+        assertEquals(96, frontier.getSpilled());
+        assertTrue(directory.list().length > 1);
+
+        for (int i = 0; i < 100; ++i) {
+            Page page = frontier.removeFirst();
+            assertEquals("/item/" + i, page.getTagURL());
+            assertEquals(1, page.getDepth());
+            assertEquals("root, /: Item " + i, page.getPath());
+        }
+        assertTrue(frontier.isEmpty());
+        assertNull(frontier.removeFirst());
+        frontier.close();
+        assertFalse(directory.exists());
+    }
+
+    @Test
+    public void pushedPagesComeOutNext() throws IOException {
+        Frontier frontier = new Frontier(directory, 2, 256, lineage);
+        for (int i = 0; i < 10; ++i) {
+            frontier.add(new Page("/item/" + i, root, ""));
+        }
+        assertEquals("/item/0", frontier.removeFirst().getTagURL());
+        frontier.push(new Page("/retry", root, ""));
+        assertEquals("/retry", frontier.removeFirst().getTagURL());
+        for (int i = 1; i < 10; ++i) {
+            assertEquals("/item/" + i, frontier.removeFirst().getTagURL());
+        }
+        assertTrue(frontier.isEmpty());
+        frontier.close();
+    }
+
+    @Test
+    public void addsAfterDrainingGoToTheBack() throws IOException {
+        Frontier frontier = new Frontier(directory, 2, 256, lineage);
+        for (int i = 0; i < 5; ++i) {
+            frontier.add(new Page("/a/" + i, root, ""));
+        }
+        for (int i = 0; i < 3; ++i) {
+            assertEquals("/a/" + i, frontier.removeFirst().getTagURL());
+        }
+        for (int i = 0; i < 5; ++i) {
+            frontier.add(new Page("/b/" + i, root, ""));
+        }
+        for (int i = 3; i < 5; ++i) {
+            assertEquals("/a/" + i, frontier.removeFirst().getTagURL());
+        }
+        for (int i = 0; i < 5; ++i) {
+            assertEquals("/b/" + i, frontier.removeFirst().getTagURL());
+        }
+        assertTrue(frontier.isEmpty());
+        frontier.close();
+    }
+
+    @Test
+    public void restoresSavedState() throws IOException {
+        Frontier frontier = new Frontier(directory, 4, 256, lineage);
+        frontier.setRetainConsumed(true);
+        for (int i = 0; i < 50; ++i) {
+            frontier.add(new Page("/item/" + i, root, "Item " + i));
+        }
+        for (int i = 0; i < 10; ++i) {
+            frontier.removeFirst();
+        }
+
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        frontier.writeState(new DataOutputStream(state));
+        Frontier restored = Frontier.restore(new DataInputStream(new ByteArrayInputStream(state.toByteArray())), directory, 4, 256, lineage);
+
+        assertEquals(40, restored.size());
+        for (int i = 10; i < 50; ++i) {
+            Page page = restored.removeFirst();
+            assertEquals("/item/" + i, page.getTagURL());
+            assertEquals("root, /: Item " + i, page.getPath());
+        }
+        assertTrue(restored.isEmpty());
+        restored.close();
+    }
+
+    @Test
+    public void dropsPagesWhichCantBeReadBack() throws IOException {
+        // The pages on disk name nodes this lineage doesn't have
+        Frontier frontier = new Frontier(directory, 1, 256, new PageLineage());
+        for (int i = 0; i < 5; ++i) {
+            frontier.add(new Page("/item/" + i, root, ""));
+        }
+        assertEquals(4, frontier.getSpilled());
+
+        assertEquals("/item/0", frontier.removeFirst().getTagURL());
+        assertNull(frontier.removeFirst());
+        assertTrue(frontier.isEmpty());
+        frontier.close();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 Nick Janetos njanetos@sas.upenn.edu.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.salsaberries.narchiver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author njanetos
+ */
+public class ProxyGateTest {
+
+    @Test(timeout = 10000)
+    public void sitesTakeTurns() throws InterruptedException {
+        final ProxyGate gate = new ProxyGate(1);
+        gate.enter("held");
+
+        final List<String> admitted = Collections.synchronizedList(new ArrayList<String>());
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (String site : new String[]{"busy", "busy", "busy", "quiet"}) {
+            threads.add(enter(gate, site, admitted));
+            awaitWaiting(gate, threads.size());
+        }
+
+        // Each slot given back goes to the next site, not the next request
+        for (int i = 0; i < threads.size(); ++i) {
+            gate.leave();
+            while (admitted.size() == i) {
+                Thread.sleep(1);
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Arrays.asList("busy", "quiet", "busy", "busy"), admitted);
+        assertEquals(1, gate.getInFlight());
+    }
+
+    @Test(timeout = 30000)
+    public void siteWithFewWorkersGetsItsShare() throws InterruptedException {
+        final ProxyGate gate = new ProxyGate(2);
+        final AtomicInteger busyRequests = new AtomicInteger();
+        final boolean[] stop = {false};
+
+        ArrayList<Thread> busy = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!stopped(stop)) {
+                            request(gate, "busy");
+                            busyRequests.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            thread.start();
+            busy.add(thread);
+        }
+        awaitWaiting(gate, 6);
+
+        // A single worker on the other site, against eight
+        int before = busyRequests.get();
+        for (int i = 0; i < 50; ++i) {
+            request(gate, "quiet");
+        }
+        int during = busyRequests.get() - before;
+
+        synchronized (stop) {
+            stop[0] = true;
+        }
+        for (Thread thread : busy) {
+            thread.join();
+        }
+
+        // Taking turns, the busy site gets two or three slots for each of
+        // the quiet site's. In arrival order it would get about eight.
+        assertTrue("Busy site made " + during + " requests to the quiet site's 50.", during < 50 * 5);
+        assertEquals(0, gate.getInFlight());
+        assertEquals(0, gate.getWaiting());
+    }
+
+    @Test(timeout = 10000)
+    public void interruptedWaiterGivesUpItsPlace() throws InterruptedException {
+        ProxyGate gate = new ProxyGate(1);
+        gate.enter("held");
+        List<String> admitted = Collections.synchronizedList(new ArrayList<String>());
+        Thread first = enter(gate, "a", admitted);
+        awaitWaiting(gate, 1);
+        Thread second = enter(gate, "b", admitted);
+        awaitWaiting(gate, 2);
+
+        first.interrupt();
+        first.join();
+        assertEquals(1, gate.getWaiting());
+
+        gate.leave();
+        second.join();
+        assertEquals(Collections.singletonList("b"), admitted);
+        assertEquals(1, gate.getInFlight());
+    }
+
+    private static Thread enter(final ProxyGate gate, final String site, final List<String> admitted) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    gate.enter(site);
+                    admitted.add(site);
+                } catch (InterruptedException e) {
+                    // Gave up waiting
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void request(ProxyGate gate, String site) throws InterruptedException {
+        gate.enter(site);
+        try {
+            Thread.sleep(2);
+        } finally {
+            gate.leave();
+        }
+    }
+
+    private static boolean stopped(boolean[] stop) {
+        synchronized (stop) {
+            return stop[0];
+        }
+    }
+
+    private static void awaitWaiting(ProxyGate gate, int waiting) throws InterruptedException {
+        while (gate.getWaiting() < waiting) {
+            Thread.sleep(1);
+        }
+    }
+}